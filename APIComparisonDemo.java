@@ -18,7 +18,7 @@ public class APIComparisonDemo {
             
             while (!exit) {
                 printMenu();
-                System.out.print("Enter your choice (1-7): ");
+                System.out.print("Enter your choice (1-8): ");
                 
                 if (scanner.hasNextInt()) {
                     int choice = scanner.nextInt();
@@ -44,17 +44,20 @@ public class APIComparisonDemo {
                             runWebhookDemo();
                             break;
                         case 7:
+                            runPayloadComparison();
+                            break;
+                        case 8:
                             exit = true;
                             break;
                         default:
-                            log("Error", "Invalid choice. Please enter a number between 1 and 7.");
+                            log("Error", "Invalid choice. Please enter a number between 1 and 8.");
                     }
                 } else {
                     String input = scanner.nextLine();
                     if (input.equalsIgnoreCase("q") || input.equalsIgnoreCase("exit")) {
                         exit = true;
                     } else {
-                        log("Error", "Invalid input. Please enter a number between 1 and 7.");
+                        log("Error", "Invalid input. Please enter a number between 1 and 8.");
                     }
                 }
                 
@@ -87,7 +90,8 @@ public class APIComparisonDemo {
         System.out.println("4. gRPC (Google Remote Procedure Call)");
         System.out.println("5. WebSocket");
         System.out.println("6. Webhook");
-        System.out.println("7. Exit");
+        System.out.println("7. Payload Size Comparison (all styles)");
+        System.out.println("8. Exit");
         System.out.println("═════════════════════════════════════════════");
     }
     
@@ -261,6 +265,19 @@ public class APIComparisonDemo {
         }
     }
     
+    private static void runPayloadComparison() {
+        printAPITitle("Payload Size");
+        System.out.println("\nEncodes the same coffee dataset in every style's wire format and reports");
+        System.out.println("bytes per message, encode cost and decode cost, with optional compression.");
+        
+        System.out.println("\nRunning Payload Size Comparison...\n");
+        try {
+            PayloadSizeBenchmark.main(new String[]{});
+        } catch (Exception e) {
+            log("Error", "Error running payload comparison: " + e.getMessage());
+        }
+    }
+    
     private static void printAPITitle(String apiName) {
         System.out.println("\n╔════════════════════════════════════════════════════╗");
         System.out.println("║                                                    ║");
@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.SplittableRandom;
+
+/**
+ * Heap footprint, GC cost and lookup rate of the CoffeeStore backends
+ *
+ * Loads the same DatasetGenerator catalog into one backend per run and reports:
+ * - load: time until the store can answer get(), including the first get
+ * - heap: heap in use after a full GC, less what was in use before loading
+ * - off-heap: direct and mapped buffer memory in use
+ * - full GC: how long one System.gc() takes with the store live
+ * - lookups: get() by id for ids drawn from the dataset's Zipf access stream
+ *
+ * Backends:
+ * - heap: CoffeeStore alone, every coffee a snapshot in an AtomicReference
+ * - offheap: CoffeeStore.backedBy() a new OffHeapCatalog
+ * - persistent: CoffeeStore.persistent() over a DurableCatalog directory, which
+ *   is built first if it has no snapshot; the load time is the time to open it
+ *
+ * Each backend runs in its own JVM so one run's garbage does not show up in
+ * the next one's figures:
+ *
+ *   java -Xmx4g -XX:MaxDirectMemorySize=4g CatalogFootprintBenchmark heap 5000000
+ *   java -Xmx4g -XX:MaxDirectMemorySize=4g CatalogFootprintBenchmark offheap 5000000
+ *   java -Xmx4g -XX:MaxDirectMemorySize=4g CatalogFootprintBenchmark persistent 5000000 /tmp/catalog-5m
+ *
+ * Usage: java CatalogFootprintBenchmark <heap|offheap|persistent> [coffees] [directory] [lookups]
+ */
+public class CatalogFootprintBenchmark {
+
+    private static final int DEFAULT_COFFEES = 1_000_000;
+    private static final int DEFAULT_LOOKUPS = 2_000_000;
+
+    // Used only to keep the JIT from discarding benchmark results
+    private static long blackhole;
+
+    public static void main(String[] args) throws IOException {
+        String backend = args.length > 0 ? args[0] : "offheap";
+        int coffees = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_COFFEES;
+        Path directory = args.length > 2 ? Paths.get(args[2]) :
+            Paths.get(System.getProperty("java.io.tmpdir"), "catalog-footprint-" + coffees);
+        int lookups = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_LOOKUPS;
+        DatasetGenerator dataset = new DatasetGenerator(DatasetGenerator.DEFAULT_SEED, coffees, 0, 0);
+
+        if ("persistent".equals(backend) && !Files.exists(directory.resolve(DurableCatalog.SNAPSHOT_FILE))) {
+            build(dataset, directory);
+        }
+
+        long baseline = heapAfterGc();
+        log("Benchmark", "Loading " + coffees + " coffees into the " + backend + " backend");
+        long start = System.nanoTime();
+        CoffeeStore store = open(backend, dataset, directory);
+        if (store.get(DatasetGenerator.coffeeId(0)) == null) {
+            throw new IllegalStateException("Coffee " + DatasetGenerator.coffeeId(0) + " is missing after loading");
+        }
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+
+        long heap = heapAfterGc() - baseline;
+        start = System.nanoTime();
+        System.gc();
+        long gcMillis = (System.nanoTime() - start) / 1_000_000;
+        double lookupNanos = lookups(store, dataset, lookups);
+
+        System.out.println();
+        System.out.println(String.format("%-12s %10s %10s %12s %12s %10s %12s",
+            "Backend", "coffees", "load ms", "heap MB", "off-heap MB", "full GC ms", "get ns/op"));
+        System.out.println(String.format("%-12s %10d %10d %12.1f %12.1f %10d %12.0f",
+            backend, store.size(), loadMillis, heap / 1e6, offHeapBytes() / 1e6, gcMillis, lookupNanos));
+        System.out.println();
+        log("Info", "Heap is measured after a full GC, so it is what the store keeps live");
+        log("Info", "Off-heap counts every direct and mapped buffer, including the journal's segments");
+        if (blackhole == 42) {
+            System.out.println();
+        }
+    }
+
+    private static CoffeeStore open(String backend, DatasetGenerator dataset, Path directory) throws IOException {
+        switch (backend) {
+            case "heap":
+                CoffeeStore store = new CoffeeStore();
+                dataset.loadCoffees(store);
+                return store;
+            case "offheap":
+                OffHeapCatalog catalog = new OffHeapCatalog(Math.max(1, dataset.getCoffeeCount()));
+                dataset.loadCoffees(catalog);
+                return CoffeeStore.backedBy(catalog);
+            case "persistent":
+                return CoffeeStore.persistent(directory);
+            default:
+                throw new IllegalArgumentException("Unknown backend " + backend + ", expected heap, offheap or persistent");
+        }
+    }
+
+    /**
+     * Writes the dataset to a DurableCatalog in the directory and closes it, which leaves a snapshot
+     */
+    private static void build(DatasetGenerator dataset, Path directory) throws IOException {
+        log("Benchmark", "Building a catalog of " + dataset.getCoffeeCount() + " coffees in " + directory);
+        long start = System.nanoTime();
+        try (DurableCatalog durable = new DurableCatalog(directory, Math.max(1, dataset.getCoffeeCount()),
+                                                         DurableCatalog.DEFAULT_SNAPSHOT_INTERVAL_MILLIS)) {
+            dataset.loadCoffees(durable.getCatalog());
+        }
+        log("Benchmark", "Built in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    // Warms up on a quarter of the draws, then times the rest
+    private static double lookups(CoffeeStore store, DatasetGenerator dataset, int lookups) {
+        DatasetGenerator.ZipfSampler access = dataset.coffeeAccess();
+        SplittableRandom random = new SplittableRandom(dataset.getSeed());
+        String[] ids = new String[lookups];
+        for (int i = 0; i < lookups; i++) {
+            ids[i] = DatasetGenerator.coffeeId(access.sample(random));
+        }
+        int warmup = lookups / 4;
+        for (int i = 0; i < warmup; i++) {
+            blackhole += store.get(ids[i]).getQuantity();
+        }
+        long start = System.nanoTime();
+        for (int i = warmup; i < lookups; i++) {
+            blackhole += store.get(ids[i]).getQuantity();
+        }
+        return (double) (System.nanoTime() - start) / Math.max(1, lookups - warmup);
+    }
+
+    private static long heapAfterGc() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        // A second collection picks up what the first one only finalised
+        System.gc();
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long offHeapBytes() {
+        long total = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            total += pool.getMemoryUsed();
+        }
+        return total;
+    }
+
+    // Logging helper
+    private static void log(String source, String message) {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss.SSS"));
+        System.out.println("[" + timestamp + "] [" + source + "] " + message);
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Circuit breaker that trips on the error rate or the share of slow calls
+ *
+ * The breaker keeps the outcome of the last windowSize calls in a ring. Once
+ * at least half the window has been filled, it opens when the share of failed
+ * calls, or of calls slower than slowCallMillis, reaches the threshold. While
+ * open, tryAcquire() refuses calls, so a degraded dependency stops costing
+ * its callers time and gets room to recover. After openMillis it lets a single
+ * trial call through (half-open): success closes the breaker with a fresh
+ * window, a failure or slow call opens it again.
+ *
+ *   CLOSED --(error or slow rate >= threshold)--> OPEN --(openMillis)--> HALF_OPEN
+ *   HALF_OPEN --(trial ok)--> CLOSED, HALF_OPEN --(trial fails)--> OPEN
+ *
+ * All methods are synchronized; a breaker guards calls that take milliseconds,
+ * so the lock is never contended for long.
+ */
+public class CircuitBreaker {
+
+    private final String name;
+    private final int minimumCalls;
+    private final double threshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+
+    // Ring of recent outcomes; bit 0 = failed, bit 1 = slow
+    private final byte[] window;
+    private int next;
+    private int calls;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean trialInFlight;
+    private Listener listener;
+
+    /**
+     * @param windowSize number of recent calls the rates are computed over
+     * @param threshold failure or slow-call share, between 0 and 1, at which the breaker opens
+     * @param slowCallMillis calls slower than this count as slow
+     * @param openMillis how long the breaker stays open before a trial call
+     */
+    public CircuitBreaker(String name, int windowSize, double threshold, long slowCallMillis, long openMillis) {
+        if (windowSize < 1 || threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings: window " + windowSize +
+                                               ", threshold " + threshold);
+        }
+        this.name = name;
+        this.window = new byte[windowSize];
+        this.minimumCalls = Math.max(1, windowSize / 2);
+        this.threshold = threshold;
+        this.slowCallNanos = slowCallMillis * 1_000_000L;
+        this.openNanos = openMillis * 1_000_000L;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Whether a call may go ahead now; every permitted call must be followed by record()
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < openNanos) {
+                    return false;
+                }
+                transition(State.HALF_OPEN);
+                trialInFlight = true;
+                return true;
+            default:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+        }
+    }
+
+    /**
+     * Records the outcome of a permitted call
+     */
+    public synchronized void record(boolean failed, long latencyNanos) {
+        boolean slow = latencyNanos > slowCallNanos;
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            if (failed || slow) {
+                open();
+            } else {
+                reset();
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            // Started before the breaker opened; it says nothing new
+            return;
+        }
+        if (calls == window.length) {
+            byte oldest = window[next];
+            failures -= oldest & 1;
+            slowCalls -= (oldest >> 1) & 1;
+        } else {
+            calls++;
+        }
+        window[next] = (byte) ((failed ? 1 : 0) | (slow ? 2 : 0));
+        next = (next + 1) % window.length;
+        if (failed) {
+            failures++;
+        }
+        if (slow) {
+            slowCalls++;
+        }
+        if (calls >= minimumCalls && (failures >= threshold * calls || slowCalls >= threshold * calls)) {
+            open();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Milliseconds until an open breaker allows a trial call; 0 when it is not open
+     */
+    public synchronized long getRetryAfterMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        long remaining = openNanos - (System.nanoTime() - openedAt);
+        return remaining > 0 ? (remaining + 999_999) / 1_000_000 : 0;
+    }
+
+    /**
+     * Share of failed calls in the current window
+     */
+    public synchronized double getFailureRate() {
+        return calls == 0 ? 0 : (double) failures / calls;
+    }
+
+    /**
+     * Share of slow calls in the current window
+     */
+    public synchronized double getSlowCallRate() {
+        return calls == 0 ? 0 : (double) slowCalls / calls;
+    }
+
+    /**
+     * Told about every state change, on the thread that caused it
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    private void open() {
+        openedAt = System.nanoTime();
+        reset();
+        transition(State.OPEN);
+    }
+
+    private void reset() {
+        next = 0;
+        calls = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    private void transition(State to) {
+        State from = state;
+        state = to;
+        if (listener != null && from != to) {
+            listener.onStateChange(this, from, to);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " " + state + String.format(" (failures %.0f%%, slow %.0f%%)",
+                                                  getFailureRate() * 100, getSlowCallRate() * 100);
+    }
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * State change callback; see setListener()
+     */
+    public interface Listener {
+        void onStateChange(CircuitBreaker breaker, State from, State to);
+    }
+}
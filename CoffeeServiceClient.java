@@ -0,0 +1,258 @@
+import javax.activation.DataHandler;
+import javax.xml.namespace.QName;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Service;
+import javax.xml.ws.WebServiceFeature;
+import javax.xml.ws.soap.MTOMFeature;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JAX-WS client for CoffeeService that builds its Service once and shares port proxies between threads
+ *
+ * Service.create() parses the WSDL and schema and builds the JAXB context;
+ * getPort() builds the proxy and its tube line. Together they cost hundreds
+ * of milliseconds, so a client that does them per run pays more for setup
+ * than for its calls. This client does them once:
+ *
+ * - The WSDL and schema are fetched from the server the first time and kept
+ *   in a local directory; later clients read them from disk and start without
+ *   a network round trip. Copies older than the maximum age are fetched again.
+ * - Port proxies are not safe for concurrent use, so each call borrows one
+ *   from a pool and gives it back afterwards. Proxies are created on demand,
+ *   up to the pool size; a caller beyond that waits for one to be returned.
+ * - Calls go over HttpURLConnection, whose keep-alive cache holds up to
+ *   http.maxConnections (default 5) idle connections per server, so a pool of
+ *   that size or less reuses its TCP connections from call to call.
+ * - The WSDL offers MTOM, which JAX-WS turns on for every call by default and
+ *   so wraps even a one-line request in a multipart package. Pooled ports
+ *   switch it off; the catalog export, the one call that carries binary
+ *   content, goes through a separate pool of ports that keep it on and stream
+ *   the attachment instead of holding it in memory.
+ */
+public final class CoffeeServiceClient {
+
+    public static final QName SERVICE_NAME = new QName(StaxSoapEndpoint.NAMESPACE, "CoffeeServiceImplService");
+    public static final QName PORT_NAME = new QName(StaxSoapEndpoint.NAMESPACE, "CoffeeServiceImplPort");
+
+    public static final Path DEFAULT_CACHE_DIRECTORY =
+        Paths.get(System.getProperty("java.io.tmpdir"), "soap-demo-wsdl");
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private static final String SCHEMA_LOCATION = "?xsd=1";
+
+    private final String address;
+    private final Service service;
+    private final PortPool ports;
+    private final PortPool exportPorts;
+
+    public CoffeeServiceClient(String address, int maxPorts) throws IOException {
+        this(address, maxPorts, DEFAULT_CACHE_DIRECTORY, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    public CoffeeServiceClient(String address, int maxPorts, Path cacheDirectory, long maxAgeMillis)
+            throws IOException {
+        if (maxPorts < 1) {
+            throw new IllegalArgumentException("maxPorts must be at least 1, got " + maxPorts);
+        }
+        this.address = address;
+        URL wsdl = cachedWsdl(address, cacheDirectory, maxAgeMillis);
+        this.service = Service.create(wsdl, SERVICE_NAME);
+        this.ports = new PortPool(maxPorts, new MTOMFeature(false));
+        this.exportPorts = new PortPool(maxPorts, new MTOMFeature(true));
+    }
+
+    /**
+     * Local copy of the service's WSDL, fetching it (and the schema it imports) if missing or stale
+     */
+    public static URL cachedWsdl(String address, Path cacheDirectory, long maxAgeMillis) throws IOException {
+        URL server = new URL(address);
+        String key = (server.getHost() + "_" + server.getPort() + server.getPath()).replaceAll("[^A-Za-z0-9_.-]", "_");
+        Path wsdl = cacheDirectory.resolve(key + ".wsdl");
+        Path schema = cacheDirectory.resolve(key + ".xsd");
+        if (Files.isRegularFile(wsdl) && Files.isRegularFile(schema) &&
+            System.currentTimeMillis() - Files.getLastModifiedTime(wsdl).toMillis() < maxAgeMillis) {
+            return wsdl.toUri().toURL();
+        }
+        Files.createDirectories(cacheDirectory);
+        // The schema first, so a WSDL on disk always has its schema next to it
+        write(schema, fetch(address + SCHEMA_LOCATION));
+        String document = fetch(address + "?wsdl")
+            .replace("schemaLocation=\"" + address + SCHEMA_LOCATION + "\"",
+                     "schemaLocation=\"" + schema.getFileName() + "\"");
+        write(wsdl, document);
+        return wsdl.toUri().toURL();
+    }
+
+    /**
+     * Runs a call on a pooled port proxy, waiting for one if all are in use
+     */
+    public <T> T execute(PortCall<T> call) throws SOAPDemoService.CoffeeNotFoundException {
+        return ports.execute(call);
+    }
+
+    public SOAPDemoService.CoffeeResponse getCoffee(String name) throws SOAPDemoService.CoffeeNotFoundException {
+        return execute(port -> port.getCoffee(name));
+    }
+
+    /**
+     * The named coffees in one round trip; unknown names are left out
+     */
+    public List<SOAPDemoService.CoffeeResponse> getCoffees(List<String> names) {
+        return ports.executeUnchecked(port -> port.getCoffees(names));
+    }
+
+    /**
+     * Streams the catalog export into out as it arrives
+     *
+     * @return the number of bytes written
+     */
+    public long exportCatalog(OutputStream out) throws IOException {
+        // The attachment streams over the port's connection, so the port stays borrowed until it is read
+        SOAPDemoService.CoffeeService port = exportPorts.borrow();
+        try {
+            DataHandler catalog = port.exportCatalog();
+            long total = 0;
+            try (InputStream in = catalog.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    total += read;
+                }
+            }
+            return total;
+        } finally {
+            exportPorts.release(port);
+        }
+    }
+
+    /**
+     * Port proxies created so far, for calls other than the catalog export
+     */
+    public int getPortCount() {
+        return ports.created.get();
+    }
+
+    private SOAPDemoService.CoffeeService newPort(WebServiceFeature feature) {
+        SOAPDemoService.CoffeeService port;
+        // Service is not documented as thread-safe; creating ports is rare, so serialise it
+        synchronized (service) {
+            port = service.getPort(PORT_NAME, SOAPDemoService.CoffeeService.class, feature);
+        }
+        // Call the address we were given, not whatever the cached WSDL says
+        ((BindingProvider) port).getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, address);
+        return port;
+    }
+
+    private static String fetch(String url) throws IOException {
+        try (InputStream in = new URL(url).openStream()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A call made on a borrowed port proxy
+     */
+    public interface PortCall<T> {
+        T call(SOAPDemoService.CoffeeService port) throws SOAPDemoService.CoffeeNotFoundException;
+    }
+
+    /**
+     * Port proxies with the same features, created on demand up to a limit
+     *
+     * A caller first takes one of maxPorts permits, then an idle port or, if
+     * there is none, a new one. Holding a permit with no idle port means fewer
+     * than maxPorts exist, so creating one never overshoots, and a failed
+     * creation just hands the permit to the next waiter.
+     */
+    private final class PortPool {
+        private final WebServiceFeature feature;
+        private final Semaphore permits;
+        private final Queue<SOAPDemoService.CoffeeService> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger created = new AtomicInteger();
+
+        PortPool(int maxPorts, WebServiceFeature feature) {
+            this.feature = feature;
+            this.permits = new Semaphore(maxPorts);
+        }
+
+        <T> T execute(PortCall<T> call) throws SOAPDemoService.CoffeeNotFoundException {
+            SOAPDemoService.CoffeeService port = borrow();
+            try {
+                return call.call(port);
+            } finally {
+                // A fault or transport error leaves the proxy usable
+                release(port);
+            }
+        }
+
+        // For operations that declare no fault
+        <T> T executeUnchecked(PortCall<T> call) {
+            try {
+                return execute(call);
+            } catch (SOAPDemoService.CoffeeNotFoundException e) {
+                throw new IllegalStateException("Undeclared fault from CoffeeService", e);
+            }
+        }
+
+        SOAPDemoService.CoffeeService borrow() {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for a CoffeeService port", e);
+            }
+            SOAPDemoService.CoffeeService port = idle.poll();
+            if (port != null) {
+                return port;
+            }
+            try {
+                port = newPort(feature);
+            } catch (RuntimeException | Error e) {
+                // The next waiter gets the permit and tries to create the port itself
+                permits.release();
+                throw e;
+            }
+            created.incrementAndGet();
+            return port;
+        }
+
+        void release(SOAPDemoService.CoffeeService port) {
+            idle.offer(port);
+            permits.release();
+        }
+    }
+
+    // Write-then-rename, so a concurrent reader never sees a half-written file
+    private static void write(Path target, String content) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,722 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Lock-free coffee catalog shared by every API style
+ *
+ * REST, GraphQL, gRPC, SOAP and WebSocket all read the same store, so the
+ * demos serve identical data and the JVM holds one copy of the catalog
+ * whichever of them run.
+ *
+ * Each coffee is an immutable Coffee snapshot in its own AtomicReference.
+ * Writers only contend when they change the same coffee, and readers always
+ * see a name, price, origin and quantity that belong together.
+ *
+ * Every successful change is queued, and whichever writer finds no dispatch
+ * in progress delivers the queue to the listeners, one event at a time and
+ * numbered in delivery order. Two changes to the same coffee can be queued
+ * out of order; the later-queued, older one is then folded away, because the
+ * newer snapshot already includes it and the event reports every field that
+ * changed since the last delivered snapshot. A removed coffee leaves a
+ * tombstone in its place, so removing and re-creating an id follows the same
+ * rule.
+ *
+ * A store backed by an OffHeapCatalog serves reads from the catalog's
+ * records and only keeps a heap snapshot, with its AtomicReference, for
+ * coffees that are written; heap use then follows the coffees that change,
+ * not the size of the catalog. Each change goes to the catalog before the
+ * new snapshot is published, so with a DurableCatalog a write that returns
+ * is in the log and one the log refuses is not made.
+ *
+ * The shared store starts from the demo catalog on every run unless the
+ * coffee.store.dir system property names a directory; it is then kept there
+ * in a DurableCatalog and changes survive a restart.
+ *
+ * Ids, names and origins are held to the sizes OffHeapCatalog records have
+ * room for in every store, so a write that works in memory keeps working
+ * once the store is persistent.
+ */
+public final class CoffeeStore {
+
+    public static final String DATA_DIRECTORY_PROPERTY = "coffee.store.dir";
+
+    private static final CoffeeStore SHARED = createShared();
+
+    // Once an id is in use its reference stays; removal swaps in a tombstone, so every change to an id is one CAS chain.
+    // A catalog-backed store only has references for the coffees written since it opened.
+    private final Map<String, AtomicReference<Coffee>> items = new ConcurrentHashMap<>();
+    // Name to id, ordered ignoring case so a lookup needs no lower-cased copy of the name;
+    // renames update it just after their snapshot is in, so lookups verify it. Unused with a catalog,
+    // which has a name index of its own.
+    private final Map<String, String> idsByName = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong versions;
+    private final Queue<Coffee> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private final List<Consumer<ChangeEvent>> listeners = new CopyOnWriteArrayList<>();
+
+    // Only touched by the thread holding the dispatching flag
+    private final Map<String, Coffee> delivered = new HashMap<>();
+    private long sequence;
+
+    // Null for a store that lives only in memory
+    private final OffHeapCatalog catalog;
+
+    public CoffeeStore() {
+        this(null);
+    }
+
+    private CoffeeStore(OffHeapCatalog catalog) {
+        this.catalog = catalog;
+        // Carry on numbering from the catalog, so changes made here are newer than anything in it
+        this.versions = new AtomicLong(catalog != null ? catalog.getVersion() : 0);
+    }
+
+    /**
+     * The store the demo services share
+     */
+    public static CoffeeStore shared() {
+        return SHARED;
+    }
+
+    private static CoffeeStore createShared() {
+        String directory = System.getProperty(DATA_DIRECTORY_PROPERTY);
+        if (directory == null) {
+            return withDefaultCatalog();
+        }
+        try {
+            return persistent(Paths.get(directory));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the coffee store in " + directory, e);
+        }
+    }
+
+    /**
+     * A store kept in a DurableCatalog in the directory, which is seeded with the demo catalog while empty
+     *
+     * Every write goes to the catalog, and so to its log, before the store
+     * publishes it; a failed log write reaches the caller and the change is not
+     * made. Reads are served from the mapped snapshot and the log replayed
+     * over it, so opening copies nothing to the heap whatever the catalog
+     * size; a shutdown hook closes the catalog when the JVM exits.
+     */
+    public static CoffeeStore persistent(Path directory) throws IOException {
+        DurableCatalog durable = new DurableCatalog(directory);
+        OffHeapCatalog catalog = durable.getCatalog();
+        CoffeeStore store = new CoffeeStore(catalog);
+        if (store.size() == 0) {
+            store.addAll(withDefaultCatalog().getAll());
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                durable.close();
+            } catch (IOException e) {
+                System.err.println("CoffeeStore: could not close " + directory + ": " + e);
+            }
+        }, "coffee-store-close"));
+        return store;
+    }
+
+    /**
+     * A store that reads from the catalog and writes every change to it before publishing it
+     *
+     * The catalog must not be changed other than through the store. Coffees
+     * are read from their records; a coffee gets a heap snapshot the first
+     * time it is written and keeps it from then on.
+     */
+    public static CoffeeStore backedBy(OffHeapCatalog catalog) {
+        return new CoffeeStore(catalog);
+    }
+
+    /**
+     * A new store holding the demo catalog
+     */
+    public static CoffeeStore withDefaultCatalog() {
+        CoffeeStore store = new CoffeeStore();
+        store.add(new Coffee("latte", "Latte", 3.99, "Colombia", 10));
+        store.add(new Coffee("espresso", "Espresso", 2.50, "Brazil", 15));
+        store.add(new Coffee("cappuccino", "Cappuccino", 4.20, "Ethiopia", 8));
+        return store;
+    }
+
+    public void addListener(Consumer<ChangeEvent> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<ChangeEvent> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Adds or overwrites a coffee
+     */
+    public void add(Coffee coffee) {
+        addAll(Collections.singletonList(coffee));
+    }
+
+    /**
+     * Adds or overwrites a batch of coffees
+     *
+     * Each coffee is logged and announced to the listeners like any other
+     * change. The batch takes its versions once, not per coffee, and several
+     * threads can add batches at the same time. If the log refuses a coffee,
+     * the ones before it stay in and the exception reaches the caller.
+     */
+    public void addAll(Collection<Coffee> coffees) {
+        // Check the whole batch first, so a coffee that does not fit leaves the store untouched
+        for (Coffee coffee : coffees) {
+            OffHeapCatalog.checkFits(coffee);
+        }
+        long version = versions.getAndAdd(coffees.size());
+        List<Coffee> stored = new ArrayList<>(coffees.size());
+        int added = 0;
+        try {
+            for (Coffee coffee : coffees) {
+                AtomicReference<Coffee> item = reference(coffee.getId());
+                long next = ++version;
+                while (true) {
+                    Coffee current = item.get();
+                    Coffee snapshot = coffee.replacing(current, next);
+                    if (publish(item, current, snapshot)) {
+                        if (current == null || current.removed) {
+                            added++;
+                        }
+                        indexName(snapshot.getName(), snapshot.getId());
+                        if (current != null && !current.removed &&
+                            !current.getName().equalsIgnoreCase(snapshot.getName())) {
+                            unindexName(current.getName(), snapshot.getId());
+                        }
+                        stored.add(snapshot);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            count.addAndGet(added);
+            pending.addAll(stored);
+            dispatch();
+        }
+    }
+
+    /**
+     * The current snapshot of a coffee, or null if there is none with the id
+     */
+    public Coffee get(String id) {
+        AtomicReference<Coffee> item = items.get(id);
+        if (item == null && catalog != null) {
+            Coffee stored = read(id);
+            // A writer that got in meanwhile made a reference before touching the record, and its snapshot wins
+            item = items.get(id);
+            if (item == null) {
+                return stored;
+            }
+        }
+        Coffee coffee = item != null ? item.get() : null;
+        return coffee != null && !coffee.removed ? coffee : null;
+    }
+
+    /**
+     * The coffee with the name, ignoring case, or null
+     */
+    public Coffee findByName(String name) {
+        Coffee coffee;
+        if (catalog != null) {
+            OffHeapCatalog.Record record = catalog.findByName(name);
+            Coffee stored = record != null ? record.toCoffee() : null;
+            coffee = stored != null ? get(stored.getId()) : null;
+        } else {
+            String id = idsByName.get(name);
+            coffee = id != null ? get(id) : null;
+        }
+        // Right after a rename the old name can still point here; the snapshot has the final say
+        return coffee != null && coffee.getName().equalsIgnoreCase(name) ? coffee : null;
+    }
+
+    /**
+     * Snapshots of every coffee, in no particular order
+     */
+    public List<Coffee> getAll() {
+        List<Coffee> coffees = new ArrayList<>(size());
+        if (catalog != null) {
+            catalog.forEach(record -> {
+                Coffee stored = record.toCoffee();
+                if (stored != null) {
+                    AtomicReference<Coffee> item = items.get(stored.getId());
+                    Coffee coffee = item != null ? item.get() : stored;
+                    if (coffee != null && !coffee.removed) {
+                        coffees.add(coffee);
+                    }
+                }
+            });
+            return coffees;
+        }
+        for (AtomicReference<Coffee> item : items.values()) {
+            Coffee coffee = item.get();
+            if (coffee != null && !coffee.removed) {
+                coffees.add(coffee);
+            }
+        }
+        return coffees;
+    }
+
+    public int size() {
+        return catalog != null ? catalog.size() : count.get();
+    }
+
+    /**
+     * Adds a coffee unless one with its id exists
+     *
+     * @return false if the id is taken
+     * @throws IllegalArgumentException if the id, name or origin is too long
+     */
+    public boolean create(Coffee coffee) {
+        OffHeapCatalog.checkFits(coffee);
+        AtomicReference<Coffee> item = reference(coffee.getId());
+        while (true) {
+            Coffee current = item.get();
+            if (current != null && !current.removed) {
+                return false;
+            }
+            Coffee stored = coffee.withVersion(versions.incrementAndGet());
+            if (publish(item, current, stored)) {
+                count.incrementAndGet();
+                indexName(stored.getName(), stored.getId());
+                commit(stored);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Replaces a coffee's name, price and origin, keeping its stock
+     *
+     * @return the new snapshot, or null if there is no coffee with the id
+     * @throws IllegalArgumentException if the name or origin is too long
+     */
+    public Coffee replace(String id, String name, double price, String origin) {
+        OffHeapCatalog.checkFits(id, name, origin);
+        AtomicReference<Coffee> item = lookup(id);
+        if (item == null) {
+            return null;
+        }
+        while (true) {
+            Coffee current = item.get();
+            if (current == null || current.removed) {
+                return null;
+            }
+            Coffee updated = current.withDetails(name, price, origin, versions.incrementAndGet());
+            if (publish(item, current, updated)) {
+                if (!current.getName().equalsIgnoreCase(name)) {
+                    indexName(name, id);
+                    unindexName(current.getName(), id);
+                }
+                commit(updated);
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * @return the removed coffee, or null if there was none with the id
+     */
+    public Coffee remove(String id) {
+        AtomicReference<Coffee> item = lookup(id);
+        if (item == null) {
+            return null;
+        }
+        while (true) {
+            Coffee current = item.get();
+            if (current == null || current.removed) {
+                return null;
+            }
+            Coffee tombstone = current.removed(versions.incrementAndGet());
+            if (publish(item, current, tombstone)) {
+                count.decrementAndGet();
+                unindexName(current.getName(), id);
+                commit(tombstone);
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Takes stock if at least amount is available; false leaves the quantity untouched
+     */
+    public boolean tryDecrement(String id, int amount) {
+        AtomicReference<Coffee> item = existing(id);
+        while (true) {
+            Coffee current = current(item, id);
+            if (current.getQuantity() < amount) {
+                return false;
+            }
+            Coffee updated = current.withQuantity(current.getQuantity() - amount, versions.incrementAndGet());
+            if (publish(item, current, updated)) {
+                commit(updated);
+                return true;
+            }
+        }
+    }
+
+    public void restock(String id, int amount) {
+        AtomicReference<Coffee> item = existing(id);
+        while (true) {
+            Coffee current = current(item, id);
+            Coffee updated = current.withQuantity(current.getQuantity() + amount, versions.incrementAndGet());
+            if (publish(item, current, updated)) {
+                commit(updated);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Changes the price only if it is still at the version the caller read;
+     * stock changes in between do not count as a conflict
+     */
+    public boolean compareAndSetPrice(String id, long expectedPriceVersion, double price) {
+        AtomicReference<Coffee> item = existing(id);
+        while (true) {
+            Coffee current = current(item, id);
+            if (current.getPriceVersion() != expectedPriceVersion) {
+                return false;
+            }
+            Coffee updated = current.withPrice(price, versions.incrementAndGet());
+            if (publish(item, current, updated)) {
+                commit(updated);
+                return true;
+            }
+        }
+    }
+
+    private AtomicReference<Coffee> reference(String id) {
+        AtomicReference<Coffee> item = items.get(id);
+        return item != null ? item : items.computeIfAbsent(id, this::newReference);
+    }
+
+    // The first write to a coffee in the catalog starts its CAS chain from the record
+    private AtomicReference<Coffee> newReference(String id) {
+        Coffee stored = catalog != null ? read(id) : null;
+        if (stored != null) {
+            synchronized (delivered) {
+                // The record is what listeners have implicitly seen, so the first event is relative to it
+                delivered.putIfAbsent(id, stored);
+            }
+        }
+        return new AtomicReference<>(stored);
+    }
+
+    // The reference for a coffee that exists, or null, without making references for unknown ids
+    private AtomicReference<Coffee> lookup(String id) {
+        AtomicReference<Coffee> item = items.get(id);
+        if (item == null && catalog != null && catalog.get(id) != null) {
+            item = reference(id);
+        }
+        return item;
+    }
+
+    private Coffee read(String id) {
+        OffHeapCatalog.Record record = catalog.get(id);
+        return record != null ? record.toCoffee() : null;
+    }
+
+    // A catalog keeps its own name index, so only a heap store maintains idsByName
+    private void indexName(String name, String id) {
+        if (catalog == null) {
+            idsByName.put(name, id);
+        }
+    }
+
+    private void unindexName(String name, String id) {
+        if (catalog == null) {
+            idsByName.remove(name, id);
+        }
+    }
+
+    private AtomicReference<Coffee> existing(String id) {
+        AtomicReference<Coffee> item = lookup(id);
+        if (item == null) {
+            throw new IllegalArgumentException("Unknown coffee: " + id);
+        }
+        return item;
+    }
+
+    private static Coffee current(AtomicReference<Coffee> item, String id) {
+        Coffee current = item.get();
+        if (current == null || current.removed) {
+            throw new IllegalArgumentException("Unknown coffee: " + id);
+        }
+        return current;
+    }
+
+    /**
+     * Swaps in the new snapshot if the coffee is still at current, writing it to the catalog first if there is one
+     *
+     * The coffee's monitor keeps its catalog writes, and so its log entries,
+     * in the order its snapshots are published; a store without a catalog
+     * stays lock-free.
+     */
+    private boolean publish(AtomicReference<Coffee> item, Coffee current, Coffee updated) {
+        if (catalog == null) {
+            return item.compareAndSet(current, updated);
+        }
+        synchronized (item) {
+            if (item.get() != current) {
+                return false;
+            }
+            record(updated);
+            item.set(updated);
+            return true;
+        }
+    }
+
+    // Throws when the catalog or its log cannot take the change, before anything is published
+    private void record(Coffee snapshot) {
+        if (snapshot.removed) {
+            catalog.remove(snapshot.getId());
+        } else {
+            catalog.put(snapshot);
+        }
+    }
+
+    private void commit(Coffee snapshot) {
+        pending.add(snapshot);
+        dispatch();
+    }
+
+    private void dispatch() {
+        // Retry after releasing the flag: a change queued just before the release would otherwise wait
+        while (!pending.isEmpty() && dispatching.compareAndSet(false, true)) {
+            try {
+                dispatchPending();
+            } finally {
+                dispatching.set(false);
+            }
+        }
+    }
+
+    private void dispatchPending() {
+        Coffee coffee;
+        while ((coffee = pending.poll()) != null) {
+            Coffee previous;
+            synchronized (delivered) {
+                previous = delivered.get(coffee.getId());
+                if (previous != null && previous.getVersion() >= coffee.getVersion()) {
+                    // Already covered by a newer snapshot of the same coffee
+                    continue;
+                }
+                delivered.put(coffee.getId(), coffee);
+            }
+            if (coffee.removed && (previous == null || previous.removed)) {
+                // Created and removed again before the creation was delivered: nothing to report
+                continue;
+            }
+            ChangeEvent event = new ChangeEvent(++sequence, previous != null && !previous.removed ? previous : null,
+                                                coffee.removed ? null : coffee);
+            for (Consumer<ChangeEvent> listener : listeners) {
+                try {
+                    listener.accept(event);
+                } catch (RuntimeException e) {
+                    // One failing listener must not keep the event from the others
+                    System.err.println("CoffeeStore: listener failed on change #" + event.getSequence() + ": " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A committed change, relative to the previously delivered state of the coffee
+     *
+     * previous is null when the coffee was created, coffee is null when it was removed.
+     */
+    public static class ChangeEvent {
+        private final long sequence;
+        private final Coffee previous;
+        private final Coffee coffee;
+
+        public ChangeEvent(long sequence, Coffee previous, Coffee coffee) {
+            this.sequence = sequence;
+            this.previous = previous;
+            this.coffee = coffee;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Coffee getPrevious() {
+            return previous;
+        }
+
+        public Coffee getCoffee() {
+            return coffee;
+        }
+
+        public boolean isCreated() {
+            return previous == null;
+        }
+
+        public boolean isRemoved() {
+            return coffee == null;
+        }
+
+        public boolean isQuantityChanged() {
+            return previous != null && coffee != null && previous.getQuantity() != coffee.getQuantity();
+        }
+
+        public boolean isPriceChanged() {
+            return previous != null && coffee != null && previous.getPriceVersion() != coffee.getPriceVersion();
+        }
+
+        public boolean isDetailsChanged() {
+            return previous != null && coffee != null && (!previous.getName().equals(coffee.getName()) ||
+                !previous.getOrigin().equals(coffee.getOrigin()));
+        }
+    }
+
+    /**
+     * Read access to a coffee, whether an immutable snapshot or a view of an off-heap record
+     */
+    public interface CoffeeView {
+        String getId();
+
+        String getName();
+
+        double getPrice();
+
+        String getOrigin();
+
+        int getQuantity();
+    }
+
+    /**
+     * Immutable coffee snapshot
+     *
+     * version is assigned by the store and increases with every change;
+     * priceVersion only with price changes.
+     */
+    public static final class Coffee implements CoffeeView {
+        private final String id;
+        private final String name;
+        private final double price;
+        private final String origin;
+        private final int quantity;
+        private final long version;
+        private final long priceVersion;
+        // Set only on the store's tombstones, which never leave the store
+        private final boolean removed;
+
+        public Coffee(String id, String name, double price, String origin, int quantity) {
+            this(id, name, price, origin, quantity, 0, 0, false);
+        }
+
+        private Coffee(String id, String name, double price, String origin, int quantity, long version,
+                       long priceVersion, boolean removed) {
+            this.id = id;
+            this.name = name;
+            this.price = price;
+            this.origin = origin;
+            this.quantity = quantity;
+            this.version = version;
+            this.priceVersion = priceVersion;
+            this.removed = removed;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public double getPrice() {
+            return price;
+        }
+
+        @Override
+        public String getOrigin() {
+            return origin;
+        }
+
+        @Override
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getPriceVersion() {
+            return priceVersion;
+        }
+
+        /**
+         * A snapshot read back from an OffHeapCatalog record, with the versions stored there
+         */
+        static Coffee restore(String id, String name, double price, String origin, int quantity, long version,
+                              long priceVersion) {
+            return new Coffee(id, name, price, origin, quantity, version, priceVersion, false);
+        }
+
+        Coffee withVersion(long version) {
+            return new Coffee(id, name, price, origin, quantity, version, priceVersion, false);
+        }
+
+        /**
+         * This coffee's fields in place of replaced, keeping replaced's price version unless the price differs
+         */
+        Coffee replacing(Coffee replaced, long version) {
+            if (replaced == null) {
+                return withVersion(version);
+            }
+            long nextPriceVersion = Double.compare(price, replaced.price) != 0
+                ? replaced.priceVersion + 1 : replaced.priceVersion;
+            return new Coffee(id, name, price, origin, quantity, version, nextPriceVersion, false);
+        }
+
+        Coffee withQuantity(int quantity, long version) {
+            return new Coffee(id, name, price, origin, quantity, version, priceVersion, false);
+        }
+
+        Coffee withPrice(double price, long version) {
+            return new Coffee(id, name, price, origin, quantity, version, priceVersion + 1, false);
+        }
+
+        Coffee withDetails(String name, double price, String origin, long version) {
+            long nextPriceVersion = Double.compare(price, this.price) != 0 ? priceVersion + 1 : priceVersion;
+            return new Coffee(id, name, price, origin, quantity, version, nextPriceVersion, false);
+        }
+
+        Coffee removed(long version) {
+            return new Coffee(id, name, price, origin, quantity, version, priceVersion, true);
+        }
+
+        @Override
+        public String toString() {
+            return "{id: \"" + id + "\", name: \"" + name + "\", price: " + price + ", origin: \"" + origin +
+                "\", quantity: " + quantity + "}";
+        }
+    }
+}
@@ -0,0 +1,357 @@
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Deterministic generator of coffees, customers and orders at benchmark scale
+ *
+ * Every entity is computed from the seed and its own index alone, so the same
+ * seed always gives the same dataset, entity i is the same whichever thread
+ * builds it, and any range can be generated without the ones before it. The
+ * loaders split the dataset into chunks, generate them on the common
+ * fork-join pool and hand each chunk to the store's batch method, which
+ * takes its locks once per chunk rather than once per entity.
+ *
+ * Popularity is Zipfian: the coffee or customer of rank k (k = 0 is the most
+ * popular) is picked with probability proportional to 1 / (k + 1)^skew. Ranks
+ * map to indexes directly, so sku-0 is the most popular coffee and cust-0 the
+ * best customer. Orders pick their customer and items this way, and
+ * coffeeAccess()/customerAccess() give the same distribution to benchmarks
+ * that need a skewed stream of keys. A skew of 0 is uniform; 0.99 is the
+ * YCSB default.
+ *
+ * Usage: java DatasetGenerator [coffees] [customers] [orders] [seed]
+ */
+public final class DatasetGenerator {
+
+    public static final long DEFAULT_SEED = 42;
+    public static final double DEFAULT_SKEW = 0.99;
+    public static final int MAX_ITEMS_PER_ORDER = 5;
+
+    private static final int CHUNK_SIZE = 8192;
+
+    // Mixed into the seed so coffee i, customer i and order i draw unrelated numbers
+    private static final long COFFEE_STREAM = 0x434F46L;
+    private static final long CUSTOMER_STREAM = 0x435553L;
+    private static final long ORDER_STREAM = 0x4F5244L;
+
+    private static final String[] STYLES = {
+        "Smoky", "Velvet", "Bright", "Dark", "Honey", "Golden", "Wild", "Classic",
+        "Spiced", "Silky", "Bold", "Mellow", "Roasted", "Iced", "Double", "Single"
+    };
+    private static final String[] DRINKS = {
+        "Latte", "Espresso", "Cappuccino", "Mocha", "Americano", "Flat White",
+        "Cortado", "Macchiato", "Cold Brew", "Ristretto", "Lungo", "Affogato"
+    };
+    private static final String[] ORIGINS = {
+        "Colombia", "Brazil", "Ethiopia", "Kenya", "Guatemala", "Costa Rica", "Yemen",
+        "Sumatra", "Vietnam", "Honduras", "Peru", "Rwanda", "Jamaica", "Panama"
+    };
+    private static final String[] FIRST_NAMES = {
+        "Alice", "Bob", "Charlie", "Dana", "Eve", "Farid", "Grace", "Hiro",
+        "Ines", "Jonas", "Kemal", "Lena", "Mina", "Nadia", "Omar", "Priya"
+    };
+    private static final String[] LAST_NAMES = {
+        "Smith", "Garcia", "Chen", "Muller", "Rossi", "Novak", "Tanaka", "Haddad",
+        "Okafor", "Silva", "Larsen", "Kowalski", "Ahmadi", "Dubois", "Ivanova", "Moreno"
+    };
+
+    private final long seed;
+    private final int coffees;
+    private final int customers;
+    private final int orders;
+    private final ZipfSampler coffeeAccess;
+    private final ZipfSampler customerAccess;
+
+    public DatasetGenerator(long seed, int coffees, int customers, int orders) {
+        this(seed, coffees, customers, orders, DEFAULT_SKEW);
+    }
+
+    public DatasetGenerator(long seed, int coffees, int customers, int orders, double skew) {
+        if (coffees < 0 || customers < 0 || orders < 0) {
+            throw new IllegalArgumentException("Dataset sizes must not be negative");
+        }
+        if (orders > 0 && (coffees == 0 || customers == 0)) {
+            throw new IllegalArgumentException("Orders need at least one coffee and one customer");
+        }
+        this.seed = seed;
+        this.coffees = coffees;
+        this.customers = customers;
+        this.orders = orders;
+        this.coffeeAccess = coffees > 0 ? new ZipfSampler(coffees, skew) : null;
+        this.customerAccess = customers > 0 ? new ZipfSampler(customers, skew) : null;
+    }
+
+    public static void main(String[] args) {
+        int coffeeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int customerCount = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int orderCount = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_SEED;
+        DatasetGenerator dataset = new DatasetGenerator(seed, coffeeCount, customerCount, orderCount);
+        log("Generator", "Seed " + seed + ": " + coffeeCount + " coffees, " + customerCount + " customers, " +
+            orderCount + " orders, skew " + DEFAULT_SKEW + ", " + Runtime.getRuntime().availableProcessors() + " CPUs");
+
+        long start = System.nanoTime();
+        dataset.loadCoffees(CoffeeStore.shared());
+        report("CoffeeStore (REST, gRPC, SOAP, WebSocket)", CoffeeStore.shared().size(), start);
+
+        start = System.nanoTime();
+        OffHeapCatalog catalog = new OffHeapCatalog(Math.max(1, coffeeCount));
+        dataset.loadCoffees(catalog);
+        report("OffHeapCatalog", catalog.size(), start);
+
+        start = System.nanoTime();
+        int graph = GraphQLDemoService.loadDataset(dataset);
+        report("GraphQL customers and orders", graph, start);
+
+        if (coffeeCount > 0) {
+            // How skewed the access stream really is: the share of draws that land on the top 1% of coffees
+            SplittableRandom random = new SplittableRandom(seed);
+            int draws = 1_000_000;
+            int top = Math.max(1, coffeeCount / 100);
+            int hits = 0;
+            for (int i = 0; i < draws; i++) {
+                if (dataset.coffeeAccess().sample(random) < top) {
+                    hits++;
+                }
+            }
+            log("Generator", String.format("Top 1%% of coffees (%d) get %.1f%% of accesses; the most popular is %s",
+                                           top, 100.0 * hits / draws, dataset.coffee(0)));
+        }
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getCoffeeCount() {
+        return coffees;
+    }
+
+    public int getCustomerCount() {
+        return customers;
+    }
+
+    public int getOrderCount() {
+        return orders;
+    }
+
+    // ======= Entities =======
+
+    public static String coffeeId(int index) {
+        return "sku-" + index;
+    }
+
+    public static String customerId(int index) {
+        return "cust-" + index;
+    }
+
+    public static String orderId(int index) {
+        return "order-" + index;
+    }
+
+    /**
+     * The coffee at an index; names carry the index, so they are unique like the ids
+     */
+    public CoffeeStore.Coffee coffee(int index) {
+        SplittableRandom random = random(COFFEE_STREAM, index);
+        String name = STYLES[random.nextInt(STYLES.length)] + " " + DRINKS[random.nextInt(DRINKS.length)] + " " + index;
+        double price = (150 + random.nextInt(750)) / 100.0;
+        return new CoffeeStore.Coffee(coffeeId(index), name, price, ORIGINS[random.nextInt(ORIGINS.length)],
+                                      random.nextInt(500));
+    }
+
+    public GraphQLDemoService.Customer customer(int index) {
+        SplittableRandom random = random(CUSTOMER_STREAM, index);
+        String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+        String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        return new GraphQLDemoService.Customer(customerId(index), first + " " + last,
+                                               (first + "." + last + "." + index + "@example.com").toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * The order at an index, for a Zipf-chosen customer with 1 to MAX_ITEMS_PER_ORDER Zipf-chosen coffees
+     */
+    public GraphQLDemoService.Order order(int index) {
+        SplittableRandom random = random(ORDER_STREAM, index);
+        String customer = customerId(customerAccess.sample(random));
+        int items = 1 + random.nextInt(MAX_ITEMS_PER_ORDER);
+        List<String> coffeeIds = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            coffeeIds.add(coffeeId(coffeeAccess.sample(random)));
+        }
+        return new GraphQLDemoService.Order(orderId(index), customer, coffeeIds);
+    }
+
+    /**
+     * Coffee ranks by popularity, for benchmarks that look coffees up; pass each thread its own random
+     */
+    public ZipfSampler coffeeAccess() {
+        return coffeeAccess;
+    }
+
+    public ZipfSampler customerAccess() {
+        return customerAccess;
+    }
+
+    private SplittableRandom random(long stream, int index) {
+        return new SplittableRandom(mix(seed ^ (mix(stream) + index)));
+    }
+
+    // SplitMix64 finaliser: neighbouring inputs give unrelated outputs
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // ======= Bulk loading =======
+
+    /**
+     * Adds the coffees through CoffeeStore.addAll, so listeners see them and a persistent store journals them
+     */
+    public void loadCoffees(CoffeeStore store) {
+        loadInParallel(coffees, this::coffee, store::addAll);
+    }
+
+    public void loadCoffees(OffHeapCatalog catalog) {
+        loadInParallel(coffees, this::coffee, catalog::addAll);
+    }
+
+    /**
+     * Fills a map that is safe for concurrent puts, such as a ConcurrentHashMap
+     */
+    public void loadCustomers(Map<String, GraphQLDemoService.Customer> target) {
+        requireConcurrent(target);
+        loadInParallel(customers, this::customer, batch -> {
+            for (GraphQLDemoService.Customer customer : batch) {
+                target.put(customer.getId(), customer);
+            }
+        });
+    }
+
+    public void loadOrders(Map<String, GraphQLDemoService.Order> target) {
+        requireConcurrent(target);
+        loadInParallel(orders, this::order, batch -> {
+            for (GraphQLDemoService.Order order : batch) {
+                target.put(order.getId(), order);
+            }
+        });
+    }
+
+    private static void requireConcurrent(Map<?, ?> target) {
+        if (!(target instanceof ConcurrentHashMap)) {
+            throw new IllegalArgumentException("Parallel loading needs a ConcurrentHashMap, got " +
+                                               target.getClass().getSimpleName());
+        }
+    }
+
+    private static <T> void loadInParallel(int count, IntFunction<T> generate, Consumer<List<T>> sink) {
+        int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int from = chunk * CHUNK_SIZE;
+            int to = Math.min(count, from + CHUNK_SIZE);
+            List<T> batch = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                batch.add(generate.apply(i));
+            }
+            sink.accept(batch);
+        });
+    }
+
+    private static void report(String store, int size, long startNanos) {
+        long millis = (System.nanoTime() - startNanos) / 1_000_000;
+        log("Generator", String.format("%s: %d entries in %d ms (%.0f per second)", store, size, millis,
+                                       size * 1000.0 / Math.max(1, millis)));
+    }
+
+    private static void log(String source, String message) {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss.SSS"));
+        System.out.println("[" + timestamp + "] [" + source + "] " + message);
+    }
+
+    /**
+     * Zipf-distributed ranks in [0, n), drawn by rejection-inversion in constant time whatever n is
+     *
+     * Hormann and Derflinger, "Rejection-inversion to generate variates from
+     * monotone discrete distributions" (1996), as used by Apache Commons Math.
+     * Immutable, so one sampler can serve every thread.
+     */
+    public static final class ZipfSampler {
+        private final int n;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralN;
+        private final double s;
+
+        public ZipfSampler(int n, double exponent) {
+            if (n < 1 || exponent < 0) {
+                throw new IllegalArgumentException("Zipf needs n >= 1 and exponent >= 0, got " + n + ", " + exponent);
+            }
+            this.n = n;
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5) - 1.0;
+            this.hIntegralN = hIntegral(n + 0.5);
+            this.s = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2));
+        }
+
+        public int getN() {
+            return n;
+        }
+
+        public int sample(SplittableRandom random) {
+            if (exponent == 0) {
+                return random.nextInt(n);
+            }
+            while (true) {
+                double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                int k = (int) (x + 0.5);
+                if (k < 1) {
+                    k = 1;
+                } else if (k > n) {
+                    k = n;
+                }
+                if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                    return k - 1;
+                }
+            }
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1.0 - exponent) * logX) * logX;
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = x * (1.0 - exponent);
+            if (t < -1.0) {
+                // Rounding can push t just below -1, where log1p is undefined
+                t = -1.0;
+            }
+            return Math.exp(helper1(t) * x);
+        }
+
+        // log(1 + x) / x, accurate near 0
+        private static double helper1(double x) {
+            return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1.0 - x * (0.5 - x * (1.0 / 3.0 - 0.25 * x));
+        }
+
+        // (exp(x) - 1) / x, accurate near 0
+        private static double helper2(double x) {
+            return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1.0 + x * 0.5 * (1.0 + x * (1.0 / 3.0) * (1.0 + 0.25 * x));
+        }
+    }
+}
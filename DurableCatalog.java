@@ -0,0 +1,224 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * OffHeapCatalog that survives restarts: a write-ahead log plus periodic snapshots
+ *
+ * Every change is appended to a MappedJournal before it is made, so it is in
+ * the page cache the moment the call returns and on disk after the journal's
+ * next group commit (a few milliseconds); sync() waits for that. A background
+ * thread writes a snapshot of the whole catalog whenever the log has grown,
+ * then deletes the log segments the snapshot covers.
+ *
+ * Startup maps the latest snapshot copy-on-write instead of reading it, so
+ * the catalog is serving as soon as the mapping exists, and replays only the
+ * part of the log written after the snapshot. Log records carry the coffee's
+ * full state after the change rather than the operation, so replaying one
+ * twice does no harm.
+ *
+ * Directory layout:
+ *   catalog.snapshot   latest snapshot, replaced atomically
+ *   wal/               journal segments
+ *
+ * Log record layout: type:byte, then the 128-byte record image (PUT) or the UTF-8 id (REMOVE).
+ * Images and snapshots are in native byte order, so the files belong to one platform.
+ */
+public class DurableCatalog implements Closeable {
+
+    public static final long DEFAULT_SNAPSHOT_INTERVAL_MILLIS = 60_000;
+    public static final String SNAPSHOT_FILE = "catalog.snapshot";
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private final Path directory;
+    private final OffHeapCatalog catalog;
+    private final MappedJournal journal;
+    private final long snapshotIntervalMillis;
+    private final Thread snapshotter;
+    private final long replayed;
+    // Log position covered by the snapshot on disk; guarded by this
+    private long snapshotPosition;
+    private boolean closed;
+
+    public DurableCatalog(Path directory) throws IOException {
+        this(directory, 1024, DEFAULT_SNAPSHOT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Opens the catalog in the directory, or creates an empty one
+     *
+     * @param expectedSize sizes a new catalog; one loaded from a snapshot keeps the layout it was saved with
+     */
+    public DurableCatalog(Path directory, int expectedSize, long snapshotIntervalMillis) throws IOException {
+        if (snapshotIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Snapshot interval must be positive: " + snapshotIntervalMillis);
+        }
+        this.directory = directory;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        Files.createDirectories(directory);
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        this.catalog = Files.exists(snapshot) ? OffHeapCatalog.mapSnapshot(snapshot) : new OffHeapCatalog(expectedSize);
+        this.snapshotPosition = catalog.getSnapshotPosition();
+        this.journal = new MappedJournal(directory.resolve("wal"));
+        this.replayed = replay();
+        catalog.setChangeLog(new JournalChangeLog());
+
+        snapshotter = new Thread(this::snapshotLoop, "catalog-snapshot-" + directory.getFileName());
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    /**
+     * The catalog to read and change; every change goes to the log first
+     */
+    public OffHeapCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Number of log records applied on top of the snapshot when the catalog was opened
+     */
+    public long getReplayedCount() {
+        return replayed;
+    }
+
+    /**
+     * Blocks until every change made so far is on disk
+     */
+    public void sync() throws IOException {
+        try {
+            journal.awaitDurable(journal.getEndOffset());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the catalog log to flush");
+        }
+    }
+
+    /**
+     * Writes a snapshot now and drops the log segments it makes unnecessary
+     *
+     * @return log position the snapshot covers
+     */
+    public synchronized long snapshot() throws IOException {
+        Path target = directory.resolve(SNAPSHOT_FILE);
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        long position = catalog.writeSnapshot(temp);
+        // A crash before the rename leaves the old snapshot and the whole log, which still recover everything
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshotPosition = position;
+        journal.deleteBefore(position);
+        return position;
+    }
+
+    private long replay() {
+        long[] count = {0};
+        journal.read(snapshotPosition, journal.getEndOffset(), (offset, next, record) -> {
+            byte type = record.get(0);
+            record.position(1);
+            if (type == PUT) {
+                catalog.replayPut(record.slice().order(ByteOrder.nativeOrder()));
+            } else if (type == REMOVE) {
+                byte[] id = new byte[record.remaining()];
+                record.get(id);
+                catalog.replayRemove(new String(id, StandardCharsets.UTF_8));
+            } else {
+                throw new IllegalStateException("Unknown catalog log record type " + type + " at offset " + offset);
+            }
+            count[0]++;
+        });
+        return count[0];
+    }
+
+    private void snapshotLoop() {
+        while (true) {
+            try {
+                Thread.sleep(snapshotIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    if (journal.getEndOffset() > snapshotPosition) {
+                        snapshot();
+                    }
+                }
+            } catch (IOException e) {
+                // The log still holds every change; try again next interval
+                System.err.println("DurableCatalog: snapshot of " + directory + " failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Writes a final snapshot, so the next start has nothing to replay, and closes the log
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        snapshotter.interrupt();
+        try {
+            snapshotter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (journal.getEndOffset() > snapshotPosition) {
+                snapshot();
+            }
+        } finally {
+            // Later changes to the catalog now fail in the log rather than being lost quietly
+            journal.close();
+        }
+    }
+
+    /**
+     * Appends changes to the journal; called under the catalog's write lock, so in change order
+     */
+    private final class JournalChangeLog implements OffHeapCatalog.ChangeLog {
+        @Override
+        public void put(ByteBuffer image) {
+            byte[] record = new byte[1 + OffHeapCatalog.RECORD_SIZE];
+            record[0] = PUT;
+            image.duplicate().get(record, 1, OffHeapCatalog.RECORD_SIZE);
+            append(record);
+        }
+
+        @Override
+        public void remove(String id) {
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            byte[] record = new byte[1 + bytes.length];
+            record[0] = REMOVE;
+            System.arraycopy(bytes, 0, record, 1, bytes.length);
+            append(record);
+        }
+
+        @Override
+        public long position() {
+            return journal.getEndOffset();
+        }
+
+        private void append(byte[] record) {
+            try {
+                journal.append(record);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not log catalog change", e);
+            }
+        }
+    }
+}
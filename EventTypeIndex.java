@@ -0,0 +1,318 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copy-on-write index from event types to subscribers, with wildcard patterns
+ *
+ * Patterns use the same rules as SubscriptionRegistry, with '.' between
+ * segments: "payment.*" matches "payment.success" but not "payment.refund.partial",
+ * and "payment.#" matches both.
+ *
+ * Readers work on an immutable snapshot reached through one volatile read, so
+ * dispatch never takes a lock and never waits for a registration. The first
+ * match() of a concrete type in a snapshot combines its exact subscribers with
+ * every matching wildcard pattern and caches the result; after that a match is
+ * one hash lookup that returns a ready-made list, whether there are ten
+ * subscribers or a hundred thousand.
+ *
+ * Writers are serialized and publish a new snapshot. Only the subscriber array
+ * of the pattern that changed is copied, and types already resolved are
+ * patched rather than recomputed, so a registration costs O(subscribers of the
+ * affected types) and dispatch keeps hitting the cache. registerAll() loads any
+ * number of subscriptions with one copy.
+ *
+ * @param <S> subscriber type, compared with equals/hashCode
+ */
+public final class EventTypeIndex<S> {
+
+    // Resolved types cached per snapshot; events with more distinct types than this are resolved on each call
+    private static final int MAX_CACHED_TYPES = 4096;
+
+    private final char separator;
+    private volatile Snapshot snapshot = new Snapshot(
+        Collections.<String, Object[]>emptyMap(), Collections.<String, Object[]>emptyMap());
+
+    // Writer-side bookkeeping; guarded by this
+    private final Map<S, Set<String>> patternsBySubscriber = new HashMap<>();
+
+    public EventTypeIndex() {
+        this('.');
+    }
+
+    public EventTypeIndex(char separator) {
+        this.separator = separator;
+    }
+
+    /**
+     * Subscribers for a concrete event type, each listed once; the list is shared and unmodifiable
+     */
+    @SuppressWarnings("unchecked")
+    public List<S> match(String eventType) {
+        Snapshot current = snapshot;
+        List<?> cached = current.resolved.get(eventType);
+        if (cached == null) {
+            cached = current.resolve(eventType);
+            if (current.resolved.size() < MAX_CACHED_TYPES) {
+                current.resolved.putIfAbsent(eventType, cached);
+            }
+        }
+        return (List<S>) cached;
+    }
+
+    /**
+     * Adds one subscription; returns false if the subscriber already had this pattern
+     */
+    public synchronized boolean register(String pattern, S subscriber) {
+        Set<String> patterns = patternsBySubscriber.computeIfAbsent(subscriber, key -> new LinkedHashSet<>());
+        if (!patterns.add(pattern)) {
+            return false;
+        }
+        publish(Collections.singletonMap(subscriber, Collections.singleton(pattern)), Collections.<S, Set<String>>emptyMap());
+        return true;
+    }
+
+    /**
+     * Adds many subscriptions with a single copy of each affected pattern
+     */
+    public synchronized void registerAll(Map<S, ? extends Collection<String>> subscriptions) {
+        Map<S, Set<String>> added = new HashMap<>();
+        for (Map.Entry<S, ? extends Collection<String>> entry : subscriptions.entrySet()) {
+            Set<String> patterns = patternsBySubscriber.computeIfAbsent(entry.getKey(), key -> new LinkedHashSet<>());
+            for (String pattern : entry.getValue()) {
+                if (patterns.add(pattern)) {
+                    added.computeIfAbsent(entry.getKey(), key -> new LinkedHashSet<>()).add(pattern);
+                }
+            }
+        }
+        if (!added.isEmpty()) {
+            publish(added, Collections.<S, Set<String>>emptyMap());
+        }
+    }
+
+    /**
+     * Removes one subscription; returns false if it did not exist
+     */
+    public synchronized boolean unregister(String pattern, S subscriber) {
+        Set<String> patterns = patternsBySubscriber.get(subscriber);
+        if (patterns == null || !patterns.remove(pattern)) {
+            return false;
+        }
+        if (patterns.isEmpty()) {
+            patternsBySubscriber.remove(subscriber);
+        }
+        publish(Collections.<S, Set<String>>emptyMap(), Collections.singletonMap(subscriber, Collections.singleton(pattern)));
+        return true;
+    }
+
+    /**
+     * Removes every subscription held by a subscriber
+     */
+    public synchronized void unregisterAll(S subscriber) {
+        Set<String> patterns = patternsBySubscriber.remove(subscriber);
+        if (patterns != null) {
+            publish(Collections.<S, Set<String>>emptyMap(), Collections.singletonMap(subscriber, patterns));
+        }
+    }
+
+    /**
+     * Patterns a subscriber is registered for
+     */
+    public synchronized Set<String> getPatterns(S subscriber) {
+        Set<String> patterns = patternsBySubscriber.get(subscriber);
+        return patterns != null ? new LinkedHashSet<>(patterns) : Collections.<String>emptySet();
+    }
+
+    public synchronized int getSubscriberCount() {
+        return patternsBySubscriber.size();
+    }
+
+    /**
+     * Builds and publishes the next snapshot
+     *
+     * Only the subscriber arrays of changed patterns are copied. Types already
+     * resolved in the current snapshot are carried over, patched with the
+     * subscribers that gained or lost a match, so dispatch does not pay for
+     * re-resolving a large type after every registration.
+     * patternsBySubscriber must already reflect the change.
+     */
+    private void publish(Map<S, Set<String>> added, Map<S, Set<String>> removed) {
+        Snapshot current = snapshot;
+
+        Map<String, List<Object>> addedByPattern = new HashMap<>();
+        for (Map.Entry<S, Set<String>> entry : added.entrySet()) {
+            for (String pattern : entry.getValue()) {
+                addedByPattern.computeIfAbsent(pattern, key -> new ArrayList<>()).add(entry.getKey());
+            }
+        }
+        Map<String, Set<Object>> removedByPattern = new HashMap<>();
+        for (Map.Entry<S, Set<String>> entry : removed.entrySet()) {
+            for (String pattern : entry.getValue()) {
+                removedByPattern.computeIfAbsent(pattern, key -> new HashSet<>()).add(entry.getKey());
+            }
+        }
+
+        Map<String, Object[]> exact = null;
+        Map<String, Object[]> wildcards = null;
+        Set<String> changed = new LinkedHashSet<>(addedByPattern.keySet());
+        changed.addAll(removedByPattern.keySet());
+        for (String pattern : changed) {
+            boolean wildcard = isWildcard(pattern);
+            Map<String, Object[]> source = wildcard ? current.wildcards : current.exact;
+            Object[] subscribers = update(source.get(pattern), addedByPattern.get(pattern), removedByPattern.get(pattern));
+
+            Map<String, Object[]> target;
+            if (wildcard) {
+                if (wildcards == null) {
+                    wildcards = new HashMap<>(current.wildcards);
+                }
+                target = wildcards;
+            } else {
+                if (exact == null) {
+                    exact = new HashMap<>(current.exact);
+                }
+                target = exact;
+            }
+            if (subscribers.length == 0) {
+                target.remove(pattern);
+            } else {
+                target.put(pattern, subscribers);
+            }
+        }
+        Snapshot next = new Snapshot(exact != null ? exact : current.exact,
+                                     wildcards != null ? wildcards : current.wildcards);
+
+        Set<S> touched = new HashSet<>(added.keySet());
+        touched.addAll(removed.keySet());
+        for (Map.Entry<String, List<?>> entry : current.resolved.entrySet()) {
+            String type = entry.getKey();
+            List<Object> gained = new ArrayList<>();
+            Set<Object> lost = new HashSet<>();
+            for (S subscriber : touched) {
+                Set<String> now = patternsBySubscriber.getOrDefault(subscriber, Collections.<String>emptySet());
+                boolean isIn = anyMatches(now, null, type);
+                boolean wasIn = anyMatches(now, added.get(subscriber), type) || anyMatches(removed.get(subscriber), null, type);
+                if (isIn && !wasIn) {
+                    gained.add(subscriber);
+                } else if (wasIn && !isIn) {
+                    lost.add(subscriber);
+                }
+            }
+            List<?> list = entry.getValue();
+            if (!gained.isEmpty() || !lost.isEmpty()) {
+                List<Object> patched;
+                if (lost.isEmpty()) {
+                    patched = new ArrayList<>(list.size() + gained.size());
+                    patched.addAll(list);
+                } else {
+                    patched = new ArrayList<>(list.size() + gained.size());
+                    for (Object subscriber : list) {
+                        if (!lost.contains(subscriber)) {
+                            patched.add(subscriber);
+                        }
+                    }
+                }
+                patched.addAll(gained);
+                list = Collections.unmodifiableList(patched);
+            }
+            next.resolved.put(type, list);
+        }
+        snapshot = next;
+    }
+
+    // Whether any pattern in the set, other than the excluded ones, matches the type
+    private boolean anyMatches(Set<String> patterns, Set<String> excluded, String type) {
+        if (patterns == null) {
+            return false;
+        }
+        for (String pattern : patterns) {
+            if (excluded != null && excluded.contains(pattern)) {
+                continue;
+            }
+            if (pattern.equals(type) || (isWildcard(pattern) && SubscriptionRegistry.matches(pattern, type, separator))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object[] update(Object[] existing, List<Object> added, Set<Object> removed) {
+        Object[] base = existing != null ? existing : new Object[0];
+        if (removed != null) {
+            List<Object> kept = new ArrayList<>(base.length);
+            for (Object subscriber : base) {
+                if (!removed.contains(subscriber)) {
+                    kept.add(subscriber);
+                }
+            }
+            base = kept.toArray();
+        }
+        if (added == null || added.isEmpty()) {
+            return base;
+        }
+        Object[] result = Arrays.copyOf(base, base.length + added.size());
+        for (int i = 0; i < added.size(); i++) {
+            result[base.length + i] = added.get(i);
+        }
+        return result;
+    }
+
+    private boolean isWildcard(String pattern) {
+        int start = 0;
+        while (start <= pattern.length()) {
+            int end = pattern.indexOf(separator, start);
+            if (end < 0) {
+                end = pattern.length();
+            }
+            String segment = pattern.substring(start, end);
+            if (SubscriptionRegistry.SINGLE_LEVEL_WILDCARD.equals(segment)
+                    || SubscriptionRegistry.MULTI_LEVEL_WILDCARD.equals(segment)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * One immutable version of the index; only the resolved cache is filled in later
+     */
+    private final class Snapshot {
+        final Map<String, Object[]> exact;
+        final Map<String, Object[]> wildcards;
+        final Map<String, List<?>> resolved = new ConcurrentHashMap<>();
+
+        Snapshot(Map<String, Object[]> exact, Map<String, Object[]> wildcards) {
+            this.exact = exact;
+            this.wildcards = wildcards;
+        }
+
+        List<?> resolve(String eventType) {
+            Object[] direct = exact.get(eventType);
+            Set<Object> combined = null;
+            for (Map.Entry<String, Object[]> entry : wildcards.entrySet()) {
+                if (SubscriptionRegistry.matches(entry.getKey(), eventType, separator)) {
+                    if (combined == null) {
+                        combined = new LinkedHashSet<>();
+                        if (direct != null) {
+                            combined.addAll(Arrays.asList(direct));
+                        }
+                    }
+                    combined.addAll(Arrays.asList(entry.getValue()));
+                }
+            }
+            if (combined != null) {
+                return Collections.unmodifiableList(new ArrayList<>(combined));
+            }
+            return direct != null ? Collections.unmodifiableList(Arrays.asList(direct)) : Collections.emptyList();
+        }
+    }
+}
@@ -1,8 +1,7 @@
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -21,8 +20,10 @@ import java.util.concurrent.TimeUnit;
  */
 public class GRPCDemoService {
     
-    // Our "database" of coffees
-    private static Map<String, Coffee> coffeeDatabase = new HashMap<>();
+    // The catalog shared with the other demos
+    private static final CoffeeStore coffeeDatabase = CoffeeStore.shared();
+    
+    private static final Metrics metrics = Metrics.shared();
     
     public static void main(String[] args) throws InterruptedException, IOException {
         // Start the gRPC server
@@ -35,14 +36,7 @@ public class GRPCDemoService {
     private static void startGRPCServer() {
         log("Server", "Starting gRPC server on port 50051");
         
-        // Initialize our coffee database
-        Coffee latte = new Coffee("latte", "Latte", 3.99, "Colombia");
-        Coffee espresso = new Coffee("espresso", "Espresso", 2.50, "Brazil");
-        Coffee cappuccino = new Coffee("cappuccino", "Cappuccino", 4.20, "Ethiopia");
-        
-        coffeeDatabase.put(latte.getId(), latte);
-        coffeeDatabase.put(espresso.getId(), espresso);
-        coffeeDatabase.put(cappuccino.getId(), cappuccino);
+        log("Server", "Serving " + coffeeDatabase.size() + " coffees from the shared CoffeeStore");
         
         log("Server", "Server started and ready to accept requests");
     }
@@ -94,13 +88,23 @@ public class GRPCDemoService {
         
         // Server processes the request
         log("Server", "Received gRPC request for GetCoffee with ID 'latte'");
+        long started = System.nanoTime();
         
         // Simulate retrieving coffee from database
-        Coffee coffee = coffeeDatabase.get("latte");
+        CoffeeStore.Coffee stored = coffeeDatabase.get("latte");
+        if (stored == null) {
+            // A missing entity is a status, not a crash: the call ends with NOT_FOUND and no message
+            log("Server", "No coffee with ID 'latte', returning status NOT_FOUND");
+            metrics.requestDuration("grpc", "CoffeeService/GetCoffee", "NOT_FOUND").recordSince(started);
+            log("Client", "Call failed with status NOT_FOUND");
+            return;
+        }
+        Coffee coffee = Coffee.from(stored);
         
         // Simulate response serialization
         log("Server", "Found coffee: " + coffee);
         log("Server", "Serializing response to binary Protocol Buffer format");
+        metrics.requestDuration("grpc", "CoffeeService/GetCoffee", "OK").recordSince(started);
         
         // Simulate client receiving and deserializing the response
         log("Client", "Received binary response");
@@ -132,25 +136,39 @@ public class GRPCDemoService {
         
         // Server processes the request
         log("Server", "Received gRPC request for ListCoffees in price range $2.00-$4.00");
-        log("Server", "Will stream back 3 coffees that match criteria");
-        
-        // Stream back responses one at a time
-        final CountDownLatch latch = new CountDownLatch(coffeeDatabase.size());
-        
-        for (Coffee coffee : coffeeDatabase.values()) {
-            if (coffee.getPrice() >= 2.0 && coffee.getPrice() <= 4.0) {
-                // In real gRPC, each item would be sent as it's processed
-                log("Server", "Streaming coffee: " + coffee);
+        long started = System.nanoTime();
+        // Unexpected server exceptions surface as UNKNOWN, as in grpc-java
+        String status = "UNKNOWN";
+        try {
+            log("Server", "Will stream back 3 coffees that match criteria");
+            
+            // Stream back responses one at a time
+            List<CoffeeStore.Coffee> coffees = coffeeDatabase.getAll();
+            final CountDownLatch latch = new CountDownLatch(coffees.size());
+            
+            for (CoffeeStore.Coffee stored : coffees) {
+                Coffee coffee = Coffee.from(stored);
+                if (coffee.getPrice() >= 2.0 && coffee.getPrice() <= 4.0) {
+                    // In real gRPC, each item would be sent as it's processed
+                    log("Server", "Streaming coffee: " + coffee);
+                    
+                    // Simulate client processing each streaming response
+                    log("Client", "Received streaming coffee: " + coffee);
+                }
                 
-                // Simulate client processing each streaming response
-                log("Client", "Received streaming coffee: " + coffee);
+                latch.countDown();
+                Thread.sleep(500); // Simulate delay between stream items
             }
             
-            latch.countDown();
-            Thread.sleep(500); // Simulate delay between stream items
+            latch.await(2, TimeUnit.SECONDS);
+            status = "OK";
+        } catch (InterruptedException e) {
+            status = "CANCELLED";
+            throw e;
+        } finally {
+            // A streaming call lasts until the stream completes
+            metrics.requestDuration("grpc", "CoffeeService/ListCoffees", status).recordSince(started);
         }
-        
-        latch.await(2, TimeUnit.SECONDS);
         log("Client", "Stream completed");
     }
     
@@ -177,41 +195,50 @@ public class GRPCDemoService {
         
         log("Client", "Opening bidirectional stream for OrderCoffees");
         log("Server", "Bidirectional stream established for OrderCoffees");
-        
-        // Client can send multiple messages
-        log("Client", "Sending order for 2 lattes");
-        log("Server", "Received order for 2 lattes");
-        log("Server", "Sending status update: latte - preparing");
-        log("Client", "Received status update: latte - preparing");
-        
-        Thread.sleep(500);
-        
-        // Client can continue sending messages
-        log("Client", "Sending order for 1 espresso");
-        log("Server", "Received order for 1 espresso");
-        log("Server", "Sending status update: espresso - preparing");
-        log("Client", "Received status update: espresso - preparing");
-        
-        Thread.sleep(700);
-        
-        // Server can send messages at any time
-        log("Server", "Sending status update: latte - ready");
-        log("Client", "Received status update: latte - ready");
-        
-        Thread.sleep(300);
-        
-        log("Server", "Sending status update: espresso - ready");
-        log("Client", "Received status update: espresso - ready");
-        
-        // Client signals it's done sending
-        log("Client", "Closing sending side of stream (no more orders)");
-        
-        // Server can still send messages
-        log("Server", "Sending final status: all orders complete");
-        log("Client", "Received final status: all orders complete");
-        
-        log("Server", "Closing server side of the stream");
-        log("Client", "Bidirectional stream closed");
+        long started = System.nanoTime();
+        String status = "UNKNOWN";
+        try {
+            // Client can send multiple messages
+            log("Client", "Sending order for 2 lattes");
+            log("Server", "Received order for 2 lattes");
+            log("Server", "Sending status update: latte - preparing");
+            log("Client", "Received status update: latte - preparing");
+            
+            Thread.sleep(500);
+            
+            // Client can continue sending messages
+            log("Client", "Sending order for 1 espresso");
+            log("Server", "Received order for 1 espresso");
+            log("Server", "Sending status update: espresso - preparing");
+            log("Client", "Received status update: espresso - preparing");
+            
+            Thread.sleep(700);
+            
+            // Server can send messages at any time
+            log("Server", "Sending status update: latte - ready");
+            log("Client", "Received status update: latte - ready");
+            
+            Thread.sleep(300);
+            
+            log("Server", "Sending status update: espresso - ready");
+            log("Client", "Received status update: espresso - ready");
+            
+            // Client signals it's done sending
+            log("Client", "Closing sending side of stream (no more orders)");
+            
+            // Server can still send messages
+            log("Server", "Sending final status: all orders complete");
+            log("Client", "Received final status: all orders complete");
+            
+            log("Server", "Closing server side of the stream");
+            log("Client", "Bidirectional stream closed");
+            status = "OK";
+        } catch (InterruptedException e) {
+            status = "CANCELLED";
+            throw e;
+        } finally {
+            metrics.requestDuration("grpc", "CoffeeService/OrderCoffees", status).recordSince(started);
+        }
         
         log("Info", "Note: gRPC with HTTP/2 allows multiplexing multiple streams over a single connection");
         log("Info", "This is much more efficient than creating new connections for each request");
@@ -255,6 +282,13 @@ public class GRPCDemoService {
             return origin;
         }
         
+        /**
+         * Builds the message from a catalog snapshot or off-heap view, as a generated builder would be filled
+         */
+        public static Coffee from(CoffeeStore.CoffeeView coffee) {
+            return new Coffee(coffee.getId(), coffee.getName(), coffee.getPrice(), coffee.getOrigin());
+        }
+        
         @Override
         public String toString() {
             return "{id: \"" + id + "\", name: \"" + name + "\", price: " + price + ", origin: \"" + origin + "\"}";
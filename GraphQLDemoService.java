@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -23,10 +24,13 @@ import java.util.stream.Collectors;
  */
 public class GraphQLDemoService {
     
-    // Our "database" of coffee-related data
-    private static Map<String, Coffee> coffeeDatabase = new HashMap<>();
-    private static Map<String, Order> orderDatabase = new HashMap<>();
-    private static Map<String, Customer> customerDatabase = new HashMap<>();
+    // Our "database" of coffee-related data; the coffees are the catalog shared with the other demos
+    private static final CoffeeStore coffeeDatabase = CoffeeStore.shared();
+    // Concurrent, so DatasetGenerator can fill them from several threads
+    private static final Map<String, Order> orderDatabase = new ConcurrentHashMap<>();
+    private static final Map<String, Customer> customerDatabase = new ConcurrentHashMap<>();
+    
+    private static final Metrics metrics = Metrics.shared();
     
     public static void main(String[] args) {
         // Initialize our databases
@@ -48,20 +52,11 @@ public class GraphQLDemoService {
         customerDatabase.put(bob.getId(), bob);
         customerDatabase.put(charlie.getId(), charlie);
         
-        // Initialize coffees
-        Coffee latte = new Coffee("coffee1", "Latte", 3.99, "Colombia");
-        Coffee espresso = new Coffee("coffee2", "Espresso", 2.50, "Brazil");
-        Coffee cappuccino = new Coffee("coffee3", "Cappuccino", 4.20, "Ethiopia");
-        
-        coffeeDatabase.put(latte.getId(), latte);
-        coffeeDatabase.put(espresso.getId(), espresso);
-        coffeeDatabase.put(cappuccino.getId(), cappuccino);
-        
-        // Initialize orders
-        Order order1 = new Order("order1", alice.getId(), Arrays.asList(latte.getId(), espresso.getId()));
-        Order order2 = new Order("order2", bob.getId(), Arrays.asList(cappuccino.getId()));
-        Order order3 = new Order("order3", alice.getId(), Arrays.asList(cappuccino.getId(), latte.getId()));
-        Order order4 = new Order("order4", charlie.getId(), Arrays.asList(espresso.getId()));
+        // Initialize orders of the shared catalog's coffees
+        Order order1 = new Order("order1", alice.getId(), Arrays.asList("latte", "espresso"));
+        Order order2 = new Order("order2", bob.getId(), Arrays.asList("cappuccino"));
+        Order order3 = new Order("order3", alice.getId(), Arrays.asList("cappuccino", "latte"));
+        Order order4 = new Order("order4", charlie.getId(), Arrays.asList("espresso"));
         
         orderDatabase.put(order1.getId(), order1);
         orderDatabase.put(order2.getId(), order2);
@@ -72,13 +67,24 @@ public class GraphQLDemoService {
             coffeeDatabase.size() + " coffees, and " + orderDatabase.size() + " orders");
     }
     
+    /**
+     * Adds a generated dataset's customers and orders; its coffees go to the shared catalog via DatasetGenerator
+     *
+     * @return number of customers and orders held afterwards
+     */
+    public static int loadDataset(DatasetGenerator dataset) {
+        dataset.loadCustomers(customerDatabase);
+        dataset.loadOrders(orderDatabase);
+        return customerDatabase.size() + orderDatabase.size();
+    }
+    
     private static void simulateGraphQLQueries() {
         log("Info", "=== Demonstrating Simple Query ===");
         
         // Simulate a simple query to get coffee data
         String simpleQuery = 
             "{\n" +
-            "  coffee(id: \"coffee1\") {\n" +
+            "  coffee(id: \"latte\") {\n" +
             "    name\n" +
             "    price\n" +
             "  }\n" +
@@ -113,15 +119,15 @@ public class GraphQLDemoService {
         // Simulate multiple queries in a single request
         String multipleQueries = 
             "{\n" +
-            "  latte: coffee(id: \"coffee1\") {\n" +
+            "  latte: coffee(id: \"latte\") {\n" +
             "    name\n" +
             "    origin\n" +
             "  }\n" +
-            "  espresso: coffee(id: \"coffee2\") {\n" +
+            "  espresso: coffee(id: \"espresso\") {\n" +
             "    name\n" +
             "    price\n" +
             "  }\n" +
-            "  cappuccino: coffee(id: \"coffee3\") {\n" +
+            "  cappuccino: coffee(id: \"cappuccino\") {\n" +
             "    name\n" +
             "    price\n" +
             "    origin\n" +
@@ -153,16 +159,20 @@ public class GraphQLDemoService {
         // This would be handled by a GraphQL engine in a real application
         // Here we're just simulating the process to show the concept
         log("Server", "Processing GraphQL query...");
+        long started = System.nanoTime();
         
         // Parse the query (simplified)
         String operation = parseOperation(query);
         Map<String, Object> result = new HashMap<>();
+        // Root field the query resolved, for metrics
+        String field = "unknown";
         
         if (operation.contains("coffee(id:")) {
             // Handle single coffee query
+            field = "coffee";
             String coffeeId = parseArgument(operation, "coffee", "id");
-            if (coffeeId != null && coffeeDatabase.containsKey(coffeeId)) {
-                Coffee coffee = coffeeDatabase.get(coffeeId);
+            CoffeeStore.Coffee coffee = coffeeId != null ? coffeeDatabase.get(coffeeId) : null;
+            if (coffee != null) {
                 log("Server", "Resolving coffee with ID: " + coffeeId);
                 
                 // Extract only requested fields
@@ -175,6 +185,7 @@ public class GraphQLDemoService {
             }
         } else if (operation.contains("customer(id:")) {
             // Handle customer query with relationships
+            field = "customer";
             String customerId = parseArgument(operation, "customer", "id");
             if (customerId != null && customerDatabase.containsKey(customerId)) {
                 Customer customer = customerDatabase.get(customerId);
@@ -206,7 +217,7 @@ public class GraphQLDemoService {
                             double totalAmount = 0;
                             
                             for (String coffeeId : order.getCoffeeIds()) {
-                                Coffee coffee = coffeeDatabase.get(coffeeId);
+                                CoffeeStore.Coffee coffee = coffeeDatabase.get(coffeeId);
                                 Map<String, Object> coffeeData = new HashMap<>();
                                 
                                 if (operation.contains("items") && operation.contains("name")) 
@@ -234,10 +245,11 @@ public class GraphQLDemoService {
             }
         } else if (operation.contains("allCoffees")) {
             // Handle all coffees query
+            field = "allCoffees";
             log("Server", "Resolving all coffees");
             List<Map<String, Object>> coffeesData = new ArrayList<>();
             
-            for (Coffee coffee : coffeeDatabase.values()) {
+            for (CoffeeStore.Coffee coffee : coffeeDatabase.getAll()) {
                 Map<String, Object> coffeeData = new HashMap<>();
                 if (operation.contains("name")) coffeeData.put("name", coffee.getName());
                 if (operation.contains("price")) coffeeData.put("price", coffee.getPrice());
@@ -248,6 +260,7 @@ public class GraphQLDemoService {
             result.put("allCoffees", coffeesData);
         } else if (operation.contains(": coffee(id:")) {
             // Handle multiple named queries
+            field = "coffee";
             log("Server", "Resolving multiple coffee queries");
             
             // Extract all coffee aliased queries (simplified parser)
@@ -259,8 +272,8 @@ public class GraphQLDemoService {
                 String alias = coffeeQuery.trim().split(":")[0].trim();
                 String coffeeId = parseArgument(coffeeQuery, "coffee", "id");
                 
-                if (coffeeId != null && coffeeDatabase.containsKey(coffeeId)) {
-                    Coffee coffee = coffeeDatabase.get(coffeeId);
+                CoffeeStore.Coffee coffee = coffeeId != null ? coffeeDatabase.get(coffeeId) : null;
+                if (coffee != null) {
                     log("Server", "Resolving coffee with ID: " + coffeeId + " as alias: " + alias);
                     
                     // Extract only requested fields for this alias
@@ -277,6 +290,8 @@ public class GraphQLDemoService {
             }
         }
         
+        metrics.requestDuration("graphql", field, result.isEmpty() ? "no_data" : "ok").recordSince(started);
+        
         // Return the response
         log("Server", "Returning GraphQL response with exactly the requested fields");
         log("Server", "Response: " + result);
@@ -311,39 +326,6 @@ public class GraphQLDemoService {
         System.out.println("[" + timestamp + "] [" + source + "] " + message);
     }
     
-    /**
-     * Coffee model
-     */
-    public static class Coffee {
-        private String id;
-        private String name;
-        private double price;
-        private String origin;
-        
-        public Coffee(String id, String name, double price, String origin) {
-            this.id = id;
-            this.name = name;
-            this.price = price;
-            this.origin = origin;
-        }
-        
-        public String getId() {
-            return id;
-        }
-        
-        public String getName() {
-            return name;
-        }
-        
-        public double getPrice() {
-            return price;
-        }
-        
-        public String getOrigin() {
-            return origin;
-        }
-    }
-    
     /**
      * Customer model
      */
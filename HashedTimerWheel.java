@@ -0,0 +1,184 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel for very large numbers of coarse timeouts
+ *
+ * Timeouts are hashed by deadline into a ring of slots, each one tick wide.
+ * Scheduling and cancelling are O(1) list operations, and each tick only
+ * visits one slot, so the cost does not grow with the number of pending
+ * timeouts the way a priority queue (ScheduledExecutorService) does. Deadlines
+ * further away than one turn of the wheel just wait a number of extra rounds.
+ *
+ * The price is precision: a timeout fires on the first tick at or after its
+ * deadline, which is fine for heartbeats and idle checks.
+ *
+ * Not thread-safe. The wheel belongs to one thread, which schedules, cancels
+ * and calls advance(), e.g. between selector wakeups.
+ */
+public final class HashedTimerWheel {
+
+    private static final int UNLINKED = -1;
+    private static final int EXPIRED = -2;
+
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final long startNanos;
+
+    // Next tick to process; tick n fires at startNanos + n * tickNanos
+    private long nextTick;
+    private int size;
+
+    public HashedTimerWheel(long tickDuration, TimeUnit unit, int slotCount) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.slots = new Timeout[slotCount];
+        this.mask = slotCount - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Pending timeouts
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Runs a task once the delay has passed, on the thread that calls advance()
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long now = System.nanoTime();
+        if (size == 0) {
+            // Nothing pending: skip the idle ticks instead of walking through them later
+            nextTick = Math.max(nextTick, (now - startNanos) / tickNanos);
+        }
+        long deadline = now + unit.toNanos(delay) - startNanos;
+        long tick = Math.max((deadline + tickNanos - 1) / tickNanos, nextTick);
+
+        Timeout timeout = new Timeout(task);
+        timeout.rounds = (tick - nextTick) / slots.length;
+        link(timeout, (int) (tick & mask));
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Nanoseconds until the next tick is due, 0 if it already is, or -1 when nothing is pending
+     */
+    public long nanosUntilNextTick() {
+        if (size == 0) {
+            return -1;
+        }
+        return Math.max(0, startNanos + nextTick * tickNanos - System.nanoTime());
+    }
+
+    /**
+     * Processes every tick that is due and runs the expired tasks
+     *
+     * A task that throws is reported on stderr and the rest still run.
+     *
+     * @return number of tasks run
+     */
+    public int advance() {
+        long now = System.nanoTime();
+        int fired = 0;
+        while (size > 0 && startNanos + nextTick * tickNanos <= now) {
+            int slot = (int) (nextTick & mask);
+            nextTick++;
+
+            // Split the slot before running anything: tasks may schedule into it
+            // again or cancel timeouts that expire on this same tick
+            Timeout timeout = slots[slot];
+            slots[slot] = null;
+            Timeout expired = null;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.prev = null;
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                    link(timeout, slot);
+                } else {
+                    timeout.slot = EXPIRED;
+                    timeout.next = expired;
+                    expired = timeout;
+                }
+                timeout = next;
+            }
+            while (expired != null) {
+                Timeout next = expired.next;
+                expired.next = null;
+                if (expired.slot == EXPIRED) {
+                    expired.slot = UNLINKED;
+                    size--;
+                    fired++;
+                    try {
+                        expired.task.run();
+                    } catch (RuntimeException e) {
+                        // One failing task must not strand the others that expired with it
+                        System.err.println("HashedTimerWheel: task failed: " + e);
+                    }
+                }
+                expired = next;
+            }
+        }
+        return fired;
+    }
+
+    private void link(Timeout timeout, int slot) {
+        timeout.slot = slot;
+        timeout.next = slots[slot];
+        if (slots[slot] != null) {
+            slots[slot].prev = timeout;
+        }
+        slots[slot] = timeout;
+    }
+
+    /**
+     * Handle for a scheduled task
+     */
+    public final class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private int slot = UNLINKED;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        public boolean isPending() {
+            return slot != UNLINKED;
+        }
+
+        /**
+         * Removes the timeout if it has not fired yet
+         */
+        public void cancel() {
+            if (slot == UNLINKED) {
+                return;
+            }
+            if (slot == EXPIRED) {
+                // Due on the tick being processed; advance() will skip it
+                slot = UNLINKED;
+                size--;
+                return;
+            }
+            if (prev != null) {
+                prev.next = next;
+            } else {
+                slots[slot] = next;
+            }
+            if (next != null) {
+                next.prev = prev;
+            }
+            prev = null;
+            next = null;
+            slot = UNLINKED;
+            size--;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which keys (event ids, payment ids) were already processed, for a limited time
+ *
+ * A consumer calls tryClaim() before handling a message. Only the first claim
+ * of a key gets NEW; a redelivery gets DUPLICATE once the first one has
+ * completed, or IN_PROGRESS while it is still being handled, so two copies
+ * arriving at once are never both applied. If handling fails, release() lets
+ * the next delivery try again.
+ *
+ * Keys are forgotten ttl after they were claimed. Every entry lives for the
+ * same ttl, so claim order is expiry order: expired entries are dropped from
+ * the head of a FIFO on later calls, a few at a time, with no timer thread and
+ * no scan of the whole map.
+ *
+ * @param <K> key type, compared with equals/hashCode
+ */
+public final class IdempotencyStore<K> {
+
+    // Expired entries dropped per call, so one call never pays for a long backlog
+    private static final int EVICTIONS_PER_CALL = 8;
+
+    private final long ttlNanos;
+    private final ConcurrentHashMap<K, Entry<K>> entries = new ConcurrentHashMap<>();
+    // Entries in claim order, which is also expiry order
+    private final Queue<Entry<K>> byExpiry = new ConcurrentLinkedQueue<>();
+
+    public IdempotencyStore(long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Claims a key for processing; only a NEW claim should go on to apply the message
+     */
+    public Claim tryClaim(K key) {
+        long now = System.nanoTime();
+        evictExpired(now);
+        Entry<K> fresh = new Entry<>(key, now + ttlNanos);
+        Entry<K> existing = entries.putIfAbsent(key, fresh);
+        while (existing != null && existing.expiresAt - now <= 0) {
+            // Expired but not evicted yet
+            if (entries.replace(key, existing, fresh)) {
+                existing = null;
+            } else {
+                existing = entries.putIfAbsent(key, fresh);
+            }
+        }
+        if (existing != null) {
+            return existing.completed ? Claim.DUPLICATE : Claim.IN_PROGRESS;
+        }
+        byExpiry.add(fresh);
+        return Claim.NEW;
+    }
+
+    /**
+     * Marks a claimed key as processed, so later claims report DUPLICATE
+     */
+    public void complete(K key) {
+        Entry<K> entry = entries.get(key);
+        if (entry != null) {
+            entry.completed = true;
+        }
+    }
+
+    /**
+     * Forgets a claim whose processing failed, so a redelivery is applied
+     */
+    public void release(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Whether the key was processed and has not expired yet
+     */
+    public boolean isCompleted(K key) {
+        Entry<K> entry = entries.get(key);
+        return entry != null && entry.completed && entry.expiresAt - System.nanoTime() > 0;
+    }
+
+    /**
+     * Keys currently remembered, including expired ones not yet dropped
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void evictExpired(long now) {
+        for (int i = 0; i < EVICTIONS_PER_CALL; i++) {
+            Entry<K> oldest = byExpiry.peek();
+            if (oldest == null || oldest.expiresAt - now > 0) {
+                return;
+            }
+            if (byExpiry.remove(oldest)) {
+                // A newer claim of the same key has its own entry and stays
+                entries.remove(oldest.key, oldest);
+            }
+        }
+    }
+
+    public enum Claim {
+        NEW, IN_PROGRESS, DUPLICATE
+    }
+
+    private static final class Entry<K> {
+        final K key;
+        final long expiresAt;
+        volatile boolean completed;
+
+        Entry(K key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
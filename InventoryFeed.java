@@ -0,0 +1,363 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Sequence-numbered snapshot/delta feed for the WebSocket inventory stream
+ *
+ * Clients that negotiate the "coffee-feed.v2" subprotocol receive binary
+ * messages instead of free text: one compact snapshot tagged with the current
+ * sequence number, then one message per inventory change: a delta when a
+ * coffee's price or stock changes, a create when a coffee is added or renamed
+ * (the whole item, name included), a remove when it is taken off the menu.
+ *
+ * Recent deltas are kept, already framed, in a bounded replay ring. A client
+ * reconnecting with ?since=<last sequence>&epoch=<epoch> is sent only the
+ * deltas it missed; it only gets a new snapshot when its sequence has fallen
+ * out of the ring. Sequences start again at 0 with every feed, so each feed
+ * picks a random epoch and sends it in its snapshots; a client resuming with
+ * another feed's epoch, say from before a server restart, gets a snapshot
+ * rather than whatever this feed has under the same numbers.
+ *
+ * A slow session may have messages conflated or dropped on the way out, so
+ * a client must apply messages strictly in sequence. On a gap it sends the
+ * text command "RESYNC <epoch> <last applied sequence>", which the endpoint
+ * answers with attach() on the same session, and it ignores messages until
+ * the one after its last arrives; anything older is a duplicate.
+ *
+ * Wire format (integers are unsigned LEB128 varints, strings are length-prefixed UTF-8):
+ *   message  = version:u8 type:u8 sequence:varint body
+ *   snapshot = epoch:varint count:varint { id name priceCents:varint quantity:varint }
+ *   delta    = changedFields:u8 id priceCents:varint quantity:varint
+ *   create   = id name priceCents:varint quantity:varint
+ *   remove   = id
+ */
+public class InventoryFeed {
+
+    public static final String SUBPROTOCOL = "coffee-feed.v2";
+
+    public static final int VERSION = 2;
+    public static final int TYPE_SNAPSHOT = 1;
+    public static final int TYPE_DELTA = 2;
+    public static final int TYPE_CREATE = 3;
+    public static final int TYPE_REMOVE = 4;
+
+    public static final int FIELD_PRICE = 0x1;
+    public static final int FIELD_QUANTITY = 0x2;
+
+    private final WebSocketServer server;
+    private final Supplier<Collection<Item>> inventory;
+    private final Set<WebSocketServer.Session> subscribers = ConcurrentHashMap.newKeySet();
+    private final long epoch = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+
+    // Replay ring of framed deltas; guarded by this
+    private final WebSocketServer.SharedFrame[] ring;
+    private long sequence;
+    private int ringSize;
+
+    public InventoryFeed(WebSocketServer server, Supplier<Collection<Item>> inventory, int replayCapacity) {
+        this.server = server;
+        this.inventory = inventory;
+        this.ring = new WebSocketServer.SharedFrame[replayCapacity];
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Identifies this feed's run of sequence numbers; never negative
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Starts the feed for a session, resuming after lastSequence when it is from this feed and the ring still covers it
+     *
+     * Must be called on the session's I/O thread (e.g. from onOpen) so the initial
+     * messages are queued ahead of any delta published afterwards.
+     *
+     * @param lastEpoch the epoch of the snapshot the client's sequence counts from, -1 if it has none
+     * @return true if the session was resumed from the ring, false if it was sent a snapshot
+     */
+    public synchronized boolean attach(WebSocketServer.Session session, long lastEpoch, long lastSequence) {
+        subscribers.add(session);
+
+        long oldest = sequence - ringSize + 1;
+        if (lastEpoch == epoch && lastSequence >= 0 && lastSequence <= sequence && lastSequence + 1 >= oldest) {
+            for (long seq = lastSequence + 1; seq <= sequence; seq++) {
+                session.sendFrame(ring[(int) (seq % ring.length)], null);
+            }
+            return true;
+        }
+
+        byte[] snapshot = encodeSnapshot(epoch, sequence, inventory.get());
+        session.sendFrame(server.encodeSharedFrame(WebSocketServer.OPCODE_BINARY, snapshot), null);
+        return false;
+    }
+
+    public void detach(WebSocketServer.Session session) {
+        subscribers.remove(session);
+    }
+
+    /**
+     * Assigns the next sequence number to a change and fans it out to every feed session
+     */
+    public synchronized long publish(Item item, int changedFields) {
+        sequence++;
+        return append(item.getId(), encodeDelta(sequence, item, changedFields));
+    }
+
+    /**
+     * Publishes a coffee that is new to the feed, or whose name changed, with all its fields
+     */
+    public synchronized long publishCreate(Item item) {
+        sequence++;
+        return append(item.getId(), encodeCreate(sequence, item));
+    }
+
+    public synchronized long publishRemove(String id) {
+        sequence++;
+        return append(id, encodeRemove(sequence, id));
+    }
+
+    // Caller holds the lock and has just assigned the message its sequence
+    private long append(String id, byte[] message) {
+        WebSocketServer.SharedFrame frame = server.encodeSharedFrame(WebSocketServer.OPCODE_BINARY, message);
+
+        ring[(int) (sequence % ring.length)] = frame;
+        ringSize = Math.min(ringSize + 1, ring.length);
+
+        // Enqueueing only hands tasks to the I/O loops, so holding the lock here keeps
+        // deltas in sequence order without waiting on any socket
+        if (!subscribers.isEmpty()) {
+            server.broadcastFrame(subscribers, frame, "feed/" + id);
+        }
+        return sequence;
+    }
+
+    // ======= Codec =======
+
+    public static byte[] encodeSnapshot(long epoch, long sequence, Collection<Item> items) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(24 + items.size() * 24);
+        writeHeader(out, TYPE_SNAPSHOT, sequence);
+        writeVarint(out, epoch);
+        writeVarint(out, items.size());
+        for (Item item : items) {
+            writeString(out, item.getId());
+            writeString(out, item.getName());
+            writeVarint(out, toCents(item.getPrice()));
+            writeVarint(out, item.getQuantity());
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] encodeDelta(long sequence, Item item, int changedFields) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(24);
+        writeHeader(out, TYPE_DELTA, sequence);
+        out.write(changedFields);
+        writeString(out, item.getId());
+        writeVarint(out, toCents(item.getPrice()));
+        writeVarint(out, item.getQuantity());
+        return out.toByteArray();
+    }
+
+    public static byte[] encodeCreate(long sequence, Item item) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(40);
+        writeHeader(out, TYPE_CREATE, sequence);
+        writeString(out, item.getId());
+        writeString(out, item.getName());
+        writeVarint(out, toCents(item.getPrice()));
+        writeVarint(out, item.getQuantity());
+        return out.toByteArray();
+    }
+
+    public static byte[] encodeRemove(long sequence, String id) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+        writeHeader(out, TYPE_REMOVE, sequence);
+        writeString(out, id);
+        return out.toByteArray();
+    }
+
+    /**
+     * Parses one feed message; delta items carry a null name, remove items only an id
+     */
+    public static Message decode(ByteBuffer payload) {
+        int version = payload.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported feed version " + version);
+        }
+        int type = payload.get() & 0xFF;
+        long sequence = readVarint(payload);
+
+        if (type == TYPE_SNAPSHOT) {
+            long epoch = readVarint(payload);
+            int count = (int) readVarint(payload);
+            List<Item> items = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String id = readString(payload);
+                String name = readString(payload);
+                double price = readVarint(payload) / 100.0;
+                int quantity = (int) readVarint(payload);
+                items.add(new Item(id, name, price, quantity));
+            }
+            return new Message(type, epoch, sequence, 0, items);
+        }
+        if (type == TYPE_DELTA) {
+            int changedFields = payload.get() & 0xFF;
+            String id = readString(payload);
+            double price = readVarint(payload) / 100.0;
+            int quantity = (int) readVarint(payload);
+            return new Message(type, -1, sequence, changedFields,
+                               Collections.singletonList(new Item(id, null, price, quantity)));
+        }
+        if (type == TYPE_CREATE) {
+            String id = readString(payload);
+            String name = readString(payload);
+            double price = readVarint(payload) / 100.0;
+            int quantity = (int) readVarint(payload);
+            return new Message(type, -1, sequence, 0, Collections.singletonList(new Item(id, name, price, quantity)));
+        }
+        if (type == TYPE_REMOVE) {
+            String id = readString(payload);
+            return new Message(type, -1, sequence, 0, Collections.singletonList(new Item(id, null, 0, 0)));
+        }
+        throw new IllegalArgumentException("Unknown feed message type " + type);
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, int type, long sequence) {
+        out.write(VERSION);
+        out.write(type);
+        writeVarint(out, sequence);
+    }
+
+    private static long toCents(double price) {
+        return Math.round(price * 100);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ======= Messages =======
+
+    /**
+     * State of one coffee as carried by the feed
+     */
+    public static final class Item {
+        private final String id;
+        private final String name;
+        private final double price;
+        private final int quantity;
+
+        public Item(String id, String name, double price, int quantity) {
+            this.id = id;
+            this.name = name;
+            this.price = price;
+            this.quantity = quantity;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getPrice() {
+            return price;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+    }
+
+    /**
+     * A decoded snapshot or delta
+     */
+    public static final class Message {
+        private final int type;
+        private final long epoch;
+        private final long sequence;
+        private final int changedFields;
+        private final List<Item> items;
+
+        public Message(int type, long epoch, long sequence, int changedFields, List<Item> items) {
+            this.type = type;
+            this.epoch = epoch;
+            this.sequence = sequence;
+            this.changedFields = changedFields;
+            this.items = items;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public boolean isSnapshot() {
+            return type == TYPE_SNAPSHOT;
+        }
+
+        /**
+         * The feed's epoch for a snapshot, -1 for a delta
+         */
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public int getChangedFields() {
+            return changedFields;
+        }
+
+        public List<Item> getItems() {
+            return items;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks with the same key one at a time, in submission order; tasks with different keys run in parallel
+ *
+ * Each key with work pending has a FIFO in a ConcurrentHashMap, and at most
+ * one task on the underlying executor drains it. Keys without pending work
+ * take no memory: a key's FIFO is removed as soon as it runs dry. Changing the
+ * FIFO and removing it both happen inside ConcurrentHashMap.compute(), so a
+ * task submitted while the drainer is finishing is never left behind.
+ *
+ * Since one task of a key finishes before the next one starts, state that
+ * only that key's tasks touch needs no further locking.
+ *
+ * @param <K> key type, compared with equals/hashCode
+ */
+public final class KeyedSerialExecutor<K> {
+
+    // Tasks run for one key before the drainer gives other keys a turn
+    private static final int DRAIN_BATCH = 16;
+
+    private final Executor executor;
+    private final ConcurrentHashMap<K, ArrayDeque<Runnable>> queues = new ConcurrentHashMap<>();
+
+    public KeyedSerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queues a task behind the key's earlier tasks; the future completes with its result or exception
+     */
+    public <T> CompletableFuture<T> submit(K key, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(key, () -> {
+            try {
+                result.complete(task.call());
+            } catch (Exception | Error e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Queues a task behind the key's earlier tasks
+     */
+    public void execute(K key, Runnable task) {
+        boolean[] start = new boolean[1];
+        queues.compute(key, (k, queue) -> {
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                start[0] = true;
+            }
+            queue.add(task);
+            return queue;
+        });
+        if (start[0]) {
+            executor.execute(() -> drain(key));
+        }
+    }
+
+    /**
+     * Keys with tasks queued or running
+     */
+    public int getActiveKeys() {
+        return queues.size();
+    }
+
+    private void drain(K key) {
+        for (int i = 0; i < DRAIN_BATCH; i++) {
+            Runnable next = poll(key);
+            if (next == null) {
+                return;
+            }
+            try {
+                next.run();
+            } catch (RuntimeException e) {
+                // A failing task must not stall the tasks queued behind it
+                System.err.println("KeyedSerialExecutor: task for " + key + " failed: " + e);
+            }
+        }
+        // Let other keys use this thread before continuing
+        executor.execute(() -> drain(key));
+    }
+
+    // Next task for the key; removes the key's FIFO when it is empty
+    private Runnable poll(K key) {
+        Runnable[] next = new Runnable[1];
+        queues.computeIfPresent(key, (k, queue) -> {
+            next[0] = queue.poll();
+            return next[0] != null ? queue : null;
+        });
+        return next[0];
+    }
+}
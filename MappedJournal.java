@@ -0,0 +1,721 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented, memory-mapped record log with group commit
+ *
+ * Records are appended to fixed-size segment files that are mapped into
+ * memory, so an append is a bounds check and a copy under a short lock. A
+ * single flusher thread forces dirty segments to disk: every append made while
+ * one force is running is covered by the next, so a thousand concurrent
+ * writers cost one fsync rather than a thousand (group commit). Callers that
+ * need durability wait with awaitDurable(); the others return as soon as the
+ * bytes are in the page cache.
+ *
+ * A record's offset is its position in the whole log:
+ *   offset = segmentIndex * segmentSize + positionInSegment
+ * so finding the segment for an offset is a division, and segment files are
+ * named after their index.
+ *
+ * Record layout: length:int crc32:int payload. A zero length marks the end of
+ * the written data and -1 marks the unused tail of a full segment. On open,
+ * every segment is scanned and the log is cut at the first record whose CRC
+ * does not match, which is how a write torn by a crash is detected.
+ *
+ * Named cursors are stored in a small mapped side file, two copies per slot,
+ * so a consumer can record how far it has got and resume there after a
+ * restart. Cursor updates are forced together with the log, so after a crash
+ * a cursor may be slightly behind (at-least-once), never ahead.
+ *
+ * Java 8 compatible, so any demo can use it.
+ */
+public final class MappedJournal implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int END_OF_SEGMENT = -1;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int CURSOR_SLOT_SIZE = 256;
+    private static final int CURSOR_SLOTS_PER_CHUNK = 4096;
+    private static final int MAX_CURSOR_NAME = CURSOR_SLOT_SIZE - 26;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long flushIntervalMillis;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // Append state; guarded by appendLock
+    private final Object appendLock = new Object();
+    private Segment writeSegment;
+    private ByteBuffer writeBuffer;
+    private final CRC32 crc = new CRC32();
+
+    // Offsets published to readers and waiters
+    private volatile long writeOffset;
+    private volatile long durableOffset;
+
+    // Highest offset a writer is waiting for; the flusher is unparked when it grows
+    private final AtomicLong flushRequested = new AtomicLong();
+
+    // Flush state; guarded by flushLock, which waiters use to sleep until their offset is durable
+    private final Object flushLock = new Object();
+    private IOException flushFailure;
+    private boolean closed;
+    private boolean flusherDone;
+    private DurableListener durableListener;
+    private final Thread flusher;
+    private Thread notifier;
+    // End of the log when it was opened; the listener is told about everything after it
+    private long recoveredOffset;
+
+    // Cursor side file
+    private final FileChannel cursorChannel;
+    private final List<MappedByteBuffer> cursorChunks = new ArrayList<>();
+    private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+    private volatile boolean cursorsDirty;
+
+    public MappedJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, 2);
+    }
+
+    /**
+     * Opens or creates a journal, recovering whatever was written before
+     *
+     * @param flushIntervalMillis longest time an append waits to be forced when nobody is waiting for it
+     */
+    public MappedJournal(Path directory, int segmentSize, long flushIntervalMillis) throws IOException {
+        if (segmentSize < 4096) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        if (flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Flush interval must be positive: " + flushIntervalMillis);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        Files.createDirectories(directory);
+
+        recover();
+        cursorChannel = FileChannel.open(directory.resolve("cursors.dat"),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        loadCursors();
+
+        flusher = new Thread(this::flushLoop, "journal-flusher-" + directory.getFileName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Called on a dedicated thread each time more of the log becomes durable
+     *
+     * The listener sees every record appended since the journal was opened
+     * exactly once, in order, and only after it is on disk, which makes it the
+     * natural place to hand records to consumers. It runs behind the flusher,
+     * so the time it takes never delays the next fsync.
+     *
+     * Records that become durable while no listener is set are held back, not
+     * skipped: the next listener set starts from the last offset a listener
+     * was told about, or from the end of the log at open for the first one.
+     */
+    public void setDurableListener(DurableListener listener) {
+        synchronized (flushLock) {
+            this.durableListener = listener;
+            // Wakes a notifier that is waiting for a listener
+            flushLock.notifyAll();
+            if (notifier == null && listener != null) {
+                notifier = new Thread(this::notifyLoop, "journal-listener-" + directory.getFileName());
+                notifier.setDaemon(true);
+                notifier.start();
+            }
+        }
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Offset of the oldest record still on disk
+     */
+    public long getStartOffset() {
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        return first == null ? writeOffset : first.getKey() * segmentSize;
+    }
+
+    /**
+     * Offset the next append will get
+     */
+    public long getEndOffset() {
+        return writeOffset;
+    }
+
+    /**
+     * Everything before this offset has been forced to disk
+     */
+    public long getDurableOffset() {
+        return durableOffset;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    // ======= Writing =======
+
+    /**
+     * Appends one record; it is readable at once and durable after the next flush
+     *
+     * @return offset just past the record, to pass to awaitDurable() or store in a cursor
+     */
+    public long append(byte[] payload) throws IOException {
+        return append(payload, 0, payload.length);
+    }
+
+    public long append(byte[] payload, int offset, int length) throws IOException {
+        int recordSize = HEADER_SIZE + length;
+        if (length <= 0 || recordSize > segmentSize) {
+            throw new IllegalArgumentException("Record size must be between 1 and " + (segmentSize - HEADER_SIZE));
+        }
+        synchronized (appendLock) {
+            if (closed) {
+                throw new IOException("Journal is closed");
+            }
+            if (writeBuffer.remaining() < recordSize) {
+                roll();
+            }
+            crc.reset();
+            crc.update(payload, offset, length);
+            writeBuffer.putInt(length);
+            writeBuffer.putInt((int) crc.getValue());
+            writeBuffer.put(payload, offset, length);
+            long end = writeSegment.index * segmentSize + writeBuffer.position();
+            writeOffset = end;
+            return end;
+        }
+    }
+
+    /**
+     * Blocks until everything before the offset is on disk
+     */
+    public void awaitDurable(long offset) throws IOException, InterruptedException {
+        if (durableOffset >= offset) {
+            return;
+        }
+        if (flushRequested.get() < offset) {
+            // Wake only the flusher; the other waiters have nothing to do until it finishes
+            flushRequested.accumulateAndGet(offset, Math::max);
+            LockSupport.unpark(flusher);
+        }
+        synchronized (flushLock) {
+            while (durableOffset < offset) {
+                if (flushFailure != null) {
+                    throw new IOException("Journal flush failed", flushFailure);
+                }
+                if (closed && flusherDone) {
+                    throw new IOException("Journal is closed");
+                }
+                flushLock.wait();
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        if (writeBuffer.remaining() >= 4) {
+            writeBuffer.putInt(END_OF_SEGMENT);
+        }
+        Segment next = openSegment(writeSegment.index + 1);
+        segments.put(next.index, next);
+        writeSegment = next;
+        writeBuffer = next.buffer.duplicate();
+        writeOffset = next.index * segmentSize;
+    }
+
+    // ======= Flushing =======
+
+    private void flushLoop() {
+        try {
+            while (true) {
+                // Flush at once when a writer is waiting, otherwise every flush interval
+                if (!isClosed() && flushRequested.get() <= durableOffset) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis));
+                    if (Thread.interrupted()) {
+                        return;
+                    }
+                }
+                long target = writeOffset;
+                if (target > durableOffset || cursorsDirty) {
+                    try {
+                        force(durableOffset, target);
+                    } catch (IOException e) {
+                        synchronized (flushLock) {
+                            flushFailure = e;
+                        }
+                        return;
+                    }
+                    synchronized (flushLock) {
+                        durableOffset = Math.max(durableOffset, target);
+                        flushLock.notifyAll();
+                    }
+                }
+                synchronized (flushLock) {
+                    if (closed && writeOffset <= durableOffset) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            synchronized (flushLock) {
+                flusherDone = true;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Feeds the durable listener from its own thread, so a slow consumer never delays the next fsync
+     *
+     * Only moves past a range once a listener has been given it, so a range
+     * that is durable while the listener is cleared waits for the next one.
+     */
+    private void notifyLoop() {
+        long notified = recoveredOffset;
+        while (true) {
+            long to;
+            DurableListener listener;
+            synchronized (flushLock) {
+                while ((durableOffset <= notified || durableListener == null) && !flusherDone) {
+                    try {
+                        flushLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (durableOffset <= notified || durableListener == null) {
+                    return;
+                }
+                to = durableOffset;
+                listener = durableListener;
+            }
+            try {
+                listener.onDurable(notified, to);
+            } catch (RuntimeException e) {
+                System.err.println("Journal listener failed: " + e);
+            }
+            notified = to;
+        }
+    }
+
+    private boolean isClosed() {
+        synchronized (flushLock) {
+            return closed;
+        }
+    }
+
+    private void force(long from, long to) throws IOException {
+        if (to > from) {
+            for (Segment segment : segments.subMap(segmentIndex(from), true, segmentIndex(to - 1), true).values()) {
+                segment.buffer.force();
+            }
+        }
+        if (cursorsDirty) {
+            cursorsDirty = false;
+            synchronized (cursorChunks) {
+                for (MappedByteBuffer chunk : cursorChunks) {
+                    chunk.force();
+                }
+            }
+        }
+    }
+
+    // ======= Reading =======
+
+    /**
+     * Visits the records from one offset up to another, in order
+     *
+     * Offsets that fall in deleted segments are skipped, so reading from 0
+     * starts at the oldest record still kept.
+     *
+     * @return offset just past the last record visited
+     */
+    public long read(long from, long to, RecordHandler handler) {
+        long offset = Math.max(from, getStartOffset());
+        while (offset < to) {
+            Segment segment = segments.get(segmentIndex(offset));
+            if (segment == null) {
+                Map.Entry<Long, Segment> next = segments.higherEntry(segmentIndex(offset));
+                if (next == null) {
+                    break;
+                }
+                offset = next.getKey() * segmentSize;
+                continue;
+            }
+            int position = (int) (offset - segment.index * segmentSize);
+            int length = position + HEADER_SIZE <= segmentSize ? segment.buffer.getInt(position) : END_OF_SEGMENT;
+            if (length == END_OF_SEGMENT) {
+                offset = (segment.index + 1) * segmentSize;
+                continue;
+            }
+            if (length == 0) {
+                break;
+            }
+            ByteBuffer payload = segment.buffer.duplicate();
+            payload.limit(position + HEADER_SIZE + length);
+            payload.position(position + HEADER_SIZE);
+            long next = offset + HEADER_SIZE + length;
+            handler.onRecord(offset, next, payload.slice());
+            offset = next;
+        }
+        return offset;
+    }
+
+    /**
+     * Deletes whole segments that lie entirely before the offset, e.g. the lowest consumer cursor
+     *
+     * @return number of segments deleted
+     */
+    public int deleteBefore(long offset) throws IOException {
+        long limit = segmentIndex(offset);
+        long current;
+        synchronized (appendLock) {
+            current = writeSegment.index;
+        }
+        int deleted = 0;
+        for (Long index : new ArrayList<>(segments.headMap(limit).keySet())) {
+            if (index == current) {
+                break;
+            }
+            Segment segment = segments.remove(index);
+            segment.channel.close();
+            // The mapping stays valid for readers still holding it; it is released by GC
+            Files.deleteIfExists(segment.path);
+            deleted++;
+        }
+        return deleted;
+    }
+
+    // ======= Recovery =======
+
+    private void recover() throws IOException {
+        List<Long> indexes = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                indexes.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        indexes.sort(null);
+
+        CRC32 check = new CRC32();
+        boolean truncated = false;
+        for (Long index : indexes) {
+            if (truncated) {
+                // Written after a torn record, so never acknowledged as durable
+                Files.delete(segmentPath(index));
+                continue;
+            }
+            Segment segment = openSegment(index);
+            segments.put(index, segment);
+            writeSegment = segment;
+
+            ByteBuffer buffer = segment.buffer;
+            int position = 0;
+            while (position + HEADER_SIZE <= segmentSize) {
+                int length = buffer.getInt(position);
+                if (length == 0 || length == END_OF_SEGMENT) {
+                    break;
+                }
+                if (length < 0 || position + HEADER_SIZE + length > segmentSize
+                        || !crcMatches(check, buffer, position, length)) {
+                    System.err.println("Journal " + directory + ": cutting log at torn record in segment " + index +
+                                       " position " + position);
+                    zero(buffer, position);
+                    truncated = true;
+                    break;
+                }
+                position += HEADER_SIZE + length;
+            }
+            writeOffset = index * segmentSize + position;
+            if (!truncated && position + HEADER_SIZE <= segmentSize && buffer.getInt(position) == END_OF_SEGMENT) {
+                writeOffset = (index + 1) * segmentSize;
+            }
+        }
+
+        if (writeSegment == null) {
+            writeSegment = openSegment(0);
+            segments.put(0L, writeSegment);
+        } else if (segmentIndex(writeOffset) != writeSegment.index) {
+            // The last segment was full; start the next one
+            Segment next = openSegment(writeSegment.index + 1);
+            segments.put(next.index, next);
+            writeSegment = next;
+        }
+        writeBuffer = writeSegment.buffer.duplicate();
+        writeBuffer.position((int) (writeOffset - writeSegment.index * segmentSize));
+        durableOffset = writeOffset;
+        recoveredOffset = writeOffset;
+    }
+
+    private static boolean crcMatches(CRC32 check, ByteBuffer buffer, int position, int length) {
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(position + HEADER_SIZE + length);
+        payload.position(position + HEADER_SIZE);
+        check.reset();
+        check.update(payload);
+        return (int) check.getValue() == buffer.getInt(position + 4);
+    }
+
+    private static void zero(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    private Segment openSegment(long index) throws IOException {
+        Path path = segmentPath(index);
+        FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Mapping past the end grows the file; the new bytes read as zeros
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        return new Segment(index, path, channel, buffer);
+    }
+
+    private Path segmentPath(long index) {
+        return directory.resolve(String.format("%016d%s", index, SEGMENT_SUFFIX));
+    }
+
+    private long segmentIndex(long offset) {
+        return offset / segmentSize;
+    }
+
+    // ======= Cursors =======
+
+    /**
+     * Returns the named cursor, creating it at the given offset if it does not exist yet
+     *
+     * A new cursor is forced to disk before this returns, so a consumer that
+     * exists after a crash always has a position to resume from.
+     */
+    public Cursor cursor(String name, long initialOffset) throws IOException {
+        Cursor cursor = cursors.get(name);
+        if (cursor != null) {
+            return cursor;
+        }
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        if (encoded.length == 0 || encoded.length > MAX_CURSOR_NAME) {
+            throw new IllegalArgumentException("Cursor name must be 1 to " + MAX_CURSOR_NAME + " bytes: " + name);
+        }
+        synchronized (cursorChunks) {
+            cursor = cursors.get(name);
+            if (cursor == null) {
+                int slot = cursors.size();
+                ByteBuffer chunk = cursorChunk(slot / CURSOR_SLOTS_PER_CHUNK);
+                int base = (slot % CURSOR_SLOTS_PER_CHUNK) * CURSOR_SLOT_SIZE;
+                chunk.putShort(base + 24, (short) encoded.length);
+                for (int i = 0; i < encoded.length; i++) {
+                    chunk.put(base + 26 + i, encoded[i]);
+                }
+                cursor = new Cursor(name, chunk, base, initialOffset);
+                cursor.write(initialOffset);
+                ((MappedByteBuffer) chunk).force();
+                cursors.put(name, cursor);
+            }
+            return cursor;
+        }
+    }
+
+    /**
+     * Existing cursor, or null
+     */
+    public Cursor getCursor(String name) {
+        return cursors.get(name);
+    }
+
+    public List<Cursor> getCursors() {
+        return new ArrayList<>(cursors.values());
+    }
+
+    private void loadCursors() throws IOException {
+        long size = cursorChannel.size();
+        int chunks = (int) ((size + (long) CURSOR_SLOTS_PER_CHUNK * CURSOR_SLOT_SIZE - 1)
+                            / ((long) CURSOR_SLOTS_PER_CHUNK * CURSOR_SLOT_SIZE));
+        for (int c = 0; c < chunks; c++) {
+            MappedByteBuffer chunk = cursorChunk(c);
+            for (int s = 0; s < CURSOR_SLOTS_PER_CHUNK; s++) {
+                int base = s * CURSOR_SLOT_SIZE;
+                int nameLength = chunk.getShort(base + 24);
+                if (nameLength <= 0) {
+                    return;
+                }
+                byte[] encoded = new byte[nameLength];
+                for (int i = 0; i < nameLength; i++) {
+                    encoded[i] = chunk.get(base + 26 + i);
+                }
+                Cursor cursor = new Cursor(new String(encoded, StandardCharsets.UTF_8), chunk, base, 0);
+                cursor.offset = cursor.readStored();
+                cursors.put(cursor.name, cursor);
+            }
+        }
+    }
+
+    private MappedByteBuffer cursorChunk(int index) throws IOException {
+        while (cursorChunks.size() <= index) {
+            long chunkSize = (long) CURSOR_SLOTS_PER_CHUNK * CURSOR_SLOT_SIZE;
+            cursorChunks.add(cursorChannel.map(FileChannel.MapMode.READ_WRITE, cursorChunks.size() * chunkSize, chunkSize));
+        }
+        return cursorChunks.get(index);
+    }
+
+    // ======= Lifecycle =======
+
+    /**
+     * Flushes everything appended so far and stops the flusher
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            synchronized (flushLock) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                flushLock.notifyAll();
+            }
+        }
+        LockSupport.unpark(flusher);
+        Thread listenerThread;
+        synchronized (flushLock) {
+            listenerThread = notifier;
+        }
+        try {
+            flusher.join();
+            if (listenerThread != null && listenerThread != Thread.currentThread()) {
+                listenerThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (cursorsDirty) {
+            force(durableOffset, durableOffset);
+        }
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        cursorChannel.close();
+    }
+
+    // ======= Types =======
+
+    /**
+     * Receives one record; the payload buffer is only valid during the call
+     */
+    public interface RecordHandler {
+        void onRecord(long offset, long nextOffset, ByteBuffer payload);
+    }
+
+    /**
+     * Notified on the journal's listener thread, not the flusher, when [from, to) has become durable
+     */
+    public interface DurableListener {
+        void onDurable(long from, long to);
+    }
+
+    /**
+     * Persistent read position of one consumer
+     *
+     * Each slot holds two copies of the offset, each with its own CRC, and
+     * updates overwrite the older copy, so a torn write leaves the previous value.
+     * Slot layout: offsetA:long crcA:int offsetB:long crcB:int nameLength:short name
+     */
+    public final class Cursor {
+        private final String name;
+        private final ByteBuffer slots;
+        private final int base;
+        private volatile long offset;
+
+        Cursor(String name, ByteBuffer slots, int base, long offset) {
+            this.name = name;
+            this.slots = slots;
+            this.base = base;
+            this.offset = offset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Moves the cursor forward; an older offset is ignored
+         */
+        public synchronized void advance(long newOffset) {
+            if (newOffset > offset) {
+                offset = newOffset;
+                write(newOffset);
+                cursorsDirty = true;
+            }
+        }
+
+        private void write(long value) {
+            long a = copyValid(0) ? slots.getLong(base) : Long.MIN_VALUE;
+            long b = copyValid(12) ? slots.getLong(base + 12) : Long.MIN_VALUE;
+            int target = a <= b ? 0 : 12;
+            slots.putLong(base + target, value);
+            slots.putInt(base + target + 8, checksum(value));
+        }
+
+        private long readStored() {
+            long a = copyValid(0) ? slots.getLong(base) : 0;
+            long b = copyValid(12) ? slots.getLong(base + 12) : 0;
+            return Math.max(a, b);
+        }
+
+        private boolean copyValid(int at) {
+            long value = slots.getLong(base + at);
+            int stored = slots.getInt(base + at + 8);
+            return stored != 0 && stored == checksum(value);
+        }
+
+        private int checksum(long value) {
+            // Only needs to catch a torn 12-byte write, so a multiplicative hash is enough
+            int result = Long.hashCode(value * 0x9E3779B97F4A7C15L) ^ 0x5A17C0DE;
+            // Zero means "never written", so keep real checksums away from it
+            return result == 0 ? 1 : result;
+        }
+    }
+
+    private static final class Segment {
+        final long index;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(long index, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.index = index;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,490 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Counters, gauges and latency histograms for every API style, exported in Prometheus text format
+ *
+ * Recording never takes a lock: counters are LongAdders, gauges are read
+ * from a supplier only when scraped, and a histogram records into a fixed
+ * array of atomic buckets. Looking up a series is a ConcurrentHashMap read
+ * once it exists, and code on a hot path keeps the instrument it got back.
+ *
+ * Histograms bucket like HdrHistogram: values below 64 ns get a bucket each,
+ * and every power of two above that is split into 64 buckets, so a recorded
+ * latency is known to within 1/64 (1.6%) of itself from nanoseconds up to
+ * about 18 minutes in 2240 buckets (18 KB). Percentiles read in-process are
+ * that precise. The Prometheus export folds the buckets into a fixed
+ * 10 us..10 s ladder of cumulative le buckets, which stay summable across
+ * instances and over time.
+ *
+ * Every request path records into one family, api_request_duration_seconds,
+ * labelled by style, endpoint and outcome:
+ *   rest       route template and method, HTTP status
+ *   graphql    root field, ok or no_data
+ *   grpc       service method, status code
+ *   soap       operation, HTTP status
+ *   websocket  server path, time from queueing a message until the socket took its last byte
+ *   webhook    receiver URL ("other" past the engine's limit), status class of the delivery request
+ *
+ * When the coffee.metrics.port system property is set, the shared registry
+ * serves /metrics on 127.0.0.1 from the moment something first records into it.
+ */
+public final class Metrics {
+
+    public static final String PORT_PROPERTY = "coffee.metrics.port";
+    public static final String REQUEST_DURATION = "api_request_duration_seconds";
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Upper bounds of the exported histogram buckets in seconds, written as the le label so every instance agrees
+    private static final String[] EXPORTED_BOUNDS = {
+        "0.00001", "0.000025", "0.00005", "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005",
+        "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+    };
+    private static final long[] EXPORTED_BOUND_NANOS = new long[EXPORTED_BOUNDS.length];
+
+    static {
+        for (int i = 0; i < EXPORTED_BOUNDS.length; i++) {
+            EXPORTED_BOUND_NANOS[i] = Math.round(Double.parseDouble(EXPORTED_BOUNDS[i]) * 1e9);
+        }
+    }
+
+    private static final Metrics SHARED = createShared();
+
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+    // requestDuration() series by style, endpoint and outcome joined with NULs, skipping the label escaping
+    private final Map<String, Histogram> requestDurations = new ConcurrentHashMap<>();
+
+    /**
+     * The registry the demo services share
+     */
+    public static Metrics shared() {
+        return SHARED;
+    }
+
+    private static Metrics createShared() {
+        Metrics metrics = new Metrics();
+        String port = System.getProperty(PORT_PROPERTY);
+        if (port != null) {
+            try {
+                metrics.serve(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(port)));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not serve metrics on port " + port, e);
+            }
+        }
+        return metrics;
+    }
+
+    // ======= Registration =======
+
+    /**
+     * The counter with these labels, given as name, value pairs; created on first use
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) series(name, help, "counter", labels, Counter::new);
+    }
+
+    /**
+     * Exports a count kept elsewhere, such as an existing AtomicLong, as a counter
+     *
+     * Registering the same name and labels again replaces the supplier.
+     */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, "counter", labels, new SuppliedCounter(value));
+    }
+
+    /**
+     * Exports a value read when scraped; registering the same name and labels again replaces the supplier
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        register(name, help, "gauge", labels, new SuppliedGauge(value));
+    }
+
+    /**
+     * The latency histogram with these labels; created on first use
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) series(name, help, "histogram", labels, Histogram::new);
+    }
+
+    /**
+     * The histogram every request path records into
+     */
+    public Histogram requestDuration(String style, String endpoint, String outcome) {
+        String key = style + '\0' + endpoint + '\0' + outcome;
+        Histogram histogram = requestDurations.get(key);
+        if (histogram == null) {
+            histogram = histogram(REQUEST_DURATION,
+                                  "Time to serve a request, send a WebSocket message or deliver a webhook",
+                                  "style", style, "endpoint", endpoint, "outcome", outcome);
+            requestDurations.putIfAbsent(key, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Drops a series, so a supplier registered by a stopped component is not kept reachable
+     */
+    public void remove(String name, String... labels) {
+        Family family = families.get(name);
+        if (family != null) {
+            family.series.remove(labelKey(labels));
+        }
+    }
+
+    private Object series(String name, String help, String type, String[] labels,
+                          Supplier<Series> factory) {
+        Family family = family(name, help, type);
+        String key = labelKey(labels);
+        Series series = family.series.get(key);
+        if (series == null) {
+            series = family.series.computeIfAbsent(key, k -> factory.get());
+        }
+        return series;
+    }
+
+    private void register(String name, String help, String type, String[] labels, Series series) {
+        family(name, help, type).series.put(labelKey(labels), series);
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = families.computeIfAbsent(name, n -> new Family(help, type));
+        }
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type + ", not a " + type);
+        }
+        return family;
+    }
+
+    // Labels as they appear between the braces, which also identifies the series
+    private static String labelKey(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name, value pairs: " + labels.length + " strings");
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                key.append(',');
+            }
+            key.append(labels[i]).append("=\"");
+            escape(labels[i + 1], key);
+            key.append('"');
+        }
+        return key.toString();
+    }
+
+    private static void escape(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    // ======= Export =======
+
+    /**
+     * Every series in Prometheus text exposition format 0.0.4, families and series in name order
+     */
+    public String scrape() {
+        List<String> names = new ArrayList<>(families.keySet());
+        Collections.sort(names);
+        StringBuilder out = new StringBuilder(4096);
+        for (String name : names) {
+            Family family = families.get(name);
+            List<String> keys = new ArrayList<>(family.series.keySet());
+            if (keys.isEmpty()) {
+                continue;
+            }
+            Collections.sort(keys);
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (String key : keys) {
+                Series series = family.series.get(key);
+                if (series != null) {
+                    series.write(name, key, out);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Serves scrape() at /metrics until the returned server is stopped
+     *
+     * The JDK server's dispatcher thread takes its daemon flag from the thread
+     * that starts it, so it is started from a daemon thread and never keeps
+     * the JVM alive on its own.
+     */
+    public HttpServer serve(InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, 16);
+        server.createContext("/metrics", this::handle);
+        // A method reference rather than a lambda: the shared registry starts this
+        // while Metrics is still initialising, which a lambda body would wait for
+        Thread starter = new Thread(server::start, "metrics-start");
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            server.stop(0);
+            throw new IOException("Interrupted while starting the metrics endpoint");
+        }
+        return server;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void appendSeconds(long nanos, StringBuilder out) {
+        out.append(nanos / 1e9);
+    }
+
+    // ======= Types =======
+
+    private static final class Family {
+        final String help;
+        final String type;
+        final Map<String, Series> series = new ConcurrentHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private interface Series {
+        void write(String name, String labels, StringBuilder out);
+    }
+
+    private static void sample(String name, String labels, StringBuilder out) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+    }
+
+    /**
+     * A count that only goes up
+     */
+    public static final class Counter implements Series {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void write(String name, String labels, StringBuilder out) {
+            sample(name, labels, out);
+            out.append(value.sum()).append('\n');
+        }
+    }
+
+    private static final class SuppliedCounter implements Series {
+        private final LongSupplier value;
+
+        SuppliedCounter(LongSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(String name, String labels, StringBuilder out) {
+            sample(name, labels, out);
+            out.append(value.getAsLong()).append('\n');
+        }
+    }
+
+    private static final class SuppliedGauge implements Series {
+        private final DoubleSupplier value;
+
+        SuppliedGauge(DoubleSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(String name, String labels, StringBuilder out) {
+            sample(name, labels, out);
+            out.append(value.getAsDouble()).append('\n');
+        }
+    }
+
+    /**
+     * Lock-free latency histogram in nanoseconds with HdrHistogram-style log-linear buckets
+     *
+     * A value v below 2^6 has bucket v. Above that, with e the position of its
+     * highest set bit, it goes to bucket (e - 5) * 64 plus the 6 bits below the
+     * highest one, so each bucket is at most 1/64 as wide as the values in it.
+     * Values of 2^40 ns and more share the last bucket; getMax() still reports them.
+     */
+    public static final class Histogram implements Series {
+        private static final int SUB_BUCKET_BITS = 6;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 40;
+        static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            counts.incrementAndGet(bucket(nanos));
+            sum.add(nanos);
+            long current = max.get();
+            // Only the first few recordings of a series usually raise the maximum
+            while (nanos > current && !max.compareAndSet(current, nanos)) {
+                current = max.get();
+            }
+        }
+
+        /**
+         * Records the time since startNanos, a System.nanoTime() reading
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * The latency at or below which the given percentage of recordings fall, in nanoseconds
+         */
+        public long getValueAtPercentile(double percentile) {
+            long[] snapshot = snapshot();
+            long count = 0;
+            for (long bucketCount : snapshot) {
+                count += bucketCount;
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(lowestValue(i + 1) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent >= MAX_EXPONENT) {
+                return BUCKET_COUNT - 1;
+            }
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long lowestValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int range = bucket >>> SUB_BUCKET_BITS;
+            long subBucket = bucket & (SUB_BUCKETS - 1);
+            return (SUB_BUCKETS + subBucket) << (range - 1);
+        }
+
+        private long[] snapshot() {
+            long[] snapshot = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+
+        /**
+         * Writes cumulative le buckets; a bucket whose lowest value is within a bound counts towards it
+         */
+        @Override
+        public void write(String name, String labels, StringBuilder out) {
+            long[] snapshot = snapshot();
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            int bucket = 0;
+            for (int i = 0; i < EXPORTED_BOUNDS.length; i++) {
+                while (bucket < BUCKET_COUNT && lowestValue(bucket) <= EXPORTED_BOUND_NANOS[i]) {
+                    cumulative += snapshot[bucket++];
+                }
+                out.append(name).append("_bucket{").append(prefix).append("le=\"").append(EXPORTED_BOUNDS[i])
+                   .append("\"} ").append(cumulative).append('\n');
+            }
+            while (bucket < BUCKET_COUNT) {
+                cumulative += snapshot[bucket++];
+            }
+            out.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            sample(name + "_sum", labels, out);
+            appendSeconds(sum.sum(), out);
+            out.append('\n');
+            sample(name + "_count", labels, out);
+            out.append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,1215 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Coffee catalog kept in fixed-size records outside the Java heap
+ *
+ * CoffeeStore holds every coffee as a handful of objects: the snapshot, its
+ * three Strings, an AtomicReference and two map entries. At tens of millions
+ * of coffees those objects fill the old generation and every full GC has to
+ * trace them. This catalog keeps the same data in direct ByteBuffers instead,
+ * which the collector never looks inside:
+ *
+ * - Records are 128 bytes with a fixed layout (below), in slabs of up to
+ *   64 MB; a record's number gives its slab and position with a shift and a
+ *   mask. Removed records are chained into a free list and reused.
+ * - The index is an open-addressing hash table of longs, also off-heap:
+ *   id hash in the high half, record number + 1 in the low half, 0 for an
+ *   empty slot. Linear probing, backward-shift deletion, so no tombstones.
+ *   A second table of the same kind indexes names, hashed ignoring case, for
+ *   findByName().
+ * - Readers get a Record, a flyweight that reads its fields straight from the
+ *   slab, so a lookup allocates nothing but the strings it is asked for.
+ *   get(id, view) repositions an existing view and allocates nothing at all.
+ *
+ * The heap holds a few dozen objects whatever the catalog size; the records
+ * count against -XX:MaxDirectMemorySize instead.
+ *
+ * Writers take a StampedLock; readers use optimistic stamps and only fall
+ * back to the read lock if a write ran while they read, so reads never block
+ * one another. A view is live: it sees later changes to its coffee, and once
+ * the coffee is removed its getters throw IllegalStateException. toCoffee()
+ * copies all fields at one point in time.
+ *
+ * CoffeeStore.backedBy() serves a CoffeeStore from a catalog: reads come
+ * from the records, and only coffees that are written get a heap snapshot.
+ *
+ * Each change is built as a record image first and handed to the ChangeLog,
+ * if there is one, before it touches the slabs. writeSnapshot() dumps the
+ * index and slabs as they are and mapSnapshot() maps them back; DurableCatalog
+ * puts the two together.
+ *
+ * Record layout:
+ *   generation:int   odd while the record is in use, bumped on allocate and remove
+ *   idHash:int
+ *   version:long  priceVersion:long  price:double
+ *   quantity:int     next free record while the record is unused
+ *   id:      length:byte + 31 bytes UTF-8
+ *   name:    length:byte + 35 bytes UTF-8
+ *   origin:  length:byte + 23 bytes UTF-8
+ *
+ * Java 8 compatible, so any demo can use it.
+ */
+public final class OffHeapCatalog {
+
+    public static final int RECORD_SIZE = 128;
+    public static final int MAX_ID_BYTES = 31;
+    public static final int MAX_NAME_BYTES = 35;
+    public static final int MAX_ORIGIN_BYTES = 23;
+
+    private static final int GENERATION = 0;
+    private static final int ID_HASH = 4;
+    private static final int VERSION = 8;
+    private static final int PRICE_VERSION = 16;
+    private static final int PRICE = 24;
+    private static final int QUANTITY = 32;
+    private static final int ID = 36;
+    private static final int NAME = ID + 1 + MAX_ID_BYTES;
+    private static final int ORIGIN = NAME + 1 + MAX_NAME_BYTES;
+
+    private static final int MAX_SLAB_RECORDS = 1 << 19;
+    // Slot offsets are ints, so the table stops at 1 GB
+    private static final int MAX_INDEX_SLOTS = 1 << 27;
+    private static final double MAX_LOAD = 0.6;
+
+    // "CSN2"; read back in the wrong byte order it does not match, which is how a foreign snapshot is caught
+    private static final int SNAPSHOT_MAGIC = 0x43534E32;
+    // "CSN1", written before the name index existed; opening one builds the name index
+    private static final int SNAPSHOT_MAGIC_V1 = 0x43534E31;
+    private static final int SNAPSHOT_HEADER_SIZE = 64;
+
+    private final StampedLock lock = new StampedLock();
+    private final int slabShift;
+    private final int slabMask;
+    private final long snapshotPosition;
+
+    // Replaced, never modified, when they grow, so a reader holding the old one still reads valid memory
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private volatile ByteBuffer index;
+    private volatile ByteBuffer names;
+
+    // Guarded by the write lock
+    private int allocated;
+    private int freeHead = -1;
+    private int count;
+    private long versions;
+    private ChangeLog changeLog;
+    // The record being written, built here before it is logged and copied into its slab
+    private final ByteBuffer image = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.nativeOrder());
+
+    public OffHeapCatalog() {
+        this(1024);
+    }
+
+    /**
+     * @param expectedSize number of coffees to size the first slab and the index for
+     */
+    public OffHeapCatalog(int expectedSize) {
+        if (expectedSize < 1) {
+            throw new IllegalArgumentException("Expected size must be positive: " + expectedSize);
+        }
+        int slabRecords = 64;
+        while (slabRecords < expectedSize && slabRecords < MAX_SLAB_RECORDS) {
+            slabRecords <<= 1;
+        }
+        this.slabShift = Integer.numberOfTrailingZeros(slabRecords);
+        this.slabMask = slabRecords - 1;
+        this.index = newIndex(slotsFor(expectedSize));
+        this.names = newIndex(slotsFor(expectedSize));
+        this.snapshotPosition = 0;
+    }
+
+    private OffHeapCatalog(int slabRecords, ByteBuffer[] slabs, ByteBuffer index, ByteBuffer names, int allocated,
+                           int freeHead, int count, long versions, long snapshotPosition) {
+        this.slabShift = Integer.numberOfTrailingZeros(slabRecords);
+        this.slabMask = slabRecords - 1;
+        this.slabs = slabs;
+        this.index = index;
+        this.names = names;
+        this.allocated = allocated;
+        this.freeHead = freeHead;
+        this.count = count;
+        this.versions = versions;
+        this.snapshotPosition = snapshotPosition;
+    }
+
+    /**
+     * An off-heap copy of every coffee in the store
+     */
+    public static OffHeapCatalog copyOf(CoffeeStore store) {
+        OffHeapCatalog catalog = new OffHeapCatalog(Math.max(1, store.size()));
+        catalog.addAll(store.getAll());
+        return catalog;
+    }
+
+    // ======= Reading =======
+
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int size = count;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                size = count;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Highest version given to a change so far
+     */
+    public long getVersion() {
+        long stamp = lock.tryOptimisticRead();
+        long version = versions;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                version = versions;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Direct memory held by the records and the indexes
+     */
+    public long getOffHeapBytes() {
+        long bytes = index.capacity() + names.capacity();
+        for (ByteBuffer slab : slabs) {
+            bytes += slab.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * A view of the coffee with the id, or null if there is none
+     */
+    public Record get(String id) {
+        Record view = new Record();
+        return get(id, view) ? view : null;
+    }
+
+    /**
+     * A view pointing nowhere yet, to reuse across get(id, view) calls
+     */
+    public Record newView() {
+        return new Record();
+    }
+
+    /**
+     * Points an existing view at the coffee with the id, allocating nothing
+     *
+     * @return false, leaving the view as it was, if there is no coffee with the id
+     */
+    public boolean get(String id, Record view) {
+        int hash = hash(id);
+        long stamp = lock.tryOptimisticRead();
+        int record = find(id, hash);
+        int generation = record >= 0 ? slab(record).getInt(offset(record) + GENERATION) : 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                record = find(id, hash);
+                generation = record >= 0 ? slab(record).getInt(offset(record) + GENERATION) : 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (record < 0) {
+            return false;
+        }
+        view.position(record, generation);
+        return true;
+    }
+
+    /**
+     * A view of a coffee with the name, ignoring case, or null if there is none
+     *
+     * Names are not unique; with several coffees of the same name any one of them is returned.
+     */
+    public Record findByName(String name) {
+        int hash = nameHash(name);
+        long stamp = lock.tryOptimisticRead();
+        int record = findName(name, hash);
+        int generation = record >= 0 ? slab(record).getInt(offset(record) + GENERATION) : 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                record = findName(name, hash);
+                generation = record >= 0 ? slab(record).getInt(offset(record) + GENERATION) : 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (record < 0) {
+            return null;
+        }
+        Record view = new Record();
+        view.position(record, generation);
+        return view;
+    }
+
+    /**
+     * Runs the action on every coffee, moving one view from record to record
+     *
+     * Each record is only visited once a write to it has finished, and every
+     * getter validates its read like any other view. A view's getters throw
+     * once its coffee is removed, though, so while writers are active call
+     * toCoffee(), which returns null instead, and which is also the way to
+     * get all fields from one point in time. The action must not keep the
+     * view; toCoffee() gives a copy that outlives it.
+     */
+    public void forEach(Consumer<? super Record> action) {
+        Record view = new Record();
+        ByteBuffer[] current = slabs;
+        for (int record = 0; record < current.length << slabShift; record++) {
+            ByteBuffer slab = current[record >>> slabShift];
+            int base = offset(record);
+            long stamp = lock.tryOptimisticRead();
+            int generation = slab.getInt(base + GENERATION);
+            if (!lock.validate(stamp)) {
+                // A writer is on it, possibly half way through a new record: wait for it to finish
+                stamp = lock.readLock();
+                try {
+                    generation = slab.getInt(base + GENERATION);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            if ((generation & 1) == 1) {
+                view.position(record, generation);
+                action.accept(view);
+            }
+        }
+    }
+
+    // ======= Writing =======
+
+    /**
+     * Throws IllegalArgumentException unless the coffee's strings fit their record fields
+     */
+    public static void checkFits(CoffeeStore.CoffeeView coffee) {
+        checkFits(coffee.getId(), coffee.getName(), coffee.getOrigin());
+    }
+
+    public static void checkFits(String id, String name, String origin) {
+        checkLength("id", id, MAX_ID_BYTES);
+        checkLength("name", name, MAX_NAME_BYTES);
+        checkLength("origin", origin, MAX_ORIGIN_BYTES);
+    }
+
+    /**
+     * Sends every change to the log before it is made; null stops logging
+     *
+     * The log is called with the write lock held, so it sees changes in the
+     * order they are made. If it throws, the change is not made.
+     */
+    public void setChangeLog(ChangeLog changeLog) {
+        long stamp = lock.writeLock();
+        try {
+            this.changeLog = changeLog;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds or overwrites a coffee, keeping no history; for loading the catalog
+     */
+    public void add(CoffeeStore.CoffeeView coffee) {
+        String id = coffee.getId();
+        byte[] idBytes = encode("id", id, MAX_ID_BYTES);
+        byte[] name = encode("name", coffee.getName(), MAX_NAME_BYTES);
+        byte[] origin = encode("origin", coffee.getOrigin(), MAX_ORIGIN_BYTES);
+        int hash = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            int record = find(id, hash);
+            newImage(hash, idBytes, name, coffee.getPrice(), origin, coffee.getQuantity());
+            commit(record);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds or overwrites a CoffeeStore snapshot, keeping its version and price version
+     *
+     * How a catalog-backed CoffeeStore writes; the store numbers its changes
+     * and the catalog keeps those numbers, so they are still there once the
+     * snapshot is read back.
+     */
+    void put(CoffeeStore.Coffee coffee) {
+        String id = coffee.getId();
+        byte[] idBytes = encode("id", id, MAX_ID_BYTES);
+        byte[] name = encode("name", coffee.getName(), MAX_NAME_BYTES);
+        byte[] origin = encode("origin", coffee.getOrigin(), MAX_ORIGIN_BYTES);
+        int hash = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            int record = find(id, hash);
+            newImage(hash, idBytes, name, coffee.getPrice(), origin, coffee.getQuantity());
+            image.putLong(VERSION, coffee.getVersion());
+            image.putLong(PRICE_VERSION, coffee.getPriceVersion());
+            versions = Math.max(versions, coffee.getVersion());
+            commit(record);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds or overwrites a batch of coffees under one acquisition of the write lock
+     *
+     * The strings are encoded before the lock is taken, so threads loading
+     * batches in parallel share the encoding work and only queue for the copy.
+     */
+    public void addAll(Collection<? extends CoffeeStore.CoffeeView> coffees) {
+        int size = coffees.size();
+        String[] ids = new String[size];
+        byte[][] idBytes = new byte[size][];
+        byte[][] names = new byte[size][];
+        byte[][] origins = new byte[size][];
+        double[] prices = new double[size];
+        int[] quantities = new int[size];
+        int n = 0;
+        for (CoffeeStore.CoffeeView coffee : coffees) {
+            ids[n] = coffee.getId();
+            idBytes[n] = encode("id", ids[n], MAX_ID_BYTES);
+            names[n] = encode("name", coffee.getName(), MAX_NAME_BYTES);
+            origins[n] = encode("origin", coffee.getOrigin(), MAX_ORIGIN_BYTES);
+            prices[n] = coffee.getPrice();
+            quantities[n] = coffee.getQuantity();
+            n++;
+        }
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < n; i++) {
+                int hash = hash(ids[i]);
+                int record = find(ids[i], hash);
+                newImage(hash, idBytes[i], names[i], prices[i], origins[i], quantities[i]);
+                commit(record);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds a coffee unless one with its id exists
+     *
+     * @return false if the id is taken
+     */
+    public boolean create(CoffeeStore.CoffeeView coffee) {
+        String id = coffee.getId();
+        byte[] idBytes = encode("id", id, MAX_ID_BYTES);
+        byte[] name = encode("name", coffee.getName(), MAX_NAME_BYTES);
+        byte[] origin = encode("origin", coffee.getOrigin(), MAX_ORIGIN_BYTES);
+        int hash = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            if (find(id, hash) >= 0) {
+                return false;
+            }
+            newImage(hash, idBytes, name, coffee.getPrice(), origin, coffee.getQuantity());
+            commit(-1);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replaces a coffee's name, price and origin, keeping its stock
+     *
+     * @return a view of the coffee, or null if there is none with the id
+     */
+    public Record replace(String id, String name, double price, String origin) {
+        byte[] nameBytes = encode("name", name, MAX_NAME_BYTES);
+        byte[] originBytes = encode("origin", origin, MAX_ORIGIN_BYTES);
+        int hash = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            int record = find(id, hash);
+            if (record < 0) {
+                return null;
+            }
+            loadImage(record);
+            if (Double.compare(image.getDouble(PRICE), price) != 0) {
+                image.putLong(PRICE_VERSION, image.getLong(PRICE_VERSION) + 1);
+                image.putDouble(PRICE, price);
+            }
+            putString(image, NAME, nameBytes);
+            putString(image, ORIGIN, originBytes);
+            image.putLong(VERSION, ++versions);
+            commit(record);
+            Record view = new Record();
+            view.position(record, slab(record).getInt(offset(record) + GENERATION));
+            return view;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the removed coffee, or null if there was none with the id
+     */
+    public CoffeeStore.Coffee remove(String id) {
+        int hash = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            int record = find(id, hash);
+            if (record < 0) {
+                return null;
+            }
+            CoffeeStore.Coffee removed = read(slab(record), offset(record));
+            if (changeLog != null) {
+                changeLog.remove(id);
+            }
+            free(record, hash);
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Takes stock if at least amount is available; false leaves the quantity untouched
+     */
+    public boolean tryDecrement(String id, int amount) {
+        int hash = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            int record = existing(id, hash);
+            int quantity = slab(record).getInt(offset(record) + QUANTITY);
+            if (quantity < amount) {
+                return false;
+            }
+            loadImage(record);
+            image.putInt(QUANTITY, quantity - amount);
+            image.putLong(VERSION, ++versions);
+            commit(record);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void restock(String id, int amount) {
+        int hash = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            int record = existing(id, hash);
+            loadImage(record);
+            image.putInt(QUANTITY, image.getInt(QUANTITY) + amount);
+            image.putLong(VERSION, ++versions);
+            commit(record);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Applies an image a ChangeLog was given, which must be in native byte order, without logging it again
+     */
+    void replayPut(ByteBuffer change) {
+        long stamp = lock.writeLock();
+        try {
+            for (int i = ID_HASH; i < RECORD_SIZE; i += 4) {
+                image.putInt(i, change.getInt(i));
+            }
+            int hash = image.getInt(ID_HASH);
+            versions = Math.max(versions, image.getLong(VERSION));
+            int record = find(getString(image, ID, MAX_ID_BYTES), hash);
+            reserve(record);
+            apply(record);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Applies a removal a ChangeLog was given, without logging it again
+     */
+    void replayRemove(String id) {
+        int hash = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            int record = find(id, hash);
+            if (record >= 0) {
+                free(record, hash);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // ======= Snapshots =======
+
+    /**
+     * Writes the records and the index to a file, with the change log's position at that moment
+     *
+     * The read lock is held while the data is copied to the page cache, so the
+     * file matches the log position exactly; readers carry on meanwhile,
+     * writers wait. The file is forced to disk before this returns.
+     *
+     * @return the change log position recorded, 0 without a change log
+     */
+    public long writeSnapshot(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position;
+            long stamp = lock.readLock();
+            try {
+                position = changeLog != null ? changeLog.position() : 0;
+                ByteBuffer[] current = slabs;
+                ByteBuffer table = index;
+                ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE).order(ByteOrder.nativeOrder());
+                header.putInt(0, SNAPSHOT_MAGIC);
+                header.putInt(4, slabMask + 1);
+                header.putInt(8, current.length);
+                header.putInt(12, allocated);
+                header.putInt(16, freeHead);
+                header.putInt(20, count);
+                header.putInt(24, table.capacity() >>> 3);
+                header.putInt(28, names.capacity() >>> 3);
+                header.putLong(32, versions);
+                header.putLong(40, position);
+                writeFully(channel, header);
+                writeFully(channel, table.duplicate());
+                writeFully(channel, names.duplicate());
+                for (ByteBuffer slab : current) {
+                    writeFully(channel, slab.duplicate());
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            channel.force(true);
+            return position;
+        }
+    }
+
+    /**
+     * A catalog backed by a copy-on-write mapping of a snapshot
+     *
+     * Nothing is read up front: pages come in from the file as they are first
+     * touched, so opening costs the same for three coffees or thirty million.
+     * Changes stay in memory and never reach the file. A snapshot from before
+     * the name index is still read, at the cost of building that index once.
+     */
+    public static OffHeapCatalog mapSnapshot(Path file) throws IOException {
+        // Copy-on-write mappings need a writable channel, although nothing is ever written to the file
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE).order(ByteOrder.nativeOrder());
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // Keep reading until the header is complete or the file ends
+            }
+            int magic = header.getInt(0);
+            if (header.hasRemaining() || (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V1)) {
+                throw new IOException("Not a catalog snapshot written with " + ByteOrder.nativeOrder() + " byte order: " + file);
+            }
+            boolean hasNames = magic == SNAPSHOT_MAGIC;
+            int slabRecords = header.getInt(4);
+            int slabCount = header.getInt(8);
+            int indexSlots = header.getInt(24);
+            int nameSlots = hasNames ? header.getInt(28) : indexSlots;
+            long slabBytes = (long) slabRecords * RECORD_SIZE;
+            long indexBytes = (long) indexSlots * 8;
+            long nameBytes = hasNames ? (long) nameSlots * 8 : 0;
+            if (Integer.bitCount(slabRecords) != 1 || slabRecords > MAX_SLAB_RECORDS ||
+                Integer.bitCount(indexSlots) != 1 || indexSlots > MAX_INDEX_SLOTS ||
+                Integer.bitCount(nameSlots) != 1 || nameSlots > MAX_INDEX_SLOTS ||
+                channel.size() != SNAPSHOT_HEADER_SIZE + indexBytes + nameBytes + slabCount * slabBytes) {
+                throw new IOException("Damaged catalog snapshot: " + file);
+            }
+            ByteBuffer table = channel.map(FileChannel.MapMode.PRIVATE, SNAPSHOT_HEADER_SIZE, indexBytes)
+                .order(ByteOrder.nativeOrder());
+            ByteBuffer nameTable = hasNames
+                ? channel.map(FileChannel.MapMode.PRIVATE, SNAPSHOT_HEADER_SIZE + indexBytes, nameBytes)
+                    .order(ByteOrder.nativeOrder())
+                : newIndex(nameSlots);
+            long slabsStart = SNAPSHOT_HEADER_SIZE + indexBytes + nameBytes;
+            ByteBuffer[] slabs = new ByteBuffer[slabCount];
+            for (int i = 0; i < slabCount; i++) {
+                slabs[i] = channel.map(FileChannel.MapMode.PRIVATE, slabsStart + i * slabBytes, slabBytes)
+                    .order(ByteOrder.nativeOrder());
+            }
+            OffHeapCatalog catalog = new OffHeapCatalog(slabRecords, slabs, table, nameTable, header.getInt(12),
+                                                        header.getInt(16), header.getInt(20), header.getLong(32),
+                                                        header.getLong(40));
+            if (!hasNames) {
+                catalog.indexNames();
+            }
+            return catalog;
+        }
+    }
+
+    /**
+     * Change log position stored in the snapshot this catalog was mapped from, 0 for a new catalog
+     */
+    public long getSnapshotPosition() {
+        return snapshotPosition;
+    }
+
+    // Fills the name index from the records, for a snapshot written without one
+    private void indexNames() {
+        long stamp = lock.writeLock();
+        try {
+            for (int record = 0; record < allocated; record++) {
+                ByteBuffer slab = slab(record);
+                int base = offset(record);
+                if ((slab.getInt(base + GENERATION) & 1) == 1) {
+                    insertSlot(names, nameHash(slab, base + NAME), record);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // ======= Records =======
+
+    private ByteBuffer slab(int record) {
+        return slabs[record >>> slabShift];
+    }
+
+    private int offset(int record) {
+        return (record & slabMask) * RECORD_SIZE;
+    }
+
+    private void newImage(int hash, byte[] id, byte[] name, double price, byte[] origin, int quantity) {
+        Arrays.fill(image.array(), (byte) 0);
+        image.putInt(ID_HASH, hash);
+        image.putLong(VERSION, ++versions);
+        image.putDouble(PRICE, price);
+        image.putInt(QUANTITY, quantity);
+        putString(image, ID, id);
+        putString(image, NAME, name);
+        putString(image, ORIGIN, origin);
+    }
+
+    private void loadImage(int record) {
+        ByteBuffer slab = slab(record);
+        int base = offset(record);
+        for (int i = 0; i < RECORD_SIZE; i += 4) {
+            image.putInt(i, slab.getInt(base + i));
+        }
+        image.putInt(GENERATION, 0);
+    }
+
+    // Logs the image, then applies it
+    private void commit(int record) {
+        reserve(record);
+        if (changeLog != null) {
+            changeLog.put(image);
+        }
+        apply(record);
+    }
+
+    // Makes room for a new coffee, so that once the change is logged, applying it cannot fail
+    private void reserve(int record) {
+        if (record >= 0) {
+            return;
+        }
+        if (freeHead < 0 && allocated == slabs.length << slabShift) {
+            ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+            grown[slabs.length] = ByteBuffer.allocateDirect((slabMask + 1) * RECORD_SIZE)
+                .order(ByteOrder.nativeOrder());
+            slabs = grown;
+        }
+        if (count + 1 > (index.capacity() >>> 3) * MAX_LOAD) {
+            resize();
+        }
+    }
+
+    // Copies the image into the record, taking a new one for a new coffee, and keeps the name index in step
+    private void apply(int record) {
+        boolean created = record < 0;
+        if (created) {
+            record = allocate(image.getInt(ID_HASH));
+        }
+        ByteBuffer slab = slab(record);
+        int base = offset(record);
+        boolean renamed = !created && !sameName(slab, base);
+        if (renamed) {
+            deleteSlot(names, nameHash(slab, base + NAME), record);
+        }
+        for (int i = ID_HASH; i < RECORD_SIZE; i += 4) {
+            slab.putInt(base + i, image.getInt(i));
+        }
+        if (created || renamed) {
+            insertSlot(names, nameHash(image, NAME), record);
+        }
+    }
+
+    private boolean sameName(ByteBuffer slab, int base) {
+        int length = image.get(NAME) & 0xff;
+        if ((slab.get(base + NAME) & 0xff) != length) {
+            return false;
+        }
+        for (int i = 1; i <= length; i++) {
+            if (slab.get(base + NAME + i) != image.get(NAME + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Takes a free record, or the next one in the slab reserve() made room in, and indexes it under the hash
+    private int allocate(int hash) {
+        int record;
+        if (freeHead >= 0) {
+            record = freeHead;
+            freeHead = slab(record).getInt(offset(record) + QUANTITY);
+        } else {
+            record = allocated++;
+        }
+        ByteBuffer slab = slab(record);
+        int base = offset(record);
+        slab.putInt(base + GENERATION, slab.getInt(base + GENERATION) + 1);
+        count++;
+        insertSlot(index, hash, record);
+        return record;
+    }
+
+    private void free(int record, int hash) {
+        ByteBuffer slab = slab(record);
+        int base = offset(record);
+        deleteSlot(index, hash, record);
+        deleteSlot(names, nameHash(slab, base + NAME), record);
+        slab.putInt(base + GENERATION, slab.getInt(base + GENERATION) + 1);
+        slab.putInt(base + QUANTITY, freeHead);
+        freeHead = record;
+        count--;
+    }
+
+    private CoffeeStore.Coffee read(ByteBuffer slab, int base) {
+        return CoffeeStore.Coffee.restore(getString(slab, base + ID, MAX_ID_BYTES),
+                                          getString(slab, base + NAME, MAX_NAME_BYTES),
+                                          slab.getDouble(base + PRICE),
+                                          getString(slab, base + ORIGIN, MAX_ORIGIN_BYTES),
+                                          slab.getInt(base + QUANTITY),
+                                          slab.getLong(base + VERSION),
+                                          slab.getLong(base + PRICE_VERSION));
+    }
+
+    private static byte[] encode(String field, String value, int maxBytes) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxBytes) {
+            throw tooLong(field, value, maxBytes);
+        }
+        return bytes;
+    }
+
+    private static void checkLength(String field, String value, int maxBytes) {
+        if (utf8Length(value) > maxBytes) {
+            throw tooLong(field, value, maxBytes);
+        }
+    }
+
+    private static IllegalArgumentException tooLong(String field, String value, int maxBytes) {
+        return new IllegalArgumentException("Coffee " + field + " longer than " + maxBytes + " UTF-8 bytes: " + value);
+    }
+
+    // What getBytes(UTF_8) would return, without encoding; an unpaired surrogate becomes a one-byte '?'
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() &&
+                       Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void putString(ByteBuffer slab, int position, byte[] bytes) {
+        slab.put(position, (byte) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            slab.put(position + 1 + i, bytes[i]);
+        }
+    }
+
+    // Clamped, so an optimistic read racing a writer gets garbage to throw away rather than an exception
+    private static String getString(ByteBuffer slab, int position, int maxBytes) {
+        byte[] bytes = new byte[Math.min(slab.get(position) & 0xff, maxBytes)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = slab.get(position + 1 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Compares without decoding; ASCII ids, the usual case, are matched char against byte
+    private static boolean idEquals(ByteBuffer slab, int base, String id) {
+        int length = slab.get(base + ID) & 0xff;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c >= 0x80) {
+                return getString(slab, base + ID, MAX_ID_BYTES).equals(id);
+            }
+            if (i >= length || slab.get(base + ID + 1 + i) != c) {
+                return false;
+            }
+        }
+        return length == id.length();
+    }
+
+    // Case-insensitive like equalsIgnoreCase; ASCII names, the usual case, are matched without decoding
+    private static boolean nameEquals(ByteBuffer slab, int base, String name) {
+        int length = Math.min(slab.get(base + NAME) & 0xff, MAX_NAME_BYTES);
+        boolean ascii = length == name.length();
+        for (int i = 0; ascii && i < length; i++) {
+            char c = name.charAt(i);
+            int b = slab.get(base + NAME + 1 + i);
+            if (c >= 0x80 || b < 0) {
+                ascii = false;
+            } else if (c != b && foldAscii(c) != foldAscii((char) b)) {
+                return false;
+            }
+        }
+        // Some non-ASCII characters fold onto ASCII ones, so anything else compares the decoded name
+        return ascii || getString(slab, base + NAME, MAX_NAME_BYTES).equalsIgnoreCase(name);
+    }
+
+    private static char foldAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    // ======= Index =======
+
+    private static int hash(String id) {
+        return mix(id.hashCode());
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Folds each char the way equalsIgnoreCase compares them, so names it calls equal hash alike
+    private static int nameHash(String name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            h = 31 * h + Character.toLowerCase(Character.toUpperCase(name.charAt(i)));
+        }
+        return mix(h);
+    }
+
+    private static int nameHash(ByteBuffer buffer, int position) {
+        int length = Math.min(buffer.get(position) & 0xff, MAX_NAME_BYTES);
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            int b = buffer.get(position + 1 + i);
+            if (b < 0) {
+                return nameHash(getString(buffer, position, MAX_NAME_BYTES));
+            }
+            h = 31 * h + Character.toLowerCase(Character.toUpperCase((char) b));
+        }
+        return mix(h);
+    }
+
+    private static int slotsFor(int size) {
+        int slots = 16;
+        while (slots < size / MAX_LOAD && slots < MAX_INDEX_SLOTS) {
+            slots <<= 1;
+        }
+        return slots;
+    }
+
+    private static ByteBuffer newIndex(int slots) {
+        return ByteBuffer.allocateDirect(slots * 8).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Record number for the id, or -1; safe to call without the lock, as long as the caller validates afterwards
+     */
+    private int find(String id, int hash) {
+        ByteBuffer table = index;
+        ByteBuffer[] current = slabs;
+        int mask = (table.capacity() >>> 3) - 1;
+        int slot = hash & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long entry = table.getLong(slot << 3);
+            if (entry == 0) {
+                return -1;
+            }
+            int record = (int) entry - 1;
+            if ((int) (entry >>> 32) == hash && record >= 0 && record < current.length << slabShift &&
+                idEquals(current[record >>> slabShift], offset(record), id)) {
+                return record;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Record number of a coffee with the name, or -1; like find(), safe without the lock if validated
+     */
+    private int findName(String name, int hash) {
+        ByteBuffer table = names;
+        ByteBuffer[] current = slabs;
+        int mask = (table.capacity() >>> 3) - 1;
+        int slot = hash & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            long entry = table.getLong(slot << 3);
+            if (entry == 0) {
+                return -1;
+            }
+            int record = (int) entry - 1;
+            if ((int) (entry >>> 32) == hash && record >= 0 && record < current.length << slabShift &&
+                nameEquals(current[record >>> slabShift], offset(record), name)) {
+                return record;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int existing(String id, int hash) {
+        int record = find(id, hash);
+        if (record < 0) {
+            throw new IllegalArgumentException("Unknown coffee: " + id);
+        }
+        return record;
+    }
+
+    private static void insertSlot(ByteBuffer table, int hash, int record) {
+        int mask = (table.capacity() >>> 3) - 1;
+        int slot = hash & mask;
+        while (table.getLong(slot << 3) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table.putLong(slot << 3, (long) hash << 32 | (record + 1L));
+    }
+
+    // Backward-shift deletion: later entries of the same probe run move up into the hole
+    private static void deleteSlot(ByteBuffer table, int hash, int record) {
+        int mask = (table.capacity() >>> 3) - 1;
+        int hole = hash & mask;
+        long target = (long) hash << 32 | (record + 1L);
+        for (int probes = 0; table.getLong(hole << 3) != target; probes++) {
+            if (probes > mask) {
+                return;
+            }
+            hole = (hole + 1) & mask;
+        }
+        int next = (hole + 1) & mask;
+        long entry;
+        while ((entry = table.getLong(next << 3)) != 0) {
+            int home = (int) (entry >>> 32) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table.putLong(hole << 3, entry);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table.putLong(hole << 3, 0);
+    }
+
+    private void resize() {
+        if ((index.capacity() >>> 3) >= MAX_INDEX_SLOTS) {
+            throw new IllegalStateException("Catalog is full at " + count + " coffees");
+        }
+        index = grown(index);
+        names = grown(names);
+    }
+
+    private static ByteBuffer grown(ByteBuffer table) {
+        int slots = table.capacity() >>> 3;
+        ByteBuffer grown = newIndex(slots << 1);
+        for (int slot = 0; slot < slots; slot++) {
+            long entry = table.getLong(slot << 3);
+            if (entry != 0) {
+                insertSlot(grown, (int) (entry >>> 32), (int) entry - 1);
+            }
+        }
+        return grown;
+    }
+
+    /**
+     * Receives every change to the catalog before it is made
+     */
+    public interface ChangeLog {
+        /**
+         * The coffee as it will be after the change, in the record layout and native byte order
+         *
+         * The buffer is only valid during the call.
+         */
+        void put(ByteBuffer image);
+
+        void remove(String id);
+
+        /**
+         * Where the log has got to, stored in snapshots so recovery knows where to start replaying
+         */
+        long position();
+    }
+
+    /**
+     * Flyweight view of one record; reads go to off-heap memory on every call
+     */
+    public final class Record implements CoffeeStore.CoffeeView {
+        private int record = -1;
+        private int generation;
+
+        private Record() {
+        }
+
+        private void position(int record, int generation) {
+            this.record = record;
+            this.generation = generation;
+        }
+
+        /**
+         * False once the coffee has been removed, or if the view was never pointed at one
+         */
+        public boolean isValid() {
+            return record >= 0 && (int) readBits(GENERATION, false, false) == generation;
+        }
+
+        @Override
+        public String getId() {
+            return readString(ID, MAX_ID_BYTES);
+        }
+
+        @Override
+        public String getName() {
+            return readString(NAME, MAX_NAME_BYTES);
+        }
+
+        @Override
+        public double getPrice() {
+            return Double.longBitsToDouble(readBits(PRICE, true, true));
+        }
+
+        @Override
+        public String getOrigin() {
+            return readString(ORIGIN, MAX_ORIGIN_BYTES);
+        }
+
+        @Override
+        public int getQuantity() {
+            return (int) readBits(QUANTITY, false, true);
+        }
+
+        public long getVersion() {
+            return readBits(VERSION, true, true);
+        }
+
+        public long getPriceVersion() {
+            return readBits(PRICE_VERSION, true, true);
+        }
+
+        /**
+         * An immutable copy of every field, taken at one point in time, or null if the coffee was removed
+         */
+        public CoffeeStore.Coffee toCoffee() {
+            ByteBuffer slab = recordSlab();
+            int base = offset(record);
+            long stamp = lock.tryOptimisticRead();
+            int current = slab.getInt(base + GENERATION);
+            CoffeeStore.Coffee coffee = read(slab, base);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    current = slab.getInt(base + GENERATION);
+                    coffee = read(slab, base);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return current == generation ? coffee : null;
+        }
+
+        // An int or a long (doubles travel as their bits), checked against the generation unless live is false
+        private long readBits(int field, boolean wide, boolean live) {
+            ByteBuffer slab = recordSlab();
+            int base = offset(record);
+            long stamp = lock.tryOptimisticRead();
+            int current = slab.getInt(base + GENERATION);
+            long value = wide ? slab.getLong(base + field) : slab.getInt(base + field);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    current = slab.getInt(base + GENERATION);
+                    value = wide ? slab.getLong(base + field) : slab.getInt(base + field);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            if (live) {
+                checkGeneration(current);
+            }
+            return value;
+        }
+
+        private String readString(int field, int maxBytes) {
+            ByteBuffer slab = recordSlab();
+            int base = offset(record);
+            long stamp = lock.tryOptimisticRead();
+            int current = slab.getInt(base + GENERATION);
+            String value = getString(slab, base + field, maxBytes);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    current = slab.getInt(base + GENERATION);
+                    value = getString(slab, base + field, maxBytes);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            checkGeneration(current);
+            return value;
+        }
+
+        private ByteBuffer recordSlab() {
+            if (record < 0) {
+                throw new IllegalStateException("View does not point at a coffee");
+            }
+            return slab(record);
+        }
+
+        private void checkGeneration(int current) {
+            if (current != generation) {
+                throw new IllegalStateException("Coffee record " + record + " was removed");
+            }
+        }
+
+        @Override
+        public String toString() {
+            CoffeeStore.Coffee coffee = record >= 0 ? toCoffee() : null;
+            return coffee != null ? coffee.toString() : "{removed}";
+        }
+    }
+}
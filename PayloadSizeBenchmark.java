@@ -0,0 +1,871 @@
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Payload size comparison harness for all API styles
+ *
+ * The demo services only describe their wire formats in log text. This harness
+ * serializes the same coffee dataset in the encoding each style actually puts on
+ * the wire, optionally compressed the way that style would compress it, and
+ * reports bytes per message together with encode and decode cost.
+ *
+ * Encodings measured (payload only, transport headers are not counted):
+ * - SOAP: document/literal getCoffeeResponse envelope (HTTP Content-Encoding)
+ * - REST: JSON resource representation (HTTP Content-Encoding)
+ * - GraphQL: {"data": ...} response JSON (HTTP Content-Encoding)
+ * - gRPC: Protocol Buffer message with the 5 byte gRPC length prefix (grpc-encoding)
+ * - WebSocket: unmasked server-to-client text frame (permessage-deflate)
+ * - Webhook: JSON PaymentEvent callback body (HTTP Content-Encoding)
+ *
+ * Usage: java PayloadSizeBenchmark [iterations] [coffees]
+ *
+ * Given a coffee count, the dataset is that many coffees from DatasetGenerator
+ * instead of the shared catalog's three.
+ */
+public class PayloadSizeBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 20_000;
+    private static final int WARMUP_DIVISOR = 4;
+
+    // Used only to keep the JIT from discarding benchmark results
+    private static long blackhole;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+
+        List<Sample> dataset = args.length > 1 ? generatedDataset(Integer.parseInt(args[1])) : sampleDataset();
+        log("Benchmark", "Encoding " + dataset.size() + " coffees per style, " + iterations + " iterations each");
+
+        List<Result> results = new ArrayList<>();
+        for (StyleCodec codec : codecs()) {
+            for (Compression compression : codec.supportedCompressions()) {
+                results.add(measure(codec, compression, dataset, iterations));
+            }
+        }
+
+        printResults(results);
+    }
+
+    /**
+     * The dataset every style encodes: the catalog the demo services share, ordered by id
+     */
+    static List<Sample> sampleDataset() {
+        List<Sample> dataset = new ArrayList<>();
+        for (CoffeeStore.Coffee coffee : CoffeeStore.shared().getAll()) {
+            dataset.add(new Sample(coffee.getId(), coffee.getName(), coffee.getPrice(), coffee.getOrigin()));
+        }
+        dataset.sort(Comparator.comparing(Sample::getId));
+        return dataset;
+    }
+
+    /**
+     * The first coffees of a generated catalog, with the spread of names, origins and prices of real data
+     *
+     * As in the demo catalog, a sample's id is its lower-cased name, which is
+     * how the SOAP codec recovers it from a response that carries no id.
+     */
+    static List<Sample> generatedDataset(int coffees) {
+        DatasetGenerator generator = new DatasetGenerator(DatasetGenerator.DEFAULT_SEED, coffees, 0, 0);
+        List<Sample> dataset = new ArrayList<>(coffees);
+        for (int i = 0; i < coffees; i++) {
+            CoffeeStore.Coffee coffee = generator.coffee(i);
+            dataset.add(new Sample(coffee.getName().toLowerCase(), coffee.getName(), coffee.getPrice(),
+                                   coffee.getOrigin()));
+        }
+        return dataset;
+    }
+
+    static List<StyleCodec> codecs() {
+        return Arrays.asList(
+            new SoapCodec(),
+            new RestCodec(),
+            new GraphQLCodec(),
+            new GrpcCodec(),
+            new WebSocketCodec(),
+            new WebhookCodec()
+        );
+    }
+
+    /**
+     * Encodes and decodes every sample as its own message and times both directions
+     */
+    static Result measure(StyleCodec codec, Compression compression, List<Sample> dataset, int iterations) {
+        byte[][] messages = new byte[dataset.size()][];
+        long totalBytes = 0;
+
+        // Verify the round trip once before timing anything
+        for (int i = 0; i < dataset.size(); i++) {
+            messages[i] = codec.encode(dataset.get(i), compression);
+            totalBytes += messages[i].length;
+
+            Sample decoded = codec.decode(messages[i], compression);
+            if (!decoded.equals(dataset.get(i))) {
+                throw new IllegalStateException(codec.getName() + " round trip mismatch: " + decoded);
+            }
+        }
+
+        int warmup = Math.max(1, iterations / WARMUP_DIVISOR);
+        timeEncode(codec, compression, dataset, warmup);
+        long encodeNanos = timeEncode(codec, compression, dataset, iterations);
+
+        timeDecode(codec, compression, messages, warmup);
+        long decodeNanos = timeDecode(codec, compression, messages, iterations);
+
+        long operations = (long) iterations * dataset.size();
+        return new Result(codec.getName(), compression, totalBytes / (double) dataset.size(),
+                          encodeNanos / (double) operations, decodeNanos / (double) operations);
+    }
+
+    private static long timeEncode(StyleCodec codec, Compression compression, List<Sample> dataset, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (Sample sample : dataset) {
+                blackhole += codec.encode(sample, compression).length;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long timeDecode(StyleCodec codec, Compression compression, byte[][] messages, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (byte[] message : messages) {
+                blackhole += codec.decode(message, compression).hashCode();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void printResults(List<Result> results) {
+        System.out.println();
+        System.out.println(String.format("%-10s %-20s %14s %14s %14s",
+            "Style", "Compression", "bytes/msg", "encode ns/op", "decode ns/op"));
+        System.out.println(String.format("%-10s %-20s %14s %14s %14s",
+            "-----", "-----------", "---------", "------------", "------------"));
+        for (Result result : results) {
+            System.out.println(String.format("%-10s %-20s %14.1f %14.0f %14.0f",
+                result.getStyle(), result.getCompression().getLabel(),
+                result.getBytesPerMessage(), result.getEncodeNanos(), result.getDecodeNanos()));
+        }
+        System.out.println();
+        log("Info", "Sizes are payload bytes only; HTTP/1.1 and HTTP/2 headers are not included");
+        log("Info", "Compression on messages this small often costs more bytes than it saves");
+    }
+
+    // Logging helper
+    private static void log(String source, String message) {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss.SSS"));
+        System.out.println("[" + timestamp + "] [" + source + "] " + message);
+    }
+
+    // ======= Compression =======
+
+    /**
+     * Body compression as negotiated by each style
+     */
+    public enum Compression {
+        NONE("identity"),
+        GZIP("gzip"),
+        DEFLATE("deflate"),
+        PERMESSAGE_DEFLATE("permessage-deflate");
+
+        private final String label;
+
+        Compression(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        byte[] compress(byte[] data) {
+            switch (this) {
+                case GZIP:
+                    return gzip(data);
+                case DEFLATE:
+                    return deflate(data, false);
+                case PERMESSAGE_DEFLATE:
+                    // RFC 7692: raw DEFLATE with the trailing 0x00 0x00 0xff 0xff removed
+                    byte[] raw = deflate(data, true);
+                    return Arrays.copyOf(raw, raw.length - 4);
+                default:
+                    return data;
+            }
+        }
+
+        byte[] decompress(byte[] data) {
+            switch (this) {
+                case GZIP:
+                    return gunzip(data);
+                case DEFLATE:
+                    return inflate(data, false);
+                case PERMESSAGE_DEFLATE:
+                    byte[] withTail = Arrays.copyOf(data, data.length + 4);
+                    withTail[withTail.length - 2] = (byte) 0xff;
+                    withTail[withTail.length - 1] = (byte) 0xff;
+                    return inflate(withTail, true);
+                default:
+                    return data;
+            }
+        }
+
+        private static byte[] gzip(byte[] data) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(data);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return out.toByteArray();
+        }
+
+        private static byte[] gunzip(byte[] data) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+                return readAll(in);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static byte[] deflate(byte[] data, boolean raw) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+            try {
+                deflater.setInput(data);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+                byte[] chunk = new byte[256];
+                if (raw) {
+                    // Sync flush leaves the empty stored block that permessage-deflate strips
+                    int n;
+                    do {
+                        n = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+                        out.write(chunk, 0, n);
+                    } while (n == chunk.length);
+                } else {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        out.write(chunk, 0, deflater.deflate(chunk));
+                    }
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private static byte[] inflate(byte[] data, boolean raw) {
+            Inflater inflater = new Inflater(raw);
+            try {
+                inflater.setInput(data);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+                byte[] chunk = new byte[256];
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    if (inflater.needsDictionary()) {
+                        throw new IllegalStateException("Stream requires a preset dictionary");
+                    }
+                    out.write(chunk, 0, inflater.inflate(chunk));
+                }
+                return out.toByteArray();
+            } catch (DataFormatException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[256];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            out.write(chunk, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    // ======= Style Codecs =======
+
+    /**
+     * Encodes one coffee the way a given API style would send it
+     */
+    public abstract static class StyleCodec {
+        private final String name;
+
+        protected StyleCodec(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Compression> supportedCompressions() {
+            return Arrays.asList(Compression.NONE, Compression.GZIP, Compression.DEFLATE);
+        }
+
+        public byte[] encode(Sample sample, Compression compression) {
+            return compression.compress(encodePlain(sample));
+        }
+
+        public Sample decode(byte[] message, Compression compression) {
+            return decodePlain(compression.decompress(message));
+        }
+
+        protected abstract byte[] encodePlain(Sample sample);
+
+        protected abstract Sample decodePlain(byte[] payload);
+    }
+
+    /**
+     * SOAP 1.1 document/literal response, as JAX-WS writes it for getCoffee
+     */
+    public static class SoapCodec extends StyleCodec {
+        private static final XMLInputFactory XML_INPUT = XMLInputFactory.newInstance();
+
+        public SoapCodec() {
+            super("SOAP");
+        }
+
+        @Override
+        protected byte[] encodePlain(Sample sample) {
+            StringBuilder xml = new StringBuilder(320);
+            xml.append("<?xml version=\"1.0\" ?>")
+               .append("<S:Envelope xmlns:S=\"http://schemas.xmlsoap.org/soap/envelope/\"><S:Body>")
+               .append("<ns2:getCoffeeResponse xmlns:ns2=\"http://soap.example.org/\"><return>")
+               .append("<name>").append(escapeXml(sample.getName())).append("</name>")
+               .append("<origin>").append(escapeXml(sample.getOrigin())).append("</origin>")
+               .append("<price>").append(sample.getPrice()).append("</price>")
+               .append("</return></ns2:getCoffeeResponse></S:Body></S:Envelope>");
+            return xml.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        protected Sample decodePlain(byte[] payload) {
+            // getCoffee responses carry no ID, so the name doubles as the key on the way back
+            String name = null;
+            String origin = null;
+            double price = 0;
+            try {
+                XMLStreamReader reader = XML_INPUT.createXMLStreamReader(new ByteArrayInputStream(payload));
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                            switch (reader.getLocalName()) {
+                                case "name":
+                                    name = reader.getElementText();
+                                    break;
+                                case "origin":
+                                    origin = reader.getElementText();
+                                    break;
+                                case "price":
+                                    price = Double.parseDouble(reader.getElementText());
+                                    break;
+                                default:
+                                    break;
+                            }
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw new IllegalStateException(e);
+            }
+            return new Sample(name.toLowerCase(), name, price, origin);
+        }
+    }
+
+    /**
+     * REST JSON representation, matching RESTDemoService's coffee resource
+     */
+    public static class RestCodec extends StyleCodec {
+        public RestCodec() {
+            super("REST");
+        }
+
+        @Override
+        protected byte[] encodePlain(Sample sample) {
+            return appendCoffeeJson(new StringBuilder(96), sample).toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        protected Sample decodePlain(byte[] payload) {
+            return sampleFromJson(Json.parse(new String(payload, StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * GraphQL response for { coffee(id: ...) { id name price origin } }
+     */
+    public static class GraphQLCodec extends StyleCodec {
+        public GraphQLCodec() {
+            super("GraphQL");
+        }
+
+        @Override
+        protected byte[] encodePlain(Sample sample) {
+            StringBuilder json = new StringBuilder(112).append("{\"data\":{\"coffee\":");
+            return appendCoffeeJson(json, sample).append("}}").toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Sample decodePlain(byte[] payload) {
+            Map<String, Object> response = (Map<String, Object>) Json.parse(new String(payload, StandardCharsets.UTF_8));
+            Map<String, Object> data = (Map<String, Object>) response.get("data");
+            return sampleFromJson(data.get("coffee"));
+        }
+    }
+
+    /**
+     * Protocol Buffer encoding of the Coffee message from GRPCDemoService's .proto,
+     * framed with gRPC's compressed-flag byte and 4 byte big-endian length
+     */
+    public static class GrpcCodec extends StyleCodec {
+        public GrpcCodec() {
+            super("gRPC");
+        }
+
+        @Override
+        public byte[] encode(Sample sample, Compression compression) {
+            byte[] message = compression.compress(encodePlain(sample));
+            ByteBuffer framed = ByteBuffer.allocate(5 + message.length);
+            framed.put((byte) (compression == Compression.NONE ? 0 : 1));
+            framed.putInt(message.length);
+            framed.put(message);
+            return framed.array();
+        }
+
+        @Override
+        public Sample decode(byte[] message, Compression compression) {
+            ByteBuffer framed = ByteBuffer.wrap(message);
+            boolean compressed = framed.get() == 1;
+            byte[] body = new byte[framed.getInt()];
+            framed.get(body);
+            return decodePlain(compressed ? compression.decompress(body) : body);
+        }
+
+        @Override
+        protected byte[] encodePlain(Sample sample) {
+            byte[] id = sample.getId().getBytes(StandardCharsets.UTF_8);
+            byte[] name = sample.getName().getBytes(StandardCharsets.UTF_8);
+            byte[] origin = sample.getOrigin().getBytes(StandardCharsets.UTF_8);
+
+            ByteBuffer buffer = ByteBuffer.allocate(id.length + name.length + origin.length + 32)
+                                          .order(ByteOrder.LITTLE_ENDIAN);
+            writeBytesField(buffer, 1, id);
+            writeBytesField(buffer, 2, name);
+            buffer.put((byte) ((3 << 3) | 1)); // field 3, wire type 1 (64-bit)
+            buffer.putDouble(sample.getPrice());
+            writeBytesField(buffer, 4, origin);
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+
+        @Override
+        protected Sample decodePlain(byte[] payload) {
+            ByteBuffer buffer = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+            String id = null;
+            String name = null;
+            String origin = null;
+            double price = 0;
+
+            while (buffer.hasRemaining()) {
+                int tag = readVarint(buffer);
+                switch (tag >>> 3) {
+                    case 1:
+                        id = readString(buffer);
+                        break;
+                    case 2:
+                        name = readString(buffer);
+                        break;
+                    case 3:
+                        price = buffer.getDouble();
+                        break;
+                    case 4:
+                        origin = readString(buffer);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown protobuf field " + (tag >>> 3));
+                }
+            }
+            return new Sample(id, name, price, origin);
+        }
+
+        private static void writeBytesField(ByteBuffer buffer, int field, byte[] value) {
+            buffer.put((byte) ((field << 3) | 2)); // wire type 2 (length-delimited)
+            writeVarint(buffer, value.length);
+            buffer.put(value);
+        }
+
+        private static void writeVarint(ByteBuffer buffer, int value) {
+            while ((value & ~0x7F) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        private static int readVarint(ByteBuffer buffer) {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed varint");
+        }
+
+        private static String readString(ByteBuffer buffer) {
+            int length = readVarint(buffer);
+            String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+    }
+
+    /**
+     * RFC 6455 server-to-client frame carrying the coffee as a JSON text message
+     */
+    public static class WebSocketCodec extends StyleCodec {
+        private static final int OPCODE_TEXT = 0x1;
+        private static final int RSV1 = 0x40;
+
+        public WebSocketCodec() {
+            super("WebSocket");
+        }
+
+        @Override
+        public List<Compression> supportedCompressions() {
+            return Arrays.asList(Compression.NONE, Compression.PERMESSAGE_DEFLATE);
+        }
+
+        @Override
+        public byte[] encode(Sample sample, Compression compression) {
+            byte[] payload = compression.compress(encodePlain(sample));
+            int headerLength = payload.length < 126 ? 2 : payload.length <= 0xFFFF ? 4 : 10;
+
+            ByteBuffer frame = ByteBuffer.allocate(headerLength + payload.length);
+            // FIN + text opcode, RSV1 marks a compressed message
+            frame.put((byte) (0x80 | (compression == Compression.NONE ? 0 : RSV1) | OPCODE_TEXT));
+            if (headerLength == 2) {
+                frame.put((byte) payload.length);
+            } else if (headerLength == 4) {
+                frame.put((byte) 126).putShort((short) payload.length);
+            } else {
+                frame.put((byte) 127).putLong(payload.length);
+            }
+            frame.put(payload);
+            return frame.array();
+        }
+
+        @Override
+        public Sample decode(byte[] message, Compression compression) {
+            ByteBuffer frame = ByteBuffer.wrap(message);
+            boolean compressed = (frame.get() & RSV1) != 0;
+            int lengthByte = frame.get() & 0x7F;
+            long length = lengthByte == 126 ? frame.getShort() & 0xFFFF
+                        : lengthByte == 127 ? frame.getLong() : lengthByte;
+            byte[] payload = new byte[(int) length];
+            frame.get(payload);
+            return decodePlain(compressed ? compression.decompress(payload) : payload);
+        }
+
+        @Override
+        protected byte[] encodePlain(Sample sample) {
+            return appendCoffeeJson(new StringBuilder(96), sample).toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        protected Sample decodePlain(byte[] payload) {
+            return sampleFromJson(Json.parse(new String(payload, StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Webhook callback body: a WebhookDemoService.PaymentEvent for an order of the coffee
+     */
+    public static class WebhookCodec extends StyleCodec {
+        public WebhookCodec() {
+            super("Webhook");
+        }
+
+        @Override
+        protected byte[] encodePlain(Sample sample) {
+            WebhookDemoService.PaymentEvent event = new WebhookDemoService.PaymentEvent(
+                "payment.success", "pmt-" + sample.getId(), "order-" + sample.getId(),
+                "customer-" + sample.getOrigin(), sample.getPrice(), sample.getName());
+            return event.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected Sample decodePlain(byte[] payload) {
+            Map<String, Object> event = (Map<String, Object>) Json.parse(new String(payload, StandardCharsets.UTF_8));
+            return new Sample(
+                ((String) event.get("paymentId")).substring("pmt-".length()),
+                (String) event.get("message"),
+                (Double) event.get("amount"),
+                ((String) event.get("customerId")).substring("customer-".length()));
+        }
+    }
+
+    private static StringBuilder appendCoffeeJson(StringBuilder json, Sample sample) {
+        return json.append("{\"id\":\"").append(escapeJson(sample.getId()))
+                   .append("\",\"name\":\"").append(escapeJson(sample.getName()))
+                   .append("\",\"price\":").append(sample.getPrice())
+                   .append(",\"origin\":\"").append(escapeJson(sample.getOrigin()))
+                   .append("\"}");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Sample sampleFromJson(Object parsed) {
+        Map<String, Object> coffee = (Map<String, Object>) parsed;
+        return new Sample((String) coffee.get("id"), (String) coffee.get("name"),
+                          (Double) coffee.get("price"), (String) coffee.get("origin"));
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String escapeJson(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Minimal JSON reader for the flat documents the codecs produce
+     */
+    static final class Json {
+        private final String text;
+        private int pos;
+
+        private Json(String text) {
+            this.text = text;
+        }
+
+        static Object parse(String text) {
+            return new Json(text).readValue();
+        }
+
+        private Object readValue() {
+            skipWhitespace();
+            char c = text.charAt(pos);
+            switch (c) {
+                case '{':
+                    return readObject();
+                case '[':
+                    return readArray();
+                case '"':
+                    return readString();
+                case 'n':
+                    pos += 4;
+                    return null;
+                case 't':
+                    pos += 4;
+                    return Boolean.TRUE;
+                case 'f':
+                    pos += 5;
+                    return Boolean.FALSE;
+                default:
+                    return readNumber();
+            }
+        }
+
+        private Map<String, Object> readObject() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            pos++; // {
+            skipWhitespace();
+            if (text.charAt(pos) == '}') {
+                pos++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = readString();
+                skipWhitespace();
+                pos++; // :
+                object.put(key, readValue());
+                skipWhitespace();
+                if (text.charAt(pos++) == '}') {
+                    return object;
+                }
+            }
+        }
+
+        private List<Object> readArray() {
+            List<Object> array = new ArrayList<>();
+            pos++; // [
+            skipWhitespace();
+            if (text.charAt(pos) == ']') {
+                pos++;
+                return array;
+            }
+            while (true) {
+                array.add(readValue());
+                skipWhitespace();
+                if (text.charAt(pos++) == ']') {
+                    return array;
+                }
+            }
+        }
+
+        private String readString() {
+            StringBuilder value = new StringBuilder();
+            pos++; // opening quote
+            while (true) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c == '\\') {
+                    char escaped = text.charAt(pos++);
+                    if (escaped == 'u') {
+                        value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        pos += 4;
+                    } else {
+                        value.append(escaped == 'n' ? '\n' : escaped == 't' ? '\t' : escaped);
+                    }
+                } else {
+                    value.append(c);
+                }
+            }
+        }
+
+        private Double readNumber() {
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            return Double.valueOf(text.substring(start, pos));
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+
+    // ======= Data =======
+
+    /**
+     * Style-neutral coffee used as the benchmark dataset
+     */
+    public static final class Sample {
+        private final String id;
+        private final String name;
+        private final double price;
+        private final String origin;
+
+        public Sample(String id, String name, double price, String origin) {
+            this.id = id;
+            this.name = name;
+            this.price = price;
+            this.origin = origin;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getPrice() {
+            return price;
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof Sample)) return false;
+            Sample that = (Sample) other;
+            return Double.compare(price, that.price) == 0 && id.equals(that.id)
+                && name.equals(that.name) && origin.equals(that.origin);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = id.hashCode();
+            result = 31 * result + name.hashCode();
+            result = 31 * result + Double.hashCode(price);
+            return 31 * result + origin.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "{id: \"" + id + "\", name: \"" + name + "\", price: " + price + ", origin: \"" + origin + "\"}";
+        }
+    }
+
+    /**
+     * One row of the report
+     */
+    public static final class Result {
+        private final String style;
+        private final Compression compression;
+        private final double bytesPerMessage;
+        private final double encodeNanos;
+        private final double decodeNanos;
+
+        public Result(String style, Compression compression, double bytesPerMessage,
+                      double encodeNanos, double decodeNanos) {
+            this.style = style;
+            this.compression = compression;
+            this.bytesPerMessage = bytesPerMessage;
+            this.encodeNanos = encodeNanos;
+            this.decodeNanos = decodeNanos;
+        }
+
+        public String getStyle() {
+            return style;
+        }
+
+        public Compression getCompression() {
+            return compression;
+        }
+
+        public double getBytesPerMessage() {
+            return bytesPerMessage;
+        }
+
+        public double getEncodeNanos() {
+            return encodeNanos;
+        }
+
+        public double getDecodeNanos() {
+            return decodeNanos;
+        }
+    }
+}
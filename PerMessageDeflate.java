@@ -0,0 +1,378 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * permessage-deflate (RFC 7692) negotiation and pooled codecs for WebSocketServer
+ *
+ * The server always answers with server_no_context_takeover, so every message
+ * it sends is compressed on its own. That is what lets a broadcast be
+ * compressed once and shared by all sessions, and what lets the slow-consumer
+ * policy drop or conflate queued messages without breaking a peer's
+ * decompressor. Clients may keep their compression context only when
+ * setClientContextTakeover(true) is used, because that pins one Inflater to the
+ * session for its whole lifetime; otherwise inflaters are borrowed from a pool
+ * for each message.
+ *
+ * Short messages gain little from deflate and can even grow, so anything under
+ * the threshold is sent as is. A preset dictionary built from typical messages
+ * changes that for small, repetitive updates. It is offered with the private
+ * x-preset-dictionary parameter and only used when both sides name the same
+ * dictionary; standard clients get plain permessage-deflate.
+ */
+public class PerMessageDeflate {
+
+    public static final String EXTENSION = "permessage-deflate";
+    public static final String DICTIONARY_PARAMETER = "x-preset-dictionary";
+
+    // Deflate's sliding window is 32 KB, so only the last 32 KB of a dictionary can be referenced
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] TAIL = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+
+    private int threshold = 64;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private boolean clientContextTakeover;
+    private String dictionaryId;
+    private byte[] dictionary;
+    private int maxPooled = 64;
+
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledDeflaters = new AtomicInteger();
+    private final AtomicInteger pooledInflaters = new AtomicInteger();
+
+    private final AtomicLong compressedMessages = new AtomicLong();
+    private final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong bytesAfterCompression = new AtomicLong();
+
+    /**
+     * Smallest payload, in bytes, that is worth compressing
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Deflater level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Whether clients may keep their compression context between messages
+     */
+    public void setClientContextTakeover(boolean clientContextTakeover) {
+        this.clientContextTakeover = clientContextTakeover;
+    }
+
+    /**
+     * Preset dictionary, used with clients that offer the same id
+     */
+    public void setDictionary(String id, byte[] dictionary) {
+        if (dictionary.length > MAX_DICTIONARY_SIZE) {
+            dictionary = Arrays.copyOfRange(dictionary, dictionary.length - MAX_DICTIONARY_SIZE, dictionary.length);
+        }
+        this.dictionaryId = id;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Deflaters and inflaters kept for reuse; each holds a few hundred KB of native memory
+     */
+    public void setMaxPooled(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    public long getCompressedMessages() {
+        return compressedMessages.get();
+    }
+
+    public long getBytesBeforeCompression() {
+        return bytesBeforeCompression.get();
+    }
+
+    public long getBytesAfterCompression() {
+        return bytesAfterCompression.get();
+    }
+
+    // ======= Negotiation =======
+
+    /**
+     * Picks the first acceptable permessage-deflate offer from a Sec-WebSocket-Extensions header
+     *
+     * @return the agreed parameters, or null if compression is not used
+     */
+    public Agreement negotiate(String offers) {
+        if (offers == null) {
+            return null;
+        }
+        for (String offer : offers.split(",")) {
+            Agreement agreement = accept(offer);
+            if (agreement != null) {
+                return agreement;
+            }
+        }
+        return null;
+    }
+
+    private Agreement accept(String offer) {
+        String[] parts = offer.split(";");
+        if (!EXTENSION.equals(parts[0].trim())) {
+            return null;
+        }
+
+        boolean clientNoContextTakeover = !clientContextTakeover;
+        boolean useDictionary = false;
+        boolean serverMaxWindowBits = false;
+        Set<String> seen = new HashSet<>();
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            int eq = parameter.indexOf('=');
+            String name = (eq >= 0 ? parameter.substring(0, eq) : parameter).trim();
+            String value = eq >= 0 ? unquote(parameter.substring(eq + 1).trim()) : null;
+            if (!seen.add(name)) {
+                // RFC 7692: an offer with a repeated parameter is declined
+                return null;
+            }
+            switch (name) {
+                case "server_no_context_takeover":
+                    break;
+                case "client_no_context_takeover":
+                    clientNoContextTakeover = true;
+                    break;
+                case "server_max_window_bits":
+                    // Deflater always uses the full 32 KB window, so a smaller limit cannot be honoured
+                    if (!"15".equals(value)) {
+                        return null;
+                    }
+                    serverMaxWindowBits = true;
+                    break;
+                case "client_max_window_bits":
+                    // Our inflater accepts any window size, so there is nothing to limit
+                    break;
+                case DICTIONARY_PARAMETER:
+                    useDictionary = dictionaryId != null && dictionaryId.equals(value);
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        StringBuilder response = new StringBuilder(EXTENSION).append("; server_no_context_takeover");
+        if (clientNoContextTakeover) {
+            response.append("; client_no_context_takeover");
+        }
+        if (serverMaxWindowBits) {
+            // RFC 7692 7.1.2.1: an accepted server_max_window_bits goes back in the response
+            response.append("; server_max_window_bits=15");
+        }
+        if (useDictionary) {
+            response.append("; ").append(DICTIONARY_PARAMETER).append('=').append(dictionaryId);
+        }
+        return new Agreement(response.toString(), clientNoContextTakeover, useDictionary);
+    }
+
+    private static String unquote(String value) {
+        return value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")
+            ? value.substring(1, value.length() - 1) : value;
+    }
+
+    // ======= Compression =======
+
+    /**
+     * Compresses one message with a pooled deflater
+     *
+     * @return the compressed payload, or null if the message is under the
+     *         threshold or would not get smaller
+     */
+    public byte[] tryCompress(byte[] payload, boolean useDictionary) {
+        if (payload.length < threshold) {
+            return null;
+        }
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else {
+            pooledDeflaters.decrementAndGet();
+        }
+        try {
+            if (useDictionary) {
+                deflater.setDictionary(dictionary);
+            }
+            byte[] compressed = deflate(deflater, payload);
+            if (compressed.length >= payload.length) {
+                return null;
+            }
+            compressedMessages.incrementAndGet();
+            bytesBeforeCompression.addAndGet(payload.length);
+            bytesAfterCompression.addAndGet(compressed.length);
+            return compressed;
+        } finally {
+            deflater.reset();
+            if (pooledDeflaters.incrementAndGet() <= maxPooled) {
+                deflaters.offer(deflater);
+            } else {
+                pooledDeflaters.decrementAndGet();
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Inflater that keeps the client's context for the life of a session; the caller must end() it
+     */
+    public Inflater newSessionInflater(boolean useDictionary) {
+        Inflater inflater = new Inflater(true);
+        if (useDictionary) {
+            inflater.setDictionary(dictionary);
+        }
+        return inflater;
+    }
+
+    /**
+     * Decompresses one message, using the session's inflater or a pooled one
+     *
+     * @return the message, or null if it would exceed maxSize
+     */
+    public byte[] decompress(byte[] data, int length, boolean useDictionary, Inflater sessionInflater,
+                             int maxSize) throws DataFormatException {
+        if (sessionInflater != null) {
+            return inflate(sessionInflater, data, length, maxSize);
+        }
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        } else {
+            pooledInflaters.decrementAndGet();
+        }
+        try {
+            if (useDictionary) {
+                inflater.setDictionary(dictionary);
+            }
+            return inflate(inflater, data, length, maxSize);
+        } finally {
+            inflater.reset();
+            if (pooledInflaters.incrementAndGet() <= maxPooled) {
+                inflaters.offer(inflater);
+            } else {
+                pooledInflaters.decrementAndGet();
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Raw-deflates one message and strips the 0x00 0x00 0xFF 0xFF sync-flush tail, per RFC 7692
+     */
+    public static byte[] deflate(Deflater deflater, byte[] payload) {
+        deflater.setInput(payload);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(16, payload.length / 2));
+        byte[] chunk = new byte[Math.min(Math.max(64, payload.length + 16), 8192)];
+        int n;
+        do {
+            n = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+            out.write(chunk, 0, n);
+        } while (n == chunk.length);
+
+        byte[] compressed = out.toByteArray();
+        int length = compressed.length;
+        if (length >= 4 && compressed[length - 4] == 0 && compressed[length - 3] == 0
+                && compressed[length - 2] == (byte) 0xFF && compressed[length - 1] == (byte) 0xFF) {
+            length -= 4;
+        }
+        return Arrays.copyOf(compressed, length);
+    }
+
+    /**
+     * Inflates one message after restoring the stripped tail
+     *
+     * @return the message, or null if it would exceed maxSize
+     */
+    public static byte[] inflate(Inflater inflater, byte[] data, int length, int maxSize) throws DataFormatException {
+        byte[] input = Arrays.copyOf(data, length + TAIL.length);
+        System.arraycopy(TAIL, 0, input, length, TAIL.length);
+        inflater.setInput(input);
+
+        byte[] output = new byte[Math.min(Math.max(256, length * 4), maxSize + 1)];
+        int total = 0;
+        while (true) {
+            if (total == output.length) {
+                if (output.length > maxSize) {
+                    return null;
+                }
+                output = Arrays.copyOf(output, Math.min(output.length * 2, maxSize + 1));
+            }
+            int n = inflater.inflate(output, total, output.length - total);
+            total += n;
+            if (n == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+                break;
+            }
+        }
+        if (inflater.needsDictionary()) {
+            throw new DataFormatException("Message requires a preset dictionary");
+        }
+        return total > maxSize ? null : Arrays.copyOf(output, total);
+    }
+
+    /**
+     * Builds a preset dictionary from sample messages
+     *
+     * Deflate finds matches more cheaply near the end of the dictionary, so
+     * samples should be listed from least to most common.
+     */
+    public static byte[] buildDictionary(String... samples) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String sample : samples) {
+            byte[] bytes = sample.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes, 0, bytes.length);
+        }
+        byte[] dictionary = out.toByteArray();
+        return dictionary.length <= MAX_DICTIONARY_SIZE ? dictionary
+            : Arrays.copyOfRange(dictionary, dictionary.length - MAX_DICTIONARY_SIZE, dictionary.length);
+    }
+
+    /**
+     * Parameters agreed with one client
+     */
+    public static final class Agreement {
+        private final String response;
+        private final boolean clientNoContextTakeover;
+        private final boolean dictionary;
+
+        Agreement(String response, boolean clientNoContextTakeover, boolean dictionary) {
+            this.response = response;
+            this.clientNoContextTakeover = clientNoContextTakeover;
+            this.dictionary = dictionary;
+        }
+
+        /**
+         * Value for the Sec-WebSocket-Extensions response header
+         */
+        public String getResponse() {
+            return response;
+        }
+
+        public boolean isClientNoContextTakeover() {
+            return clientNoContextTakeover;
+        }
+
+        public boolean usesDictionary() {
+            return dictionary;
+        }
+    }
+}
@@ -1,9 +1,6 @@
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Educational demonstration of REST API concepts
@@ -21,12 +18,14 @@ import java.util.Map;
  */
 public class RESTDemoService {
     
-    // In-memory database of coffees
-    private static final Map<String, Coffee> coffeeDatabase = new HashMap<>();
+    // The catalog shared with the other demos
+    private static final CoffeeStore coffeeDatabase = CoffeeStore.shared();
     
     // Simulated HTTP request counter for demonstration
     private static int requestCount = 0;
     
+    private static final Metrics metrics = Metrics.shared();
+    
     public static void main(String[] args) {
         // Initialize our coffee database
         initializeDatabase();
@@ -36,17 +35,7 @@ public class RESTDemoService {
     }
     
     private static void initializeDatabase() {
-        log("Server", "Initializing coffee database");
-        
-        Coffee latte = new Coffee("latte", "Latte", 3.99, "Colombia");
-        Coffee espresso = new Coffee("espresso", "Espresso", 2.50, "Brazil");
-        Coffee cappuccino = new Coffee("cappuccino", "Cappuccino", 4.20, "Ethiopia");
-        
-        coffeeDatabase.put(latte.getId(), latte);
-        coffeeDatabase.put(espresso.getId(), espresso);
-        coffeeDatabase.put(cappuccino.getId(), cappuccino);
-        
-        log("Server", "Database initialized with " + coffeeDatabase.size() + " coffees");
+        log("Server", "Using the shared coffee store with " + coffeeDatabase.size() + " coffees");
     }
     
     private static void simulateRequests() {
@@ -64,7 +53,7 @@ public class RESTDemoService {
         log("Client", "=== Demonstrating POST - Creating Resources ===");
         
         // POST a new coffee
-        Coffee mocha = new Coffee("mocha", "Mocha", 4.50, "Yemen");
+        CoffeeStore.Coffee mocha = new CoffeeStore.Coffee("mocha", "Mocha", 4.50, "Yemen", 0);
         simulateHttpRequest("POST", "/coffees", mocha);
         
         // Verify the new coffee was created
@@ -73,7 +62,7 @@ public class RESTDemoService {
         log("Client", "=== Demonstrating PUT - Updating Resources ===");
         
         // PUT (update) an existing coffee
-        Coffee updatedMocha = new Coffee("mocha", "Mocha Deluxe", 5.50, "Yemen Premium");
+        CoffeeStore.Coffee updatedMocha = new CoffeeStore.Coffee("mocha", "Mocha Deluxe", 5.50, "Yemen Premium", 0);
         simulateHttpRequest("PUT", "/coffees/mocha", updatedMocha);
         
         // Verify the coffee was updated
@@ -81,11 +70,11 @@ public class RESTDemoService {
         
         log("Client", "=== Demonstrating DELETE - Removing Resources ===");
         
-        // DELETE a coffee
-        simulateHttpRequest("DELETE", "/coffees/cappuccino", null);
+        // DELETE the coffee we created, leaving the shared catalog as the other demos expect it
+        simulateHttpRequest("DELETE", "/coffees/mocha", null);
         
         // Verify the coffee was deleted
-        simulateHttpRequest("GET", "/coffees/cappuccino", null);
+        simulateHttpRequest("GET", "/coffees/mocha", null);
         
         // GET all coffees to confirm our changes
         simulateHttpRequest("GET", "/coffees", null);
@@ -94,15 +83,18 @@ public class RESTDemoService {
     /**
      * Simulates an HTTP request and response cycle
      */
-    private static void simulateHttpRequest(String method, String path, Coffee body) {
+    private static void simulateHttpRequest(String method, String path, CoffeeStore.Coffee body) {
         requestCount++;
         
         // Request logging
         log("Client", "HTTP " + method + " " + path + 
-            (body != null ? " with body: " + body : ""));
+            (body != null ? " with body: " + toJson(body) : ""));
         
         // Process the request based on HTTP method and path
+        long started = System.nanoTime();
         HttpResponse response = processRequest(method, path, body);
+        metrics.requestDuration("rest", method + " " + route(path), String.valueOf(response.getStatus()))
+               .recordSince(started);
         
         // Response logging
         log("Server", "HTTP " + response.getStatus() + " " + 
@@ -116,7 +108,7 @@ public class RESTDemoService {
     /**
      * Processes a simulated HTTP request
      */
-    private static HttpResponse processRequest(String method, String path, Coffee body) {
+    private static HttpResponse processRequest(String method, String path, CoffeeStore.Coffee body) {
         // Simulate server processing the request
         log("Server", "Processing " + method + " " + path);
         
@@ -130,7 +122,7 @@ public class RESTDemoService {
                 if ("GET".equals(method)) {
                     // GET /coffees - Get all coffees
                     log("Server", "Retrieving all coffees");
-                    return new HttpResponse(200, new ArrayList<>(coffeeDatabase.values()));
+                    return new HttpResponse(200, toJson(coffeeDatabase.getAll()));
                 } else if ("POST".equals(method)) {
                     // POST /coffees - Create a new coffee
                     if (body == null) {
@@ -138,12 +130,15 @@ public class RESTDemoService {
                     }
                     
                     log("Server", "Creating new coffee: " + body.getId());
-                    if (coffeeDatabase.containsKey(body.getId())) {
-                        return new HttpResponse(409, "Conflict: Coffee with ID " + body.getId() + " already exists");
+                    try {
+                        if (!coffeeDatabase.create(body)) {
+                            return new HttpResponse(409, "Conflict: Coffee with ID " + body.getId() + " already exists");
+                        }
+                    } catch (IllegalArgumentException e) {
+                        return new HttpResponse(400, "Bad Request: " + e.getMessage());
                     }
                     
-                    coffeeDatabase.put(body.getId(), body);
-                    return new HttpResponse(201, body);
+                    return new HttpResponse(201, toJson(coffeeDatabase.get(body.getId())));
                 } else {
                     return new HttpResponse(405, "Method Not Allowed");
                 }
@@ -155,33 +150,37 @@ public class RESTDemoService {
                 if ("GET".equals(method)) {
                     // GET /coffees/{id} - Get a specific coffee
                     log("Server", "Retrieving coffee with ID: " + coffeeId);
-                    Coffee coffee = coffeeDatabase.get(coffeeId);
+                    CoffeeStore.Coffee coffee = coffeeDatabase.get(coffeeId);
                     if (coffee != null) {
-                        return new HttpResponse(200, coffee);
+                        return new HttpResponse(200, toJson(coffee));
                     } else {
                         return new HttpResponse(404, "Not Found: No coffee with ID " + coffeeId);
                     }
                 } else if ("PUT".equals(method)) {
                     // PUT /coffees/{id} - Update a coffee
                     log("Server", "Updating coffee with ID: " + coffeeId);
-                    if (!coffeeDatabase.containsKey(coffeeId)) {
-                        return new HttpResponse(404, "Not Found: No coffee with ID " + coffeeId);
-                    }
                     if (body == null) {
                         return new HttpResponse(400, "Bad Request: No coffee data provided");
                     }
                     
-                    coffeeDatabase.put(coffeeId, body);
-                    return new HttpResponse(200, body);
+                    CoffeeStore.Coffee updated;
+                    try {
+                        updated = coffeeDatabase.replace(coffeeId, body.getName(), body.getPrice(), body.getOrigin());
+                    } catch (IllegalArgumentException e) {
+                        return new HttpResponse(400, "Bad Request: " + e.getMessage());
+                    }
+                    if (updated == null) {
+                        return new HttpResponse(404, "Not Found: No coffee with ID " + coffeeId);
+                    }
+                    return new HttpResponse(200, toJson(updated));
                 } else if ("DELETE".equals(method)) {
                     // DELETE /coffees/{id} - Delete a coffee
                     log("Server", "Deleting coffee with ID: " + coffeeId);
-                    if (!coffeeDatabase.containsKey(coffeeId)) {
+                    CoffeeStore.Coffee removed = coffeeDatabase.remove(coffeeId);
+                    if (removed == null) {
                         return new HttpResponse(404, "Not Found: No coffee with ID " + coffeeId);
                     }
-                    
-                    Coffee removed = coffeeDatabase.remove(coffeeId);
-                    return new HttpResponse(200, removed);
+                    return new HttpResponse(200, toJson(removed));
                 } else {
                     return new HttpResponse(405, "Method Not Allowed");
                 }
@@ -191,48 +190,44 @@ public class RESTDemoService {
         return new HttpResponse(404, "Not Found: " + path);
     }
     
-    // Logging helper
-    private static void log(String source, String message) {
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss.SSS"));
-        System.out.println("[" + timestamp + "] [" + source + "] " + message);
+    /**
+     * Route template for metrics, so every coffee ID shares one series
+     */
+    private static String route(String path) {
+        String[] pathSegments = path.split("/");
+        if (pathSegments.length >= 2 && "coffees".equals(pathSegments[1])) {
+            if (pathSegments.length == 2) {
+                return "/coffees";
+            } else if (pathSegments.length == 3) {
+                return "/coffees/{id}";
+            }
+        }
+        return "unmatched";
     }
     
     /**
-     * Coffee resource model
+     * JSON representation of the coffee resource
      */
-    public static class Coffee {
-        private String id;
-        private String name;
-        private double price;
-        private String origin;
-        
-        public Coffee(String id, String name, double price, String origin) {
-            this.id = id;
-            this.name = name;
-            this.price = price;
-            this.origin = origin;
-        }
-        
-        public String getId() {
-            return id;
-        }
-        
-        public String getName() {
-            return name;
-        }
-        
-        public double getPrice() {
-            return price;
-        }
-        
-        public String getOrigin() {
-            return origin;
-        }
-        
-        @Override
-        public String toString() {
-            return "{\"id\":\"" + id + "\",\"name\":\"" + name + "\",\"price\":" + price + ",\"origin\":\"" + origin + "\"}";
+    private static String toJson(CoffeeStore.CoffeeView coffee) {
+        return "{\"id\":\"" + coffee.getId() + "\",\"name\":\"" + coffee.getName() + "\",\"price\":" +
+            coffee.getPrice() + ",\"origin\":\"" + coffee.getOrigin() + "\"}";
+    }
+    
+    private static String toJson(List<? extends CoffeeStore.CoffeeView> coffees) {
+        StringBuilder json = new StringBuilder("[");
+        for (CoffeeStore.CoffeeView coffee : coffees) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append(toJson(coffee));
         }
+        return json.append("]").toString();
+    }
+    
+    // Logging helper
+    private static void log(String source, String message) {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss.SSS"));
+        System.out.println("[" + timestamp + "] [" + source + "] " + message);
     }
     
     /**
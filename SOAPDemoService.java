@@ -1,13 +1,35 @@
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.jws.WebMethod;
 import javax.jws.WebParam;
 import javax.jws.WebService;
 import javax.jws.soap.SOAPBinding;
 import javax.jws.soap.SOAPBinding.Style;
-import javax.xml.namespace.QName;
+import javax.xml.bind.annotation.XmlMimeType;
+import javax.xml.ws.WebFault;
 import javax.xml.ws.Endpoint;
 import javax.xml.ws.Service;
+import javax.xml.ws.soap.MTOM;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
@@ -22,6 +44,18 @@ import java.time.format.DateTimeFormatter;
  * - XML message structure (visible in logs)
  * - Request/Response pattern
  * - Strong typing
+ * - SOAP 1.1 and 1.2 envelopes on a lightweight StAX endpoint
+ * - Batch lookups (getCoffees) and binary attachments with MTOM/XOP (exportCatalog)
+ *
+ * By default the service runs on StaxSoapEndpoint, which serves the same WSDL
+ * as JAX-WS without the reflective JAXB machinery; the client below is still a
+ * plain JAX-WS proxy built from that WSDL. Run with --jaxws to publish the
+ * service through javax.xml.ws.Endpoint instead.
+ *
+ * The client builds its proxies from a locally cached copy of the WSDL and
+ * shares them through CoffeeServiceClient. Run with --benchmark to compare
+ * its startup and per-call cost with fetching the WSDL and building a new
+ * proxy for every client run.
  */
 public class SOAPDemoService {
     
@@ -29,39 +63,78 @@ public class SOAPDemoService {
     private static final String PORT = "8888";
     private static final String URL = "http://localhost:" + PORT + "/soap-demo";
 
+    private static final String SOAP12_NAMESPACE = "http://www.w3.org/2003/05/soap-envelope";
+
+    // Port proxies shared by all client threads
+    private static final int CLIENT_PORTS = 4;
+
+    private static Endpoint jaxwsEndpoint;
+    private static StaxSoapEndpoint streamingEndpoint;
+    private static CoffeeServiceClient client;
+
     public static void main(String[] args) {
+        List<String> options = Arrays.asList(args);
+        boolean jaxws = options.contains("--jaxws");
+        boolean benchmark = options.contains("--benchmark");
         try {
             // Start the server first
-            startServer();
+            if (jaxws) {
+                startServer(!benchmark);
+            } else {
+                startStreamingServer(!benchmark);
+            }
             
             // Then run the client to make requests
-            runClient();
+            if (benchmark) {
+                runClientBenchmark();
+            } else {
+                runClient();
+                if (!jaxws) {
+                    runSoap12Client();
+                }
+            }
         } catch (Exception e) {
             System.err.println("Error: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            stopServer();
         }
     }
     
-    public static void startServer() {
+    public static void startServer(boolean verbose) {
         // Publishing the SOAP service on the specified URL
         log("Server", "Starting SOAP service on " + URL);
-        Endpoint.publish(URL, new CoffeeServiceImpl());
+        StaxSoapEndpoint.useTcpNoDelay();
+        jaxwsEndpoint = Endpoint.publish(URL, new CoffeeServiceImpl(verbose));
+        log("Server", "Service started successfully. WSDL available at " + URL + "?wsdl");
+    }
+    
+    public static void startStreamingServer(boolean verbose) throws Exception {
+        // Same contract, parsed with StAX and written from precompiled fragments
+        log("Server", "Starting streaming SOAP 1.1/1.2 service on " + URL);
+        streamingEndpoint = new StaxSoapEndpoint(URL, new CoffeeServiceImpl(verbose));
+        streamingEndpoint.start();
         log("Server", "Service started successfully. WSDL available at " + URL + "?wsdl");
     }
     
+    public static void stopServer() {
+        if (jaxwsEndpoint != null) {
+            jaxwsEndpoint.stop();
+        }
+        if (streamingEndpoint != null) {
+            streamingEndpoint.stop();
+        }
+        log("Server", "Service stopped");
+    }
+    
     public static void runClient() throws Exception {
         log("Client", "Preparing to call SOAP service");
         
-        // Create service based on WSDL contract
-        URL wsdlUrl = new URL(URL + "?wsdl");
-        QName serviceName = new QName("http://soap.example.org/", "CoffeeServiceImplService");
-        Service service = Service.create(wsdlUrl, serviceName);
+        // Service and port proxies come from the shared client, built once from the cached WSDL
+        CoffeeServiceClient coffeeService = getClient();
         
-        // Get the port (proxy) to use for invoking the service
-        QName portName = new QName("http://soap.example.org/", "CoffeeServiceImplPort");
-        CoffeeService coffeeService = service.getPort(portName, CoffeeService.class);
-        
-        log("Client", "Service proxy created from WSDL contract");
+        log("Client", "Service proxy pool created from cached WSDL contract in " +
+            CoffeeServiceClient.DEFAULT_CACHE_DIRECTORY);
         log("Client", "SOAP Header and envelope will be automatically created");
         
         // Make a request for a latte
@@ -79,8 +152,171 @@ public class SOAPDemoService {
         try {
             CoffeeResponse unknownResponse = coffeeService.getCoffee("SuperCoffee");
             log("Client", "Received response: " + unknownResponse);
-        } catch (Exception e) {
-            log("Client", "Received fault: " + e.getMessage());
+        } catch (CoffeeNotFoundException e) {
+            log("Client", "Received CoffeeNotFound fault for '" + e.getFaultInfo().getName() + "': " + e.getMessage());
+        }
+        
+        // Several coffees in one round trip; the unknown one is simply absent
+        List<String> names = Arrays.asList("Latte", "SuperCoffee", "Espresso");
+        log("Client", "Sending batch request for coffees: " + names);
+        log("Client", "Received batch response: " + coffeeService.getCoffees(names));
+        
+        // The catalog export arrives as an MTOM attachment and is streamed, not inlined as base64
+        log("Client", "Requesting catalog export as an MTOM attachment");
+        ByteArrayOutputStream catalog = new ByteArrayOutputStream();
+        long size = coffeeService.exportCatalog(catalog);
+        log("Client", "Received catalog export (" + size + " bytes):\n" +
+            new String(catalog.toByteArray(), StandardCharsets.UTF_8).trim());
+    }
+    
+    public static synchronized CoffeeServiceClient getClient() throws Exception {
+        if (client == null) {
+            client = new CoffeeServiceClient(URL, CLIENT_PORTS);
+        }
+        return client;
+    }
+    
+    // The uncached way: fetch and parse the WSDL, then build a proxy, every time
+    private static CoffeeService createPort() throws Exception {
+        Service service = Service.create(new URL(URL + "?wsdl"), CoffeeServiceClient.SERVICE_NAME);
+        return service.getPort(CoffeeServiceClient.PORT_NAME, CoffeeService.class);
+    }
+    
+    public static void runClientBenchmark() throws Exception {
+        int startups = 10;
+        int threads = 4;
+        int runsPerThread = 25;
+        int callsPerRun = 3;
+        
+        // One untimed round of each, so class loading and JIT warm-up are not counted
+        createPort().getCoffee("Latte");
+        new CoffeeServiceClient(URL, 1).getCoffee("Latte");
+        
+        log("Benchmark", "Client startup to first response, average of " + startups + " runs:");
+        long start = System.nanoTime();
+        for (int i = 0; i < startups; i++) {
+            createPort().getCoffee("Latte");
+        }
+        log("Benchmark", String.format("  WSDL fetched, new Service and proxy: %.1f ms",
+                                       (System.nanoTime() - start) / 1e6 / startups));
+        start = System.nanoTime();
+        for (int i = 0; i < startups; i++) {
+            new CoffeeServiceClient(URL, 1).getCoffee("Latte");
+        }
+        log("Benchmark", String.format("  cached WSDL, new pooled client:      %.1f ms",
+                                       (System.nanoTime() - start) / 1e6 / startups));
+        
+        int calls = threads * runsPerThread * callsPerRun;
+        log("Benchmark", threads + " threads, " + runsPerThread + " client runs of " + callsPerRun +
+            " calls each (" + calls + " calls):");
+        long uncached = timeRuns(threads, runsPerThread, () -> {
+            CoffeeService port = createPort();
+            for (int i = 0; i < callsPerRun; i++) {
+                port.getCoffee("Latte");
+            }
+            return null;
+        });
+        log("Benchmark", String.format("  new Service and proxy per run: %.0f us per call",
+                                       uncached / 1e3 / calls));
+        CoffeeServiceClient shared = getClient();
+        long pooled = timeRuns(threads, runsPerThread, () -> {
+            for (int i = 0; i < callsPerRun; i++) {
+                shared.getCoffee("Latte");
+            }
+            return null;
+        });
+        log("Benchmark", String.format("  shared pool of %d proxies:     %.0f us per call",
+                                       shared.getPortCount(), pooled / 1e3 / calls));
+        long unknown = timeRuns(threads, runsPerThread, () -> {
+            for (int i = 0; i < callsPerRun; i++) {
+                try {
+                    shared.getCoffee("Unknown" + i);
+                } catch (CoffeeNotFoundException e) {
+                    // Expected: a scan of bad names
+                }
+            }
+            return null;
+        });
+        log("Benchmark", String.format("  shared pool, unknown names:    %.0f us per call",
+                                       unknown / 1e3 / calls));
+        
+        // The service on its own, without SOAP or HTTP
+        CoffeeServiceImpl service = new CoffeeServiceImpl(false);
+        int lookups = 1_000_000;
+        log("Benchmark", "Service lookups, " + lookups + " each:");
+        for (int round = 0; round < 2; round++) {
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                service.getCoffee((i & 1) == 0 ? "latte" : "ESPRESSO");
+            }
+            long found = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                try {
+                    service.getCoffee("SuperCoffee");
+                } catch (CoffeeNotFoundException e) {
+                    // Expected
+                }
+            }
+            long notFound = System.nanoTime() - start;
+            if (round > 0) {
+                log("Benchmark", String.format("  found: %.0f ns, not found (fault): %.0f ns",
+                                               (double) found / lookups, (double) notFound / lookups));
+            }
+        }
+    }
+    
+    // Wall time for each of the threads to complete the given number of runs
+    private static long timeRuns(int threads, int runsPerThread, Callable<Void> run) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < runsPerThread; i++) {
+                        run.call();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    public static void runSoap12Client() throws Exception {
+        // A SOAP 1.2 envelope, written by hand to show the message on the wire
+        String request = "<?xml version=\"1.0\" ?>" +
+            "<env:Envelope xmlns:env=\"" + SOAP12_NAMESPACE + "\">" +
+            "<env:Body><ns2:getCoffee xmlns:ns2=\"http://soap.example.org/\">" +
+            "<name>Espresso</name></ns2:getCoffee></env:Body></env:Envelope>";
+        log("Client", "Sending SOAP 1.2 request: " + request);
+        log("Client", "Received SOAP 1.2 response: " + post(request));
+    }
+    
+    private static String post(String envelope) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(URL).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/soap+xml; charset=utf-8");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(envelope.getBytes(StandardCharsets.UTF_8));
+        }
+        // Faults come back with HTTP 500 and the envelope in the error stream
+        int status = connection.getResponseCode();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
         }
     }
     
@@ -92,46 +328,227 @@ public class SOAPDemoService {
 
     // ======= SOAP Service Interface =======
     
-    @WebService
+    // The namespace is required: a class in the default package has no package to derive one from
+    @WebService(targetNamespace = "http://soap.example.org/")
     @SOAPBinding(style = Style.DOCUMENT)
     public interface CoffeeService {
         @WebMethod
-        CoffeeResponse getCoffee(@WebParam(name = "name") String name);
+        CoffeeResponse getCoffee(@WebParam(name = "name") String name) throws CoffeeNotFoundException;
+        
+        // One round trip for many coffees; unknown names are left out of the result
+        @WebMethod
+        List<CoffeeResponse> getCoffees(@WebParam(name = "names") List<String> names);
+        
+        // The whole catalog as an XML document, sent as an MTOM attachment rather than inline
+        @WebMethod
+        @XmlMimeType("application/xml")
+        DataHandler exportCatalog();
     }
     
     // ======= SOAP Service Implementation =======
     
+    @MTOM
     @WebService(endpointInterface = "SOAPDemoService$CoffeeService",
-                serviceName = "CoffeeService",
+                serviceName = "CoffeeServiceImplService",
+                portName = "CoffeeServiceImplPort",
                 targetNamespace = "http://soap.example.org/")
     public static class CoffeeServiceImpl implements CoffeeService {
         
+        private final CoffeeStore store;
+        private final boolean verbose;
+        
+        public CoffeeServiceImpl() {
+            this(true);
+        }
+        
+        public CoffeeServiceImpl(boolean verbose) {
+            this(CoffeeStore.shared(), verbose);
+        }
+        
+        public CoffeeServiceImpl(CoffeeStore store, boolean verbose) {
+            this.store = store;
+            this.verbose = verbose;
+        }
+        
         @Override
-        public CoffeeResponse getCoffee(String name) {
-            log("Server", "Received request for coffee: " + name);
-            
-            // Simulating database lookup
-            CoffeeResponse response = new CoffeeResponse();
+        public CoffeeResponse getCoffee(String name) throws CoffeeNotFoundException {
+            if (verbose) {
+                log("Server", "Received request for coffee: " + name);
+            }
             
-            switch(name.toLowerCase()) {
-                case "latte":
-                    response.setName("Latte");
-                    response.setPrice(3.99);
-                    response.setOrigin("Colombia");
-                    break;
-                case "espresso":
-                    response.setName("Espresso");
-                    response.setPrice(2.50);
-                    response.setOrigin("Brazil");
-                    break;
-                default:
+            // Names are matched ignoring case, as the SOAP contract always has
+            CoffeeStore.Coffee coffee = name != null ? store.findByName(name) : null;
+            if (coffee == null) {
+                if (verbose) {
                     log("Server", "Coffee not found: " + name);
-                    throw new RuntimeException("Coffee not found: " + name);
+                }
+                throw CoffeeNotFoundException.forName(name);
             }
             
-            log("Server", "Returning coffee: " + response);
+            CoffeeResponse response = coffee(coffee);
+            if (verbose) {
+                log("Server", "Returning coffee: " + response);
+            }
             return response;
         }
+        
+        @Override
+        public List<CoffeeResponse> getCoffees(List<String> names) {
+            if (verbose) {
+                log("Server", "Received batch request for coffees: " + names);
+            }
+            List<CoffeeResponse> coffees = new ArrayList<>(names != null ? names.size() : 0);
+            if (names != null) {
+                for (String name : names) {
+                    CoffeeStore.Coffee coffee = name != null ? store.findByName(name) : null;
+                    if (coffee != null) {
+                        coffees.add(coffee(coffee));
+                    }
+                }
+            }
+            if (verbose) {
+                log("Server", "Returning " + coffees.size() + " of " + (names != null ? names.size() : 0) + " coffees");
+            }
+            return coffees;
+        }
+        
+        @Override
+        public DataHandler exportCatalog() {
+            List<CoffeeStore.Coffee> coffees = store.getAll();
+            if (verbose) {
+                log("Server", "Exporting catalog of " + coffees.size() + " coffees as an attachment");
+            }
+            return new DataHandler(new CatalogDataSource(coffees));
+        }
+        
+        private static CoffeeResponse coffee(CoffeeStore.Coffee stored) {
+            CoffeeResponse coffee = new CoffeeResponse();
+            coffee.setName(stored.getName());
+            coffee.setPrice(stored.getPrice());
+            coffee.setOrigin(stored.getOrigin());
+            return coffee;
+        }
+    }
+    
+    /**
+     * The catalog as an XML document, produced one coffee at a time as the attachment is read
+     *
+     * Nothing is built up front, so exporting a large catalog needs memory for
+     * one entry rather than for the whole document.
+     */
+    public static class CatalogDataSource implements DataSource {
+        public static final String CONTENT_TYPE = "application/xml";
+        
+        private static final byte[] HEADER = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<catalog xmlns=\"http://soap.example.org/catalog\">\n").getBytes(StandardCharsets.UTF_8);
+        private static final byte[] FOOTER = "</catalog>\n".getBytes(StandardCharsets.UTF_8);
+        
+        private final Collection<CoffeeStore.Coffee> coffees;
+        
+        public CatalogDataSource(Collection<CoffeeStore.Coffee> coffees) {
+            this.coffees = coffees;
+        }
+        
+        @Override
+        public InputStream getInputStream() {
+            Iterator<CoffeeStore.Coffee> next = coffees.iterator();
+            return new SequenceInputStream(new Enumeration<InputStream>() {
+                private boolean headerSent;
+                private boolean footerSent;
+                
+                @Override
+                public boolean hasMoreElements() {
+                    return !footerSent;
+                }
+                
+                @Override
+                public InputStream nextElement() {
+                    byte[] part;
+                    if (!headerSent) {
+                        headerSent = true;
+                        part = HEADER;
+                    } else if (next.hasNext()) {
+                        part = entry(next.next());
+                    } else {
+                        footerSent = true;
+                        part = FOOTER;
+                    }
+                    return new ByteArrayInputStream(part);
+                }
+            });
+        }
+        
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("The catalog export is read-only");
+        }
+        
+        @Override
+        public String getContentType() {
+            return CONTENT_TYPE;
+        }
+        
+        @Override
+        public String getName() {
+            return "catalog.xml";
+        }
+        
+        private static byte[] entry(CoffeeStore.Coffee coffee) {
+            return ("<coffee><name>" + escape(coffee.getName()) + "</name><origin>" + escape(coffee.getOrigin()) +
+                "</origin><price>" + coffee.getPrice() + "</price></coffee>\n").getBytes(StandardCharsets.UTF_8);
+        }
+        
+        private static String escape(String text) {
+            return text == null ? "" : text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        }
+    }
+    
+    // ======= SOAP Faults =======
+    
+    /**
+     * Declared fault for a coffee that is not on the menu; the WSDL maps it to a CoffeeNotFound detail element
+     *
+     * A bad name is an expected answer, not a bug, so the exception is created
+     * without a stack trace: filling one in walks the whole JAX-WS call stack
+     * and cost more than the lookup that failed.
+     */
+    @WebFault(name = "CoffeeNotFound", targetNamespace = "http://soap.example.org/")
+    public static class CoffeeNotFoundException extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        private final CoffeeNotFound faultInfo;
+        
+        public CoffeeNotFoundException(String message, CoffeeNotFound faultInfo) {
+            this(message, faultInfo, null);
+        }
+        
+        public CoffeeNotFoundException(String message, CoffeeNotFound faultInfo, Throwable cause) {
+            super(message, cause, false, false);
+            this.faultInfo = faultInfo;
+        }
+        
+        public static CoffeeNotFoundException forName(String name) {
+            CoffeeNotFound faultInfo = new CoffeeNotFound();
+            faultInfo.setName(name);
+            return new CoffeeNotFoundException("Coffee not found: " + name, faultInfo);
+        }
+        
+        public CoffeeNotFound getFaultInfo() {
+            return faultInfo;
+        }
+    }
+    
+    // Detail of the CoffeeNotFound fault
+    public static class CoffeeNotFound {
+        private String name;
+        
+        public String getName() {
+            return name;
+        }
+        
+        public void setName(String name) {
+            this.name = name;
+        }
     }
     
     // ======= Data Transfer Objects =======
@@ -175,22 +592,40 @@ public class SOAPDemoService {
 
 /* SAMPLE OUTPUT (when run):
 
-[19:42:15.123] [Server] Starting SOAP service on http://localhost:8888/soap-demo
-[19:42:15.456] [Server] Service started successfully. WSDL available at http://localhost:8888/soap-demo?wsdl
-[19:42:15.789] [Client] Preparing to call SOAP service
-[19:42:16.123] [Client] Service proxy created from WSDL contract
-[19:42:16.234] [Client] SOAP Header and envelope will be automatically created
-[19:42:16.345] [Client] Sending request for coffee: 'Latte'
-[19:42:16.456] [Server] Received request for coffee: Latte
-[19:42:16.567] [Server] Returning coffee: Coffee{name='Latte', price=3.99, origin='Colombia'}
-[19:42:16.678] [Client] Received response: Coffee{name='Latte', price=3.99, origin='Colombia'}
-[19:42:16.789] [Client] Sending request for coffee: 'Espresso'
-[19:42:16.890] [Server] Received request for coffee: Espresso
-[19:42:16.901] [Server] Returning coffee: Coffee{name='Espresso', price=2.5, origin='Brazil'}
-[19:42:17.012] [Client] Received response: Coffee{name='Espresso', price=2.5, origin='Brazil'}
-[19:42:17.123] [Client] Sending request for unknown coffee: 'SuperCoffee'
-[19:42:17.234] [Server] Received request for coffee: SuperCoffee
-[19:42:17.345] [Server] Coffee not found: SuperCoffee
-[19:42:17.456] [Client] Received fault: Coffee not found: SuperCoffee
+[19:42:15.123] [Server] Starting streaming SOAP 1.1/1.2 service on http://localhost:8888/soap-demo
+[19:42:15.289] [Server] Service started successfully. WSDL available at http://localhost:8888/soap-demo?wsdl
+[19:42:15.289] [Client] Preparing to call SOAP service
+[19:42:15.742] [Client] Service proxy pool created from cached WSDL contract in /tmp/soap-demo-wsdl
+[19:42:15.742] [Client] SOAP Header and envelope will be automatically created
+[19:42:15.742] [Client] Sending request for coffee: 'Latte'
+[19:42:15.786] [Server] Received request for coffee: Latte
+[19:42:15.794] [Server] Returning coffee: Coffee{name='Latte', price=3.99, origin='Colombia'}
+[19:42:15.803] [Client] Received response: Coffee{name='Latte', price=3.99, origin='Colombia'}
+[19:42:15.804] [Client] Sending request for coffee: 'Espresso'
+[19:42:15.811] [Server] Received request for coffee: Espresso
+[19:42:15.812] [Server] Returning coffee: Coffee{name='Espresso', price=2.5, origin='Brazil'}
+[19:42:15.856] [Client] Received response: Coffee{name='Espresso', price=2.5, origin='Brazil'}
+[19:42:15.856] [Client] Sending request for unknown coffee: 'SuperCoffee'
+[19:42:15.861] [Server] Received request for coffee: SuperCoffee
+[19:42:15.861] [Server] Coffee not found: SuperCoffee
+[19:42:15.947] [Client] Received CoffeeNotFound fault for 'SuperCoffee': Coffee not found: SuperCoffee
+[19:42:15.947] [Client] Sending batch request for coffees: [Latte, SuperCoffee, Espresso]
+[19:42:15.953] [Server] Received batch request for coffees: [Latte, SuperCoffee, Espresso]
+[19:42:15.953] [Server] Returning 2 of 3 coffees
+[19:42:15.962] [Client] Received batch response: [Coffee{name='Latte', price=3.99, origin='Colombia'}, Coffee{name='Espresso', price=2.5, origin='Brazil'}]
+[19:42:15.963] [Client] Requesting catalog export as an MTOM attachment
+[19:42:16.026] [Server] Exporting catalog of 3 coffees as an attachment
+[19:42:16.040] [Client] Received catalog export (344 bytes):
+<?xml version="1.0" encoding="UTF-8"?>
+<catalog xmlns="http://soap.example.org/catalog">
+<coffee><name>Espresso</name><origin>Brazil</origin><price>2.5</price></coffee>
+<coffee><name>Cappuccino</name><origin>Ethiopia</origin><price>4.2</price></coffee>
+<coffee><name>Latte</name><origin>Colombia</origin><price>3.99</price></coffee>
+</catalog>
+[19:42:16.041] [Client] Sending SOAP 1.2 request: <?xml version="1.0" ?><env:Envelope xmlns:env="http://www.w3.org/2003/05/soap-envelope"><env:Body><ns2:getCoffee xmlns:ns2="http://soap.example.org/"><name>Espresso</name></ns2:getCoffee></env:Body></env:Envelope>
+[19:42:16.045] [Server] Received request for coffee: Espresso
+[19:42:16.045] [Server] Returning coffee: Coffee{name='Espresso', price=2.5, origin='Brazil'}
+[19:42:16.047] [Client] Received SOAP 1.2 response: <?xml version="1.0" ?><S:Envelope xmlns:S="http://www.w3.org/2003/05/soap-envelope"><S:Body><ns2:getCoffeeResponse xmlns:ns2="http://soap.example.org/"><return><name>Espresso</name><origin>Brazil</origin><price>2.5</price></return></ns2:getCoffeeResponse></S:Body></S:Envelope>
+[19:42:16.050] [Server] Service stopped
 
 */
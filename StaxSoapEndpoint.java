@@ -0,0 +1,942 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.activation.DataHandler;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lightweight SOAP endpoint for the CoffeeService contract, without JAX-WS
+ *
+ * Serves the same WSDL and schema that JAX-WS generates for CoffeeServiceImpl
+ * (document/literal wrapped, service CoffeeServiceImplService, port
+ * CoffeeServiceImplPort), so a client built from the WSDL, including a
+ * JAX-WS Service.create() proxy, cannot tell the two apart.
+ *
+ * Requests are read with a StAX cursor straight off the HTTP stream: no DOM,
+ * no SAAJ message, no JAXB unmarshalling, just the elements we need. Each
+ * server thread keeps its own reader factory, so the JDK parser can reset and
+ * reuse its reader and its 40 KB of scanner buffers instead of allocating
+ * them for every request.
+ * Responses are written from byte fragments prepared once per SOAP version,
+ * with only the field values escaped in between, into a buffer each server
+ * thread reuses. The response length is known up front, so it goes out with
+ * Content-Length and the connection stays open for the next request.
+ *
+ * SOAP 1.1 (text/xml) and SOAP 1.2 (application/soap+xml) envelopes are both
+ * accepted; the reply and any fault use the version of the request.
+ *
+ * The WSDL advertises MTOM, so JAX-WS clients send their requests as XOP
+ * (multipart/related) packages. Like JAX-WS, the endpoint answers a packaged
+ * request with a packaged response and a plain request with a plain one. The
+ * catalog export is streamed either way: as a binary attachment after the
+ * envelope for MTOM, or base64-encoded inside it otherwise.
+ */
+public final class StaxSoapEndpoint {
+
+    public static final String NAMESPACE = "http://soap.example.org/";
+    static final String SOAP11_NAMESPACE = "http://schemas.xmlsoap.org/soap/envelope/";
+    static final String SOAP12_NAMESPACE = "http://www.w3.org/2003/05/soap-envelope";
+
+    private static final Version SOAP11 = new Version(SOAP11_NAMESPACE, "text/xml");
+    private static final Version SOAP12 = new Version(SOAP12_NAMESPACE, "application/soap+xml");
+
+    private static final String REUSE_INSTANCE = "reuse-instance";
+    private static final String NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+    // Packaged requests are read into memory to find the root part; they carry no attachments here
+    private static final int MAX_PACKAGED_REQUEST_BYTES = 1 << 20;
+
+    private static final byte[] ENVELOPE_END = bytes("</S:Body></S:Envelope>");
+    private static final byte[] GET_COFFEE_RESPONSE_START =
+        bytes("<ns2:getCoffeeResponse xmlns:ns2=\"" + NAMESPACE + "\">");
+    private static final byte[] GET_COFFEE_RESPONSE_END = bytes("</ns2:getCoffeeResponse>");
+    private static final byte[] GET_COFFEES_RESPONSE_START =
+        bytes("<ns2:getCoffeesResponse xmlns:ns2=\"" + NAMESPACE + "\">");
+    private static final byte[] GET_COFFEES_RESPONSE_END = bytes("</ns2:getCoffeesResponse>");
+    private static final byte[] EXPORT_CATALOG_RESPONSE_START =
+        bytes("<ns2:exportCatalogResponse xmlns:ns2=\"" + NAMESPACE + "\"><return>");
+    private static final byte[] EXPORT_CATALOG_RESPONSE_END = bytes("</return></ns2:exportCatalogResponse>");
+    private static final byte[] XOP_INCLUDE_START =
+        bytes("<xop:Include xmlns:xop=\"http://www.w3.org/2004/08/xop/include\" href=\"cid:");
+    private static final byte[] XOP_INCLUDE_END = bytes("\"></xop:Include>");
+    private static final byte[] COFFEE_START = bytes("<return><name>");
+    private static final byte[] NAME_TO_ORIGIN = bytes("</name><origin>");
+    private static final byte[] ORIGIN_TO_PRICE = bytes("</origin><price>");
+    private static final byte[] COFFEE_END = bytes("</price></return>");
+    private static final byte[] COFFEE_NOT_FOUND_START =
+        bytes("<ns2:CoffeeNotFound xmlns:ns2=\"" + NAMESPACE + "\"><name>");
+    private static final byte[] COFFEE_NOT_FOUND_END = bytes("</name></ns2:CoffeeNotFound>");
+    private static final byte[] COFFEE_NOT_FOUND_EMPTY =
+        bytes("<ns2:CoffeeNotFound xmlns:ns2=\"" + NAMESPACE + "\"></ns2:CoffeeNotFound>");
+
+    // Reused per server thread; the pool threads live as long as the server
+    private static final ThreadLocal<XMLInputFactory> INPUT_FACTORIES = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            return newInputFactory();
+        }
+    };
+    private static final ThreadLocal<ResponseBuffer> BUFFERS = new ThreadLocal<ResponseBuffer>() {
+        @Override
+        protected ResponseBuffer initialValue() {
+            return new ResponseBuffer();
+        }
+    };
+
+    private final String address;
+    private final SOAPDemoService.CoffeeService service;
+    private final byte[] wsdl;
+    private final byte[] schema;
+    private final int threads;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public StaxSoapEndpoint(String address, SOAPDemoService.CoffeeService service) {
+        this(address, service, 4);
+    }
+
+    public StaxSoapEndpoint(String address, SOAPDemoService.CoffeeService service, int threads) {
+        this.address = address;
+        this.service = service;
+        this.threads = threads;
+        this.wsdl = bytes(wsdl(address));
+        this.schema = bytes(SCHEMA);
+    }
+
+    /**
+     * Sends HTTP responses from the JDK server without waiting on Nagle's algorithm
+     *
+     * The server writes the headers and the body separately. On a kept-alive
+     * connection the body then waits for the client to acknowledge the
+     * headers, which the client delays by up to 40 ms. The setting is read
+     * once, when the first JDK HTTP server starts, so call this before that.
+     */
+    public static void useTcpNoDelay() {
+        if (System.getProperty(NO_DELAY_PROPERTY) == null) {
+            System.setProperty(NO_DELAY_PROPERTY, "true");
+        }
+    }
+
+    public void start() throws IOException {
+        useTcpNoDelay();
+        URI uri = URI.create(address);
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "soap-stax-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(uri.getHost(), uri.getPort()), 128);
+        server.createContext(uri.getPath(), this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+            try {
+                executor.awaitTermination(2, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    // ======= HTTP =======
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long started = System.nanoTime();
+        String endpoint = "unknown";
+        try {
+            String method = exchange.getRequestMethod();
+            String query = exchange.getRequestURI().getRawQuery();
+            if ("GET".equals(method) && "wsdl".equalsIgnoreCase(query)) {
+                endpoint = "wsdl";
+                send(exchange, 200, "text/xml;charset=utf-8", wsdl, wsdl.length);
+            } else if ("GET".equals(method) && "xsd=1".equals(query)) {
+                endpoint = "xsd";
+                send(exchange, 200, "text/xml;charset=utf-8", schema, schema.length);
+            } else if ("POST".equals(method)) {
+                String operation = post(exchange);
+                if (operation != null) {
+                    endpoint = operation;
+                }
+            } else {
+                exchange.sendResponseHeaders(405, -1);
+            }
+        } finally {
+            exchange.close();
+            // The response code is -1 if the request failed before a response was started
+            Metrics.shared().requestDuration("soap", endpoint, String.valueOf(exchange.getResponseCode()))
+                .recordSince(started);
+        }
+    }
+
+    /**
+     * Answers one SOAP request
+     *
+     * @return the operation called, or null if the envelope did not name a known one
+     */
+    private String post(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        ResponseBuffer out = BUFFERS.get();
+        out.reset();
+        Request request;
+        InputStream envelope;
+        if (contentType != null && contentType.regionMatches(true, 0, "multipart/related", 0, 17)) {
+            String startInfo = parameter(contentType, "start-info");
+            request = new Request(startInfo != null && startInfo.startsWith(SOAP12.mediaType) ? SOAP12 : SOAP11, true);
+            envelope = rootPart(contentType, exchange.getRequestBody());
+            if (envelope == null) {
+                sendEnvelope(exchange, request, fault(out, request.version, request.version.senderCode,
+                                                      "Missing root part in multipart/related request"), out);
+                return null;
+            }
+        } else {
+            boolean soap12 = contentType != null && contentType.startsWith(SOAP12.mediaType);
+            request = new Request(soap12 ? SOAP12 : SOAP11, false);
+            envelope = exchange.getRequestBody();
+        }
+        int status = read(envelope, request, out);
+        if (status == 0) {
+            switch (request.operation) {
+                case "getCoffee":
+                    status = getCoffee(request, out);
+                    break;
+                case "getCoffees":
+                    status = getCoffees(request, out);
+                    break;
+                default:
+                    exportCatalog(exchange, request, out);
+                    return request.operation;
+            }
+        }
+        sendEnvelope(exchange, request, status, out);
+        return request.operation;
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body, int length)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body, 0, length);
+        out.close();
+    }
+
+    // The envelope in the buffer, packaged as XOP if the request was
+    private static void sendEnvelope(HttpExchange exchange, Request request, int status, ResponseBuffer envelope)
+            throws IOException {
+        if (!request.mtom) {
+            send(exchange, status, request.version.contentType, envelope.bytes, envelope.length);
+            return;
+        }
+        Package xop = new Package(request.version);
+        byte[] head = xop.rootPartHead();
+        byte[] tail = xop.closing();
+        exchange.getResponseHeaders().set("Content-Type", xop.contentType());
+        exchange.sendResponseHeaders(status, head.length + envelope.length + tail.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(head);
+        out.write(envelope.bytes, 0, envelope.length);
+        out.write(tail);
+        out.close();
+    }
+
+    // ======= SOAP =======
+
+    /**
+     * Reads one request envelope into the request: its operation and arguments
+     *
+     * @return 0 if the request can be served, otherwise the HTTP status of the fault written to out
+     */
+    int read(InputStream body, Request request, ResponseBuffer out) {
+        Version version = request.version;
+        XMLStreamReader reader = null;
+        boolean finished = false;
+        try {
+            reader = INPUT_FACTORIES.get().createXMLStreamReader(body);
+            if (!nextElement(reader) || !"Envelope".equals(reader.getLocalName())) {
+                return fault(out, version, version.senderCode, "Missing SOAP Envelope");
+            }
+            if (!version.namespace.equals(reader.getNamespaceURI())) {
+                return fault(out, version, version.versionMismatchCode,
+                             "Envelope namespace " + reader.getNamespaceURI() + " does not match the content type");
+            }
+            if (!nextElement(reader)) {
+                return fault(out, version, version.senderCode, "Missing SOAP Body");
+            }
+            if ("Header".equals(reader.getLocalName())) {
+                skipElement(reader);
+                if (!nextElement(reader)) {
+                    return fault(out, version, version.senderCode, "Missing SOAP Body");
+                }
+            }
+            if (!"Body".equals(reader.getLocalName())) {
+                return fault(out, version, version.senderCode, "Missing SOAP Body");
+            }
+            if (!nextElement(reader)) {
+                return fault(out, version, version.senderCode, "Empty SOAP Body");
+            }
+            String operation = reader.getLocalName();
+            if (!NAMESPACE.equals(reader.getNamespaceURI())) {
+                return fault(out, version, version.senderCode,
+                             "Unknown operation {" + reader.getNamespaceURI() + "}" + operation);
+            }
+            switch (operation) {
+                case "getCoffee":
+                    request.name = readChild(reader, "name");
+                    break;
+                case "getCoffees":
+                    request.names = readChildren(reader, "names");
+                    break;
+                case "exportCatalog":
+                    skipElement(reader);
+                    break;
+                default:
+                    return fault(out, version, version.senderCode,
+                                 "Unknown operation {" + NAMESPACE + "}" + operation);
+            }
+            request.operation = operation;
+            // Read to the end, which also checks the rest of the envelope is well-formed
+            while (reader.hasNext()) {
+                reader.next();
+            }
+            finished = true;
+            return 0;
+        } catch (XMLStreamException e) {
+            return fault(out, version, version.senderCode, "Malformed request: " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Nothing left to read
+                }
+            }
+            if (!finished) {
+                // A reader abandoned mid-document leaves state behind in the JDK parser; start afresh
+                INPUT_FACTORIES.remove();
+            }
+        }
+    }
+
+    private int getCoffee(Request request, ResponseBuffer out) {
+        SOAPDemoService.CoffeeResponse coffee;
+        try {
+            coffee = service.getCoffee(request.name);
+        } catch (SOAPDemoService.CoffeeNotFoundException e) {
+            return coffeeNotFound(out, request.version, e);
+        } catch (RuntimeException e) {
+            return fault(out, request.version, request.version.receiverCode, e.getMessage());
+        }
+        out.append(request.version.envelopeStart);
+        out.append(GET_COFFEE_RESPONSE_START);
+        writeCoffee(out, coffee);
+        out.append(GET_COFFEE_RESPONSE_END);
+        out.append(ENVELOPE_END);
+        return 200;
+    }
+
+    private int getCoffees(Request request, ResponseBuffer out) {
+        List<SOAPDemoService.CoffeeResponse> coffees;
+        try {
+            coffees = service.getCoffees(request.names);
+        } catch (RuntimeException e) {
+            return fault(out, request.version, request.version.receiverCode, e.getMessage());
+        }
+        out.append(request.version.envelopeStart);
+        out.append(GET_COFFEES_RESPONSE_START);
+        for (SOAPDemoService.CoffeeResponse coffee : coffees) {
+            writeCoffee(out, coffee);
+        }
+        out.append(GET_COFFEES_RESPONSE_END);
+        out.append(ENVELOPE_END);
+        return 200;
+    }
+
+    private static void writeCoffee(ResponseBuffer out, SOAPDemoService.CoffeeResponse coffee) {
+        out.append(COFFEE_START);
+        out.appendEscaped(coffee.getName());
+        out.append(NAME_TO_ORIGIN);
+        out.appendEscaped(coffee.getOrigin());
+        out.append(ORIGIN_TO_PRICE);
+        out.appendAscii(Double.toString(coffee.getPrice()));
+        out.append(COFFEE_END);
+    }
+
+    /**
+     * Streams the catalog: the envelope first, then the document as it is produced
+     *
+     * The response length is unknown, so it goes out chunked. Nothing but one
+     * copy buffer is held in memory, however large the catalog.
+     */
+    private void exportCatalog(HttpExchange exchange, Request request, ResponseBuffer out) throws IOException {
+        DataHandler catalog;
+        try {
+            catalog = service.exportCatalog();
+        } catch (RuntimeException e) {
+            sendEnvelope(exchange, request, fault(out, request.version, request.version.receiverCode, e.getMessage()), out);
+            return;
+        }
+        out.append(request.version.envelopeStart);
+        out.append(EXPORT_CATALOG_RESPONSE_START);
+        try (InputStream document = catalog.getInputStream()) {
+            if (request.mtom) {
+                Package xop = new Package(request.version);
+                String contentId = Package.newId() + "@soap.example.org";
+                out.append(XOP_INCLUDE_START);
+                out.appendAscii(contentId);
+                out.append(XOP_INCLUDE_END);
+                out.append(EXPORT_CATALOG_RESPONSE_END);
+                out.append(ENVELOPE_END);
+                exchange.getResponseHeaders().set("Content-Type", xop.contentType());
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream body = exchange.getResponseBody();
+                body.write(xop.rootPartHead());
+                body.write(out.bytes, 0, out.length);
+                body.write(xop.partHead(contentId, catalog.getContentType()));
+                copy(document, body);
+                body.write(xop.closing());
+                body.close();
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", request.version.contentType);
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream body = exchange.getResponseBody();
+                body.write(out.bytes, 0, out.length);
+                // Closing the encoder writes the final padding; the response stays open
+                try (OutputStream base64 = Base64.getEncoder().wrap(new FilterOutputStream(body) {
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        body.write(bytes, offset, length);
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                })) {
+                    copy(document, base64);
+                }
+                out.reset();
+                out.append(EXPORT_CATALOG_RESPONSE_END);
+                out.append(ENVELOPE_END);
+                body.write(out.bytes, 0, out.length);
+                body.close();
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static int fault(ResponseBuffer out, Version version, byte[] code, String reason) {
+        out.reset();
+        out.append(version.faultStart);
+        out.append(code);
+        out.append(version.faultCodeToReason);
+        out.appendEscaped(reason);
+        out.append(version.faultReasonEnd);
+        out.append(version.faultEnd);
+        return 500;
+    }
+
+    // The declared fault, with its CoffeeNotFound detail
+    private static int coffeeNotFound(ResponseBuffer out, Version version, SOAPDemoService.CoffeeNotFoundException e) {
+        out.reset();
+        out.append(version.faultStart);
+        out.append(version.receiverCode);
+        out.append(version.faultCodeToReason);
+        out.appendEscaped(e.getMessage());
+        out.append(version.faultReasonEnd);
+        out.append(version.detailStart);
+        String name = e.getFaultInfo().getName();
+        if (name != null) {
+            out.append(COFFEE_NOT_FOUND_START);
+            out.appendEscaped(name);
+            out.append(COFFEE_NOT_FOUND_END);
+        } else {
+            out.append(COFFEE_NOT_FOUND_EMPTY);
+        }
+        out.append(version.detailEnd);
+        out.append(version.faultEnd);
+        return 500;
+    }
+
+    // Advances to the next start element inside the current one; false at the end of the current element
+    private static boolean nextElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    // Text of the named child of the current element, or null; leaves the reader at the end of the current element
+    private static String readChild(XMLStreamReader reader, String localName) throws XMLStreamException {
+        String value = null;
+        while (nextElement(reader)) {
+            if (value == null && localName.equals(reader.getLocalName())) {
+                value = reader.getElementText();
+            } else {
+                skipElement(reader);
+            }
+        }
+        return value;
+    }
+
+    // Texts of every child with the name, in order; leaves the reader at the end of the current element
+    private static List<String> readChildren(XMLStreamReader reader, String localName) throws XMLStreamException {
+        List<String> values = new ArrayList<>();
+        while (nextElement(reader)) {
+            if (localName.equals(reader.getLocalName())) {
+                values.add(reader.getElementText());
+            } else {
+                skipElement(reader);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The root part of a multipart/related request: the one named by the start parameter, or else the first
+     *
+     * @return the part's content, or null if the package has no such part
+     */
+    static InputStream rootPart(String contentType, InputStream body) throws IOException {
+        String boundary = parameter(contentType, "boundary");
+        if (boundary == null) {
+            return null;
+        }
+        String start = parameter(contentType, "start");
+        byte[] data = readAll(body);
+        byte[] delimiter = bytes("--" + boundary);
+        byte[] headerEnd = bytes("\r\n\r\n");
+        int from = indexOf(data, delimiter, 0);
+        while (from >= 0) {
+            int headers = from + delimiter.length;
+            if (headers + 2 <= data.length && data[headers] == '-' && data[headers + 1] == '-') {
+                return null;
+            }
+            int content = indexOf(data, headerEnd, headers);
+            if (content < 0) {
+                return null;
+            }
+            content += headerEnd.length;
+            int end = indexOf(data, delimiter, content);
+            if (end < 0) {
+                return null;
+            }
+            // The part ends before the CRLF that precedes the next delimiter
+            int length = end - content;
+            if (length >= 2 && data[end - 2] == '\r' && data[end - 1] == '\n') {
+                length -= 2;
+            }
+            String partHeaders = new String(data, headers, content - headers, StandardCharsets.ISO_8859_1);
+            if (start == null || partHeaders.contains(start)) {
+                return new ByteArrayInputStream(data, content, length);
+            }
+            from = end;
+        }
+        return null;
+    }
+
+    // Value of a Content-Type parameter, without quotes; null if absent
+    static String parameter(String contentType, String name) {
+        for (String part : contentType.split(";")) {
+            int equals = part.indexOf('=');
+            if (equals > 0 && part.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                String value = part.substring(equals + 1).trim();
+                if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(2048);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+            if (bytes.size() > MAX_PACKAGED_REQUEST_BYTES) {
+                throw new IOException("multipart/related request larger than " + MAX_PACKAGED_REQUEST_BYTES + " bytes");
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        // SOAP forbids DTDs; refusing them also rules out entity expansion attacks
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        // JDK parser: hand out the previous reader again once it is closed
+        if (factory.isPropertySupported(REUSE_INSTANCE)) {
+            factory.setProperty(REUSE_INSTANCE, Boolean.TRUE);
+        }
+        return factory;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One request: how it arrived, and what it asks for once read
+     */
+    static final class Request {
+        final Version version;
+        // Sent as an XOP package, so the response is packaged too
+        final boolean mtom;
+        String operation;
+        String name;
+        List<String> names;
+
+        Request(Version version, boolean mtom) {
+            this.version = version;
+            this.mtom = mtom;
+        }
+    }
+
+    /**
+     * MIME framing of one XOP (multipart/related) response
+     */
+    static final class Package {
+        private static final String CRLF = "\r\n";
+
+        private final Version version;
+        private final String boundary;
+        private final String rootId;
+
+        Package(Version version) {
+            String id = newId();
+            this.version = version;
+            this.boundary = "uuid:" + id;
+            this.rootId = "<rootpart*" + id + "@soap.example.org>";
+        }
+
+        // Random enough to never occur in the content; SecureRandom would be slower for no benefit here
+        static String newId() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            return Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+        }
+
+        String contentType() {
+            return "multipart/related;start=\"" + rootId + "\";type=\"application/xop+xml\";boundary=\"" + boundary +
+                "\";start-info=\"" + version.mediaType + "\"";
+        }
+
+        byte[] rootPartHead() {
+            return bytes("--" + boundary + CRLF +
+                "Content-Id: " + rootId + CRLF +
+                "Content-Type: application/xop+xml;charset=utf-8;type=\"" + version.mediaType + "\"" + CRLF +
+                "Content-Transfer-Encoding: binary" + CRLF + CRLF);
+        }
+
+        byte[] partHead(String contentId, String contentType) {
+            return bytes(CRLF + "--" + boundary + CRLF +
+                "Content-Id: <" + contentId + ">" + CRLF +
+                "Content-Type: " + contentType + CRLF +
+                "Content-Transfer-Encoding: binary" + CRLF + CRLF);
+        }
+
+        byte[] closing() {
+            return bytes(CRLF + "--" + boundary + "--");
+        }
+    }
+
+    // ======= Precompiled fragments =======
+
+    /**
+     * Envelope fragments for one SOAP version, in the shape JAX-WS writes them
+     */
+    static final class Version {
+        final String namespace;
+        final String mediaType;
+        final String contentType;
+        final byte[] envelopeStart;
+        final byte[] faultStart;
+        final byte[] faultCodeToReason;
+        final byte[] faultReasonEnd;
+        final byte[] detailStart;
+        final byte[] detailEnd;
+        final byte[] faultEnd;
+        final byte[] senderCode;
+        final byte[] receiverCode;
+        final byte[] versionMismatchCode;
+
+        Version(String namespace, String mediaType) {
+            this.namespace = namespace;
+            this.mediaType = mediaType;
+            this.contentType = mediaType + "; charset=utf-8";
+            String envelopeStart = "<?xml version=\"1.0\" ?><S:Envelope xmlns:S=\"" + namespace + "\"><S:Body>";
+            this.envelopeStart = bytes(envelopeStart);
+            if (SOAP11_NAMESPACE.equals(namespace)) {
+                this.faultStart = bytes(envelopeStart + "<S:Fault><faultcode>");
+                this.faultCodeToReason = bytes("</faultcode><faultstring>");
+                this.faultReasonEnd = bytes("</faultstring>");
+                this.detailStart = bytes("<detail>");
+                this.detailEnd = bytes("</detail>");
+                this.senderCode = bytes("S:Client");
+                this.receiverCode = bytes("S:Server");
+            } else {
+                this.faultStart = bytes(envelopeStart + "<S:Fault><S:Code><S:Value>");
+                this.faultCodeToReason = bytes("</S:Value></S:Code><S:Reason><S:Text xml:lang=\"en\">");
+                this.faultReasonEnd = bytes("</S:Text></S:Reason>");
+                this.detailStart = bytes("<S:Detail>");
+                this.detailEnd = bytes("</S:Detail>");
+                this.senderCode = bytes("S:Sender");
+                this.receiverCode = bytes("S:Receiver");
+            }
+            this.faultEnd = bytes("</S:Fault></S:Body></S:Envelope>");
+            this.versionMismatchCode = bytes("S:VersionMismatch");
+        }
+    }
+
+    /**
+     * Growable byte buffer that UTF-8 encodes and XML-escapes text as it appends it
+     */
+    static final class ResponseBuffer {
+        byte[] bytes = new byte[1024];
+        int length;
+
+        void reset() {
+            length = 0;
+        }
+
+        void append(byte[] fragment) {
+            ensure(fragment.length);
+            System.arraycopy(fragment, 0, bytes, length, fragment.length);
+            length += fragment.length;
+        }
+
+        void appendAscii(String text) {
+            ensure(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                bytes[length++] = (byte) text.charAt(i);
+            }
+        }
+
+        void appendEscaped(String text) {
+            if (text == null) {
+                return;
+            }
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '<':
+                        appendAscii("&lt;");
+                        break;
+                    case '>':
+                        appendAscii("&gt;");
+                        break;
+                    case '&':
+                        appendAscii("&amp;");
+                        break;
+                    default:
+                        if (c < 0x80) {
+                            ensure(1);
+                            bytes[length++] = (byte) c;
+                        } else {
+                            // Rare in this contract; let the JDK handle surrogate pairs
+                            int end = i + 1;
+                            while (end < text.length() && text.charAt(end) >= 0x80) {
+                                end++;
+                            }
+                            append(bytes(text.substring(i, end)));
+                            i = end - 1;
+                        }
+                }
+            }
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+
+    // ======= Contract =======
+
+    private static String wsdl(String address) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<definitions xmlns:wsu=\"http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-utility-1.0.xsd\" " +
+            "xmlns:wsp=\"http://www.w3.org/ns/ws-policy\" xmlns:wsp1_2=\"http://schemas.xmlsoap.org/ws/2004/09/policy\" " +
+            "xmlns:wsam=\"http://www.w3.org/2007/05/addressing/metadata\" " +
+            "xmlns:soap=\"http://schemas.xmlsoap.org/wsdl/soap/\" xmlns:tns=\"" + NAMESPACE + "\" " +
+            "xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns=\"http://schemas.xmlsoap.org/wsdl/\" " +
+            "targetNamespace=\"" + NAMESPACE + "\" name=\"CoffeeServiceImplService\">\n" +
+            "<wsp:Policy wsu:Id=\"CoffeeServiceImplPortBinding_MTOM_Policy\">\n" +
+            "<ns1:OptimizedMimeSerialization " +
+            "xmlns:ns1=\"http://schemas.xmlsoap.org/ws/2004/09/policy/optimizedmimeserialization\" " +
+            "wsp:Optional=\"true\"></ns1:OptimizedMimeSerialization>\n" +
+            "</wsp:Policy>\n" +
+            "<types>\n<xsd:schema>\n" +
+            "<xsd:import namespace=\"" + NAMESPACE + "\" schemaLocation=\"" + address + "?xsd=1\"></xsd:import>\n" +
+            "</xsd:schema>\n</types>\n" +
+            message("getCoffee", "parameters") +
+            message("getCoffeeResponse", "parameters") +
+            "<message name=\"CoffeeNotFoundException\">\n" +
+            "<part name=\"fault\" element=\"tns:CoffeeNotFound\"></part>\n</message>\n" +
+            message("getCoffees", "parameters") +
+            message("getCoffeesResponse", "parameters") +
+            message("exportCatalog", "parameters") +
+            message("exportCatalogResponse", "parameters") +
+            "<portType name=\"CoffeeService\">\n" +
+            "<operation name=\"getCoffee\">\n" +
+            "<input wsam:Action=\"" + NAMESPACE + "CoffeeService/getCoffeeRequest\" message=\"tns:getCoffee\"></input>\n" +
+            "<output wsam:Action=\"" + NAMESPACE + "CoffeeService/getCoffeeResponse\" " +
+            "message=\"tns:getCoffeeResponse\"></output>\n" +
+            "<fault message=\"tns:CoffeeNotFoundException\" name=\"CoffeeNotFoundException\" " +
+            "wsam:Action=\"" + NAMESPACE + "CoffeeService/getCoffee/Fault/CoffeeNotFoundException\"></fault>\n" +
+            "</operation>\n" +
+            portTypeOperation("getCoffees") +
+            portTypeOperation("exportCatalog") +
+            "</portType>\n" +
+            "<binding name=\"CoffeeServiceImplPortBinding\" type=\"tns:CoffeeService\">\n" +
+            "<wsp:PolicyReference URI=\"#CoffeeServiceImplPortBinding_MTOM_Policy\"></wsp:PolicyReference>\n" +
+            "<soap:binding transport=\"http://schemas.xmlsoap.org/soap/http\" style=\"document\"></soap:binding>\n" +
+            "<operation name=\"getCoffee\">\n<soap:operation soapAction=\"\"></soap:operation>\n" +
+            "<input>\n<soap:body use=\"literal\"></soap:body>\n</input>\n" +
+            "<output>\n<soap:body use=\"literal\"></soap:body>\n</output>\n" +
+            "<fault name=\"CoffeeNotFoundException\">\n" +
+            "<soap:fault name=\"CoffeeNotFoundException\" use=\"literal\"></soap:fault>\n</fault>\n" +
+            "</operation>\n" +
+            bindingOperation("getCoffees") +
+            bindingOperation("exportCatalog") +
+            "</binding>\n" +
+            "<service name=\"CoffeeServiceImplService\">\n" +
+            "<port name=\"CoffeeServiceImplPort\" binding=\"tns:CoffeeServiceImplPortBinding\">\n" +
+            "<soap:address location=\"" + address + "\"></soap:address>\n" +
+            "</port>\n</service>\n</definitions>";
+    }
+
+    private static String message(String element, String part) {
+        return "<message name=\"" + element + "\">\n" +
+            "<part name=\"" + part + "\" element=\"tns:" + element + "\"></part>\n</message>\n";
+    }
+
+    private static String portTypeOperation(String operation) {
+        return "<operation name=\"" + operation + "\">\n" +
+            "<input wsam:Action=\"" + NAMESPACE + "CoffeeService/" + operation + "Request\" " +
+            "message=\"tns:" + operation + "\"></input>\n" +
+            "<output wsam:Action=\"" + NAMESPACE + "CoffeeService/" + operation + "Response\" " +
+            "message=\"tns:" + operation + "Response\"></output>\n" +
+            "</operation>\n";
+    }
+
+    private static String bindingOperation(String operation) {
+        return "<operation name=\"" + operation + "\">\n<soap:operation soapAction=\"\"></soap:operation>\n" +
+            "<input>\n<soap:body use=\"literal\"></soap:body>\n</input>\n" +
+            "<output>\n<soap:body use=\"literal\"></soap:body>\n</output>\n" +
+            "</operation>\n";
+    }
+
+    private static final String SCHEMA =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+        "<xs:schema xmlns:tns=\"" + NAMESPACE + "\" xmlns:xmime=\"http://www.w3.org/2005/05/xmlmime\" " +
+        "xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" version=\"1.0\" targetNamespace=\"" + NAMESPACE + "\">\n" +
+        "<xs:import namespace=\"http://www.w3.org/2005/05/xmlmime\" " +
+        "schemaLocation=\"http://www.w3.org/2005/05/xmlmime\"></xs:import>\n" +
+        "<xs:element name=\"CoffeeNotFound\" nillable=\"true\" type=\"tns:coffeeNotFound\"></xs:element>\n" +
+        "<xs:element name=\"exportCatalog\" type=\"tns:exportCatalog\"></xs:element>\n" +
+        "<xs:element name=\"exportCatalogResponse\" type=\"tns:exportCatalogResponse\"></xs:element>\n" +
+        "<xs:element name=\"getCoffee\" type=\"tns:getCoffee\"></xs:element>\n" +
+        "<xs:element name=\"getCoffeeResponse\" type=\"tns:getCoffeeResponse\"></xs:element>\n" +
+        "<xs:element name=\"getCoffees\" type=\"tns:getCoffees\"></xs:element>\n" +
+        "<xs:element name=\"getCoffeesResponse\" type=\"tns:getCoffeesResponse\"></xs:element>\n" +
+        "<xs:complexType name=\"getCoffees\">\n<xs:sequence>\n" +
+        "<xs:element name=\"names\" type=\"xs:string\" minOccurs=\"0\" maxOccurs=\"unbounded\"></xs:element>\n" +
+        "</xs:sequence>\n</xs:complexType>\n" +
+        "<xs:complexType name=\"getCoffeesResponse\">\n<xs:sequence>\n" +
+        "<xs:element name=\"return\" type=\"tns:coffeeResponse\" minOccurs=\"0\" maxOccurs=\"unbounded\"></xs:element>\n" +
+        "</xs:sequence>\n</xs:complexType>\n" +
+        "<xs:complexType name=\"coffeeResponse\">\n<xs:sequence>\n" +
+        "<xs:element name=\"name\" type=\"xs:string\" minOccurs=\"0\"></xs:element>\n" +
+        "<xs:element name=\"origin\" type=\"xs:string\" minOccurs=\"0\"></xs:element>\n" +
+        "<xs:element name=\"price\" type=\"xs:double\"></xs:element>\n" +
+        "</xs:sequence>\n</xs:complexType>\n" +
+        "<xs:complexType name=\"getCoffee\">\n<xs:sequence>\n" +
+        "<xs:element name=\"name\" type=\"xs:string\" minOccurs=\"0\"></xs:element>\n" +
+        "</xs:sequence>\n</xs:complexType>\n" +
+        "<xs:complexType name=\"getCoffeeResponse\">\n<xs:sequence>\n" +
+        "<xs:element name=\"return\" type=\"tns:coffeeResponse\" minOccurs=\"0\"></xs:element>\n" +
+        "</xs:sequence>\n</xs:complexType>\n" +
+        "<xs:complexType name=\"coffeeNotFound\">\n<xs:sequence>\n" +
+        "<xs:element name=\"name\" type=\"xs:string\" minOccurs=\"0\"></xs:element>\n" +
+        "</xs:sequence>\n</xs:complexType>\n" +
+        "<xs:complexType name=\"exportCatalog\">\n<xs:sequence></xs:sequence>\n</xs:complexType>\n" +
+        "<xs:complexType name=\"exportCatalogResponse\">\n<xs:sequence>\n" +
+        "<xs:element name=\"return\" xmime:expectedContentTypes=\"application/xml\" type=\"xs:base64Binary\" " +
+        "minOccurs=\"0\"></xs:element>\n" +
+        "</xs:sequence>\n</xs:complexType>\n" +
+        "</xs:schema>";
+}
@@ -0,0 +1,203 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Topic subscription registry with wildcard matching
+ *
+ * Maps topic patterns to subscriber sets. Topics are made of segments joined by
+ * a separator (for example "coffee/latte/price"). Patterns may use:
+ * - "*" to match exactly one segment ("coffee/&#42;/quantity")
+ * - "#" as the last segment to match any remaining segments ("coffee/#")
+ *
+ * Exact patterns are found with a single hash lookup; wildcard patterns are kept
+ * apart and only those are scanned, so routing cost depends on the number of
+ * distinct wildcard patterns, not on the number of subscribers.
+ *
+ * Reads never lock: subscriber sets are concurrent sets, and subscribe/unsubscribe
+ * only lock the hash bin of the pattern they change.
+ *
+ * @param <S> subscriber type, compared with equals/hashCode
+ */
+public final class SubscriptionRegistry<S> {
+
+    public static final String SINGLE_LEVEL_WILDCARD = "*";
+    public static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private final char separator;
+    private final Map<String, Set<S>> exact = new ConcurrentHashMap<>();
+    private final Map<String, WildcardSubscription<S>> wildcards = new ConcurrentHashMap<>();
+    private final Map<S, Set<String>> patternsBySubscriber = new ConcurrentHashMap<>();
+
+    public SubscriptionRegistry(char separator) {
+        this.separator = separator;
+    }
+
+    /**
+     * Adds a subscription; returns false if the subscriber already had this pattern
+     */
+    public boolean subscribe(String pattern, S subscriber) {
+        boolean[] added = new boolean[1];
+        if (isWildcard(pattern)) {
+            wildcards.compute(pattern, (key, subscription) -> {
+                WildcardSubscription<S> target = subscription != null
+                    ? subscription : new WildcardSubscription<>(split(pattern, separator));
+                added[0] = target.subscribers.add(subscriber);
+                return target;
+            });
+        } else {
+            exact.compute(pattern, (key, subscribers) -> {
+                Set<S> target = subscribers != null ? subscribers : ConcurrentHashMap.<S>newKeySet();
+                added[0] = target.add(subscriber);
+                return target;
+            });
+        }
+        patternsBySubscriber.computeIfAbsent(subscriber, key -> ConcurrentHashMap.newKeySet()).add(pattern);
+        return added[0];
+    }
+
+    /**
+     * Removes one subscription; returns false if it did not exist
+     */
+    public boolean unsubscribe(String pattern, S subscriber) {
+        boolean[] removed = new boolean[1];
+        if (isWildcard(pattern)) {
+            wildcards.computeIfPresent(pattern, (key, subscription) -> {
+                removed[0] = subscription.subscribers.remove(subscriber);
+                return subscription.subscribers.isEmpty() ? null : subscription;
+            });
+        } else {
+            exact.computeIfPresent(pattern, (key, subscribers) -> {
+                removed[0] = subscribers.remove(subscriber);
+                return subscribers.isEmpty() ? null : subscribers;
+            });
+        }
+        patternsBySubscriber.computeIfPresent(subscriber, (key, patterns) -> {
+            patterns.remove(pattern);
+            return patterns.isEmpty() ? null : patterns;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Removes every subscription held by a subscriber, e.g. when its connection closes
+     */
+    public void unsubscribeAll(S subscriber) {
+        Set<String> patterns = patternsBySubscriber.remove(subscriber);
+        if (patterns == null) {
+            return;
+        }
+        for (String pattern : patterns) {
+            unsubscribe(pattern, subscriber);
+        }
+    }
+
+    /**
+     * Patterns a subscriber is currently registered for
+     */
+    public Set<String> getSubscriptions(S subscriber) {
+        Set<String> patterns = patternsBySubscriber.get(subscriber);
+        return patterns != null ? Collections.unmodifiableSet(patterns) : Collections.<String>emptySet();
+    }
+
+    /**
+     * Subscribers whose patterns match a concrete topic, each listed once
+     *
+     * When only an exact pattern matches, its live set is returned without copying.
+     */
+    public Collection<S> match(String topic) {
+        Set<S> direct = exact.get(topic);
+        if (wildcards.isEmpty()) {
+            return direct != null ? Collections.unmodifiableSet(direct) : Collections.<S>emptySet();
+        }
+
+        String[] segments = split(topic, separator);
+        Set<S> result = null;
+        for (WildcardSubscription<S> subscription : wildcards.values()) {
+            if (matches(subscription.segments, segments)) {
+                if (result == null) {
+                    result = direct != null ? new HashSet<>(direct) : new HashSet<S>();
+                }
+                result.addAll(subscription.subscribers);
+            }
+        }
+        if (result == null) {
+            return direct != null ? Collections.unmodifiableSet(direct) : Collections.<S>emptySet();
+        }
+        return result;
+    }
+
+    public boolean hasSubscribers(String topic) {
+        return !match(topic).isEmpty();
+    }
+
+    public int getSubscriberCount() {
+        return patternsBySubscriber.size();
+    }
+
+    /**
+     * Whether a pattern matches a topic, using the given segment separator
+     */
+    public static boolean matches(String pattern, String topic, char separator) {
+        return matches(split(pattern, separator), split(topic, separator));
+    }
+
+    private static boolean matches(String[] pattern, String[] topic) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (MULTI_LEVEL_WILDCARD.equals(pattern[i])) {
+                return true;
+            }
+            if (i >= topic.length) {
+                return false;
+            }
+            if (!SINGLE_LEVEL_WILDCARD.equals(pattern[i]) && !pattern[i].equals(topic[i])) {
+                return false;
+            }
+        }
+        return pattern.length == topic.length;
+    }
+
+    private boolean isWildcard(String pattern) {
+        for (String segment : split(pattern, separator)) {
+            if (SINGLE_LEVEL_WILDCARD.equals(segment) || MULTI_LEVEL_WILDCARD.equals(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] split(String value, char separator) {
+        int count = 1;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == separator) {
+                count++;
+            }
+        }
+        String[] segments = new String[count];
+        int start = 0;
+        int index = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == separator) {
+                segments[index++] = value.substring(start, i);
+                start = i + 1;
+            }
+        }
+        segments[index] = value.substring(start);
+        return segments;
+    }
+
+    /**
+     * A wildcard pattern, pre-split into segments, and its subscribers
+     */
+    private static final class WildcardSubscription<S> {
+        final String[] segments;
+        final Set<S> subscribers = ConcurrentHashMap.newKeySet();
+
+        WildcardSubscription(String[] segments) {
+            this.segments = segments;
+        }
+    }
+}
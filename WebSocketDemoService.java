@@ -1,16 +1,36 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Educational demonstration of WebSocket API concepts
  * 
- * This file simulates a WebSocket service with manual implementation to show
- * how WebSocket communication works. In a real application, you would use a library
- * like Java WebSocket or Spring's WebSocket support.
+ * This file runs a real WebSocket server (see WebSocketServer) on
+ * ws://localhost:8080/coffee-updates and drives it with small socket-based
+ * clients, so every handshake and frame in the logs actually crosses the wire.
+ * In a production application, you would typically use a library like
+ * Java WebSocket or Spring's WebSocket support.
  * 
  * Features demonstrated:
  * - Initial handshake
@@ -18,30 +38,91 @@ import java.util.concurrent.TimeUnit;
  * - Real-time updates
  * - Connection lifecycle
  * - Message broadcasting
+ * - Topic subscriptions with wildcards (coffee/latte/price, coffee/&#42;/quantity)
+ * - Binary snapshot/delta feed with resume-after-reconnect (subprotocol coffee-feed.v2)
+ * - permessage-deflate compression with a preset dictionary of typical updates
+ * - Lock-free inventory updates with ordered change events (no overselling under concurrent orders)
+ * - Heartbeats and automatic eviction of silent connections
  */
 public class WebSocketDemoService {
     
-    // Store of active client connections (in a real app, this would be WebSocket sessions)
-    private static Map<String, ClientConnection> activeConnections = new HashMap<>();
+    private static final int PORT = 8080;
+    private static final String SEASONAL_COFFEE_ID = "pumpkin-spice";
+    private static final String PATH = "/coffee-updates";
     
-    // Our "database" of coffees that changes over time
-    private static Map<String, Coffee> coffeeInventory = new HashMap<>();
+    // Preset dictionary for permessage-deflate, shared by server and clients that offer its id.
+    // Built from the shapes of our messages, most common last.
+    private static final String DICTIONARY_ID = "coffee-updates.v1";
+    private static final byte[] UPDATE_DICTIONARY = PerMessageDeflate.buildDictionary(
+        "Welcome! Current inventory: ",
+        "Request: Current price of ",
+        "SUBSCRIBED coffee/*/quantity",
+        "SUBSCRIBED coffee/*/price",
+        "Latte ($3.99) - 10 available; Espresso ($2.5) - 15 available; Cappuccino ($4.2) - 8 available; ",
+        "PRICE UPDATE: Cappuccino - now $4.2",
+        "PRICE UPDATE: Espresso - now $2.5",
+        "PRICE UPDATE: Latte - now $3.99",
+        "INVENTORY UPDATE: Cappuccino - 8 remaining",
+        "INVENTORY UPDATE: Espresso - 15 remaining",
+        "INVENTORY UPDATE: Latte - 10 remaining");
     
-    public static void main(String[] args) throws InterruptedException {
+    // Server-side sessions by client ID, maintained by the server's I/O threads
+    private static Map<String, ClientConnection> activeConnections = new ConcurrentHashMap<>();
+    
+    // Client side of each demo connection
+    private static Map<String, DemoClient> demoClients = new ConcurrentHashMap<>();
+    
+    // Topic patterns each session subscribed to, e.g. coffee/latte/price or coffee/*/quantity
+    private static SubscriptionRegistry<WebSocketServer.Session> subscriptions = new SubscriptionRegistry<>('/');
+    
+    // The catalog shared with the other demos; changes over time and is safe to update from any thread
+    private static final CoffeeStore inventory = CoffeeStore.shared();
+    
+    // Kept so the demo can unregister it; a method reference is a new object every time
+    private static final Consumer<CoffeeStore.ChangeEvent> INVENTORY_LISTENER = WebSocketDemoService::onInventoryChange;
+    
+    private static WebSocketServer server;
+    
+    // Sequenced snapshot/delta stream for clients that negotiate InventoryFeed.SUBPROTOCOL
+    private static InventoryFeed feed;
+    
+    public static void main(String[] args) throws InterruptedException, IOException {
         // Start the WebSocket server
         startWebSocketServer();
         
-        // Simulate client connections and real-time updates
-        simulateRealTimeInteractions();
+        try {
+            // Simulate client connections and real-time updates
+            simulateRealTimeInteractions();
+        } finally {
+            inventory.removeListener(INVENTORY_LISTENER);
+            server.stop();
+        }
     }
     
-    private static void startWebSocketServer() {
-        log("Server", "Starting WebSocket server on ws://localhost:8080/coffee-updates");
-        
-        // Initialize coffee inventory
-        coffeeInventory.put("latte", new Coffee("latte", "Latte", 3.99, 10));
-        coffeeInventory.put("espresso", new Coffee("espresso", "Espresso", 2.50, 15));
-        coffeeInventory.put("cappuccino", new Coffee("cappuccino", "Cappuccino", 4.20, 8));
+    private static void startWebSocketServer() throws IOException {
+        log("Server", "Starting WebSocket server on ws://localhost:" + PORT + PATH);
+        
+        log("Server", "Serving " + inventory.size() + " coffees from the shared CoffeeStore");
+        
+        // Every committed change reaches subscribers through one ordered event stream
+        inventory.addListener(INVENTORY_LISTENER);
+        
+        server = new WebSocketServer(PORT, PATH, new CoffeeUpdatesEndpoint());
+        server.setIoThreads(2);
+        // A stalled client keeps only the latest price/quantity per coffee instead of a growing backlog
+        server.setOutboundWatermarks(16 * 1024, 64 * 1024);
+        server.setSlowConsumerPolicy(WebSocketServer.SlowConsumerPolicy.CONFLATE);
+        server.setSubprotocols(InventoryFeed.SUBPROTOCOL);
+        // Short intervals so the demo can show a dead client being evicted
+        server.setHeartbeat(1000, 3000);
+        
+        // Compress updates; with the dictionary even 30-byte updates shrink, so the threshold is low
+        PerMessageDeflate compression = new PerMessageDeflate();
+        compression.setThreshold(24);
+        compression.setDictionary(DICTIONARY_ID, UPDATE_DICTIONARY);
+        server.setPerMessageDeflate(compression);
+        feed = new InventoryFeed(server, WebSocketDemoService::inventorySnapshot, 256);
+        server.start();
         
         log("Server", "WebSocket server started and ready to accept connections");
     }
@@ -50,13 +131,20 @@ public class WebSocketDemoService {
         final CountDownLatch demoCompleteLatch = new CountDownLatch(1);
         
         // Simulate handshake and connection setup
-        simulateClientConnection("browser1", "Web Browser Client");
-        simulateClientConnection("mobile1", "Mobile App Client");
+        // The browser offers standard permessage-deflate; the mobile app also knows our dictionary
+        simulateClientConnection("browser1", "Web Browser Client",
+            "permessage-deflate; client_max_window_bits");
+        simulateClientConnection("mobile1", "Mobile App Client",
+            "permessage-deflate; client_no_context_takeover; x-preset-dictionary=" + DICTIONARY_ID);
+        
+        // A dashboard uses the binary feed: one snapshot, then small deltas
+        simulateFeedClientConnection("dashboard1", "Store Dashboard Client");
         
         Thread.sleep(500);
         
-        // First client sends a message to the server
-        simulateClientMessage("browser1", "Subscribe to coffee inventory updates");
+        // Clients subscribe to the topics they care about
+        simulateClientMessage("browser1", "SUBSCRIBE coffee/*/quantity");
+        simulateClientMessage("mobile1", "SUBSCRIBE coffee/*/price");
         
         Thread.sleep(500);
         
@@ -77,6 +165,40 @@ public class WebSocketDemoService {
             Thread.sleep(1500);
         }
         
+        // Many orders race for the same coffee; stock never goes negative
+        // A delta the dashboard never receives leaves a gap, which it has the server fill in
+        log("Info", "=== Demonstrating Feed Resync ===");
+        DemoClient dashboard = demoClients.get("dashboard1");
+        if (dashboard != null) {
+            dashboard.loseFeedMessages(1);
+        }
+        simulateOrderRush("latte", 8, 2);
+        
+        Thread.sleep(1000);
+        
+        // Coffees come and go; feed clients are told, not left to find out in their next snapshot
+        simulateMenuChange(true);
+        
+        Thread.sleep(500);
+        
+        // A client whose network silently died is found by the heartbeat and evicted
+        simulateUnresponsiveClient("kiosk1", "In-Store Kiosk Client");
+        
+        // The dashboard loses its connection without a close handshake and misses an update
+        simulateFeedClientDrop("dashboard1");
+        
+        Thread.sleep(500);
+        
+        simulateInventoryChange();
+        simulateMenuChange(false);
+        
+        Thread.sleep(500);
+        
+        // On reconnect it asks for everything after the last sequence it applied
+        simulateFeedClientConnection("dashboard1", "Store Dashboard Client");
+        
+        Thread.sleep(1000);
+        
         // Second client sends a specific request
         simulateClientMessage("mobile1", "Request: Current price of Cappuccino");
         
@@ -84,7 +206,7 @@ public class WebSocketDemoService {
         
         // Server responds directly to that client
         simulateServerToClientMessage("mobile1", 
-            "Cappuccino current price: $" + coffeeInventory.get("cappuccino").getPrice());
+            "Cappuccino current price: $" + inventory.get("cappuccino").getPrice());
         
         Thread.sleep(1000);
         
@@ -100,7 +222,11 @@ public class WebSocketDemoService {
         
         // Clean up remaining connections
         simulateClientDisconnection("mobile1");
+        simulateClientDisconnection("dashboard1");
         
+        PerMessageDeflate compression = server.getPerMessageDeflate();
+        log("Info", "permessage-deflate: " + compression.getCompressedMessages() + " messages compressed, " + 
+            compression.getBytesBeforeCompression() + " -> " + compression.getBytesAfterCompression() + " bytes");
         log("Info", "WebSocket demo completed");
         log("Info", "Note: Unlike REST which is request-response, WebSocket maintains a persistent connection");
         log("Info", "This allows real-time, bidirectional communication without the overhead of establishing new connections");
@@ -109,43 +235,85 @@ public class WebSocketDemoService {
         demoCompleteLatch.await(1, TimeUnit.SECONDS);
     }
     
-    private static void simulateClientConnection(String clientId, String clientInfo) {
-        // Simulate the WebSocket handshake
+    private static void simulateClientConnection(String clientId, String clientInfo, String extensions) {
+        // Perform a real WebSocket handshake over a TCP socket
         log("Client (" + clientId + ")", "Initiating WebSocket handshake with HTTP Upgrade request");
-        log("Client (" + clientId + ")", "GET /coffee-updates HTTP/1.1");
-        log("Client (" + clientId + ")", "Upgrade: websocket");
-        log("Client (" + clientId + ")", "Connection: Upgrade");
-        log("Client (" + clientId + ")", "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==");
-        log("Client (" + clientId + ")", "Sec-WebSocket-Version: 13");
-        
-        // Simulate server accepting the WebSocket connection
-        log("Server", "Received WebSocket handshake request from " + clientInfo + " (" + clientId + ")");
-        log("Server", "HTTP/1.1 101 Switching Protocols");
-        log("Server", "Upgrade: websocket");
-        log("Server", "Connection: Upgrade");
-        log("Server", "Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=");
-        
-        // Add to active connections
-        activeConnections.put(clientId, new ClientConnection(clientId, clientInfo));
-        
-        log("Server", "WebSocket connection established with " + clientInfo + " (" + clientId + ")");
-        log("Client (" + clientId + ")", "WebSocket connection established");
-        
-        // Send initial data
-        String inventorySummary = generateInventorySummary();
-        simulateServerToClientMessage(clientId, "Welcome! Current inventory: " + inventorySummary);
+        
+        DemoClient client = new DemoClient(clientId, clientInfo);
+        client.setExtensions(extensions);
+        try {
+            client.connect("localhost", PORT, PATH);
+        } catch (IOException e) {
+            log("Error", "Client " + clientId + " could not connect: " + e.getMessage());
+            return;
+        }
+        demoClients.put(clientId, client);
+        
+        log("Client (" + clientId + ")", "WebSocket connection established" + 
+            (client.isCompressing() ? " with " + client.getAcceptedExtensions() : ""));
+    }
+    
+    private static void simulateFeedClientConnection(String clientId, String clientInfo) {
+        // A client that dropped keeps its replica and resumes from the last sequence it applied
+        DemoClient client = demoClients.computeIfAbsent(clientId, id -> new DemoClient(id, clientInfo));
+        long since = client.getLastSequence();
+        log("Client (" + clientId + ")", since < 0
+            ? "Connecting to the binary inventory feed"
+            : "Reconnecting to the binary inventory feed, resuming after sequence " + since +
+              " of epoch " + client.getEpoch());
+        
+        try {
+            client.connect("localhost", PORT, PATH, InventoryFeed.SUBPROTOCOL,
+                           since < 0 ? null : "since=" + since + "&epoch=" + client.getEpoch());
+        } catch (IOException e) {
+            log("Error", "Client " + clientId + " could not connect: " + e.getMessage());
+            return;
+        }
+        
+        log("Client (" + clientId + ")", "Feed connection established using " + client.getSubprotocol());
+    }
+    
+    private static void simulateUnresponsiveClient(String clientId, String clientInfo) throws InterruptedException {
+        log("Info", "=== Demonstrating Heartbeats ===");
+        simulateClientConnection(clientId, clientInfo, null);
+        DemoClient client = demoClients.remove(clientId);
+        if (client == null) {
+            return;
+        }
+        
+        // The socket stays open but nothing comes back, not even pongs
+        log("Client (" + clientId + ")", "Network stalls: no more pongs or messages");
+        client.setAnswerPings(false);
+        
+        long deadline = System.currentTimeMillis() + 5000;
+        while (activeConnections.containsKey(clientId) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        log("Info", clientId + (activeConnections.containsKey(clientId) ? " is still connected" : " was evicted") + 
+            "; " + server.getEvictedSessions() + " idle session(s) evicted so far");
+        client.drop();
+    }
+    
+    private static void simulateFeedClientDrop(String clientId) {
+        DemoClient client = demoClients.get(clientId);
+        if (client == null) {
+            log("Error", "Cannot drop: Client " + clientId + " is not connected");
+            return;
+        }
+        
+        log("Client (" + clientId + ")", "Network lost (last applied sequence " + client.getLastSequence() + ")");
+        client.drop();
     }
     
     private static void simulateClientMessage(String clientId, String message) {
-        if (!activeConnections.containsKey(clientId)) {
+        DemoClient client = demoClients.get(clientId);
+        if (client == null || !activeConnections.containsKey(clientId)) {
             log("Error", "Cannot send message: Client " + clientId + " is not connected");
             return;
         }
         
         log("Client (" + clientId + ")", "Sending message: " + message);
-        log("Server", "Received message from " + clientId + ": " + message);
-        
-        // In a real app, we'd process the message here
+        client.sendText(message);
     }
     
     private static void simulateServerToClientMessage(String clientId, String message) {
@@ -156,14 +324,31 @@ public class WebSocketDemoService {
         
         ClientConnection client = activeConnections.get(clientId);
         log("Server", "Sending message to " + client.getClientInfo() + " (" + clientId + "): " + message);
-        log("Client (" + clientId + ")", "Received message: " + message);
+        client.getSession().sendText(message);
     }
     
     private static void broadcastInventoryUpdate(String message) {
-        log("Server", "Broadcasting message to all connected clients: " + message);
+        log("Server", "Broadcasting message to all text clients: " + message);
+        
+        // Feed clients only understand binary feed messages, so they are left out
+        List<WebSocketServer.Session> textSessions = new ArrayList<>();
+        for (WebSocketServer.Session session : server.getSessions()) {
+            if (session.getSubprotocol() == null) {
+                textSessions.add(session);
+            }
+        }
+        
+        // The frame is encoded once and shared by every session's write queue
+        server.broadcastText(textSessions, message);
+    }
+    
+    private static void publishInventoryUpdate(String topic, String message) {
+        Collection<WebSocketServer.Session> subscribers = subscriptions.match(topic);
+        log("Server", "Publishing on " + topic + " to " + subscribers.size() + " subscriber(s): " + message);
         
-        for (ClientConnection client : activeConnections.values()) {
-            log("Client (" + client.getClientId() + ")", "Received broadcast message: " + message);
+        // Only matching sessions receive the frame; the topic doubles as the conflation key
+        if (!subscribers.isEmpty()) {
+            server.broadcastText(subscribers, message, topic);
         }
     }
     
@@ -172,44 +357,141 @@ public class WebSocketDemoService {
         String[] coffeeIds = {"latte", "espresso", "cappuccino"};
         String selectedCoffeeId = coffeeIds[(int)(Math.random() * coffeeIds.length)];
         
-        Coffee coffee = coffeeInventory.get(selectedCoffeeId);
+        CoffeeStore.Coffee coffee = inventory.get(selectedCoffeeId);
         boolean isQuantityChange = Math.random() > 0.5;
         
-        // Update either quantity or price
+        // Update either quantity or price; subscribers are notified by onInventoryChange
         if (isQuantityChange) {
-            int oldQuantity = coffee.getQuantity();
-            int newQuantity = Math.max(0, oldQuantity - (int)(Math.random() * 3 + 1));
-            coffee.setQuantity(newQuantity);
-            
-            log("Server", "Inventory change: " + coffee.getName() + " quantity updated from " + 
-                oldQuantity + " to " + newQuantity);
+            int ordered = (int)(Math.random() * 3 + 1);
+            if (!inventory.tryDecrement(selectedCoffeeId, ordered)) {
+                log("Server", "Order for " + ordered + " " + coffee.getName() + " rejected: only " + 
+                    inventory.get(selectedCoffeeId).getQuantity() + " left");
+            }
         } else {
-            double oldPrice = coffee.getPrice();
             double priceChange = Math.random() * 0.5 - 0.25; // -0.25 to +0.25
-            double newPrice = Math.max(1.0, Math.round((oldPrice + priceChange) * 100) / 100.0);
-            coffee.setPrice(newPrice);
+            double newPrice = Math.max(1.0, Math.round((coffee.getPrice() + priceChange) * 100) / 100.0);
             
-            log("Server", "Inventory change: " + coffee.getName() + " price updated from $" + 
-                oldPrice + " to $" + newPrice);
+            // Optimistic update: fails if someone else repriced this coffee since we read it
+            if (!inventory.compareAndSetPrice(selectedCoffeeId, coffee.getPriceVersion(), newPrice)) {
+                log("Server", "Price update for " + coffee.getName() + " lost to a concurrent update");
+            }
+        }
+    }
+    
+    private static void simulateMenuChange(boolean add) {
+        if (add) {
+            log("Info", "=== Demonstrating Menu Changes ===");
+            inventory.create(new CoffeeStore.Coffee(SEASONAL_COFFEE_ID, "Pumpkin Spice Latte", 4.75, "Seasonal", 5));
+        } else {
+            // Off the menu again, leaving the shared catalog as the other demos expect it
+            inventory.remove(SEASONAL_COFFEE_ID);
+        }
+    }
+    
+    private static void simulateOrderRush(String coffeeId, int buyers, int ordersEach) throws InterruptedException {
+        log("Info", "=== Demonstrating Concurrent Orders ===");
+        CoffeeStore.Coffee before = inventory.get(coffeeId);
+        log("Info", buyers + " buyers each order " + ordersEach + " " + before.getName() + " at once; " + 
+            before.getQuantity() + " in stock");
+        
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < buyers; i++) {
+            Thread buyer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < ordersEach; j++) {
+                    if (inventory.tryDecrement(coffeeId, 1)) {
+                        accepted.incrementAndGet();
+                    } else {
+                        rejected.incrementAndGet();
+                    }
+                }
+            }, "buyer-" + i);
+            buyer.start();
+            threads.add(buyer);
+        }
+        start.countDown();
+        for (Thread buyer : threads) {
+            buyer.join();
         }
         
-        // Broadcast the update to all connected clients
-        String updateMessage = generateUpdateMessage(selectedCoffeeId, isQuantityChange);
-        broadcastInventoryUpdate(updateMessage);
+        log("Info", accepted.get() + " orders accepted, " + rejected.get() + " rejected; " + 
+            before.getName() + " now has " + inventory.get(coffeeId).getQuantity() + " in stock");
     }
     
-    private static String generateUpdateMessage(String coffeeId, boolean isQuantityChange) {
-        Coffee coffee = coffeeInventory.get(coffeeId);
-        if (isQuantityChange) {
-            return "INVENTORY UPDATE: " + coffee.getName() + " - " + coffee.getQuantity() + " remaining";
+    /**
+     * Publishes one committed inventory change; called in event order, one event at a time
+     */
+    private static void onInventoryChange(CoffeeStore.ChangeEvent event) {
+        if (event.isCreated()) {
+            CoffeeStore.Coffee coffee = event.getCoffee();
+            log("Server", "Inventory change #" + event.getSequence() + ": " + coffee.getName() + " added to the menu");
+            publishInventoryUpdate("coffee/" + coffee.getId() + "/created",
+                "NEW COFFEE: " + coffee.getName() + " - $" + coffee.getPrice() + ", " + coffee.getQuantity() + " available");
+            long sequence = feed.publishCreate(toFeedItem(coffee));
+            log("Server", "Feed create #" + sequence + " sent to " + feed.getSubscriberCount() + " feed client(s)");
+            return;
+        }
+        if (event.isRemoved()) {
+            CoffeeStore.Coffee previous = event.getPrevious();
+            log("Server", "Inventory change #" + event.getSequence() + ": " + previous.getName() + " removed from the menu");
+            publishInventoryUpdate("coffee/" + previous.getId() + "/removed", "REMOVED: " + previous.getName());
+            long sequence = feed.publishRemove(previous.getId());
+            log("Server", "Feed remove #" + sequence + " sent to " + feed.getSubscriberCount() + " feed client(s)");
+            return;
+        }
+        CoffeeStore.Coffee coffee = event.getCoffee();
+        CoffeeStore.Coffee previous = event.getPrevious();
+        String id = coffee.getId();
+        
+        if (event.isQuantityChanged()) {
+            log("Server", "Inventory change #" + event.getSequence() + ": " + coffee.getName() + 
+                " quantity updated from " + previous.getQuantity() + " to " + coffee.getQuantity());
+            publishInventoryUpdate("coffee/" + id + "/quantity",
+                "INVENTORY UPDATE: " + coffee.getName() + " - " + coffee.getQuantity() + " remaining");
+        }
+        if (event.isPriceChanged()) {
+            log("Server", "Inventory change #" + event.getSequence() + ": " + coffee.getName() + 
+                " price updated from $" + previous.getPrice() + " to $" + coffee.getPrice());
+            publishInventoryUpdate("coffee/" + id + "/price",
+                "PRICE UPDATE: " + coffee.getName() + " - now $" + coffee.getPrice());
+        }
+        
+        // Feed clients get the same change as a sequenced binary delta; deltas carry no name, so a rename is a create
+        long sequence;
+        if (!coffee.getName().equals(previous.getName())) {
+            sequence = feed.publishCreate(toFeedItem(coffee));
+        } else if (event.isQuantityChanged() || event.isPriceChanged()) {
+            int fields = (event.isQuantityChanged() ? InventoryFeed.FIELD_QUANTITY : 0)
+                       | (event.isPriceChanged() ? InventoryFeed.FIELD_PRICE : 0);
+            sequence = feed.publish(toFeedItem(coffee), fields);
         } else {
-            return "PRICE UPDATE: " + coffee.getName() + " - now $" + coffee.getPrice();
+            return;
         }
+        log("Server", "Feed delta #" + sequence + " sent to " + feed.getSubscriberCount() + " feed client(s)");
+    }
+    
+    private static Collection<InventoryFeed.Item> inventorySnapshot() {
+        List<InventoryFeed.Item> items = new ArrayList<>();
+        for (CoffeeStore.Coffee coffee : inventory.getAll()) {
+            items.add(toFeedItem(coffee));
+        }
+        return items;
+    }
+    
+    private static InventoryFeed.Item toFeedItem(CoffeeStore.Coffee coffee) {
+        return new InventoryFeed.Item(coffee.getId(), coffee.getName(), coffee.getPrice(), coffee.getQuantity());
     }
     
     private static String generateInventorySummary() {
         StringBuilder summary = new StringBuilder();
-        for (Coffee coffee : coffeeInventory.values()) {
+        for (CoffeeStore.Coffee coffee : inventory.getAll()) {
             summary.append(coffee.getName())
                    .append(" ($").append(coffee.getPrice()).append(") - ")
                    .append(coffee.getQuantity()).append(" available; ");
@@ -218,17 +500,14 @@ public class WebSocketDemoService {
     }
     
     private static void simulateClientDisconnection(String clientId) {
-        if (!activeConnections.containsKey(clientId)) {
+        DemoClient client = demoClients.remove(clientId);
+        if (client == null || !activeConnections.containsKey(clientId)) {
             log("Error", "Cannot disconnect: Client " + clientId + " is not connected");
             return;
         }
         
-        ClientConnection client = activeConnections.get(clientId);
         log("Client (" + clientId + ")", "Closing WebSocket connection");
-        log("Server", "Client " + client.getClientInfo() + " (" + clientId + ") disconnected");
-        
-        activeConnections.remove(clientId);
-        log("Server", "Active connections remaining: " + activeConnections.size());
+        client.close();
     }
     
     // Logging helper
@@ -237,16 +516,138 @@ public class WebSocketDemoService {
         System.out.println("[" + timestamp + "] [" + source + "] " + message);
     }
     
+    /**
+     * Server endpoint for /coffee-updates; callbacks run on the server's I/O threads
+     */
+    private static class CoffeeUpdatesEndpoint implements WebSocketServer.Listener {
+        
+        @Override
+        public void onOpen(WebSocketServer.Session session) {
+            String clientId = session.getQueryParameter("client");
+            String clientInfo = session.getHeader("User-Agent");
+            if (clientId == null) {
+                session.close(WebSocketServer.CLOSE_POLICY_VIOLATION, "Missing client parameter");
+                return;
+            }
+            
+            log("Server", "Received WebSocket handshake request from " + clientInfo + " (" + clientId + ")");
+            log("Server", "HTTP/1.1 101 Switching Protocols");
+            log("Server", "Sec-WebSocket-Accept: " + WebSocketServer.computeAcceptKey(session.getHeader("Sec-WebSocket-Key")));
+            if (session.getExtensions() != null) {
+                log("Server", "Sec-WebSocket-Extensions: " + session.getExtensions());
+            }
+            
+            ClientConnection connection = new ClientConnection(clientId, clientInfo, session);
+            session.setAttachment(connection);
+            activeConnections.put(clientId, connection);
+            
+            log("Server", "WebSocket connection established with " + clientInfo + " (" + clientId + ")");
+            
+            if (InventoryFeed.SUBPROTOCOL.equals(session.getSubprotocol())) {
+                // Feed clients get a snapshot, or just the deltas they missed when resuming this feed
+                long lastSequence = parseSequence("since", session.getQueryParameter("since"));
+                long lastEpoch = parseSequence("epoch", session.getQueryParameter("epoch"));
+                if (feed.attach(session, lastEpoch, lastSequence)) {
+                    log("Server", "Resuming feed for " + clientId + " after sequence " + lastSequence + 
+                        " (current " + feed.getSequence() + ")");
+                } else {
+                    if (lastSequence >= 0 && lastEpoch != feed.getEpoch()) {
+                        log("Server", clientId + " resumed from epoch " + lastEpoch + ", not this feed's " +
+                            feed.getEpoch() + "; its sequence numbers mean nothing here");
+                    }
+                    log("Server", "Sent inventory snapshot at sequence " + feed.getSequence() + " to " + clientId);
+                }
+                return;
+            }
+            
+            // Send initial data
+            String inventorySummary = generateInventorySummary();
+            simulateServerToClientMessage(clientId, "Welcome! Current inventory: " + inventorySummary);
+        }
+        
+        /**
+         * The client's last seen sequence or epoch, or -1 (a full snapshot) if it sent none or garbage
+         */
+        private long parseSequence(String parameter, String value) {
+            if (value == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                log("Server", "Ignoring invalid " + parameter + "=" + value + "; sending a full snapshot");
+                return -1;
+            }
+        }
+        
+        @Override
+        public void onText(WebSocketServer.Session session, String message) {
+            ClientConnection connection = (ClientConnection) session.getAttachment();
+            log("Server", "Received message from " + connection.getClientId() + ": " + message);
+            
+            // Minimal command protocol: SUBSCRIBE <pattern> / UNSUBSCRIBE <pattern>
+            if (message.startsWith("SUBSCRIBE ")) {
+                String pattern = message.substring("SUBSCRIBE ".length()).trim();
+                subscriptions.subscribe(pattern, session);
+                session.sendText("SUBSCRIBED " + pattern);
+            } else if (message.startsWith("UNSUBSCRIBE ")) {
+                String pattern = message.substring("UNSUBSCRIBE ".length()).trim();
+                subscriptions.unsubscribe(pattern, session);
+                session.sendText("UNSUBSCRIBED " + pattern);
+            } else if (message.startsWith("RESYNC ") && InventoryFeed.SUBPROTOCOL.equals(session.getSubprotocol())) {
+                // RESYNC <epoch> <last applied sequence>: a feed client saw a gap and wants it filled
+                String[] parts = message.trim().split(" ");
+                long lastEpoch = parseSequence("epoch", parts.length == 3 ? parts[1] : null);
+                long lastSequence = parseSequence("since", parts.length == 3 ? parts[2] : null);
+                if (feed.attach(session, lastEpoch, lastSequence)) {
+                    log("Server", "Replaying feed for " + connection.getClientId() + " after sequence " + 
+                        lastSequence + " (current " + feed.getSequence() + ")");
+                } else {
+                    log("Server", "Sent inventory snapshot at sequence " + feed.getSequence() + " to " + 
+                        connection.getClientId());
+                }
+            }
+        }
+        
+        @Override
+        public void onBackpressure(WebSocketServer.Session session, boolean slow) {
+            ClientConnection connection = (ClientConnection) session.getAttachment();
+            if (slow) {
+                log("Server", "Client " + connection.getClientId() + " is falling behind (" + 
+                    session.getQueuedBytes() + " bytes queued); conflating updates");
+            } else {
+                log("Server", "Client " + connection.getClientId() + " caught up (" + 
+                    session.getDroppedMessages() + " stale updates skipped)");
+            }
+        }
+        
+        @Override
+        public void onClose(WebSocketServer.Session session, int code, String reason) {
+            ClientConnection connection = (ClientConnection) session.getAttachment();
+            if (connection == null) {
+                return;
+            }
+            subscriptions.unsubscribeAll(session);
+            feed.detach(session);
+            activeConnections.remove(connection.getClientId(), connection);
+            log("Server", "Client " + connection.getClientInfo() + " (" + connection.getClientId() + 
+                ") disconnected with code " + code + (reason.isEmpty() ? "" : " (" + reason + ")"));
+            log("Server", "Active connections remaining: " + activeConnections.size());
+        }
+    }
+    
     /**
      * Represents a client WebSocket connection
      */
     public static class ClientConnection {
         private String clientId;
         private String clientInfo;
+        private WebSocketServer.Session session;
         
-        public ClientConnection(String clientId, String clientInfo) {
+        public ClientConnection(String clientId, String clientInfo, WebSocketServer.Session session) {
             this.clientId = clientId;
             this.clientInfo = clientInfo;
+            this.session = session;
         }
         
         public String getClientId() {
@@ -256,46 +657,336 @@ public class WebSocketDemoService {
         public String getClientInfo() {
             return clientInfo;
         }
+        
+        public WebSocketServer.Session getSession() {
+            return session;
+        }
     }
     
     /**
-     * Coffee model with inventory information
+     * Minimal blocking WebSocket client used to drive the demo over a real socket
      */
-    public static class Coffee {
-        private String id;
-        private String name;
-        private double price;
-        private int quantity;
+    public static class DemoClient {
+        private static final SecureRandom RANDOM = new SecureRandom();
+        
+        private final String clientId;
+        private final String clientInfo;
+        private Socket socket;
+        private OutputStream out;
+        private Thread reader;
+        private String subprotocol;
+        
+        // permessage-deflate, as offered by this client and accepted by the server
+        private String extensions;
+        private String acceptedExtensions;
+        private boolean usesDictionary;
+        private Deflater deflater;
+        private Inflater inflater;
+        private volatile boolean answerPings = true;
+        
+        // Local copy of the inventory, maintained from feed snapshots and deltas
+        private final Map<String, InventoryFeed.Item> replica = new ConcurrentHashMap<>();
+        private volatile long lastSequence = -1;
+        // Epoch of the feed the replica's sequence numbers come from
+        private volatile long epoch = -1;
+        // Set while a RESYNC is outstanding; only touched by the reader thread
+        private boolean resyncing;
+        private volatile int lostFeedMessages;
+        
+        public DemoClient(String clientId, String clientInfo) {
+            this.clientId = clientId;
+            this.clientInfo = clientInfo;
+        }
+        
+        public void connect(String host, int port, String path) throws IOException {
+            connect(host, port, path, null, null);
+        }
+        
+        /**
+         * Connects, optionally offering a subprotocol and appending extra query parameters
+         */
+        public void connect(String host, int port, String path, String protocol, String query) throws IOException {
+            byte[] nonce = new byte[16];
+            RANDOM.nextBytes(nonce);
+            String key = Base64.getEncoder().encodeToString(nonce);
+            
+            resyncing = false;
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            
+            String target = path + "?client=" + URLEncoder.encode(clientId, "UTF-8") + (query != null ? "&" + query : "");
+            List<String> requestLines = new ArrayList<>();
+            requestLines.add("GET " + target + " HTTP/1.1");
+            requestLines.add("Host: " + host + ":" + port);
+            requestLines.add("Upgrade: websocket");
+            requestLines.add("Connection: Upgrade");
+            requestLines.add("Sec-WebSocket-Key: " + key);
+            requestLines.add("Sec-WebSocket-Version: 13");
+            if (protocol != null) {
+                requestLines.add("Sec-WebSocket-Protocol: " + protocol);
+            }
+            if (extensions != null) {
+                requestLines.add("Sec-WebSocket-Extensions: " + extensions);
+            }
+            requestLines.add("User-Agent: " + clientInfo);
+            StringBuilder request = new StringBuilder();
+            for (String line : requestLines) {
+                log("Client (" + clientId + ")", line);
+                request.append(line).append("\r\n");
+            }
+            request.append("\r\n");
+            out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String statusLine = readLine(in);
+            String accept = null;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                if (line.toLowerCase().startsWith("sec-websocket-accept:")) {
+                    accept = line.substring(line.indexOf(':') + 1).trim();
+                } else if (line.toLowerCase().startsWith("sec-websocket-protocol:")) {
+                    subprotocol = line.substring(line.indexOf(':') + 1).trim();
+                } else if (line.toLowerCase().startsWith("sec-websocket-extensions:")) {
+                    acceptedExtensions = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+            if (!statusLine.startsWith("HTTP/1.1 101") || !WebSocketServer.computeAcceptKey(key).equals(accept)) {
+                socket.close();
+                throw new IOException("Handshake rejected: " + statusLine);
+            }
+            log("Client (" + clientId + ")", "Verified Sec-WebSocket-Accept: " + accept);
+            if (acceptedExtensions != null && acceptedExtensions.startsWith(PerMessageDeflate.EXTENSION)) {
+                usesDictionary = acceptedExtensions.contains(PerMessageDeflate.DICTIONARY_PARAMETER + "=" + DICTIONARY_ID);
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                inflater = new Inflater(true);
+            }
+            
+            reader = new Thread(() -> readFrames(in), "ws-client-" + clientId);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        
+        public String getSubprotocol() {
+            return subprotocol;
+        }
+        
+        /**
+         * Sec-WebSocket-Extensions value to offer in the handshake
+         */
+        public void setExtensions(String extensions) {
+            this.extensions = extensions;
+        }
+        
+        public String getAcceptedExtensions() {
+            return acceptedExtensions;
+        }
+        
+        public boolean isCompressing() {
+            return deflater != null;
+        }
+        
+        /**
+         * Stop answering pings to play a peer whose network has silently died
+         */
+        public void setAnswerPings(boolean answerPings) {
+            this.answerPings = answerPings;
+        }
+        
+        public long getLastSequence() {
+            return lastSequence;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+        
+        /**
+         * Discard the next feed messages that are not snapshots, as if the server had dropped them for a slow client
+         */
+        public void loseFeedMessages(int count) {
+            this.lostFeedMessages = count;
+        }
+        
+        public synchronized void sendText(String message) {
+            byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+            if (deflater == null) {
+                send(WebSocketServer.OPCODE_TEXT, 0, payload);
+                return;
+            }
+            // The server always asks for client_no_context_takeover, so every message starts fresh
+            deflater.reset();
+            if (usesDictionary) {
+                deflater.setDictionary(UPDATE_DICTIONARY);
+            }
+            send(WebSocketServer.OPCODE_TEXT, 0x40, PerMessageDeflate.deflate(deflater, payload));
+        }
         
-        public Coffee(String id, String name, double price, int quantity) {
-            this.id = id;
-            this.name = name;
-            this.price = price;
-            this.quantity = quantity;
+        /**
+         * Sends a close frame and waits for the server to answer and drop the connection
+         */
+        public void close() {
+            synchronized (this) {
+                byte[] payload = {(byte) (WebSocketServer.CLOSE_NORMAL >> 8), (byte) WebSocketServer.CLOSE_NORMAL};
+                send(WebSocketServer.OPCODE_CLOSE, 0, payload);
+            }
+            try {
+                reader.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
         
-        public String getId() {
-            return id;
+        /**
+         * Drops the TCP connection without a close handshake, as a lost network would
+         */
+        public void drop() {
+            try {
+                socket.close();
+                reader.join(2000);
+            } catch (IOException e) {
+                // Already closed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
         
-        public String getName() {
-            return name;
+        private synchronized void send(int opcode, int rsv, byte[] payload) {
+            // Client-to-server frames are always masked with a fresh key
+            byte[] mask = new byte[4];
+            RANDOM.nextBytes(mask);
+            ByteBuffer frame = WebSocketServer.encodeFrame(opcode, rsv, payload, mask);
+            try {
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                out.flush();
+            } catch (IOException e) {
+                log("Client (" + clientId + ")", "Send failed: " + e.getMessage());
+            }
         }
         
-        public double getPrice() {
-            return price;
+        private void readFrames(DataInputStream in) {
+            try {
+                while (true) {
+                    int b0 = in.readUnsignedByte();
+                    int b1 = in.readUnsignedByte();
+                    int opcode = b0 & 0x0F;
+                    boolean compressed = (b0 & 0x40) != 0;
+                    long length = b1 & 0x7F;
+                    if (length == 126) {
+                        length = in.readUnsignedShort();
+                    } else if (length == 127) {
+                        length = in.readLong();
+                    }
+                    byte[] payload = new byte[(int) length];
+                    in.readFully(payload);
+                    
+                    String wireSize = "";
+                    if (compressed) {
+                        wireSize = " [" + payload.length + " bytes compressed]";
+                        payload = inflate(payload);
+                    }
+                    
+                    if (opcode == WebSocketServer.OPCODE_TEXT) {
+                        log("Client (" + clientId + ")", "Received message" + wireSize + ": " + 
+                            new String(payload, StandardCharsets.UTF_8));
+                    } else if (opcode == WebSocketServer.OPCODE_BINARY) {
+                        applyFeedMessage(payload);
+                    } else if (opcode == WebSocketServer.OPCODE_PING) {
+                        if (answerPings) {
+                            send(WebSocketServer.OPCODE_PONG, 0, payload);
+                        }
+                    } else if (opcode == WebSocketServer.OPCODE_CLOSE) {
+                        log("Client (" + clientId + ")", "Server acknowledged close; connection closed");
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // Socket closed underneath us
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Already closed
+                }
+            }
         }
         
-        public void setPrice(double price) {
-            this.price = price;
+        private byte[] inflate(byte[] payload) throws IOException {
+            // The server never keeps context between messages, so each one is inflated from scratch
+            inflater.reset();
+            if (usesDictionary) {
+                inflater.setDictionary(UPDATE_DICTIONARY);
+            }
+            try {
+                byte[] message = PerMessageDeflate.inflate(inflater, payload, payload.length, 1024 * 1024);
+                if (message == null) {
+                    throw new IOException("Compressed message too large");
+                }
+                return message;
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed message", e);
+            }
         }
         
-        public int getQuantity() {
-            return quantity;
+        private void applyFeedMessage(byte[] payload) {
+            InventoryFeed.Message message = InventoryFeed.decode(ByteBuffer.wrap(payload));
+            if (!message.isSnapshot() && lostFeedMessages > 0) {
+                lostFeedMessages--;
+                log("Client (" + clientId + ")", "Feed message #" + message.getSequence() + " never arrives");
+                return;
+            }
+            if (!message.isSnapshot() && message.getSequence() != lastSequence + 1) {
+                // A delta only holds the fields it names, and a missed create or remove is not repeated by
+                // later deltas, so the replica is only right if every message is applied in turn
+                if (message.getSequence() > lastSequence + 1 && !resyncing) {
+                    resyncing = true;
+                    log("Client (" + clientId + ")", "Gap in the feed: got #" + message.getSequence() + 
+                        " after #" + lastSequence + "; asking for a resync");
+                    sendText("RESYNC " + epoch + " " + lastSequence);
+                }
+                // Older messages were already applied, newer ones wait for the replay
+                return;
+            }
+            resyncing = false;
+            if (message.isSnapshot()) {
+                epoch = message.getEpoch();
+                replica.clear();
+                for (InventoryFeed.Item item : message.getItems()) {
+                    replica.put(item.getId(), item);
+                }
+                log("Client (" + clientId + ")", "Snapshot #" + message.getSequence() + " of epoch " + epoch + 
+                    " (" + payload.length + " bytes): " + replica.size() + " coffees");
+            } else if (message.getType() == InventoryFeed.TYPE_CREATE) {
+                InventoryFeed.Item item = message.getItems().get(0);
+                replica.put(item.getId(), item);
+                log("Client (" + clientId + ")", "Create #" + message.getSequence() + " (" + payload.length + 
+                    " bytes): " + item.getName() + " $" + item.getPrice() + ", " + item.getQuantity() + " available");
+            } else if (message.getType() == InventoryFeed.TYPE_REMOVE) {
+                InventoryFeed.Item removed = replica.remove(message.getItems().get(0).getId());
+                log("Client (" + clientId + ")", "Remove #" + message.getSequence() + " (" + payload.length + 
+                    " bytes): " + (removed != null ? removed.getName() : message.getItems().get(0).getId()) + 
+                    "; " + replica.size() + " coffees left");
+            } else {
+                InventoryFeed.Item update = message.getItems().get(0);
+                InventoryFeed.Item previous = replica.get(update.getId());
+                String name = previous != null ? previous.getName() : update.getId();
+                replica.put(update.getId(), new InventoryFeed.Item(update.getId(), name, update.getPrice(), update.getQuantity()));
+                log("Client (" + clientId + ")", "Delta #" + message.getSequence() + " (" + payload.length + 
+                    " bytes): " + name + " $" + update.getPrice() + ", " + update.getQuantity() + " available");
+            }
+            lastSequence = message.getSequence();
         }
         
-        public void setQuantity(int quantity) {
-            this.quantity = quantity;
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
         }
     }
 }
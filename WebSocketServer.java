@@ -0,0 +1,1681 @@
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Selector-based WebSocket server (RFC 6455)
+ *
+ * A small, dependency-free server used by WebSocketDemoService. One acceptor
+ * thread hands new connections to a fixed set of I/O loops; each loop owns a
+ * Selector and every session registered with it, so session state is only
+ * ever touched by a single thread.
+ *
+ * Implemented:
+ * - HTTP Upgrade handshake with the SHA-1 Sec-WebSocket-Accept computation
+ *   and Sec-WebSocket-Protocol (subprotocol) selection
+ * - permessage-deflate compression (see PerMessageDeflate)
+ * - Frame decoding with client masking, fragmentation and UTF-8 validation
+ * - Ping/pong and the close handshake
+ * - Heartbeat pings and idle eviction, scheduled on a per-loop HashedTimerWheel
+ * - Reads and writes through pooled direct buffers
+ * - Encode-once broadcast: one shared frame, written by every I/O loop in parallel,
+ *   compressed at most once per negotiated variant
+ * - Bounded outbound queues with watermarks and a configurable slow-consumer policy
+ *
+ * Idle sessions hold no I/O buffers: reads go through the loop's buffer and
+ * outbound frames only occupy pooled buffers while they are queued, which is
+ * what keeps 100k mostly-idle connections affordable.
+ *
+ * Each data message sent records, in the shared Metrics, the time from
+ * joining a session's queue until the socket took its last byte, and counts
+ * towards the messages, bytes and drops of the server's path.
+ *
+ * Listener callbacks run on the I/O loop that owns the session and must not block.
+ */
+public class WebSocketServer {
+
+    public static final int OPCODE_CONTINUATION = 0x0;
+    public static final int OPCODE_TEXT = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE = 0x8;
+    public static final int OPCODE_PING = 0x9;
+    public static final int OPCODE_PONG = 0xA;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_GOING_AWAY = 1001;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_ABNORMAL = 1006;
+    public static final int CLOSE_INVALID_PAYLOAD = 1007;
+    public static final int CLOSE_POLICY_VIOLATION = 1008;
+    public static final int CLOSE_TOO_BIG = 1009;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final byte[] EMPTY = new byte[0];
+    private static final int MAX_FRAME_HEADER = 14;
+    private static final int MAX_GATHER = 16;
+    private static final int RSV1 = 0x40;
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_SLOTS = 512;
+
+    private final int port;
+    private final String path;
+    private final Listener listener;
+
+    private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int bufferSize = 16 * 1024;
+    private int maxPooledBuffers = 4096;
+    private int maxMessageSize = 64 * 1024;
+    private int maxHandshakeSize = 8 * 1024;
+    private List<String> subprotocols = Collections.emptyList();
+    private PerMessageDeflate perMessageDeflate;
+    private int outboundLowWatermark = 64 * 1024;
+    private int outboundHighWatermark = 256 * 1024;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+    private long pingIntervalNanos = TimeUnit.SECONDS.toNanos(30);
+    private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(75);
+
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong sessionIds = new AtomicLong();
+    private final AtomicLong evictedSessions = new AtomicLong();
+
+    private final Metrics metrics = Metrics.shared();
+    private final Metrics.Histogram sendDuration;
+    private final Metrics.Counter messagesSent;
+    private final Metrics.Counter bytesSent;
+    private final Metrics.Counter messagesDropped;
+
+    private BufferPool bufferPool;
+    private ServerSocketChannel serverChannel;
+    private volatile IoLoop[] loops;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    public WebSocketServer(int port, String path, Listener listener) {
+        this.port = port;
+        this.path = path;
+        this.listener = listener;
+        this.sendDuration = metrics.requestDuration("websocket", path, "sent");
+        this.messagesSent = metrics.counter("websocket_messages_sent_total", "Data messages written to sockets",
+                                            "path", path);
+        this.bytesSent = metrics.counter("websocket_bytes_sent_total", "Frame bytes of data messages written to sockets",
+                                         "path", path);
+        this.messagesDropped = metrics.counter("websocket_messages_dropped_total",
+                                               "Data messages dropped or conflated away for slow consumers",
+                                               "path", path);
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public void setMaxPooledBuffers(int maxPooledBuffers) {
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public void setMaxHandshakeSize(int maxHandshakeSize) {
+        this.maxHandshakeSize = maxHandshakeSize;
+    }
+
+    /**
+     * Queued bytes at which a session counts as slow, and the level it must drain to before it recovers
+     */
+    public void setOutboundWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Low watermark must not exceed high watermark");
+        }
+        this.outboundLowWatermark = lowWatermark;
+        this.outboundHighWatermark = highWatermark;
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    /**
+     * Pings a session after pingIntervalMillis without input and drops it after
+     * idleTimeoutMillis; a ping interval of 0 disables pings, an idle timeout of 0 disables both
+     *
+     * The idle timeout also bounds how long a connection may take to complete its
+     * handshake and how long a close handshake may wait for the peer.
+     */
+    public void setHeartbeat(long pingIntervalMillis, long idleTimeoutMillis) {
+        if (idleTimeoutMillis > 0 && pingIntervalMillis >= idleTimeoutMillis) {
+            throw new IllegalArgumentException("Ping interval must be shorter than the idle timeout");
+        }
+        this.pingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pingIntervalMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    /**
+     * Subprotocols the server speaks, in order of preference
+     */
+    public void setSubprotocols(String... subprotocols) {
+        this.subprotocols = Arrays.asList(subprotocols);
+    }
+
+    /**
+     * Enables permessage-deflate for clients that offer it; null disables compression
+     */
+    public void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+        this.perMessageDeflate = perMessageDeflate;
+    }
+
+    public PerMessageDeflate getPerMessageDeflate() {
+        return perMessageDeflate;
+    }
+
+    public int getPort() {
+        return serverChannel != null ? serverChannel.socket().getLocalPort() : port;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Currently open sessions, across all I/O loops
+     */
+    public Collection<Session> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sessions dropped because the peer went silent
+     */
+    public long getEvictedSessions() {
+        return evictedSessions.get();
+    }
+
+    /**
+     * Sends a text message to every open session
+     */
+    public void broadcastText(String message) {
+        broadcastText(message, null);
+    }
+
+    /**
+     * Sends a text message to every open session; queued messages with the
+     * same conflation key are replaced when a session is behind
+     */
+    public void broadcastText(String message, String conflationKey) {
+        IoLoop[] started = loops;
+        if (started == null) {
+            // Not started yet, so there is nobody to send to
+            return;
+        }
+        SharedFrame frame = encodeSharedFrame(OPCODE_TEXT, message.getBytes(StandardCharsets.UTF_8));
+        for (IoLoop loop : started) {
+            loop.execute(() -> {
+                for (Session session : loop.loopSessions) {
+                    session.enqueueShared(frame, conflationKey);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends a text message to the given sessions
+     *
+     * The frame is encoded once into a read-only buffer. Each session only
+     * queues a duplicate view of it, and the writes are handed to the I/O loop
+     * that owns each session, so a broadcast costs one serialization plus the
+     * socket writes, spread across all I/O threads.
+     */
+    public void broadcastText(Collection<Session> targets, String message) {
+        broadcastText(targets, message, null);
+    }
+
+    public void broadcastText(Collection<Session> targets, String message, String conflationKey) {
+        broadcastFrame(targets, encodeSharedFrame(OPCODE_TEXT, message.getBytes(StandardCharsets.UTF_8)), conflationKey);
+    }
+
+    /**
+     * Sends a frame built with encodeSharedFrame to the given sessions
+     */
+    public void broadcastFrame(Collection<Session> targets, SharedFrame frame, String conflationKey) {
+        Map<IoLoop, List<Session>> byLoop = new HashMap<>();
+        for (Session session : targets) {
+            byLoop.computeIfAbsent(session.loop, loop -> new ArrayList<>()).add(session);
+        }
+        for (Map.Entry<IoLoop, List<Session>> entry : byLoop.entrySet()) {
+            List<Session> loopTargets = entry.getValue();
+            entry.getKey().execute(() -> {
+                for (Session session : loopTargets) {
+                    session.enqueueShared(frame, conflationKey);
+                }
+            });
+        }
+    }
+
+    /**
+     * Encodes a complete server frame that many sessions can queue at once
+     */
+    public SharedFrame encodeSharedFrame(int opcode, byte[] payload) {
+        return new SharedFrame(opcode, payload, perMessageDeflate);
+    }
+
+    private static ByteBuffer encodeDirect(int rsv, int opcode, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocateDirect(frameHeaderLength(payload.length, false) + payload.length);
+        writeFrameHeader(frame, true, rsv, opcode, payload.length, null);
+        frame.put(payload);
+        frame.flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        bufferPool = new BufferPool(bufferSize, maxPooledBuffers);
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+
+        loops = new IoLoop[ioThreads];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(i);
+            loops[i].thread.start();
+        }
+
+        running = true;
+        acceptThread = new Thread(this::acceptConnections, "ws-acceptor");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        metrics.gauge("websocket_sessions", "Open WebSocket sessions", this::getSessionCount, "path", path);
+        metrics.counter("websocket_sessions_evicted_total", "Sessions closed for missing the idle timeout",
+                        evictedSessions::get, "path", path);
+
+        log("WebSocketServer", "Listening on ws://localhost:" + getPort() + path + " with " + loops.length + " I/O threads");
+    }
+
+    /**
+     * Sends a going-away close to every session and stops all threads
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            log("WebSocketServer", "Error closing server socket: " + e.getMessage());
+        }
+        for (IoLoop loop : loops) {
+            loop.shutdown();
+        }
+        try {
+            acceptThread.join(1000);
+            for (IoLoop loop : loops) {
+                loop.thread.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        metrics.remove("websocket_sessions", "path", path);
+        metrics.remove("websocket_sessions_evicted_total", "path", path);
+        log("WebSocketServer", "Stopped");
+    }
+
+    private void acceptConnections() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                IoLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.register(channel);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (running) {
+                    log("WebSocketServer", "Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // ======= Handshake and framing helpers =======
+
+    /**
+     * Sec-WebSocket-Accept for a client's Sec-WebSocket-Key
+     */
+    public static String computeAcceptKey(String key) {
+        return computeAcceptKey(key, newSha1());
+    }
+
+    static String computeAcceptKey(String key, MessageDigest sha1) {
+        sha1.reset();
+        byte[] digest = sha1.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+        return Base64.getEncoder().encodeToString(digest);
+    }
+
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is required by RFC 6455", e);
+        }
+    }
+
+    /**
+     * Size of the frame header for a payload of the given length
+     */
+    public static int frameHeaderLength(int payloadLength, boolean masked) {
+        int length = payloadLength < 126 ? 2 : payloadLength <= 0xFFFF ? 4 : 10;
+        return masked ? length + 4 : length;
+    }
+
+    /**
+     * Writes a frame header; a non-null mask is written after the length as the masking key
+     */
+    public static void writeFrameHeader(ByteBuffer dst, boolean fin, int rsv, int opcode,
+                                        int payloadLength, byte[] mask) {
+        dst.put((byte) ((fin ? 0x80 : 0) | (rsv & 0x70) | opcode));
+        int maskBit = mask != null ? 0x80 : 0;
+        if (payloadLength < 126) {
+            dst.put((byte) (maskBit | payloadLength));
+        } else if (payloadLength <= 0xFFFF) {
+            dst.put((byte) (maskBit | 126));
+            dst.putShort((short) payloadLength);
+        } else {
+            dst.put((byte) (maskBit | 127));
+            dst.putLong(payloadLength);
+        }
+        if (mask != null) {
+            dst.put(mask);
+        }
+    }
+
+    /**
+     * Encodes a complete frame into a new heap buffer, masking the payload when a mask is given
+     */
+    public static ByteBuffer encodeFrame(int opcode, byte[] payload, byte[] mask) {
+        return encodeFrame(opcode, 0, payload, mask);
+    }
+
+    /**
+     * Encodes a complete frame with the given reserved bits, e.g. RSV1 for a compressed message
+     */
+    public static ByteBuffer encodeFrame(int opcode, int rsv, byte[] payload, byte[] mask) {
+        ByteBuffer frame = ByteBuffer.allocate(frameHeaderLength(payload.length, mask != null) + payload.length);
+        writeFrameHeader(frame, true, rsv, opcode, payload.length, mask);
+        if (mask == null) {
+            frame.put(payload);
+        } else {
+            for (int i = 0; i < payload.length; i++) {
+                frame.put((byte) (payload[i] ^ mask[i & 3]));
+            }
+        }
+        frame.flip();
+        return frame;
+    }
+
+    private static byte[] closePayload(int code, String reason) {
+        byte[] reasonBytes = reason != null ? reason.getBytes(StandardCharsets.UTF_8) : EMPTY;
+        // Control frame payloads are limited to 125 bytes, 2 of which carry the status code
+        int reasonLength = Math.min(reasonBytes.length, 123);
+        byte[] payload = new byte[2 + reasonLength];
+        payload[0] = (byte) (code >> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(reasonBytes, 0, payload, 2, reasonLength);
+        return payload;
+    }
+
+    // Logging helper
+    private static void log(String source, String message) {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss.SSS"));
+        System.out.println("[" + timestamp + "] [" + source + "] " + message);
+    }
+
+    // ======= Listener =======
+
+    /**
+     * Application callbacks, invoked on the session's I/O thread
+     */
+    public interface Listener {
+        void onOpen(Session session);
+
+        void onText(Session session, String message);
+
+        default void onBinary(Session session, ByteBuffer message) {
+            session.close(CLOSE_POLICY_VIOLATION, "Binary messages not supported");
+        }
+
+        /**
+         * Called when a session crosses the high watermark (slow) or drains back to the low watermark
+         */
+        default void onBackpressure(Session session, boolean slow) {
+        }
+
+        void onClose(Session session, int code, String reason);
+    }
+
+    // ======= Buffer pool =======
+
+    /**
+     * Lock-free pool of fixed-size direct buffers shared by all I/O loops
+     */
+    public static final class BufferPool {
+        private final int bufferSize;
+        private final int maxPooled;
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+        private final AtomicLong allocated = new AtomicLong();
+
+        public BufferPool(int bufferSize, int maxPooled) {
+            this.bufferSize = bufferSize;
+            this.maxPooled = maxPooled;
+        }
+
+        public int getBufferSize() {
+            return bufferSize;
+        }
+
+        public ByteBuffer acquire() {
+            ByteBuffer buffer = free.poll();
+            if (buffer == null) {
+                allocated.incrementAndGet();
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+            pooled.decrementAndGet();
+            return buffer;
+        }
+
+        public void release(ByteBuffer buffer) {
+            buffer.clear();
+            if (pooled.incrementAndGet() <= maxPooled) {
+                free.offer(buffer);
+            } else {
+                // Over the cap: let the buffer be collected
+                pooled.decrementAndGet();
+            }
+        }
+
+        public int getPooledCount() {
+            return pooled.get();
+        }
+
+        public long getAllocatedCount() {
+            return allocated.get();
+        }
+    }
+
+    // ======= Shared frames =======
+
+    /**
+     * A message encoded once for many sessions
+     *
+     * The uncompressed frame is built up front. Compressed variants (with and
+     * without the preset dictionary) are built the first time a session that
+     * negotiated them needs one, and are then shared as well. This only works
+     * because the server never keeps compression context between messages.
+     * Sessions queue duplicate views, so the bytes are never copied.
+     */
+    public static final class SharedFrame {
+        private final int opcode;
+        private final byte[] payload;
+        private final PerMessageDeflate deflate;
+        private final ByteBuffer plain;
+        private volatile ByteBuffer compressed;
+        private volatile ByteBuffer compressedWithDictionary;
+
+        SharedFrame(int opcode, byte[] payload, PerMessageDeflate deflate) {
+            this.opcode = opcode;
+            this.payload = payload;
+            this.deflate = deflate;
+            this.plain = encodeDirect(0, opcode, payload);
+        }
+
+        public int getPayloadLength() {
+            return payload.length;
+        }
+
+        ByteBuffer frameFor(PerMessageDeflate.Agreement agreement) {
+            if (agreement == null || deflate == null || (opcode & 0x8) != 0 || payload.length < deflate.getThreshold()) {
+                return plain;
+            }
+            boolean useDictionary = agreement.usesDictionary();
+            ByteBuffer frame = useDictionary ? compressedWithDictionary : compressed;
+            if (frame != null) {
+                return frame;
+            }
+            synchronized (this) {
+                frame = useDictionary ? compressedWithDictionary : compressed;
+                if (frame == null) {
+                    byte[] deflated = deflate.tryCompress(payload, useDictionary);
+                    frame = deflated != null ? encodeDirect(RSV1, opcode, deflated) : plain;
+                    if (useDictionary) {
+                        compressedWithDictionary = frame;
+                    } else {
+                        compressed = frame;
+                    }
+                }
+            }
+            return frame;
+        }
+    }
+
+    // ======= Backpressure =======
+
+    /**
+     * What to do with new data messages while a session is over its high watermark
+     *
+     * Control frames (close, pong) and handshake responses are never dropped.
+     */
+    public enum SlowConsumerPolicy {
+        /** Discard the oldest queued messages that have not started writing */
+        DROP_OLDEST,
+        /** Replace queued messages with the same conflation key, then drop oldest if still full */
+        CONFLATE,
+        /** Close the connection once the queue would exceed the high watermark */
+        DISCONNECT
+    }
+
+    /**
+     * A queued outbound frame; pooled buffers go back to the pool once written
+     */
+    static final class Outbound {
+        final ByteBuffer buffer;
+        final boolean pooled;
+        final boolean control;
+        final String conflationKey;
+        final int length;
+        // Loop time when the frame joined a session's queue; set on the loop
+        long queuedAt;
+
+        Outbound(ByteBuffer buffer, boolean pooled, boolean control, String conflationKey) {
+            this.buffer = buffer;
+            this.pooled = pooled;
+            this.control = control;
+            this.conflationKey = conflationKey;
+            this.length = buffer.remaining();
+        }
+
+        boolean isStarted() {
+            return buffer.remaining() < length;
+        }
+    }
+
+    // ======= I/O loop =======
+
+    /**
+     * One selector thread and the sessions it owns
+     */
+    final class IoLoop implements Runnable {
+        final Thread thread;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private final Set<Session> loopSessions = new LinkedHashSet<>();
+        private final MessageDigest sha1 = newSha1();
+        private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        // One timer per session, on a wheel shared by all sessions of this loop
+        private final HashedTimerWheel timers = new HashedTimerWheel(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, TIMER_SLOTS);
+        // Time of the current selector wakeup, so reads do not each call nanoTime()
+        private long now = System.nanoTime();
+        private volatile boolean open = true;
+
+        IoLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "ws-io-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Runs a task on this loop; safe to call from any thread
+         */
+        void execute(Runnable task) {
+            if (inLoop()) {
+                task.run();
+                return;
+            }
+            tasks.add(task);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Session session = new Session(sessionIds.incrementAndGet(), channel, this);
+                    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                    loopSessions.add(session);
+                    session.startHeartbeat();
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        void shutdown() {
+            execute(() -> {
+                for (Session session : new ArrayList<>(loopSessions)) {
+                    session.sendClose(CLOSE_GOING_AWAY, "Server shutting down");
+                    session.closeChannel(CLOSE_GOING_AWAY, "Server shutting down");
+                }
+                open = false;
+            });
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer readBuffer = bufferPool.acquire();
+            try {
+                while (open) {
+                    long timeout = timers.nanosUntilNextTick();
+                    if (timeout < 0) {
+                        selector.select();
+                    } else if (timeout == 0) {
+                        selector.selectNow();
+                    } else {
+                        // select(long) takes milliseconds, where 0 would mean forever
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout)));
+                    }
+                    now = System.nanoTime();
+                    wakeupPending.set(false);
+                    runTasks();
+
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        Session session = (Session) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                session.handleRead(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.onWritable();
+                            }
+                        } catch (RuntimeException e) {
+                            // A bug or a hostile peer costs one session, not every session on this loop
+                            log("WebSocketServer", "Closing session " + session.getId() + " after " + e);
+                            session.closeChannel(CLOSE_ABNORMAL, "Internal error");
+                        }
+                    }
+                    timers.advance();
+                }
+            } catch (IOException e) {
+                log("WebSocketServer", thread.getName() + " failed: " + e.getMessage());
+            } finally {
+                for (Session session : new ArrayList<>(loopSessions)) {
+                    session.closeChannel(CLOSE_GOING_AWAY, "Server shutting down");
+                }
+                bufferPool.release(readBuffer);
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // Nothing left to do with a selector we are abandoning
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log("WebSocketServer", "Task failed on " + thread.getName() + ": " + e);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // The connection is being discarded anyway
+        }
+    }
+
+    // ======= Session =======
+
+    public enum State {
+        HANDSHAKE, OPEN, CLOSING, CLOSED
+    }
+
+    /**
+     * Server side of one WebSocket connection
+     *
+     * Fields without volatile are only accessed on the owning I/O loop.
+     */
+    public final class Session {
+        private final long id;
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private SelectionKey key;
+        private volatile State state = State.HANDSHAKE;
+
+        private String requestPath;
+        private Map<String, String> queryParameters = Collections.emptyMap();
+        private Map<String, String> headers = Collections.emptyMap();
+        private String subprotocol;
+        private PerMessageDeflate.Agreement deflate;
+        private Inflater inflater;
+        private volatile Object attachment;
+
+        // Handshake bytes, held in a pooled buffer only until the upgrade completes
+        private ByteBuffer handshakeBuffer;
+
+        // Frame decoder state; the header scratch array is allocated on first use
+        private byte[] header;
+        private int headerLength;
+        private boolean frameFin;
+        private boolean frameCompressed;
+        private int frameOpcode;
+        private final byte[] mask = new byte[4];
+        private byte[] framePayload;
+        private int framePosition;
+
+        // Fragmented message reassembly
+        private int messageOpcode = -1;
+        private boolean messageCompressed;
+        private byte[] fragments;
+        private int fragmentsLength;
+
+        private final ArrayDeque<Outbound> outbound = new ArrayDeque<>();
+        private long queuedBytes;
+        private boolean slow;
+        private volatile long droppedMessages;
+        private boolean closeSent;
+        private boolean closeAfterFlush;
+        private int closeCode = CLOSE_NORMAL;
+        private String closeReason = "";
+
+        // Liveness: last time any bytes arrived, and the single heartbeat timer
+        private long lastActivity;
+        private boolean pingOutstanding;
+        private HashedTimerWheel.Timeout heartbeat;
+
+        Session(long id, SocketChannel channel, IoLoop loop) {
+            this.id = id;
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public boolean isOpen() {
+            return state == State.OPEN;
+        }
+
+        public String getRequestPath() {
+            return requestPath;
+        }
+
+        public String getQueryParameter(String name) {
+            return queryParameters.get(name);
+        }
+
+        /**
+         * Handshake request header, by lower-case name
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * Negotiated subprotocol, or null if none was agreed
+         */
+        public String getSubprotocol() {
+            return subprotocol;
+        }
+
+        /**
+         * Negotiated Sec-WebSocket-Extensions value, or null if no extension is in use
+         */
+        public String getExtensions() {
+            return deflate != null ? deflate.getResponse() : null;
+        }
+
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public String getRemoteAddress() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "unknown";
+            }
+        }
+
+        /**
+         * Bytes waiting in this session's outbound queue
+         */
+        public long getQueuedBytes() {
+            return queuedBytes;
+        }
+
+        /**
+         * Messages discarded or conflated away by the slow-consumer policy
+         */
+        public long getDroppedMessages() {
+            return droppedMessages;
+        }
+
+        public void sendText(String message) {
+            sendText(message, null);
+        }
+
+        public void sendText(String message, String conflationKey) {
+            sendFrame(OPCODE_TEXT, message.getBytes(StandardCharsets.UTF_8), conflationKey);
+        }
+
+        public void sendBinary(byte[] message) {
+            sendFrame(OPCODE_BINARY, message, null);
+        }
+
+        /**
+         * Queues a frame built with encodeSharedFrame without copying it
+         */
+        public void sendFrame(SharedFrame sharedFrame, String conflationKey) {
+            loop.execute(() -> enqueueShared(sharedFrame, conflationKey));
+        }
+
+        public void sendPing(byte[] payload) {
+            sendFrame(OPCODE_PING, payload, null);
+        }
+
+        /**
+         * Starts the close handshake; the connection closes once the peer answers
+         */
+        public void close(int code, String reason) {
+            loop.execute(() -> sendClose(code, reason));
+        }
+
+        private void sendFrame(int opcode, byte[] payload, String conflationKey) {
+            Outbound frame = encode(opcode, payload, conflationKey);
+            loop.execute(() -> {
+                if (state != State.OPEN) {
+                    release(frame);
+                    return;
+                }
+                enqueue(frame);
+            });
+        }
+
+        /**
+         * Queues a view of a shared broadcast frame; the bytes themselves are never copied
+         */
+        void enqueueShared(SharedFrame frame, String conflationKey) {
+            if (state != State.OPEN) {
+                return;
+            }
+            enqueue(new Outbound(frame.frameFor(deflate).duplicate(), false, false, conflationKey));
+        }
+
+        /**
+         * Adds a frame to the queue, applying the slow-consumer policy to data frames
+         */
+        private void enqueue(Outbound frame) {
+            frame.queuedAt = loop.now;
+            if (!frame.control && (slow || queuedBytes + frame.length > outboundHighWatermark)) {
+                if (!slow) {
+                    slow = true;
+                    notifyBackpressure(true);
+                }
+                if (!admitWhileSlow(frame)) {
+                    return;
+                }
+            }
+            outbound.add(frame);
+            queuedBytes += frame.length;
+            flush();
+        }
+
+        /**
+         * Makes room for a data frame under the configured policy; false if the frame was not queued
+         */
+        private boolean admitWhileSlow(Outbound frame) {
+            switch (slowConsumerPolicy) {
+                case DISCONNECT:
+                    if (queuedBytes + frame.length > outboundHighWatermark) {
+                        release(frame);
+                        closeChannel(CLOSE_POLICY_VIOLATION, "Slow consumer");
+                        return false;
+                    }
+                    return true;
+                case CONFLATE:
+                    if (frame.conflationKey != null) {
+                        removeQueued(frame.conflationKey);
+                    }
+                    // Fall back to dropping old messages so the queue stays bounded
+                    return dropOldestFor(frame);
+                default:
+                    return dropOldestFor(frame);
+            }
+        }
+
+        private void removeQueued(String conflationKey) {
+            Iterator<Outbound> queued = outbound.iterator();
+            while (queued.hasNext()) {
+                Outbound candidate = queued.next();
+                if (!candidate.control && !candidate.isStarted()
+                        && conflationKey.equals(candidate.conflationKey)) {
+                    queued.remove();
+                    discard(candidate);
+                }
+            }
+        }
+
+        private boolean dropOldestFor(Outbound frame) {
+            Iterator<Outbound> queued = outbound.iterator();
+            while (queuedBytes + frame.length > outboundHighWatermark && queued.hasNext()) {
+                Outbound candidate = queued.next();
+                if (!candidate.control && !candidate.isStarted()) {
+                    queued.remove();
+                    discard(candidate);
+                }
+            }
+            if (queuedBytes + frame.length > outboundHighWatermark) {
+                // Nothing left to drop: the new message is the one that goes
+                droppedMessages++;
+                messagesDropped.increment();
+                release(frame);
+                return false;
+            }
+            return true;
+        }
+
+        private void discard(Outbound frame) {
+            queuedBytes -= frame.length;
+            droppedMessages++;
+            messagesDropped.increment();
+            release(frame);
+        }
+
+        private Outbound encode(int opcode, byte[] payload) {
+            return encode(opcode, payload, null);
+        }
+
+        private Outbound encode(int opcode, byte[] payload, String conflationKey) {
+            int rsv = 0;
+            if (deflate != null && (opcode & 0x8) == 0) {
+                byte[] deflated = perMessageDeflate.tryCompress(payload, deflate.usesDictionary());
+                if (deflated != null) {
+                    payload = deflated;
+                    rsv = RSV1;
+                }
+            }
+            int frameLength = frameHeaderLength(payload.length, false) + payload.length;
+            ByteBuffer buffer;
+            boolean pooled = frameLength <= bufferPool.getBufferSize();
+            buffer = pooled ? bufferPool.acquire() : ByteBuffer.allocate(frameLength);
+            writeFrameHeader(buffer, true, rsv, opcode, payload.length, null);
+            buffer.put(payload);
+            buffer.flip();
+            return new Outbound(buffer, pooled, (opcode & 0x8) != 0, conflationKey);
+        }
+
+        private void release(Outbound frame) {
+            if (frame.pooled) {
+                bufferPool.release(frame.buffer);
+            }
+        }
+
+        void sendClose(int code, String reason) {
+            if (closeSent || state == State.CLOSED || state == State.HANDSHAKE) {
+                return;
+            }
+            closeSent = true;
+            state = State.CLOSING;
+            enqueue(encode(OPCODE_CLOSE, closePayload(code, reason)));
+        }
+
+        // ---- Reading ----
+
+        void handleRead(ByteBuffer readBuffer) {
+            lastActivity = loop.now;
+            pingOutstanding = false;
+            int read;
+            try {
+                readBuffer.clear();
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                closeChannel(CLOSE_ABNORMAL, e.getMessage());
+                return;
+            }
+            if (read < 0) {
+                closeChannel(CLOSE_ABNORMAL, "Connection closed without close frame");
+                return;
+            }
+            readBuffer.flip();
+
+            if (state == State.HANDSHAKE) {
+                readHandshake(readBuffer);
+            }
+            if (state == State.OPEN || state == State.CLOSING) {
+                decodeFrames(readBuffer);
+            }
+        }
+
+        private void readHandshake(ByteBuffer input) {
+            if (handshakeBuffer == null) {
+                handshakeBuffer = bufferPool.acquire();
+            }
+            int limit = Math.min(maxHandshakeSize, handshakeBuffer.capacity());
+            while (input.hasRemaining()) {
+                if (handshakeBuffer.position() >= limit) {
+                    rejectHandshake("431 Request Header Fields Too Large");
+                    return;
+                }
+                handshakeBuffer.put(input.get());
+                if (endsWithBlankLine(handshakeBuffer)) {
+                    handshakeBuffer.flip();
+                    byte[] request = new byte[handshakeBuffer.remaining()];
+                    handshakeBuffer.get(request);
+                    bufferPool.release(handshakeBuffer);
+                    handshakeBuffer = null;
+                    // Any bytes left in input are frames sent right behind the request
+                    completeHandshake(new String(request, StandardCharsets.ISO_8859_1));
+                    return;
+                }
+            }
+        }
+
+        private boolean endsWithBlankLine(ByteBuffer buffer) {
+            int p = buffer.position();
+            return p >= 4 && buffer.get(p - 4) == '\r' && buffer.get(p - 3) == '\n'
+                && buffer.get(p - 2) == '\r' && buffer.get(p - 1) == '\n';
+        }
+
+        private void completeHandshake(String request) {
+            String[] lines = request.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !"GET".equals(requestLine[0])) {
+                rejectHandshake("405 Method Not Allowed");
+                return;
+            }
+
+            String target = requestLine[1];
+            int queryStart = target.indexOf('?');
+            requestPath = queryStart >= 0 ? target.substring(0, queryStart) : target;
+            if (!requestPath.equals(path)) {
+                rejectHandshake("404 Not Found");
+                return;
+            }
+            if (queryStart >= 0) {
+                queryParameters = parseQuery(target.substring(queryStart + 1));
+            }
+
+            Map<String, String> parsed = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    parsed.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                               lines[i].substring(colon + 1).trim());
+                }
+            }
+            headers = parsed;
+
+            String upgrade = getHeader("upgrade");
+            String connection = getHeader("connection");
+            String key = getHeader("sec-websocket-key");
+            if (upgrade == null || !upgrade.equalsIgnoreCase("websocket")
+                    || connection == null || !connection.toLowerCase(Locale.ROOT).contains("upgrade")
+                    || key == null || !"13".equals(getHeader("sec-websocket-version"))) {
+                rejectHandshake("400 Bad Request");
+                return;
+            }
+
+            subprotocol = selectSubprotocol(getHeader("sec-websocket-protocol"));
+            if (perMessageDeflate != null) {
+                deflate = perMessageDeflate.negotiate(getHeader("sec-websocket-extensions"));
+                if (deflate != null && !deflate.isClientNoContextTakeover()) {
+                    inflater = perMessageDeflate.newSessionInflater(deflate.usesDictionary());
+                }
+            }
+
+            String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + computeAcceptKey(key, loop.sha1) + "\r\n"
+                + (subprotocol != null ? "Sec-WebSocket-Protocol: " + subprotocol + "\r\n" : "")
+                + (deflate != null ? "Sec-WebSocket-Extensions: " + deflate.getResponse() + "\r\n" : "")
+                + "\r\n";
+            state = State.OPEN;
+            sessions.put(id, this);
+            enqueue(new Outbound(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)), false, true, null));
+            if (state == State.OPEN) {
+                notifyOpen();
+            }
+        }
+
+        private String selectSubprotocol(String offered) {
+            if (offered == null) {
+                return null;
+            }
+            List<String> requested = new ArrayList<>();
+            for (String candidate : offered.split(",")) {
+                requested.add(candidate.trim());
+            }
+            for (String supported : subprotocols) {
+                if (requested.contains(supported)) {
+                    return supported;
+                }
+            }
+            return null;
+        }
+
+        private void rejectHandshake(String status) {
+            String response = "HTTP/1.1 " + status + "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n";
+            enqueue(new Outbound(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)), false, true, null));
+            closeAfterFlush = true;
+            flush();
+        }
+
+        private Map<String, String> parseQuery(String query) {
+            Map<String, String> parameters = new HashMap<>();
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                try {
+                    if (eq > 0) {
+                        parameters.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                                       URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                    } else if (!pair.isEmpty()) {
+                        parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+                    }
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return parameters;
+        }
+
+        private void decodeFrames(ByteBuffer input) {
+            while (input.hasRemaining() && state != State.CLOSED && !closeAfterFlush) {
+                if (framePayload == null) {
+                    if (!readFrameHeader(input)) {
+                        return;
+                    }
+                    if (framePayload == null) {
+                        // Header was rejected and the session is closing
+                        return;
+                    }
+                }
+
+                int n = Math.min(input.remaining(), framePayload.length - framePosition);
+                input.get(framePayload, framePosition, n);
+                for (int i = framePosition; i < framePosition + n; i++) {
+                    framePayload[i] ^= mask[i & 3];
+                }
+                framePosition += n;
+
+                if (framePosition == framePayload.length) {
+                    byte[] payload = framePayload;
+                    framePayload = null;
+                    completeFrame(payload);
+                }
+            }
+        }
+
+        /**
+         * Accumulates header bytes; returns false while more input is needed.
+         * A rejected header leaves framePayload null and starts the close handshake.
+         */
+        private boolean readFrameHeader(ByteBuffer input) {
+            if (header == null) {
+                header = new byte[MAX_FRAME_HEADER];
+            }
+            int needed = 2;
+            while (headerLength < needed) {
+                if (!input.hasRemaining()) {
+                    return false;
+                }
+                header[headerLength++] = input.get();
+                if (headerLength >= 2) {
+                    int lengthCode = header[1] & 0x7F;
+                    needed = 2 + (lengthCode == 126 ? 2 : lengthCode == 127 ? 8 : 0)
+                           + ((header[1] & 0x80) != 0 ? 4 : 0);
+                }
+            }
+
+            ByteBuffer parsed = ByteBuffer.wrap(header, 0, headerLength);
+            int b0 = parsed.get() & 0xFF;
+            int b1 = parsed.get() & 0xFF;
+            headerLength = 0;
+
+            frameFin = (b0 & 0x80) != 0;
+            frameOpcode = b0 & 0x0F;
+            int lengthCode = b1 & 0x7F;
+            long length = lengthCode == 126 ? parsed.getShort() & 0xFFFF
+                        : lengthCode == 127 ? parsed.getLong() : lengthCode;
+
+            if ((b1 & 0x80) == 0) {
+                protocolError(CLOSE_PROTOCOL_ERROR, "Client frames must be masked");
+                return true;
+            }
+            parsed.get(mask);
+
+            // RSV1 marks a compressed message and is only valid on its first frame
+            int rsv = b0 & 0x70;
+            frameCompressed = rsv == RSV1;
+            if (rsv != 0 && (!frameCompressed || deflate == null
+                    || (frameOpcode != OPCODE_TEXT && frameOpcode != OPCODE_BINARY))) {
+                protocolError(CLOSE_PROTOCOL_ERROR, "Reserved bits set without a negotiated extension");
+                return true;
+            }
+            boolean control = (frameOpcode & 0x8) != 0;
+            if (control && (!frameFin || length > 125)) {
+                protocolError(CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+                return true;
+            }
+            if (!control && frameOpcode != OPCODE_CONTINUATION && frameOpcode != OPCODE_TEXT
+                    && frameOpcode != OPCODE_BINARY) {
+                protocolError(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + frameOpcode);
+                return true;
+            }
+            if (control && frameOpcode != OPCODE_CLOSE && frameOpcode != OPCODE_PING
+                    && frameOpcode != OPCODE_PONG) {
+                protocolError(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + frameOpcode);
+                return true;
+            }
+            if (length < 0) {
+                // RFC 6455 5.2: the most significant bit of a 64-bit length must be 0
+                protocolError(CLOSE_PROTOCOL_ERROR, "Invalid payload length");
+                return true;
+            }
+            if (length + (control ? 0 : fragmentsLength) > maxMessageSize) {
+                protocolError(CLOSE_TOO_BIG, "Message exceeds " + maxMessageSize + " bytes");
+                return true;
+            }
+
+            framePayload = length == 0 ? EMPTY : new byte[(int) length];
+            framePosition = 0;
+            return true;
+        }
+
+        private void completeFrame(byte[] payload) {
+            switch (frameOpcode) {
+                case OPCODE_CLOSE:
+                    handleCloseFrame(payload);
+                    break;
+                case OPCODE_PING:
+                    if (state == State.OPEN) {
+                        enqueue(encode(OPCODE_PONG, payload));
+                    }
+                    break;
+                case OPCODE_PONG:
+                    break;
+                case OPCODE_CONTINUATION:
+                    if (messageOpcode < 0) {
+                        protocolError(CLOSE_PROTOCOL_ERROR, "Continuation without a started message");
+                        return;
+                    }
+                    appendFragment(payload);
+                    if (frameFin) {
+                        byte[] message = Arrays.copyOf(fragments, fragmentsLength);
+                        int opcode = messageOpcode;
+                        messageOpcode = -1;
+                        fragments = null;
+                        fragmentsLength = 0;
+                        deliver(opcode, message, messageCompressed);
+                    }
+                    break;
+                default:
+                    if (messageOpcode >= 0) {
+                        protocolError(CLOSE_PROTOCOL_ERROR, "New message before previous one finished");
+                        return;
+                    }
+                    if (frameFin) {
+                        deliver(frameOpcode, payload, frameCompressed);
+                    } else {
+                        messageOpcode = frameOpcode;
+                        messageCompressed = frameCompressed;
+                        appendFragment(payload);
+                    }
+            }
+        }
+
+        private void appendFragment(byte[] payload) {
+            if (fragments == null) {
+                fragments = new byte[Math.max(payload.length * 2, 256)];
+            } else if (fragmentsLength + payload.length > fragments.length) {
+                fragments = Arrays.copyOf(fragments, Math.max(fragments.length * 2, fragmentsLength + payload.length));
+            }
+            System.arraycopy(payload, 0, fragments, fragmentsLength, payload.length);
+            fragmentsLength += payload.length;
+        }
+
+        private void deliver(int opcode, byte[] message, boolean compressed) {
+            if (state != State.OPEN) {
+                return;
+            }
+            if (compressed) {
+                try {
+                    message = perMessageDeflate.decompress(message, message.length, deflate.usesDictionary(),
+                                                           inflater, maxMessageSize);
+                } catch (DataFormatException e) {
+                    protocolError(CLOSE_INVALID_PAYLOAD, "Invalid compressed message");
+                    return;
+                }
+                if (message == null) {
+                    protocolError(CLOSE_TOO_BIG, "Message exceeds " + maxMessageSize + " bytes");
+                    return;
+                }
+            }
+            try {
+                if (opcode == OPCODE_TEXT) {
+                    String text;
+                    try {
+                        text = loop.utf8.reset().decode(ByteBuffer.wrap(message)).toString();
+                    } catch (CharacterCodingException e) {
+                        protocolError(CLOSE_INVALID_PAYLOAD, "Invalid UTF-8 in text message");
+                        return;
+                    }
+                    listener.onText(this, text);
+                } else {
+                    listener.onBinary(this, ByteBuffer.wrap(message).asReadOnlyBuffer());
+                }
+            } catch (RuntimeException e) {
+                log("WebSocketServer", "Listener failed for session " + id + ": " + e);
+            }
+        }
+
+        private void handleCloseFrame(byte[] payload) {
+            if (payload.length == 1) {
+                // RFC 6455 5.5.1: a close body starts with a two-byte status code
+                protocolError(CLOSE_PROTOCOL_ERROR, "Truncated close status code");
+                return;
+            }
+            int code = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : CLOSE_NORMAL;
+            String reason = payload.length > 2
+                ? new String(payload, 2, payload.length - 2, StandardCharsets.UTF_8) : "";
+            if (!closeSent) {
+                // Echo the status code back, then drop the connection once it is written
+                closeSent = true;
+                state = State.CLOSING;
+                enqueue(encode(OPCODE_CLOSE, payload.length >= 2 ? Arrays.copyOf(payload, 2) : EMPTY));
+            }
+            // Remember the peer's reason for the onClose callback
+            closeCode = code;
+            closeReason = reason;
+            closeAfterFlush = true;
+            flush();
+        }
+
+        private void protocolError(int code, String reason) {
+            framePayload = null;
+            closeCode = code;
+            closeReason = reason;
+            sendClose(code, reason);
+            closeAfterFlush = true;
+            flush();
+        }
+
+        // ---- Heartbeat ----
+
+        void startHeartbeat() {
+            lastActivity = System.nanoTime();
+            if (idleTimeoutNanos > 0) {
+                // First check at the ping interval, so a quiet peer is pinged before it can time out
+                scheduleHeartbeat(pingIntervalNanos > 0 ? pingIntervalNanos : idleTimeoutNanos);
+            }
+        }
+
+        private void scheduleHeartbeat(long delayNanos) {
+            heartbeat = loop.timers.schedule(this::runHeartbeat, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void runHeartbeat() {
+            try {
+                checkHeartbeat();
+            } catch (RuntimeException e) {
+                // Same isolation as the selector loop: a failed check costs this session only
+                log("WebSocketServer", "Closing session " + id + " after heartbeat failure: " + e);
+                closeChannel(CLOSE_ABNORMAL, "Internal error");
+            }
+        }
+
+        /**
+         * Timer callback; reads only bump lastActivity, and the timer re-arms itself
+         * here from that timestamp instead of being rescheduled on every read
+         */
+        private void checkHeartbeat() {
+            heartbeat = null;
+            if (state == State.CLOSED) {
+                return;
+            }
+            long now = System.nanoTime();
+            long idle = now - lastActivity;
+            if (idle >= idleTimeoutNanos) {
+                evictedSessions.incrementAndGet();
+                closeChannel(CLOSE_ABNORMAL, "Idle timeout");
+                return;
+            }
+
+            boolean pings = pingIntervalNanos > 0 && state == State.OPEN;
+            if (pings && idle < pingIntervalNanos) {
+                scheduleHeartbeat(pingIntervalNanos - idle);
+                return;
+            }
+            if (pings && !pingOutstanding) {
+                pingOutstanding = true;
+                enqueue(encode(OPCODE_PING, EMPTY));
+            }
+            // Any reply (or other input) arrives before this check unless the peer is gone
+            scheduleHeartbeat(idleTimeoutNanos - idle);
+        }
+
+        // ---- Writing ----
+
+        void flush() {
+            if (state == State.CLOSED) {
+                return;
+            }
+            try {
+                while (!outbound.isEmpty()) {
+                    int count = 0;
+                    for (Outbound frame : outbound) {
+                        loop.gather[count++] = frame.buffer;
+                        if (count == MAX_GATHER) {
+                            break;
+                        }
+                    }
+                    channel.write(loop.gather, 0, count);
+                    Arrays.fill(loop.gather, 0, count, null);
+
+                    boolean progress = false;
+                    long writtenAt = 0;
+                    while (!outbound.isEmpty() && !outbound.peek().buffer.hasRemaining()) {
+                        Outbound written = outbound.poll();
+                        queuedBytes -= written.length;
+                        if (!written.control) {
+                            if (writtenAt == 0) {
+                                writtenAt = System.nanoTime();
+                            }
+                            sendDuration.record(writtenAt - written.queuedAt);
+                            messagesSent.increment();
+                            bytesSent.add(written.length);
+                        }
+                        release(written);
+                        progress = true;
+                    }
+                    if (!progress || !outbound.isEmpty() && count < MAX_GATHER) {
+                        // Socket buffer is full; continue when the selector reports writability
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                closeChannel(CLOSE_ABNORMAL, e.getMessage());
+                return;
+            }
+
+            if (outbound.isEmpty()) {
+                recoverIfDrained();
+                if (key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                if (closeAfterFlush) {
+                    closeChannel(closeCode, closeReason);
+                }
+            } else if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * The socket accepted more data after being full
+         */
+        void onWritable() {
+            flush();
+            recoverIfDrained();
+        }
+
+        /**
+         * Clears the slow flag once the peer has really read the backlog down to the low
+         * watermark; conflating or dropping messages alone does not count as catching up
+         */
+        private void recoverIfDrained() {
+            if (slow && state != State.CLOSED && queuedBytes <= outboundLowWatermark) {
+                slow = false;
+                notifyBackpressure(false);
+            }
+        }
+
+        void closeChannel(int code, String reason) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            boolean wasOpen = state == State.OPEN || state == State.CLOSING;
+            state = State.CLOSED;
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+
+            Outbound frame;
+            while ((frame = outbound.poll()) != null) {
+                release(frame);
+            }
+            queuedBytes = 0;
+            if (handshakeBuffer != null) {
+                bufferPool.release(handshakeBuffer);
+                handshakeBuffer = null;
+            }
+            header = null;
+            framePayload = null;
+            fragments = null;
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+
+            if (heartbeat != null) {
+                heartbeat.cancel();
+                heartbeat = null;
+            }
+            loop.loopSessions.remove(this);
+            sessions.remove(id);
+            if (wasOpen) {
+                try {
+                    listener.onClose(this, code, reason != null ? reason : "");
+                } catch (RuntimeException e) {
+                    log("WebSocketServer", "Listener failed for session " + id + ": " + e);
+                }
+            }
+        }
+
+        private void notifyBackpressure(boolean nowSlow) {
+            try {
+                listener.onBackpressure(this, nowSlow);
+            } catch (RuntimeException e) {
+                log("WebSocketServer", "Listener failed for session " + id + ": " + e);
+            }
+        }
+
+        private void notifyOpen() {
+            try {
+                listener.onOpen(this);
+            } catch (RuntimeException e) {
+                log("WebSocketServer", "Listener failed for session " + id + ": " + e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Session{id=" + id + ", state=" + state + ", remote=" + getRemoteAddress() + "}";
+        }
+    }
+}
@@ -0,0 +1,1042 @@
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Asynchronous webhook delivery with retries, backoff and a dead-letter queue
+ *
+ * Producers call submit() and return immediately; the engine never blocks
+ * them on a receiver. Every endpoint URL has its own FIFO queue, and at most
+ * one worker drains it at a time, so events reach an endpoint in the order
+ * they were submitted and a slow endpoint only holds up its own queue.
+ *
+ * When an attempt fails with a retryable error (network failure, timeout,
+ * 408, 429 or 5xx) the endpoint pauses and the same delivery is tried again
+ * after an exponential backoff with full jitter:
+ *   delay = random(0, min(maxBackoff, baseBackoff * 2^(attempt - 1)))
+ * Pausing the whole endpoint keeps ordering and avoids hammering a receiver
+ * that is down. A delivery that runs out of attempts, or gets any other 4xx,
+ * moves to the dead-letter queue and the endpoint carries on with the next one.
+ *
+ * An endpoint can opt into batching with setBatching(). Its events are then
+ * gathered for up to maxEvents or maxDelayMillis, whichever comes first, and
+ * sent as one JSON array; the receiver acknowledges each event by id, and only
+ * the events it did not accept are retried. During a spike one request carries
+ * what would otherwise be dozens. Every request, single or batched, goes
+ * through the Signer if one is set.
+ *
+ * A misbehaving endpoint is kept from hurting the others. Each endpoint has a
+ * circuit breaker that opens when too many of its recent requests fail or are
+ * slow; while it is open the endpoint's events wait in its queue and cost no
+ * worker time. Each endpoint is also a bulkhead: by default one request is in
+ * flight to it at a time, so however slow it is it ties up one worker at most.
+ * With newWorkerPool() the workers are virtual threads where the JVM has them,
+ * so even that one worker is only a parked virtual thread.
+ *
+ * Each delivery keeps its status, attempt count and last error, so callers can
+ * see what happened to an event at any point. A listener is told when each
+ * delivery is finished, which is how WebhookOutbox moves its durable cursors.
+ *
+ * The shared Metrics get, per endpoint, the duration of every request by
+ * status class, the time from submit() until the receiver accepted each
+ * event, and counts of deliveries, retries and dead letters. Each histogram
+ * is 18 KB and some twenty exported lines, and receivers are registered by
+ * callers, so only the first endpoints (10 by default, see
+ * setMaxLabelledEndpoints()) get series of their own; the rest share series
+ * labelled endpoint="other".
+ */
+public class WebhookDeliveryEngine {
+
+    // Requests a worker sends for one endpoint before giving other endpoints a turn
+    private static final int DRAIN_BATCH = 16;
+
+    // Metrics label shared by endpoints beyond the labelled limit
+    static final String OTHER_ENDPOINTS = "other";
+
+    // One entry of a batch response: {"id":"evt_1","status":200}
+    private static final Pattern ACK = Pattern.compile("\\{\\s*\"id\"\\s*:\\s*\"([^\"]*)\"\\s*,\\s*\"status\"\\s*:\\s*(\\d+)\\s*}");
+
+    private final Transport transport;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler;
+
+    private int maxAttempts = 6;
+    private volatile int breakerWindow = 20;
+    private volatile double breakerThreshold = 0.5;
+    private volatile long breakerSlowCallMillis = 10_000;
+    private volatile long breakerOpenMillis = 30_000;
+    private long baseBackoffMillis = 500;
+    private long maxBackoffMillis = 60_000;
+
+    private final Map<String, EndpointQueue> endpoints = new ConcurrentHashMap<>();
+    private final Map<String, Delivery> deliveries = new ConcurrentHashMap<>();
+    // Finished deliveries, oldest first, so their records can be dropped after a while
+    private final Queue<Delivery> finished = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger finishedCount = new AtomicInteger();
+    private int retainFinished = 10_000;
+    private final Queue<Delivery> deadLetters = new ConcurrentLinkedQueue<>();
+    private final AtomicLong deliveryIds = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile int maxLabelledEndpoints = 10;
+    private final AtomicInteger labelledEndpoints = new AtomicInteger();
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    private final Metrics metrics = Metrics.shared();
+
+    private volatile Listener listener;
+    private volatile Signer signer;
+    private volatile boolean stopped;
+
+    /**
+     * Sends on virtual threads when the JVM has them, otherwise on workerThreads platform threads
+     */
+    public WebhookDeliveryEngine(Transport transport, int workerThreads) {
+        this(transport, newWorkerPool(workerThreads));
+    }
+
+    /**
+     * Sends on the given executor, which the engine owns from now on and shuts down in shutdown()
+     */
+    public WebhookDeliveryEngine(Transport transport, ExecutorService workers) {
+        this.transport = transport;
+        this.workers = workers;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("webhook-retry"));
+        metrics.gauge("webhook_pending_deliveries", "Deliveries not yet delivered or dead-lettered", pending::get);
+    }
+
+    /**
+     * A thread per task on virtual threads (Java 21+), or else a fixed pool of daemon threads
+     *
+     * Workers spend nearly all their time waiting on receivers. On virtual
+     * threads a slow endpoint parks a cheap virtual thread instead of holding
+     * one of a few platform threads that every other endpoint needs. The
+     * factory is looked up reflectively, so the engine still runs on older JDKs.
+     */
+    public static ExecutorService newWorkerPool(int fallbackThreads) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "webhook-worker-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(fallbackThreads, daemonThreads("webhook-worker"));
+        }
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Backoff before the second attempt, and the cap that later attempts grow towards
+     */
+    public void setBackoff(long baseBackoffMillis, long maxBackoffMillis) {
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Finished deliveries whose status stays available through getDelivery(); older ones are forgotten
+     */
+    public void setRetainFinished(int retainFinished) {
+        this.retainFinished = retainFinished;
+    }
+
+    /**
+     * How many endpoints get metrics series labelled with their URL; later ones are counted as "other"
+     *
+     * Applies to endpoints the engine has not seen yet.
+     */
+    public void setMaxLabelledEndpoints(int maxLabelledEndpoints) {
+        if (maxLabelledEndpoints < 0) {
+            throw new IllegalArgumentException("maxLabelledEndpoints must not be negative: " + maxLabelledEndpoints);
+        }
+        this.maxLabelledEndpoints = maxLabelledEndpoints;
+    }
+
+    /**
+     * Signs every request, single or batched, just before it is sent
+     */
+    public void setSigner(Signer signer) {
+        this.signer = signer;
+    }
+
+    /**
+     * Circuit breaker settings for every endpoint; see CircuitBreaker
+     *
+     * While an endpoint's breaker is open its deliveries wait in the queue
+     * without using up attempts, and no worker time is spent on it.
+     */
+    public void setCircuitBreaker(int windowSize, double threshold, long slowCallMillis, long openMillis) {
+        if (windowSize < 1 || threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings: window " + windowSize +
+                                               ", threshold " + threshold);
+        }
+        this.breakerWindow = windowSize;
+        this.breakerThreshold = threshold;
+        this.breakerSlowCallMillis = slowCallMillis;
+        this.breakerOpenMillis = openMillis;
+        for (EndpointQueue endpoint : endpoints.values()) {
+            synchronized (endpoint) {
+                endpoint.breaker = newCircuitBreaker(endpoint.url);
+            }
+        }
+    }
+
+    /**
+     * The endpoint's circuit breaker, or null if nothing was ever sent or configured for it
+     */
+    public CircuitBreaker getCircuitBreaker(String url) {
+        EndpointQueue endpoint = endpoints.get(url);
+        if (endpoint == null) {
+            return null;
+        }
+        synchronized (endpoint) {
+            return endpoint.breaker;
+        }
+    }
+
+    /**
+     * Bulkhead for one endpoint: how many requests may be in flight to it at once (default 1)
+     *
+     * With more than one, consecutive events or batches go out in parallel and
+     * may arrive out of order; they are still reported finished in queue order.
+     * The limit also caps how many workers a slow endpoint can tie up.
+     */
+    public void setMaxConcurrency(String url, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Invalid concurrency: " + maxConcurrency);
+        }
+        EndpointQueue endpoint = endpoints.computeIfAbsent(url, this::newEndpoint);
+        synchronized (endpoint) {
+            endpoint.maxConcurrency = maxConcurrency;
+        }
+    }
+
+    /**
+     * Opts an endpoint into batching: up to maxEvents per request, waiting at most maxDelayMillis for a batch to fill
+     *
+     * A maxEvents of 1 turns batching off again.
+     */
+    public void setBatching(String url, int maxEvents, long maxDelayMillis) {
+        if (maxEvents < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid batching settings: " + maxEvents + " events, " + maxDelayMillis + " ms");
+        }
+        EndpointQueue endpoint = endpoints.computeIfAbsent(url, this::newEndpoint);
+        synchronized (endpoint) {
+            endpoint.maxBatch = maxEvents;
+            endpoint.maxDelayMillis = maxDelayMillis;
+        }
+    }
+
+    /**
+     * Told about every delivery that is delivered or dead-lettered, on a worker thread
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queues one event for one endpoint and returns its delivery record
+     */
+    public Delivery submit(String url, String eventId, String eventType, String payload) {
+        return submit(url, eventId, eventType, payload, -1);
+    }
+
+    /**
+     * Queues one event that came from a log, remembering where it came from
+     *
+     * @param sourceOffset position in the source log, handed back through getSourceOffset()
+     */
+    public Delivery submit(String url, String eventId, String eventType, String payload, long sourceOffset) {
+        Delivery delivery = new Delivery(deliveryIds.incrementAndGet(), url, eventId, eventType, payload, sourceOffset);
+        deliveries.put(delivery.getId(), delivery);
+        pending.incrementAndGet();
+        enqueue(delivery);
+        return delivery;
+    }
+
+    public Delivery getDelivery(String deliveryId) {
+        return deliveries.get(deliveryId);
+    }
+
+    /**
+     * Delivery records for an event, one per endpoint it was sent to
+     */
+    public List<Delivery> getDeliveriesForEvent(String eventId) {
+        List<Delivery> result = new ArrayList<>();
+        for (Delivery delivery : deliveries.values()) {
+            if (delivery.getEventId().equals(eventId)) {
+                result.add(delivery);
+            }
+        }
+        result.sort(Comparator.comparingLong(Delivery::getSequence));
+        return result;
+    }
+
+    public Collection<Delivery> getDeadLetters() {
+        return Collections.unmodifiableCollection(deadLetters);
+    }
+
+    /**
+     * Puts every dead-lettered delivery back on its endpoint queue with a fresh attempt budget
+     */
+    public int redeliverDeadLetters() {
+        int count = 0;
+        Delivery delivery;
+        while ((delivery = deadLetters.poll()) != null) {
+            delivery.reset();
+            deliveries.put(delivery.getId(), delivery);
+            pending.incrementAndGet();
+            enqueue(delivery);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Deliveries not yet delivered or dead-lettered
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Per-endpoint backlog, by URL
+     */
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        for (EndpointQueue endpoint : endpoints.values()) {
+            synchronized (endpoint) {
+                depths.put(endpoint.url, endpoint.queue.size());
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * Deliveries queued for one endpoint, including the one being attempted
+     */
+    public int getQueueDepth(String url) {
+        EndpointQueue endpoint = endpoints.get(url);
+        if (endpoint == null) {
+            return 0;
+        }
+        synchronized (endpoint) {
+            return endpoint.queue.size();
+        }
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    public long getDeadLetteredCount() {
+        return deadLettered.get();
+    }
+
+    /**
+     * HTTP requests sent, counting a batch as one
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Waits until nothing is pending; returns false on timeout
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pending.get() > 0) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the worker and retry threads; undelivered events stay in their queues
+     */
+    public void shutdown() {
+        stopped = true;
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+        metrics.remove("webhook_pending_deliveries");
+    }
+
+    // ======= Delivery loop =======
+
+    private void enqueue(Delivery delivery) {
+        EndpointQueue endpoint = endpoints.computeIfAbsent(delivery.getUrl(), this::newEndpoint);
+        boolean start;
+        synchronized (endpoint) {
+            endpoint.queue.add(delivery);
+            start = !endpoint.active;
+            endpoint.active = true;
+            // A full batch does not wait out the rest of the window
+            if (!start && endpoint.lingerTimer != null && endpoint.queue.size() >= endpoint.maxBatch
+                    && endpoint.lingerTimer.cancel(false)) {
+                endpoint.lingerTimer = null;
+                start = true;
+            }
+        }
+        if (start) {
+            workers.execute(() -> drain(endpoint));
+        }
+    }
+
+    private void drain(EndpointQueue endpoint) {
+        for (int round = 0; round < DRAIN_BATCH; round++) {
+            if (stopped) {
+                return;
+            }
+            List<List<Delivery>> batches;
+            CircuitBreaker breaker;
+            synchronized (endpoint) {
+                endpoint.lingerTimer = null;
+                List<Delivery> next = nextDeliveries(endpoint);
+                if (next.isEmpty()) {
+                    endpoint.active = false;
+                    return;
+                }
+                if (endpoint.maxBatch > 1 && next.size() < endpoint.maxBatch) {
+                    // Wait for more events until the oldest one has waited out the window
+                    long wait = next.get(0).getCreatedAt() + endpoint.maxDelayMillis - System.currentTimeMillis();
+                    if (wait > 0) {
+                        // The endpoint stays active, so no other worker starts on it meanwhile
+                        endpoint.lingerTimer = schedule(endpoint, wait);
+                        return;
+                    }
+                }
+                batches = split(next, endpoint.maxBatch);
+                breaker = endpoint.breaker;
+            }
+
+            // Every request needs a permit; a half-open breaker lets a single trial request through
+            int permitted = 0;
+            while (permitted < batches.size() && breaker.tryAcquire()) {
+                permitted++;
+            }
+            if (permitted == 0) {
+                long wait = Math.max(1, breaker.getRetryAfterMillis());
+                log("WebhookEngine", "Circuit for " + endpoint.url + " is open; holding its deliveries for " + wait + " ms");
+                schedule(endpoint, wait);
+                return;
+            }
+
+            List<Delivery> retrying = sendAll(endpoint, breaker, batches.subList(0, permitted));
+            if (stopped) {
+                // Interrupted by shutdown(); the deliveries stay queued
+                return;
+            }
+            completeFinished(endpoint);
+
+            if (!retrying.isEmpty()) {
+                // The endpoint stays active but idle until the backoff has passed
+                int attempts = 0;
+                for (Delivery delivery : retrying) {
+                    attempts = Math.max(attempts, delivery.getAttempts());
+                }
+                long delay = backoffMillis(attempts);
+                for (Delivery delivery : retrying) {
+                    delivery.scheduleRetry(System.currentTimeMillis() + delay);
+                }
+                retries.addAndGet(retrying.size());
+                endpoint.retried.add(retrying.size());
+                Delivery first = retrying.get(0);
+                log("WebhookEngine", "Attempt " + first.getAttempts() + " of " +
+                    (retrying.size() == 1 ? first.getId() : retrying.size() + " deliveries") + " to " +
+                    endpoint.url + " failed (" + first.getLastError() + "); retrying in " + delay + " ms");
+                schedule(endpoint, delay);
+                return;
+            }
+        }
+        // Let other endpoints use this worker before continuing
+        try {
+            workers.execute(() -> drain(endpoint));
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the rest stays queued
+        }
+    }
+
+    // Next deliveries to send, in queue order; finished ones waiting behind a retry are skipped. Caller holds the lock
+    private static List<Delivery> nextDeliveries(EndpointQueue endpoint) {
+        int limit = endpoint.maxBatch * endpoint.maxConcurrency;
+        List<Delivery> next = new ArrayList<>(Math.min(limit, endpoint.queue.size()));
+        for (Delivery delivery : endpoint.queue) {
+            if (!delivery.isFinished()) {
+                next.add(delivery);
+                if (next.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return next;
+    }
+
+    private static List<List<Delivery>> split(List<Delivery> deliveries, int batchSize) {
+        List<List<Delivery>> batches = new ArrayList<>();
+        for (int from = 0; from < deliveries.size(); from += batchSize) {
+            batches.add(deliveries.subList(from, Math.min(deliveries.size(), from + batchSize)));
+        }
+        return batches;
+    }
+
+    /**
+     * Sends the requests of one round, concurrently when there are several
+     *
+     * Other workers are asked to help, but this thread also takes requests
+     * nobody has picked up yet, so the round finishes even when every worker
+     * is busy elsewhere.
+     *
+     * @return deliveries that should be retried, in queue order
+     */
+    private List<Delivery> sendAll(EndpointQueue endpoint, CircuitBreaker breaker, List<List<Delivery>> batches) {
+        if (batches.size() > 1) {
+            AtomicInteger nextBatch = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(batches.size());
+            Runnable sender = () -> {
+                int index;
+                while ((index = nextBatch.getAndIncrement()) < batches.size()) {
+                    try {
+                        sendBatch(endpoint, breaker, batches.get(index));
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            for (int i = 1; i < batches.size(); i++) {
+                try {
+                    workers.execute(sender);
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+            }
+            sender.run();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Collections.emptyList();
+            }
+        } else {
+            sendBatch(endpoint, breaker, batches.get(0));
+        }
+        List<Delivery> retrying = new ArrayList<>();
+        for (List<Delivery> batch : batches) {
+            for (Delivery delivery : batch) {
+                if (!delivery.isFinished()) {
+                    retrying.add(delivery);
+                }
+            }
+        }
+        return retrying;
+    }
+
+    private void sendBatch(EndpointQueue endpoint, CircuitBreaker breaker, List<Delivery> batch) {
+        if (endpoint.maxBatch > 1) {
+            attemptBatch(endpoint, breaker, batch);
+        } else {
+            attempt(endpoint, breaker, batch.get(0));
+        }
+    }
+
+    private ScheduledFuture<?> schedule(EndpointQueue endpoint, long delayMillis) {
+        try {
+            return scheduler.schedule(() -> workers.execute(() -> drain(endpoint)), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the deliveries stay queued
+            return null;
+        }
+    }
+
+    /**
+     * Removes finished deliveries from the head of the queue and reports them
+     *
+     * A delivery acknowledged in a batch behind one that is still retrying stays
+     * queued until that one finishes, so listeners see completions in queue order.
+     */
+    private void completeFinished(EndpointQueue endpoint) {
+        List<Delivery> completed = new ArrayList<>();
+        synchronized (endpoint) {
+            while (!endpoint.queue.isEmpty() && endpoint.queue.peek().isFinished()) {
+                completed.add(endpoint.queue.poll());
+            }
+        }
+        for (Delivery delivery : completed) {
+            pending.decrementAndGet();
+            if (delivery.getStatus() == Status.DELIVERED) {
+                delivered.incrementAndGet();
+                endpoint.delivered.increment();
+                endpoint.deliveryLag.record(
+                    TimeUnit.MILLISECONDS.toNanos(delivery.getCompletedAt() - delivery.getCreatedAt()));
+            } else {
+                deadLetters.add(delivery);
+                deadLettered.incrementAndGet();
+                endpoint.deadLettered.increment();
+                log("WebhookEngine", "Moved " + delivery.getId() + " (" + delivery.getEventType() + ") to the dead-letter queue after " +
+                    delivery.getAttempts() + " attempt(s): " + delivery.getLastError());
+            }
+            retire(delivery);
+            Listener current = listener;
+            if (current != null) {
+                try {
+                    current.onComplete(delivery);
+                } catch (RuntimeException e) {
+                    log("WebhookEngine", "Listener failed for " + delivery.getId() + ": " + e);
+                }
+            }
+        }
+    }
+
+    private void retire(Delivery delivery) {
+        finished.add(delivery);
+        if (finishedCount.incrementAndGet() > retainFinished) {
+            Delivery oldest = finished.poll();
+            if (oldest != null) {
+                finishedCount.decrementAndGet();
+                // Dead letters stay reachable through getDeadLetters()
+                deliveries.remove(oldest.getId(), oldest);
+            }
+        }
+    }
+
+    /**
+     * Sends one delivery on its own
+     */
+    private void attempt(EndpointQueue endpoint, CircuitBreaker breaker, Delivery delivery) {
+        delivery.startAttempt();
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", "application/json");
+        headers.put("Webhook-Id", delivery.getEventId());
+        headers.put("Webhook-Delivery", delivery.getId());
+        headers.put("Webhook-Attempt", String.valueOf(delivery.getAttempts()));
+
+        Response response = send(endpoint, breaker, headers, delivery.getPayload(), Collections.singletonList(delivery));
+        if (response != null) {
+            settle(delivery, response.getStatusCode());
+        }
+    }
+
+    /**
+     * Sends several deliveries as one JSON array
+     *
+     * The receiver acknowledges each event separately, by event id:
+     *   {"results":[{"id":"evt_1","status":200},{"id":"evt_2","status":503}]}
+     * and each status is judged like the status of a single request. An event
+     * the response does not mention is retried. A non-2xx status for the whole
+     * request applies to every event in it.
+     */
+    private void attemptBatch(EndpointQueue endpoint, CircuitBreaker breaker, List<Delivery> batch) {
+        StringBuilder body = new StringBuilder("[");
+        for (Delivery delivery : batch) {
+            delivery.startAttempt();
+            if (body.length() > 1) {
+                body.append(',');
+            }
+            body.append(delivery.getPayload());
+        }
+        body.append(']');
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", "application/json");
+        headers.put("Webhook-Batch-Size", String.valueOf(batch.size()));
+
+        Response response = send(endpoint, breaker, headers, body.toString(), batch);
+        if (response != null) {
+            int status = response.getStatusCode();
+            Map<String, Integer> acks = status >= 200 && status < 300
+                ? parseAcknowledgements(response.getBody()) : null;
+            for (Delivery delivery : batch) {
+                if (acks == null) {
+                    settle(delivery, status);
+                } else {
+                    Integer ack = acks.get(delivery.getEventId());
+                    if (ack != null) {
+                        settle(delivery, ack);
+                    } else {
+                        settleFailure(delivery, true, status, "No acknowledgement for event");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Signs and posts one request and tells the endpoint's circuit breaker how it went
+     *
+     * Network errors, timeouts and 5xx count against the breaker; 429 does not,
+     * since the receiver is pacing us rather than failing. The result goes to
+     * the breaker that granted the permit, even if setCircuitBreaker() has
+     * replaced it since, so a half-open trial is never lost.
+     *
+     * @return the response, or null after a network failure, which settles every delivery in the request
+     */
+    private Response send(EndpointQueue endpoint, CircuitBreaker breaker, Map<String, String> headers, String body,
+                          List<Delivery> carried) {
+        requests.incrementAndGet();
+        long started = System.nanoTime();
+        Response response = null;
+        try {
+            Signer current = signer;
+            if (current != null) {
+                current.sign(endpoint.url, body, headers);
+            }
+            response = transport.post(endpoint.url, headers, body);
+        } catch (IOException | RuntimeException e) {
+            for (Delivery delivery : carried) {
+                settleFailure(delivery, true, 0, e.toString());
+            }
+        }
+        if (!stopped) {
+            int status = response != null ? response.getStatusCode() : 0;
+            long elapsed = System.nanoTime() - started;
+            breaker.record(response == null || status == 408 || status >= 500, elapsed);
+            metrics.requestDuration("webhook", endpoint.metricsLabel,
+                                    response != null ? status / 100 + "xx" : "network_error")
+                .record(elapsed);
+        }
+        return response;
+    }
+
+    private void settle(Delivery delivery, int status) {
+        if (status >= 200 && status < 300) {
+            delivery.succeeded(status);
+        } else {
+            boolean retryable = status == 408 || status == 429 || status >= 500;
+            settleFailure(delivery, retryable, status, "HTTP " + status);
+        }
+    }
+
+    private void settleFailure(Delivery delivery, boolean retryable, int status, String error) {
+        delivery.failed(retryable && delivery.getAttempts() < maxAttempts ? Outcome.RETRY : Outcome.DEAD_LETTER,
+                        status, error);
+    }
+
+    static Map<String, Integer> parseAcknowledgements(String body) {
+        Map<String, Integer> acks = new HashMap<>();
+        if (body != null) {
+            Matcher matcher = ACK.matcher(body);
+            while (matcher.find()) {
+                acks.put(matcher.group(1), Integer.valueOf(matcher.group(2)));
+            }
+        }
+        return acks;
+    }
+
+    private long backoffMillis(int attempts) {
+        long ceiling = baseBackoffMillis << Math.min(attempts - 1, 30);
+        ceiling = Math.min(maxBackoffMillis, ceiling);
+        // Full jitter spreads retries from many producers so they do not arrive in waves
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private EndpointQueue newEndpoint(String url) {
+        EndpointQueue endpoint = new EndpointQueue(url);
+        endpoint.breaker = newCircuitBreaker(url);
+        String label = metricsLabel(url);
+        endpoint.metricsLabel = label;
+        endpoint.delivered = metrics.counter("webhook_deliveries_total", "Deliveries finished, by outcome",
+                                             "endpoint", label, "outcome", "delivered");
+        endpoint.deadLettered = metrics.counter("webhook_deliveries_total", "Deliveries finished, by outcome",
+                                                "endpoint", label, "outcome", "dead_lettered");
+        endpoint.retried = metrics.counter("webhook_retries_total", "Delivery attempts scheduled again after a failure",
+                                           "endpoint", label);
+        endpoint.deliveryLag = metrics.histogram("webhook_delivery_lag_seconds",
+                                                 "Time from submitting an event until the receiver accepted it",
+                                                 "endpoint", label);
+        return endpoint;
+    }
+
+    // Called once per endpoint, from computeIfAbsent, so each URL takes at most one slot
+    private String metricsLabel(String url) {
+        while (true) {
+            int labelled = labelledEndpoints.get();
+            if (labelled >= maxLabelledEndpoints) {
+                return OTHER_ENDPOINTS;
+            }
+            if (labelledEndpoints.compareAndSet(labelled, labelled + 1)) {
+                return url;
+            }
+        }
+    }
+
+    private CircuitBreaker newCircuitBreaker(String url) {
+        CircuitBreaker breaker = new CircuitBreaker(url, breakerWindow, breakerThreshold,
+                                                    breakerSlowCallMillis, breakerOpenMillis);
+        breaker.setListener((source, from, to) ->
+            log("WebhookEngine", "Circuit for " + source.getName() + " went from " + from + " to " + to));
+        return breaker;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Logging helper
+    private static void log(String source, String message) {
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss.SSS"));
+        System.out.println("[" + timestamp + "] [" + source + "] " + message);
+    }
+
+    // ======= Types =======
+
+    /**
+     * Sends one HTTP POST; implementations throw IOException for network errors and timeouts
+     */
+    public interface Transport {
+        Response post(String url, Map<String, String> headers, String body) throws IOException;
+    }
+
+    /**
+     * Receiver's answer to a webhook request
+     */
+    public static class Response {
+        private final int statusCode;
+        private final String body;
+
+        public Response(int statusCode, String body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * Adds authentication headers to a request; see setSigner()
+     */
+    public interface Signer {
+        void sign(String url, String body, Map<String, String> headers);
+    }
+
+    /**
+     * Completion callback; see setListener()
+     */
+    public interface Listener {
+        void onComplete(Delivery delivery);
+    }
+
+    public enum Status {
+        PENDING, IN_FLIGHT, RETRY_SCHEDULED, DELIVERED, DEAD_LETTERED
+    }
+
+    private enum Outcome {
+        RETRY, DEAD_LETTER
+    }
+
+    /**
+     * One event on its way to one endpoint
+     */
+    public static class Delivery {
+        private final long sequence;
+        private final String id;
+        private final String url;
+        private final String eventId;
+        private final String eventType;
+        private final String payload;
+        private final long sourceOffset;
+        private final long createdAt = System.currentTimeMillis();
+
+        private volatile Status status = Status.PENDING;
+        private volatile int attempts;
+        private volatile int lastStatusCode;
+        private volatile String lastError;
+        private volatile long nextAttemptAt;
+        private volatile long completedAt;
+
+        Delivery(long sequence, String url, String eventId, String eventType, String payload, long sourceOffset) {
+            this.sequence = sequence;
+            this.id = "dlv-" + sequence;
+            this.url = url;
+            this.eventId = eventId;
+            this.eventType = eventType;
+            this.payload = payload;
+            this.sourceOffset = sourceOffset;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Submission order across the engine
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getEventId() {
+            return eventId;
+        }
+
+        public String getEventType() {
+            return eventType;
+        }
+
+        public String getPayload() {
+            return payload;
+        }
+
+        /**
+         * Position in the log the event came from, or -1
+         */
+        public long getSourceOffset() {
+            return sourceOffset;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public int getLastStatusCode() {
+            return lastStatusCode;
+        }
+
+        public String getLastError() {
+            return lastError;
+        }
+
+        public long getNextAttemptAt() {
+            return nextAttemptAt;
+        }
+
+        public long getCompletedAt() {
+            return completedAt;
+        }
+
+        /**
+         * Delivered or dead-lettered
+         */
+        public boolean isFinished() {
+            Status current = status;
+            return current == Status.DELIVERED || current == Status.DEAD_LETTERED;
+        }
+
+        void startAttempt() {
+            attempts++;
+            status = Status.IN_FLIGHT;
+        }
+
+        void succeeded(int statusCode) {
+            lastStatusCode = statusCode;
+            lastError = null;
+            completedAt = System.currentTimeMillis();
+            status = Status.DELIVERED;
+        }
+
+        void failed(Outcome outcome, int statusCode, String error) {
+            lastStatusCode = statusCode;
+            lastError = error;
+            if (outcome == Outcome.DEAD_LETTER) {
+                completedAt = System.currentTimeMillis();
+                status = Status.DEAD_LETTERED;
+            }
+        }
+
+        void scheduleRetry(long at) {
+            nextAttemptAt = at;
+            status = Status.RETRY_SCHEDULED;
+        }
+
+        void reset() {
+            attempts = 0;
+            nextAttemptAt = 0;
+            completedAt = 0;
+            status = Status.PENDING;
+        }
+
+        @Override
+        public String toString() {
+            return id + " " + eventType + " -> " + url + ": " + status + " after " + attempts + " attempt(s)"
+                + (lastError != null ? " (" + lastError + ")" : "");
+        }
+    }
+
+    /**
+     * Queue and drain state for one endpoint URL; guarded by its own monitor
+     */
+    private static final class EndpointQueue {
+        final String url;
+        final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+        // A worker is draining this queue or a retry is scheduled for it
+        boolean active;
+        // Batching settings; a maxBatch of 1 sends every event on its own
+        int maxBatch = 1;
+        // Requests in flight at once; more than 1 gives up strict arrival order
+        int maxConcurrency = 1;
+        CircuitBreaker breaker;
+        long maxDelayMillis;
+        // Pending wake-up while a partial batch waits to fill
+        ScheduledFuture<?> lingerTimer;
+        // The URL, or OTHER_ENDPOINTS once the labelled limit was reached
+        String metricsLabel;
+        Metrics.Counter delivered;
+        Metrics.Counter deadLettered;
+        Metrics.Counter retried;
+        Metrics.Histogram deliveryLag;
+
+        EndpointQueue(String url) {
+            this.url = url;
+        }
+    }
+}
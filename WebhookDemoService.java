@@ -1,15 +1,28 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Educational demonstration of Webhook API concepts
@@ -23,6 +36,12 @@ import java.util.concurrent.TimeUnit;
  * - Event-driven architecture
  * - HTTP callbacks
  * - Asynchronous communication
+ * - Reliable delivery: per-endpoint queues, retries with backoff, dead-letter queue
+ * - Transactional outbox: events are journaled to disk and replayed after a crash
+ * - Batched delivery: a subscriber can take bursts as signed JSON arrays and acknowledge each event
+ * - Authentication: HMAC-SHA256 signed, timestamped requests verified in constant time
+ * - Idempotent, ordered consumption: duplicates are acknowledged once, stale events never overwrite newer ones
+ * - Isolation: per-endpoint bulkheads and circuit breakers keep a degraded subscriber from slowing the rest
  */
 public class WebhookDemoService {
     
@@ -32,27 +51,128 @@ public class WebhookDemoService {
     // Order service (the receiving service that registers webhooks)
     private static OrderService orderService = new OrderService();
     
-    // Thread pool for async operations
-    private static ExecutorService executorService = Executors.newFixedThreadPool(3);
+    // Thread pool for payment processing only; webhook calls run on the delivery engine's own workers
+    private static ExecutorService paymentExecutor = Executors.newFixedThreadPool(3);
     
-    public static void main(String[] args) throws InterruptedException {
+    // Simulated receivers, by webhook URL; stands in for the network
+    private static Map<String, WebhookReceiver> receivers = new ConcurrentHashMap<>();
+    private static BatchReceiver analyticsReceiver = new BatchReceiver("Analytics", 2, 40);
+    
+    // Delivers webhooks in the background so PaymentService never waits on a receiver
+    private static WebhookDeliveryEngine deliveryEngine = createDeliveryEngine();
+    
+    // On-disk journal every event is written to before it is delivered
+    private static Path outboxDirectory;
+    private static WebhookOutbox outbox;
+    
+    private static final String ORDER_WEBHOOK_URL = "https://order-service.example.com/webhook/payment-events";
+    private static final String ANALYTICS_WEBHOOK_URL = "https://analytics.example.com/hooks/payments";
+    private static final String LEGACY_WEBHOOK_URL = "https://legacy-erp.example.com/payment-callback";
+    private static final String REPORTING_WEBHOOK_URL = "https://reporting.example.com/webhooks/payments";
+    
+    public static void main(String[] args) throws InterruptedException, IOException {
         // Ensure we shut down the executor service when done
         try {
             log("Main", "Starting Webhook demonstration");
+            outboxDirectory = Files.createTempDirectory("webhook-outbox");
+            outbox = openOutbox();
             
             // Order service registers webhooks with payment service
             setupWebhookRegistration();
+            outbox.start();
+            
+            // Requests that did not come from the payment service are turned away
+            simulateForgedWebhooks();
+            
+            // Retried and reordered events must not roll an order back
+            simulateOutOfOrderDelivery();
             
             // Simulate various payment-related events
             simulatePaymentEvents();
             
+            // Lose everything in memory and recover from the outbox
+            simulateCrashAndRestart();
+            
+            // A burst of events for the batching subscriber
+            simulatePaymentSpike(200);
+            
+            // Show what happened to every delivery
+            reportDeliveries();
+            
             log("Main", "Webhook demonstration completed");
         } finally {
-            executorService.shutdown();
-            executorService.awaitTermination(5, TimeUnit.SECONDS);
+            deliveryEngine.shutdown();
+            if (outbox != null) {
+                outbox.close();
+            }
+            deleteDirectory(outboxDirectory);
+            paymentExecutor.shutdown();
+            paymentExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            orderService.shutdown();
         }
     }
     
+    private static WebhookOutbox openOutbox() throws IOException {
+        // Small segments are plenty for a demo; the default is 64 MB
+        return new WebhookOutbox(outboxDirectory, 1024 * 1024, deliveryEngine, paymentService::endpointsFor);
+    }
+    
+    private static void simulateCrashAndRestart() throws IOException {
+        log("Info", "=== Simulating a Crash ===");
+        log("Info", "Deliveries still queued in memory: " + deliveryEngine.getQueueDepths());
+        
+        // Every in-memory queue, retry timer and sequence counter is lost; the events were already on disk when published
+        deliveryEngine.shutdown();
+        outbox.close();
+        paymentService.forgetSequences();
+        log("PaymentService", "Process stopped");
+        
+        log("Info", "=== Restarting ===");
+        deliveryEngine = createDeliveryEngine();
+        paymentService.configureEngine(deliveryEngine);
+        outbox = openOutbox();
+        MappedJournal journal = outbox.getJournal();
+        log("PaymentService", "Recovered outbox journal: " + journal.getEndOffset() + " bytes in " +
+            journal.getSegmentCount() + " segment(s)");
+        for (MappedJournal.Cursor cursor : journal.getCursors()) {
+            log("PaymentService", "Cursor for " + cursor.getName() + " at offset " + cursor.getOffset());
+        }
+        int replayed = outbox.start();
+        log("PaymentService", "Replayed " + replayed + " unfinished deliveries from the outbox");
+        
+        // The order service still holds order-125 at its last sequence; numbering from the
+        // outbox generation keeps the first event after the restart ahead of it
+        log("PaymentService", "Outbox generation " + outbox.getGeneration() + "; sequences start again above " +
+            outbox.getGeneration() * PaymentService.SEQUENCES_PER_GENERATION);
+        PaymentEvent repaid = new PaymentEvent("payment.success", "pmt-after-restart", "order-125", "customer-321",
+                                               42.00, "Payment processed successfully");
+        paymentService.assignSequence(repaid);
+        deliverDirectly(repaid);
+        log("Info", "Order order-125 is now " + orderService.getOrderStatus("order-125"));
+    }
+    
+    private static void deleteDirectory(Path directory) throws IOException {
+        if (directory == null) {
+            return;
+        }
+        List<Path> paths = new ArrayList<>();
+        Files.walk(directory).forEach(paths::add);
+        paths.sort(Comparator.reverseOrder());
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+    
+    private static WebhookDeliveryEngine createDeliveryEngine() {
+        WebhookDeliveryEngine engine = new WebhookDeliveryEngine(WebhookDemoService::simulateHttpPost, 4);
+        // Short delays so the demo shows several retries within a few seconds
+        engine.setMaxAttempts(4);
+        engine.setBackoff(200, 2000);
+        // Open a circuit when 3 in 4 of an endpoint's recent requests failed or took over a second; probe again after 1.5 s
+        engine.setCircuitBreaker(6, 0.75, 1000, 1500);
+        return engine;
+    }
+    
     private static void setupWebhookRegistration() {
         log("OrderService", "=== Registering Webhooks ===");
         
@@ -69,14 +189,166 @@ public class WebhookDemoService {
         log("PaymentService", "Storing webhook configuration");
         
         // Register the webhook endpoints
-        paymentService.registerWebhook("https://order-service.example.com/webhook/payment-events", 
+        WebhookRegistration registration = paymentService.registerWebhook(ORDER_WEBHOOK_URL, 
                                       List.of("payment.success", "payment.failure", "refund.processed"));
+        receivers.put(ORDER_WEBHOOK_URL, orderService::handleRequest);
         
-        log("PaymentService", "Webhook registration successful");
-        log("OrderService", "Received confirmation of webhook registration");
+        log("PaymentService", "Webhook registration successful; issued a signing secret for the endpoint");
+        orderService.setSigningSecret(registration.getSecret());
+        log("OrderService", "Received confirmation of webhook registration and stored the signing secret");
         
         log("Info", "The OrderService is now subscribed to payment events");
         log("Info", "When events occur, the PaymentService will call the OrderService's webhook endpoint");
+        
+        // Two more subscribers that misbehave, to show retries and the dead-letter queue
+        // Analytics takes events in batches of up to 50, waiting at most 250 ms for a batch to fill
+        paymentService.registerWebhook(ANALYTICS_WEBHOOK_URL, List.of("payment.*", "refund.*"), 50, 250);
+        receivers.put(ANALYTICS_WEBHOOK_URL, analyticsReceiver);
+        log("Info", "Analytics subscribed to payment.* and refund.* in batches; its endpoint answers 503 to its " +
+            "first 2 requests and accepts at most 40 events per request");
+        
+        paymentService.registerWebhook(LEGACY_WEBHOOK_URL, List.of("payment.success"));
+        log("Info", "A legacy ERP subscribed to payment.success; its host is down for the whole demo");
+        
+        paymentService.registerWebhook(REPORTING_WEBHOOK_URL, List.of("payment.#"));
+        receivers.put(REPORTING_WEBHOOK_URL, slowReceiver("Reporting", 1500));
+        log("Info", "Reporting subscribed to payment.#; it is degraded and takes 1.5 s to answer");
+        
+        paymentService.configureEngine(deliveryEngine);
+    }
+    
+    private static void simulateForgedWebhooks() {
+        log("Info", "=== Simulating Forged Webhooks ===");
+        PaymentEvent forged = new PaymentEvent("payment.success", "pmt-forged", "order-999", "customer-666",
+                                               999.99, "Payment processed successfully");
+        String body = forged.toString();
+        
+        Map<String, String> unsigned = new HashMap<>();
+        log("Attacker", "POST " + ORDER_WEBHOOK_URL + " without a signature");
+        log("Attacker", "Response: " + orderService.handleRequest(unsigned, body).getStatusCode());
+        
+        Map<String, String> wrongKey = new HashMap<>();
+        wrongKey.put(WebhookSigner.HEADER, new WebhookSigner(WebhookSigner.newSecret()).sign(body));
+        log("Attacker", "POST " + ORDER_WEBHOOK_URL + " signed with a guessed secret");
+        log("Attacker", "Response: " + orderService.handleRequest(wrongKey, body).getStatusCode());
+        
+        // A genuine signature captured an hour ago; the timestamp is part of what was signed
+        WebhookSigner genuine = paymentService.getRegistration(ORDER_WEBHOOK_URL).getSigner();
+        Map<String, String> replayed = new HashMap<>();
+        replayed.put(WebhookSigner.HEADER, genuine.sign(System.currentTimeMillis() / 1000 - 3600, body));
+        log("Attacker", "POST " + ORDER_WEBHOOK_URL + " replaying a request signed an hour ago");
+        log("Attacker", "Response: " + orderService.handleRequest(replayed, body).getStatusCode());
+    }
+    
+    private static void simulateOutOfOrderDelivery() {
+        log("Info", "=== Simulating Reordered and Repeated Webhooks ===");
+        PaymentEvent paid = new PaymentEvent("payment.success", "pmt-reorder", "order-125", "customer-321",
+                                             42.00, "Payment processed successfully");
+        PaymentEvent refunded = new PaymentEvent("refund.processed", "ref-reorder", "order-125", "customer-321",
+                                                 42.00, "Refund processed successfully");
+        paymentService.assignSequence(paid);
+        paymentService.assignSequence(refunded);
+        
+        log("Info", "The refund (#" + refunded.getSequence() + ") overtakes the payment (#" + paid.getSequence() +
+            ") it belongs to, then the refund is delivered a second time");
+        deliverDirectly(refunded);
+        deliverDirectly(paid);
+        deliverDirectly(refunded);
+        log("Info", "Order order-125 ends up " + orderService.getOrderStatus("order-125"));
+    }
+    
+    // Posts a correctly signed event straight to the order service, as a retry or a reordering network would
+    private static void deliverDirectly(PaymentEvent event) {
+        String body = event.toString();
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Webhook-Id", event.getId());
+        headers.put("Webhook-Delivery", "manual");
+        headers.put("Webhook-Attempt", "1");
+        headers.put(WebhookSigner.HEADER, paymentService.getRegistration(ORDER_WEBHOOK_URL).getSigner().sign(body));
+        WebhookDeliveryEngine.Response response = orderService.handleRequest(headers, body);
+        log("PaymentService", event.getType() + " #" + event.getSequence() + " answered with HTTP " + response.getStatusCode());
+    }
+    
+    /**
+     * Receiver that works but is slow to answer
+     */
+    private static WebhookReceiver slowReceiver(String name, long latencyMillis) {
+        return (headers, body) -> {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new WebhookDeliveryEngine.Response(503, "Service Unavailable");
+            }
+            log(name, "Recorded " + headers.get("Webhook-Id") + " after " + latencyMillis + " ms");
+            return new WebhookDeliveryEngine.Response(200, "OK");
+        };
+    }
+    
+    private static void simulatePaymentSpike(int events) throws InterruptedException {
+        log("Info", "=== Simulating a Traffic Spike ===");
+        int requestsBefore = analyticsReceiver.getRequestCount();
+        int eventsBefore = analyticsReceiver.getEventCount();
+        
+        for (int i = 0; i < events; i++) {
+            paymentService.publish(new PaymentEvent("payment.authorized", "pmt-spike-" + i, "order-" + (1000 + i),
+                                                    "customer-" + (i % 17), 10 + i, "Card authorized"));
+        }
+        log("PaymentService", "Published " + events + " payment.authorized events");
+        
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (deliveryEngine.getQueueDepth(ANALYTICS_WEBHOOK_URL) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        log("Info", "Analytics received " + (analyticsReceiver.getEventCount() - eventsBefore) + " events in " +
+            (analyticsReceiver.getRequestCount() - requestsBefore) + " requests");
+    }
+    
+    /**
+     * Stands in for an HTTP client: adds network latency and routes the request to the receiver for the URL
+     */
+    private static WebhookDeliveryEngine.Response simulateHttpPost(String url, Map<String, String> headers, String body)
+            throws IOException {
+        try {
+            Thread.sleep(200); // Simulate network latency
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+        WebhookReceiver receiver = receivers.get(url);
+        if (receiver == null) {
+            throw new ConnectException("Connection refused: " + url);
+        }
+        return receiver.handle(headers, body);
+    }
+    
+    private static void reportDeliveries() throws InterruptedException {
+        log("Info", "=== Delivery Status Since Restart ===");
+        if (!deliveryEngine.awaitIdle(5, TimeUnit.SECONDS)) {
+            log("Info", "Still pending: " + deliveryEngine.getQueueDepths());
+        }
+        for (String eventId : paymentService.getPublishedEventIds()) {
+            for (WebhookDeliveryEngine.Delivery delivery : deliveryEngine.getDeliveriesForEvent(eventId)) {
+                log("WebhookEngine", eventId + ": " + delivery);
+            }
+        }
+        log("WebhookEngine", "Delivered: " + deliveryEngine.getDeliveredCount() +
+            ", retries: " + deliveryEngine.getRetryCount() +
+            ", dead-lettered: " + deliveryEngine.getDeadLetteredCount());
+        for (WebhookDeliveryEngine.Delivery dead : deliveryEngine.getDeadLetters()) {
+            log("WebhookEngine", "Dead letter kept for manual redelivery: " + dead.getId() + " " + dead.getEventType() +
+                " -> " + dead.getUrl());
+        }
+        for (String url : List.of(ORDER_WEBHOOK_URL, ANALYTICS_WEBHOOK_URL, LEGACY_WEBHOOK_URL, REPORTING_WEBHOOK_URL)) {
+            CircuitBreaker breaker = deliveryEngine.getCircuitBreaker(url);
+            if (breaker != null) {
+                log("WebhookEngine", "Circuit " + breaker);
+            }
+        }
+        log("Info", "Slow or failing receivers never blocked the PaymentService, and the crash lost no event:");
+        log("Info", "unfinished deliveries were replayed from the outbox journal");
+        log("Info", "The degraded reporting endpoint tripped its own circuit and held only its own queue;");
+        log("Info", "the order service and analytics were delivered to at their usual speed");
     }
     
     private static void simulatePaymentEvents() throws InterruptedException {
@@ -147,7 +419,7 @@ public class WebhookDemoService {
             
             // Trigger the webhook
             paymentService.triggerWebhook(event);
-        }, executorService);
+        }, paymentExecutor);
     }
     
     private static CompletableFuture<Void> simulateFailedPayment(
@@ -179,7 +451,7 @@ public class WebhookDemoService {
             
             // Trigger the webhook
             paymentService.triggerWebhook(event);
-        }, executorService);
+        }, paymentExecutor);
     }
     
     private static CompletableFuture<Void> simulateRefund(
@@ -211,7 +483,7 @@ public class WebhookDemoService {
             
             // Trigger the webhook
             paymentService.triggerWebhook(event);
-        }, executorService);
+        }, paymentExecutor);
     }
     
     // Logging helper
@@ -224,35 +496,205 @@ public class WebhookDemoService {
      * Payment service that triggers webhooks when payment events occur
      */
     public static class PaymentService {
-        private List<WebhookRegistration> webhooks = new ArrayList<>();
+        // Room for this many events per order in one run before the next generation's numbers
+        private static final long SEQUENCES_PER_GENERATION = 1_000_000_000L;
+        
+        private Map<String, WebhookRegistration> webhooks = new ConcurrentHashMap<>();
+        // Webhook URLs by event type pattern, e.g. "payment.success" or "payment.*"
+        private EventTypeIndex<String> subscriptions = new EventTypeIndex<>('.');
+        private List<String> publishedEventIds = new CopyOnWriteArrayList<>();
+        // Last sequence number handed out per order; lost on restart, see assignSequence()
+        private Map<String, AtomicLong> orderSequences = new ConcurrentHashMap<>();
+        
+        /**
+         * Registers a URL for event types or patterns; registering a URL again replaces its event list
+         */
+        public WebhookRegistration registerWebhook(String url, List<String> events) {
+            return registerWebhook(url, events, 1, 0);
+        }
+        
+        /**
+         * Registers a URL that takes events in batches of up to maxBatchEvents, sent at most maxBatchDelayMillis apart
+         */
+        public WebhookRegistration registerWebhook(String url, List<String> events,
+                                                   int maxBatchEvents, long maxBatchDelayMillis) {
+            WebhookRegistration registration = new WebhookRegistration(url, events, WebhookSigner.newSecret(),
+                                                                       maxBatchEvents, maxBatchDelayMillis);
+            webhooks.put(url, registration);
+            subscriptions.unregisterAll(url);
+            for (String event : events) {
+                subscriptions.register(event, url);
+            }
+            return registration;
+        }
         
-        public void registerWebhook(String url, List<String> events) {
-            webhooks.add(new WebhookRegistration(url, events));
+        /**
+         * Applies every registration's batching settings and signs requests with its secret
+         */
+        public void configureEngine(WebhookDeliveryEngine engine) {
+            for (WebhookRegistration registration : webhooks.values()) {
+                engine.setBatching(registration.getUrl(), registration.getMaxBatchEvents(),
+                                   registration.getMaxBatchDelayMillis());
+            }
+            engine.setSigner(this::sign);
+        }
+        
+        /**
+         * Signs each request with the endpoint's secret just before it is sent, so retries carry a fresh timestamp
+         */
+        private void sign(String url, String body, Map<String, String> headers) {
+            WebhookRegistration registration = webhooks.get(url);
+            if (registration != null) {
+                headers.put(WebhookSigner.HEADER, registration.getSigner().sign(body));
+            }
+        }
+        
+        public WebhookRegistration getRegistration(String url) {
+            return webhooks.get(url);
+        }
+        
+        public void unregisterWebhook(String url) {
+            webhooks.remove(url);
+            subscriptions.unregisterAll(url);
+        }
+        
+        public List<String> getPublishedEventIds() {
+            return publishedEventIds;
+        }
+        
+        /**
+         * URLs of the webhooks registered for an event type; the outbox routes each event with this
+         *
+         * One lookup in the index, however many webhooks are registered.
+         */
+        public List<String> endpointsFor(String eventType) {
+            return subscriptions.match(eventType);
+        }
+        
+        /**
+         * Numbers the event after the earlier events of its order, so receivers can tell a late event from a new one
+         *
+         * The counters live in memory, so each run numbers from the outbox's
+         * generation: generation g hands out g * SEQUENCES_PER_GENERATION + 1
+         * and up, above anything an earlier run sent, and receivers that still
+         * hold an order's old sequence accept its new events.
+         */
+        public void assignSequence(PaymentEvent event) {
+            long base = outbox.getGeneration() * SEQUENCES_PER_GENERATION;
+            long sequence = orderSequences.computeIfAbsent(event.getOrderId(), key -> new AtomicLong())
+                .accumulateAndGet(base, (last, floor) -> Math.max(last, floor) + 1);
+            if (sequence - base >= SEQUENCES_PER_GENERATION) {
+                throw new IllegalStateException("Order " + event.getOrderId() + " ran out of sequence numbers");
+            }
+            event.setSequence(sequence);
+        }
+        
+        /**
+         * Drops the per-order counters, as a restart of the payment service would
+         */
+        public void forgetSequences() {
+            orderSequences.clear();
+        }
+        
+        /**
+         * Records an event in the outbox without the step-by-step logging of triggerWebhook()
+         */
+        public void publish(PaymentEvent event) {
+            assignSequence(event);
+            try {
+                outbox.publish(event.getId(), event.getType(), event.toString());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
         
         public void triggerWebhook(PaymentEvent event) {
-            log("PaymentService", "Event occurred: " + event.getType());
+            assignSequence(event);
+            log("PaymentService", "Event occurred: " + event.getType() + " #" + event.getSequence() + " of " +
+                event.getOrderId() + " (" + event.getId() + ")");
+            publishedEventIds.add(event.getId());
             
-            // Find webhooks registered for this event type
-            for (WebhookRegistration webhook : webhooks) {
-                if (webhook.getEvents().contains(event.getType())) {
-                    // In a real system, this would make an HTTP POST request to the webhook URL
-                    log("PaymentService", "Triggering webhook: POST " + webhook.getUrl());
-                    log("PaymentService", "Webhook payload: " + event);
-                    
-                    // Simulate network delay
-                    CompletableFuture.runAsync(() -> {
-                        try {
-                            Thread.sleep(200); // Simulate network latency
-                            
-                            // Simulate the HTTP request to the order service
-                            orderService.receiveWebhook(webhook.getUrl(), event);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
-                    }, executorService);
+            // Record the event durably first; the outbox hands it to the delivery engine once it is on disk
+            String payload = event.toString();
+            long offset;
+            try {
+                offset = outbox.publish(event.getId(), event.getType(), payload);
+            } catch (IOException e) {
+                log("PaymentService", "Could not record " + event.getId() + " in the outbox: " + e.getMessage());
+                throw new UncheckedIOException(e);
+            }
+            log("PaymentService", "Event written to the outbox (offset " + offset + ") for " +
+                endpointsFor(event.getType()).size() + " webhook(s)");
+            log("PaymentService", "Webhook payload: " + payload);
+        }
+    }
+    
+    /**
+     * Receiving end of a webhook endpoint, as seen through the simulated network
+     */
+    @FunctionalInterface
+    public interface WebhookReceiver {
+        WebhookDeliveryEngine.Response handle(Map<String, String> headers, String body);
+    }
+    
+    /**
+     * Receiver that takes batches and acknowledges each event on its own
+     *
+     * The first few requests are rejected whole with 503, as if the service were
+     * starting up; after that each request accepts up to a fixed number of events
+     * and answers 429 for the rest, which the engine sends again later.
+     */
+    public static class BatchReceiver implements WebhookReceiver {
+        private final String name;
+        private final int failures;
+        private final int maxEventsPerRequest;
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger events = new AtomicInteger();
+        
+        public BatchReceiver(String name, int failures, int maxEventsPerRequest) {
+            this.name = name;
+            this.failures = failures;
+            this.maxEventsPerRequest = maxEventsPerRequest;
+        }
+        
+        @Override
+        public WebhookDeliveryEngine.Response handle(Map<String, String> headers, String body) {
+            if (requests.incrementAndGet() <= failures) {
+                log(name, "Overloaded, rejecting a request with HTTP 503");
+                return new WebhookDeliveryEngine.Response(503, "Service Unavailable");
+            }
+            List<PaymentEvent> batch;
+            try {
+                batch = PaymentEvent.fromJsonArray(body);
+            } catch (IllegalArgumentException e) {
+                log(name, "Rejecting malformed batch: " + e.getMessage());
+                return new WebhookDeliveryEngine.Response(400, "Bad Request");
+            }
+            StringBuilder results = new StringBuilder("{\"results\":[");
+            int accepted = Math.min(batch.size(), maxEventsPerRequest);
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) {
+                    results.append(',');
                 }
+                results.append("{\"id\":\"").append(batch.get(i).getId()).append("\",\"status\":")
+                       .append(i < accepted ? 200 : 429).append('}');
             }
+            results.append("]}");
+            events.addAndGet(accepted);
+            log(name, "Recorded " + accepted + " of " + batch.size() + " event(s) in one request" +
+                (accepted < batch.size() ? ", throttled the rest with 429" : ""));
+            return new WebhookDeliveryEngine.Response(200, results.toString());
+        }
+        
+        public int getRequestCount() {
+            return requests.get();
+        }
+        
+        /**
+         * Events accepted so far
+         */
+        public int getEventCount() {
+            return events.get();
         }
     }
     
@@ -260,17 +702,107 @@ public class WebhookDemoService {
      * Order service that receives webhooks from the payment service
      */
     public static class OrderService {
-        private Map<String, String> orderStatuses = new HashMap<>();
+        // How far a request's timestamp may be from our clock before it counts as a replay
+        private static final long SIGNATURE_TOLERANCE_SECONDS = 300;
+        // Longer than the sender keeps retrying, so every redelivery is recognised
+        private static final long PROCESSED_EVENT_TTL_HOURS = 24;
+        
+        // Written only by the order's own tasks on orderExecutor
+        private Map<String, OrderStatus> orderStatuses = new ConcurrentHashMap<>();
+        private IdempotencyStore<String> processedEvents = new IdempotencyStore<>(PROCESSED_EVENT_TTL_HOURS, TimeUnit.HOURS);
+        private ExecutorService workers = Executors.newFixedThreadPool(4);
+        // Events of one order are applied one at a time, in arrival order; different orders in parallel
+        private KeyedSerialExecutor<String> orderExecutor = new KeyedSerialExecutor<>(workers);
+        private volatile WebhookSigner verifier;
+        
+        /**
+         * Secret the payment service issued when the webhook was registered
+         */
+        public void setSigningSecret(byte[] secret) {
+            this.verifier = new WebhookSigner(secret);
+        }
+        
+        /**
+         * HTTP entry point: parses the JSON body and answers with a status code
+         */
+        public WebhookDeliveryEngine.Response handleRequest(Map<String, String> headers, String body) {
+            WebhookSigner current = verifier;
+            if (current == null || !current.verify(headers.get(WebhookSigner.HEADER), body, SIGNATURE_TOLERANCE_SECONDS)) {
+                log("OrderService", "Rejecting webhook with a missing, invalid or expired signature");
+                return new WebhookDeliveryEngine.Response(401, "Unauthorized");
+            }
+            PaymentEvent event;
+            try {
+                event = PaymentEvent.fromJson(body);
+            } catch (IllegalArgumentException e) {
+                log("OrderService", "Rejecting malformed webhook: " + e.getMessage());
+                return new WebhookDeliveryEngine.Response(400, "Bad Request");
+            }
+            log("OrderService", "Delivery " + headers.get("Webhook-Delivery") + ", attempt " + headers.get("Webhook-Attempt"));
+            
+            switch (processedEvents.tryClaim(event.getId())) {
+                case DUPLICATE:
+                    log("OrderService", "Event " + event.getId() + " was already processed; acknowledging the duplicate");
+                    return new WebhookDeliveryEngine.Response(200, "OK");
+                case IN_PROGRESS:
+                    // The sender retries later and then gets the outcome of the first copy
+                    log("OrderService", "Event " + event.getId() + " is being processed by another request");
+                    return new WebhookDeliveryEngine.Response(503, "Service Unavailable");
+                default:
+                    break;
+            }
+            try {
+                orderExecutor.submit(event.getOrderId(), () -> {
+                    receiveWebhook(ORDER_WEBHOOK_URL, event);
+                    return null;
+                }).get(5, TimeUnit.SECONDS);
+                processedEvents.complete(event.getId());
+                return new WebhookDeliveryEngine.Response(200, "OK");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                processedEvents.release(event.getId());
+                return new WebhookDeliveryEngine.Response(503, "Service Unavailable");
+            } catch (ExecutionException | TimeoutException e) {
+                // Let a redelivery try again; the sequence check stops it from applying the event twice
+                log("OrderService", "Could not process " + event.getId() + ": " + e);
+                processedEvents.release(event.getId());
+                return new WebhookDeliveryEngine.Response(500, "Internal Server Error");
+            }
+        }
         
+        /**
+         * Current status of an order, or null if no event for it has been applied
+         */
+        public String getOrderStatus(String orderId) {
+            OrderStatus current = orderStatuses.get(orderId);
+            return current != null ? current.status : null;
+        }
+        
+        public void shutdown() {
+            workers.shutdown();
+        }
+        
+        /**
+         * Applies an event to its order; must run on the order's task in orderExecutor
+         */
         public void receiveWebhook(String endpoint, PaymentEvent event) {
             // In a real system, this would be an HTTP endpoint receiving the webhook
             log("OrderService", "Received webhook on " + endpoint);
-            log("OrderService", "Processing event: " + event.getType() + " for order " + event.getOrderId());
+            log("OrderService", "Processing event: " + event.getType() + " #" + event.getSequence() +
+                " for order " + event.getOrderId());
+            
+            // An event older than the last one applied arrived late; applying it would roll the order back
+            OrderStatus current = orderStatuses.get(event.getOrderId());
+            if (current != null && event.getSequence() <= current.sequence) {
+                log("OrderService", "Ignoring stale " + event.getType() + " #" + event.getSequence() + ": order " +
+                    event.getOrderId() + " is already " + current.status + " after #" + current.sequence);
+                return;
+            }
             
             // Update order status based on the payment event
             switch (event.getType()) {
                 case "payment.success":
-                    updateOrderStatus(event.getOrderId(), "PAID");
+                    updateOrderStatus(event, "PAID");
                     log("OrderService", "Updated order " + event.getOrderId() + " status to PAID");
                     
                     // Trigger fulfillment process
@@ -278,7 +810,7 @@ public class WebhookDemoService {
                     break;
                     
                 case "payment.failure":
-                    updateOrderStatus(event.getOrderId(), "PAYMENT_FAILED");
+                    updateOrderStatus(event, "PAYMENT_FAILED");
                     log("OrderService", "Updated order " + event.getOrderId() + " status to PAYMENT_FAILED");
                     
                     // Notify customer about failed payment
@@ -286,7 +818,7 @@ public class WebhookDemoService {
                     break;
                     
                 case "refund.processed":
-                    updateOrderStatus(event.getOrderId(), "REFUNDED");
+                    updateOrderStatus(event, "REFUNDED");
                     log("OrderService", "Updated order " + event.getOrderId() + " status to REFUNDED");
                     
                     // Notify customer about refund
@@ -302,8 +834,21 @@ public class WebhookDemoService {
             log("OrderService", "Responding with HTTP 200 OK");
         }
         
-        private void updateOrderStatus(String orderId, String status) {
-            orderStatuses.put(orderId, status);
+        private void updateOrderStatus(PaymentEvent event, String status) {
+            orderStatuses.put(event.getOrderId(), new OrderStatus(status, event.getSequence()));
+        }
+        
+        /**
+         * Status of an order and the sequence number of the event that set it
+         */
+        private static final class OrderStatus {
+            final String status;
+            final long sequence;
+            
+            OrderStatus(String status, long sequence) {
+                this.status = status;
+                this.sequence = sequence;
+            }
         }
     }
     
@@ -313,10 +858,23 @@ public class WebhookDemoService {
     public static class WebhookRegistration {
         private String url;
         private List<String> events;
+        private byte[] secret;
+        private WebhookSigner signer;
+        private int maxBatchEvents;
+        private long maxBatchDelayMillis;
         
         public WebhookRegistration(String url, List<String> events) {
+            this(url, events, null, 1, 0);
+        }
+        
+        public WebhookRegistration(String url, List<String> events, byte[] secret,
+                                   int maxBatchEvents, long maxBatchDelayMillis) {
             this.url = url;
             this.events = events;
+            this.secret = secret;
+            this.signer = secret != null ? new WebhookSigner(secret) : null;
+            this.maxBatchEvents = maxBatchEvents;
+            this.maxBatchDelayMillis = maxBatchDelayMillis;
         }
         
         public String getUrl() {
@@ -326,21 +884,59 @@ public class WebhookDemoService {
         public List<String> getEvents() {
             return events;
         }
+        
+        /**
+         * Key the payment service signs this endpoint's requests with
+         */
+        public byte[] getSecret() {
+            return secret;
+        }
+        
+        /**
+         * Signer for this endpoint's secret; it keeps its keyed Macs between requests
+         */
+        public WebhookSigner getSigner() {
+            return signer;
+        }
+        
+        /**
+         * Most events per request; 1 means every event is sent on its own
+         */
+        public int getMaxBatchEvents() {
+            return maxBatchEvents;
+        }
+        
+        public long getMaxBatchDelayMillis() {
+            return maxBatchDelayMillis;
+        }
+        
+        public boolean isBatching() {
+            return maxBatchEvents > 1;
+        }
     }
     
     /**
      * Payment event data
      */
     public static class PaymentEvent {
+        private String id;
         private String type;
         private String paymentId;
         private String orderId;
         private String customerId;
         private double amount;
         private String message;
+        private long sequence;
         
         public PaymentEvent(String type, String paymentId, String orderId, 
                            String customerId, double amount, String message) {
+            this("evt_" + UUID.randomUUID().toString().replace("-", ""), type, paymentId, orderId,
+                 customerId, amount, message);
+        }
+        
+        public PaymentEvent(String id, String type, String paymentId, String orderId, 
+                           String customerId, double amount, String message) {
+            this.id = id;
             this.type = type;
             this.paymentId = paymentId;
             this.orderId = orderId;
@@ -349,6 +945,13 @@ public class WebhookDemoService {
             this.message = message;
         }
         
+        /**
+         * Unique per event and stable across retries, so receivers can spot duplicates
+         */
+        public String getId() {
+            return id;
+        }
+        
         public String getType() {
             return type;
         }
@@ -373,11 +976,140 @@ public class WebhookDemoService {
             return message;
         }
         
+        /**
+         * Position among the events of the same order, starting at 1; 0 if not assigned
+         */
+        public long getSequence() {
+            return sequence;
+        }
+        
+        public void setSequence(long sequence) {
+            this.sequence = sequence;
+        }
+        
         @Override
         public String toString() {
-            return "{\"type\":\"" + type + "\",\"paymentId\":\"" + paymentId + "\",\"orderId\":\"" + 
-                   orderId + "\",\"customerId\":\"" + customerId + "\",\"amount\":" + amount + 
-                   ",\"message\":\"" + message + "\"}";
+            return "{\"id\":\"" + id + "\",\"type\":\"" + type + "\",\"paymentId\":\"" + paymentId + "\",\"orderId\":\"" + 
+                   orderId + "\",\"sequence\":" + sequence + ",\"customerId\":\"" + customerId + "\",\"amount\":" + amount + 
+                   ",\"message\":\"" + escape(message) + "\"}";
+        }
+        
+        /**
+         * Parses the flat JSON object produced by toString()
+         */
+        public static PaymentEvent fromJson(String json) {
+            Map<String, String> fields = new LinkedHashMap<>();
+            int i = skipSpaces(json, 0);
+            if (i >= json.length() || json.charAt(i) != '{') {
+                throw new IllegalArgumentException("Expected a JSON object");
+            }
+            i = skipSpaces(json, i + 1);
+            while (i < json.length() && json.charAt(i) != '}') {
+                StringBuilder key = new StringBuilder();
+                i = readString(json, i, key);
+                i = skipSpaces(json, i);
+                if (i >= json.length() || json.charAt(i) != ':') {
+                    throw new IllegalArgumentException("Expected ':' at " + i);
+                }
+                i = skipSpaces(json, i + 1);
+                StringBuilder value = new StringBuilder();
+                if (i < json.length() && json.charAt(i) == '"') {
+                    i = readString(json, i, value);
+                } else {
+                    while (i < json.length() && ",} \t\r\n".indexOf(json.charAt(i)) < 0) {
+                        value.append(json.charAt(i++));
+                    }
+                }
+                fields.put(key.toString(), value.toString());
+                i = skipSpaces(json, i);
+                if (i < json.length() && json.charAt(i) == ',') {
+                    i = skipSpaces(json, i + 1);
+                }
+            }
+            if (i >= json.length()) {
+                throw new IllegalArgumentException("Unterminated JSON object");
+            }
+            for (String required : new String[] {"id", "type", "orderId", "amount"}) {
+                if (!fields.containsKey(required)) {
+                    throw new IllegalArgumentException("Missing field " + required);
+                }
+            }
+            try {
+                PaymentEvent event = new PaymentEvent(fields.get("id"), fields.get("type"), fields.get("paymentId"),
+                                                      fields.get("orderId"), fields.get("customerId"),
+                                                      Double.parseDouble(fields.get("amount")), fields.get("message"));
+                if (fields.containsKey("sequence")) {
+                    event.setSequence(Long.parseLong(fields.get("sequence")));
+                }
+                return event;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid amount or sequence in " + json);
+            }
+        }
+        
+        /**
+         * Parses a JSON array of objects produced by toString(), as sent in a batch
+         */
+        public static List<PaymentEvent> fromJsonArray(String json) {
+            int i = skipSpaces(json, 0);
+            if (i >= json.length() || json.charAt(i) != '[') {
+                throw new IllegalArgumentException("Expected a JSON array");
+            }
+            List<PaymentEvent> events = new ArrayList<>();
+            int depth = 0;
+            int start = -1;
+            boolean inString = false;
+            for (i++; i < json.length(); i++) {
+                char c = json.charAt(i);
+                if (inString) {
+                    if (c == '\\') {
+                        i++;
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{') {
+                    if (depth++ == 0) {
+                        start = i;
+                    }
+                } else if (c == '}') {
+                    if (--depth == 0) {
+                        events.add(fromJson(json.substring(start, i + 1)));
+                    }
+                } else if (c == ']' && depth == 0) {
+                    return events;
+                }
+            }
+            throw new IllegalArgumentException("Unterminated JSON array");
+        }
+        
+        private static String escape(String value) {
+            return value == null ? null : value.replace("\\", "\\\\").replace("\"", "\\\"");
+        }
+        
+        private static int skipSpaces(String json, int i) {
+            while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+        
+        private static int readString(String json, int i, StringBuilder out) {
+            if (i >= json.length() || json.charAt(i) != '"') {
+                throw new IllegalArgumentException("Expected a string at " + i);
+            }
+            for (i++; i < json.length(); i++) {
+                char c = json.charAt(i);
+                if (c == '"') {
+                    return i + 1;
+                }
+                if (c == '\\' && i + 1 < json.length()) {
+                    c = json.charAt(++i);
+                }
+                out.append(c);
+            }
+            throw new IllegalArgumentException("Unterminated string");
         }
     }
 }
@@ -0,0 +1,294 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transactional outbox for webhook events, backed by a MappedJournal
+ *
+ * publish() appends the event to the journal and returns once it is on disk,
+ * so an event that was published survives a crash before any receiver has
+ * seen it. Events are handed to the WebhookDeliveryEngine from the journal's
+ * listener thread, only after they are durable and always in journal order.
+ *
+ * Every endpoint has a cursor in the journal: the offset just past the last
+ * event it has finished (delivered or dead-lettered). Because the engine
+ * delivers to an endpoint in order, one offset per endpoint is enough. After
+ * a restart, start() scans the journal from the lowest cursor and submits
+ * again every event an endpoint subscribes to but had not finished. Cursors
+ * are written back lazily, so a receiver may see an event twice after a
+ * crash (at-least-once) and should de-duplicate on the event id.
+ *
+ * The outbox also counts how often it has been opened, in a small file next
+ * to the journal. getGeneration() is larger than in any earlier run, so a
+ * publisher can number events from it and never hand out a number it used
+ * before a restart, even once the journal segments holding the old events
+ * are gone.
+ *
+ * Segments are deleted once no endpoint with queued deliveries still needs
+ * them. Dead letters are kept in the engine's in-memory queue for an operator
+ * to redeliver; they are not replayed after a restart.
+ *
+ * Record layout: idLength:u16 id typeLength:u16 type payload (all UTF-8)
+ */
+public class WebhookOutbox implements Closeable {
+
+    // How often, at most, the flusher looks for segments it can delete
+    private static final long COMPACTION_INTERVAL_MILLIS = 1000;
+
+    private static final String GENERATION_FILE = "generation";
+
+    private final MappedJournal journal;
+    private final WebhookDeliveryEngine engine;
+    private final Router router;
+    // End of what the previous run wrote; everything after it is dispatched live
+    private final long recoveredEnd;
+    private final long generation;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dispatched = new AtomicLong();
+    private long lastCompaction;
+
+    public WebhookOutbox(Path directory, WebhookDeliveryEngine engine, Router router) throws IOException {
+        this(directory, MappedJournal.DEFAULT_SEGMENT_SIZE, engine, router);
+    }
+
+    public WebhookOutbox(Path directory, int segmentSize, WebhookDeliveryEngine engine, Router router) throws IOException {
+        this.generation = nextGeneration(directory);
+        this.journal = new MappedJournal(directory, segmentSize, 2);
+        this.engine = engine;
+        this.router = router;
+        this.recoveredEnd = journal.getDurableOffset();
+        engine.setListener(this::onComplete);
+    }
+
+    /**
+     * Re-submits what the previous run left undelivered, then starts dispatching new events
+     *
+     * Call it once the endpoints are registered, so the router knows who subscribes to what.
+     * Events published before this are held in the journal and dispatched
+     * right after the replayed ones.
+     *
+     * @return number of deliveries replayed
+     */
+    public int start() throws IOException {
+        long low = Long.MAX_VALUE;
+        for (MappedJournal.Cursor cursor : journal.getCursors()) {
+            low = Math.min(low, cursor.getOffset());
+        }
+        int[] replayed = {0};
+        if (low < recoveredEnd) {
+            journal.read(low, recoveredEnd, (offset, next, record) -> {
+                Event event = decode(record);
+                for (String url : router.endpointsFor(event.type)) {
+                    MappedJournal.Cursor cursor = journal.getCursor(url);
+                    // Endpoints without a cursor never had an event routed to them
+                    if (cursor != null && cursor.getOffset() <= offset) {
+                        engine.submit(url, event.id, event.type, event.payload, next);
+                        replayed[0]++;
+                    }
+                }
+            });
+        }
+        journal.setDurableListener(this::dispatch);
+        return replayed[0];
+    }
+
+    /**
+     * Writes an event to the outbox and waits until it is on disk
+     *
+     * Concurrent publishers share one fsync (group commit), so waiting costs
+     * about one flush however many threads publish at once.
+     *
+     * @return journal offset just past the event
+     */
+    public long publish(String eventId, String eventType, String payload) throws IOException {
+        long end = append(eventId, eventType, payload);
+        try {
+            journal.awaitDurable(end);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the outbox to flush");
+        }
+        return end;
+    }
+
+    /**
+     * Writes an event without waiting for the disk; it is delivered once the next flush makes it durable
+     */
+    public long append(String eventId, String eventType, String payload) throws IOException {
+        byte[] id = eventId.getBytes(StandardCharsets.UTF_8);
+        byte[] type = eventType.getBytes(StandardCharsets.UTF_8);
+        byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+        if (id.length > 0xFFFF || type.length > 0xFFFF) {
+            throw new IllegalArgumentException("Event id or type too long");
+        }
+        byte[] record = new byte[4 + id.length + type.length + body.length];
+        int at = putString(record, 0, id);
+        at = putString(record, at, type);
+        System.arraycopy(body, 0, record, at, body.length);
+        long end = journal.append(record);
+        published.incrementAndGet();
+        return end;
+    }
+
+    /**
+     * How many times the outbox in this directory has been opened, this time included; 1 for a new one
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    public MappedJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Flushes the journal and closes it; queued deliveries are replayed by the next start()
+     */
+    @Override
+    public void close() throws IOException {
+        engine.setListener(null);
+        journal.close();
+    }
+
+    // ======= Journal listener thread =======
+
+    private void dispatch(long from, long to) {
+        journal.read(from, to, (offset, next, record) -> {
+            // Route on the type alone; the id and payload are only decoded when someone subscribes
+            int idLength = record.getShort(0) & 0xFFFF;
+            record.position(2 + idLength);
+            String type = readString(record, record.getShort() & 0xFFFF);
+            Collection<String> urls = router.endpointsFor(type);
+            if (urls.isEmpty()) {
+                return;
+            }
+            record.position(0);
+            Event event = decode(record);
+            for (String url : urls) {
+                try {
+                    journal.cursor(url, offset);
+                } catch (IOException e) {
+                    // The event is in the journal, so the next start() delivers it
+                    System.err.println("Outbox: could not create cursor for " + url + ": " + e);
+                    continue;
+                }
+                engine.submit(url, event.id, event.type, event.payload, next);
+                dispatched.incrementAndGet();
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        if (now - lastCompaction >= COMPACTION_INTERVAL_MILLIS && journal.getSegmentCount() > 1) {
+            lastCompaction = now;
+            compact(to);
+        }
+    }
+
+    private void compact(long dispatchedUpTo) {
+        // Runs on the listener thread, so every event before dispatchedUpTo has been submitted
+        long low = dispatchedUpTo;
+        for (MappedJournal.Cursor cursor : journal.getCursors()) {
+            if (cursor.getOffset() < low && engine.getQueueDepth(cursor.getName()) > 0) {
+                low = cursor.getOffset();
+            }
+        }
+        try {
+            journal.deleteBefore(low);
+        } catch (IOException e) {
+            System.err.println("Outbox: could not delete old segments: " + e);
+        }
+    }
+
+    // ======= Worker threads =======
+
+    private void onComplete(WebhookDeliveryEngine.Delivery delivery) {
+        if (delivery.getSourceOffset() < 0) {
+            return;
+        }
+        MappedJournal.Cursor cursor = journal.getCursor(delivery.getUrl());
+        if (cursor != null) {
+            cursor.advance(delivery.getSourceOffset());
+        }
+    }
+
+    // Write-then-rename with the data forced first, so a crash leaves the old count or the new one
+    private static long nextGeneration(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve(GENERATION_FILE);
+        long generation = 1;
+        if (Files.exists(file)) {
+            String stored = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+            try {
+                generation = Long.parseLong(stored) + 1;
+            } catch (NumberFormatException e) {
+                throw new IOException("Corrupt outbox generation in " + file + ": " + stored);
+            }
+        }
+        Path temp = directory.resolve(GENERATION_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Long.toString(generation).getBytes(StandardCharsets.US_ASCII)));
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return generation;
+    }
+
+    private static int putString(byte[] record, int at, byte[] value) {
+        record[at] = (byte) (value.length >>> 8);
+        record[at + 1] = (byte) value.length;
+        System.arraycopy(value, 0, record, at + 2, value.length);
+        return at + 2 + value.length;
+    }
+
+    private static Event decode(ByteBuffer record) {
+        String id = readString(record, record.getShort() & 0xFFFF);
+        String type = readString(record, record.getShort() & 0xFFFF);
+        String payload = readString(record, record.remaining());
+        return new Event(id, type, payload);
+    }
+
+    private static String readString(ByteBuffer record, int length) {
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ======= Types =======
+
+    /**
+     * Endpoint URLs subscribed to an event type
+     */
+    public interface Router {
+        Collection<String> endpointsFor(String eventType);
+    }
+
+    private static final class Event {
+        final String id;
+        final String type;
+        final String payload;
+
+        Event(String id, String type, String payload) {
+            this.id = id;
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+}
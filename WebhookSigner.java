@@ -0,0 +1,162 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HMAC-SHA256 signatures for webhook requests, with a timestamp against replays
+ *
+ * The sender signs "timestamp.body" with the endpoint's secret and sends
+ *   Webhook-Signature: t=1717171717,v1=5257a869e7ecebeda32affa62cdca3fa51cad7e77a0e56ff536d0ce8e108d8bd
+ * The receiver recomputes the signature and compares it in constant time, so
+ * the comparison leaks nothing about how many leading bytes matched. A request
+ * whose timestamp is further than the tolerance from the receiver's clock is
+ * rejected, so a captured request cannot be replayed later. The header may
+ * carry several v1 entries while a secret is being rotated.
+ *
+ * A Mac initialised with the key is kept for reuse: initialising one derives
+ * the inner and outer pads from the key, which costs more than signing a
+ * small payload. The Macs are pooled rather than kept thread-local because
+ * webhook workers may be virtual threads, one per task, which would never
+ * reuse a thread-local.
+ */
+public final class WebhookSigner {
+
+    public static final String HEADER = "Webhook-Signature";
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // Idle Macs kept per secret; more are created under load and dropped afterwards
+    private static final int MAX_POOLED = 32;
+
+    private final SecretKeySpec key;
+    private final Queue<Mac> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public WebhookSigner(byte[] secret) {
+        if (secret == null || secret.length == 0) {
+            throw new IllegalArgumentException("Empty webhook secret");
+        }
+        this.key = new SecretKeySpec(secret.clone(), ALGORITHM);
+    }
+
+    /**
+     * 32 random bytes, suitable as a per-endpoint secret
+     */
+    public static byte[] newSecret() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return secret;
+    }
+
+    /**
+     * Header value signing the body at the given time (seconds since the epoch)
+     */
+    public String sign(long timestampSeconds, String body) {
+        byte[] signature = compute(timestampSeconds, body);
+        char[] hex = new char[signature.length * 2];
+        for (int i = 0; i < signature.length; i++) {
+            hex[i * 2] = HEX[(signature[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[signature[i] & 0xF];
+        }
+        return "t=" + timestampSeconds + ",v1=" + new String(hex);
+    }
+
+    /**
+     * Header value signing the body now
+     */
+    public String sign(String body) {
+        return sign(System.currentTimeMillis() / 1000, body);
+    }
+
+    /**
+     * Checks a header against the body: one v1 entry must match and the timestamp must be within tolerance of now
+     */
+    public boolean verify(String header, String body, long nowSeconds, long toleranceSeconds) {
+        if (header == null) {
+            return false;
+        }
+        long timestamp = -1;
+        for (String part : header.split(",")) {
+            if (part.startsWith("t=")) {
+                try {
+                    timestamp = Long.parseLong(part.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        if (timestamp < 0 || Math.abs(nowSeconds - timestamp) > toleranceSeconds) {
+            return false;
+        }
+        byte[] expected = compute(timestamp, body);
+        boolean matched = false;
+        for (String part : header.split(",")) {
+            if (part.startsWith("v1=")) {
+                byte[] provided = parseHex(part.substring(3).trim());
+                // Check every entry, so timing does not reveal which one matched
+                matched |= provided != null && MessageDigest.isEqual(expected, provided);
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Checks a header against the body at the current time
+     */
+    public boolean verify(String header, String body, long toleranceSeconds) {
+        return verify(header, body, System.currentTimeMillis() / 1000, toleranceSeconds);
+    }
+
+    private byte[] compute(long timestampSeconds, String body) {
+        Mac mac = pool.poll();
+        if (mac != null) {
+            pooled.decrementAndGet();
+        } else {
+            mac = newMac();
+        }
+        try {
+            mac.update(Long.toString(timestampSeconds).getBytes(StandardCharsets.US_ASCII));
+            mac.update((byte) '.');
+            return mac.doFinal(body.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            // doFinal() leaves the Mac reset and still keyed
+            if (pooled.incrementAndGet() <= MAX_POOLED) {
+                pool.offer(mac);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " unavailable", e);
+        }
+    }
+
+    private static byte[] parseHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}